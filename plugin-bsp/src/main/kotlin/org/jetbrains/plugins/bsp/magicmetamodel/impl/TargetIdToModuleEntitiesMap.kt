@@ -28,35 +28,21 @@ internal object TargetIdToModuleEntitiesMap {
     hasDefaultPythonInterpreter: Boolean,
     isAndroidSupportEnabled: Boolean,
   ): Map<BuildTargetIdentifier, Module> {
-    val moduleDetailsToJavaModuleTransformer =
-      ModuleDetailsToJavaModuleTransformer(
+    val transformer =
+      ModuleDetailsToModuleEntityTransformer(
         targetIdToTargetInfo,
-        moduleNameProvider,
-        libraryNameProvider,
         projectBasePath,
-        isAndroidSupportEnabled,
-      )
-    val moduleDetailsToPythonModuleTransformer =
-      ModuleDetailsToPythonModuleTransformer(
-        targetIdToTargetInfo,
         moduleNameProvider,
         libraryNameProvider,
         hasDefaultPythonInterpreter,
+        isAndroidSupportEnabled,
       )
 
     return runBlocking(Dispatchers.Default) {
       projectDetails.targetIds
         .map {
           async {
-            val moduleDetails = targetIdToModuleDetails.getValue(it)
-            val module =
-              if (moduleDetails.target.languageIds.includesPython()) {
-                moduleDetailsToPythonModuleTransformer.transform(moduleDetails)
-              } else if (moduleDetails.target.languageIds.isJvmOrAndroidTarget()) {
-                moduleDetailsToJavaModuleTransformer.transform(moduleDetails)
-              } else {
-                return@async null
-              }
+            val module = transformer.transform(targetIdToModuleDetails.getValue(it)) ?: return@async null
             it to module
           }
         }.awaitAll()
@@ -67,6 +53,42 @@ internal object TargetIdToModuleEntitiesMap {
   }
 }
 
+/** Creates the module of a single target, so the modules can be created as the details of their targets arrive. */
+internal class ModuleDetailsToModuleEntityTransformer(
+  targetIdToTargetInfo: Map<BuildTargetIdentifier, BuildTargetInfo>,
+  projectBasePath: Path,
+  moduleNameProvider: TargetNameReformatProvider,
+  libraryNameProvider: TargetNameReformatProvider,
+  hasDefaultPythonInterpreter: Boolean,
+  isAndroidSupportEnabled: Boolean,
+) {
+  private val moduleDetailsToJavaModuleTransformer =
+    ModuleDetailsToJavaModuleTransformer(
+      targetIdToTargetInfo,
+      moduleNameProvider,
+      libraryNameProvider,
+      projectBasePath,
+      isAndroidSupportEnabled,
+    )
+  private val moduleDetailsToPythonModuleTransformer =
+    ModuleDetailsToPythonModuleTransformer(
+      targetIdToTargetInfo,
+      moduleNameProvider,
+      libraryNameProvider,
+      hasDefaultPythonInterpreter,
+    )
+
+  /** Returns `null` for targets in languages without modules. */
+  fun transform(moduleDetails: ModuleDetails): Module? =
+    if (moduleDetails.target.languageIds.includesPython()) {
+      moduleDetailsToPythonModuleTransformer.transform(moduleDetails)
+    } else if (moduleDetails.target.languageIds.isJvmOrAndroidTarget()) {
+      moduleDetailsToJavaModuleTransformer.transform(moduleDetails)
+    } else {
+      null
+    }
+}
+
 @TestOnly
 public fun Collection<String>.toDefaultTargetsMap(): Map<BuildTargetIdentifier, BuildTargetInfo> =
   associateBy(
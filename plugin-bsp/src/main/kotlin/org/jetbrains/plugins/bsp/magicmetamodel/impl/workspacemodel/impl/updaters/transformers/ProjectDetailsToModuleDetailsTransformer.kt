@@ -1,6 +1,14 @@
 package org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers
 
+import ch.epfl.scala.bsp4j.BuildTarget
 import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import ch.epfl.scala.bsp4j.DependencySourcesItem
+import ch.epfl.scala.bsp4j.JavacOptionsItem
+import ch.epfl.scala.bsp4j.PythonOptionsItem
+import ch.epfl.scala.bsp4j.ResourcesItem
+import ch.epfl.scala.bsp4j.ScalacOptionsItem
+import ch.epfl.scala.bsp4j.SourcesItem
+import org.jetbrains.bsp.protocol.JvmBinaryJarsItem
 import org.jetbrains.plugins.bsp.magicmetamodel.ProjectDetails
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.ModuleDetails
 
@@ -21,8 +29,7 @@ internal class ProjectDetailsToModuleDetailsTransformer(
 
   fun moduleDetailsForTargetId(targetId: BuildTargetIdentifier): ModuleDetails {
     val target = targetsIndex[targetId] ?: error("Cannot find target for target id: $targetId.")
-    val allDependencies = libraryGraph.calculateAllDependencies(target)
-    return ModuleDetails(
+    return createModuleDetails(
       target = target,
       sources = sourcesIndex[target.id].orEmpty(),
       resources = resourcesIndex[targetId].orEmpty(),
@@ -30,13 +37,40 @@ internal class ProjectDetailsToModuleDetailsTransformer(
       javacOptions = javacOptionsIndex[targetId],
       scalacOptions = scalacOptionsIndex[targetId],
       pythonOptions = pythonOptionsIndex[targetId],
-      outputPathUris = emptyList(),
-      libraryDependencies = allDependencies.libraryDependencies.takeIf { projectDetails.libraries != null }?.toList(),
-      moduleDependencies = allDependencies.moduleDependencies.toList(),
-      defaultJdkName = projectDetails.defaultJdkName,
       jvmBinaryJars = jvmBinaryJarsIndex[targetId].orEmpty(),
-      workspaceModelEntitiesFolderMarker =
-        resourcesIndex[targetId].orEmpty().flatMap { it.resources }.any { it.endsWith(WORKSPACE_MODEL_ENTITIES_FOLDER_MARKER) },
+      projectDetails = projectDetails,
+      libraryGraph = libraryGraph,
     )
   }
 }
+
+internal fun createModuleDetails(
+  target: BuildTarget,
+  sources: List<SourcesItem>,
+  resources: List<ResourcesItem>,
+  dependenciesSources: List<DependencySourcesItem>,
+  javacOptions: JavacOptionsItem?,
+  scalacOptions: ScalacOptionsItem?,
+  pythonOptions: PythonOptionsItem?,
+  jvmBinaryJars: List<JvmBinaryJarsItem>,
+  projectDetails: ProjectDetails,
+  libraryGraph: LibraryGraph,
+): ModuleDetails {
+  val allDependencies = libraryGraph.calculateAllDependencies(target)
+  return ModuleDetails(
+    target = target,
+    sources = sources,
+    resources = resources,
+    dependenciesSources = dependenciesSources,
+    javacOptions = javacOptions,
+    scalacOptions = scalacOptions,
+    pythonOptions = pythonOptions,
+    outputPathUris = emptyList(),
+    libraryDependencies = allDependencies.libraryDependencies.takeIf { projectDetails.libraries != null }?.toList(),
+    moduleDependencies = allDependencies.moduleDependencies.toList(),
+    defaultJdkName = projectDetails.defaultJdkName,
+    jvmBinaryJars = jvmBinaryJars,
+    workspaceModelEntitiesFolderMarker =
+      resources.flatMap { it.resources }.any { it.endsWith(WORKSPACE_MODEL_ENTITIES_FOLDER_MARKER) },
+  )
+}
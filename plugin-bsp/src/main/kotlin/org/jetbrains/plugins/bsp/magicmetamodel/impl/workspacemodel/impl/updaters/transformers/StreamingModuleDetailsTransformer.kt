@@ -0,0 +1,108 @@
+package org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers
+
+import ch.epfl.scala.bsp4j.BuildTarget
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import ch.epfl.scala.bsp4j.DependencySourcesItem
+import ch.epfl.scala.bsp4j.JavacOptionsItem
+import ch.epfl.scala.bsp4j.PythonOptionsItem
+import ch.epfl.scala.bsp4j.ResourcesItem
+import ch.epfl.scala.bsp4j.ScalacOptionsItem
+import ch.epfl.scala.bsp4j.SourcesItem
+import org.jetbrains.plugins.bsp.magicmetamodel.ProjectDetails
+import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.ModuleDetails
+
+/**
+ * Creates the module details of the targets of [projectDetails] from responses which arrive in chunks, e.g. from
+ * `streamRequest`, instead of from the whole responses kept in [projectDetails].
+ *
+ * Adding the items of a chunk returns the module details of the targets for which every expected response has arrived
+ * with it, and the items kept for these targets are released then. Every request has to be registered with [expect]
+ * before any of them is sent, otherwise a target could be returned before the items of a later request arrive.
+ *
+ * The items can be added from many threads at once. The module details are created on the calling thread, so the items
+ * should rather be added by workers than by the callbacks of the requests.
+ */
+internal class StreamingModuleDetailsTransformer(
+  private val projectDetails: ProjectDetails,
+  private val libraryGraph: LibraryGraph,
+) {
+  private class PendingTarget(val target: BuildTarget) {
+    var expectedResponses = 0
+    var receivedResponses = 0
+    val sources = mutableListOf<SourcesItem>()
+    val resources = mutableListOf<ResourcesItem>()
+    val dependenciesSources = mutableListOf<DependencySourcesItem>()
+    var javacOptions: JavacOptionsItem? = null
+    var scalacOptions: ScalacOptionsItem? = null
+    var pythonOptions: PythonOptionsItem? = null
+  }
+
+  private val pendingTargets = projectDetails.targets.associateTo(HashMap()) { it.id to PendingTarget(it) }
+  private val jvmBinaryJarsIndex = projectDetails.jvmBinaryJars.groupBy { it.target }
+
+  /** Registers a request about [targetIds], whose items will be added in chunks. */
+  @Synchronized
+  fun expect(targetIds: List<BuildTargetIdentifier>) {
+    targetIds.forEach { pendingTargets[it]?.let { target -> target.expectedResponses++ } }
+  }
+
+  fun addSources(targetIds: List<BuildTargetIdentifier>, items: List<SourcesItem>): List<ModuleDetails> =
+    add(targetIds, items, { it.target }) { sources.add(it) }
+
+  fun addResources(targetIds: List<BuildTargetIdentifier>, items: List<ResourcesItem>): List<ModuleDetails> =
+    add(targetIds, items, { it.target }) { resources.add(it) }
+
+  fun addDependencySources(targetIds: List<BuildTargetIdentifier>, items: List<DependencySourcesItem>): List<ModuleDetails> =
+    add(targetIds, items, { it.target }) { dependenciesSources.add(it) }
+
+  fun addJavacOptions(targetIds: List<BuildTargetIdentifier>, items: List<JavacOptionsItem>): List<ModuleDetails> =
+    add(targetIds, items, { it.target }) { javacOptions = it }
+
+  fun addScalacOptions(targetIds: List<BuildTargetIdentifier>, items: List<ScalacOptionsItem>): List<ModuleDetails> =
+    add(targetIds, items, { it.target }) { scalacOptions = it }
+
+  fun addPythonOptions(targetIds: List<BuildTargetIdentifier>, items: List<PythonOptionsItem>): List<ModuleDetails> =
+    add(targetIds, items, { it.target }) { pythonOptions = it }
+
+  /** Returns the targets which are still pending, e.g. because no request was about them or a response left them out. */
+  fun finish(): List<ModuleDetails> {
+    val remainingTargets =
+      synchronized(this) {
+        pendingTargets.values.toList().also { pendingTargets.clear() }
+      }
+    return remainingTargets.map { it.toModuleDetails() }
+  }
+
+  // a chunk answers one of the expected responses for each of its targets, also for those it has no items for
+  private inline fun <T> add(
+    targetIds: List<BuildTargetIdentifier>,
+    items: List<T>,
+    targetOf: (T) -> BuildTargetIdentifier,
+    addItem: PendingTarget.(T) -> Unit,
+  ): List<ModuleDetails> {
+    val completedTargets =
+      synchronized(this) {
+        items.forEach { item -> pendingTargets[targetOf(item)]?.addItem(item) }
+        targetIds.mapNotNull { targetId ->
+          pendingTargets[targetId]
+            ?.takeIf { ++it.receivedResponses >= it.expectedResponses }
+            ?.also { pendingTargets.remove(targetId) }
+        }
+      }
+    return completedTargets.map { it.toModuleDetails() }
+  }
+
+  private fun PendingTarget.toModuleDetails(): ModuleDetails =
+    createModuleDetails(
+      target = target,
+      sources = sources,
+      resources = resources,
+      dependenciesSources = dependenciesSources,
+      javacOptions = javacOptions,
+      scalacOptions = scalacOptions,
+      pythonOptions = pythonOptions,
+      jvmBinaryJars = jvmBinaryJarsIndex[target.id].orEmpty(),
+      projectDetails = projectDetails,
+      libraryGraph = libraryGraph,
+    )
+}
@@ -3,114 +3,464 @@ package org.jetbrains.plugins.bsp.server
 import ch.epfl.scala.bsp4j.BuildTargetIdentifier
 import ch.epfl.scala.bsp4j.CleanCacheParams
 import ch.epfl.scala.bsp4j.CleanCacheResult
+import ch.epfl.scala.bsp4j.DependencyModulesItem
 import ch.epfl.scala.bsp4j.DependencyModulesParams
 import ch.epfl.scala.bsp4j.DependencyModulesResult
+import ch.epfl.scala.bsp4j.DependencySourcesItem
 import ch.epfl.scala.bsp4j.DependencySourcesParams
 import ch.epfl.scala.bsp4j.DependencySourcesResult
+import ch.epfl.scala.bsp4j.JavacOptionsItem
 import ch.epfl.scala.bsp4j.JavacOptionsParams
 import ch.epfl.scala.bsp4j.JavacOptionsResult
+import ch.epfl.scala.bsp4j.OutputPathsItem
 import ch.epfl.scala.bsp4j.OutputPathsParams
 import ch.epfl.scala.bsp4j.OutputPathsResult
+import ch.epfl.scala.bsp4j.PythonOptionsItem
+import ch.epfl.scala.bsp4j.PythonOptionsParams
+import ch.epfl.scala.bsp4j.PythonOptionsResult
+import ch.epfl.scala.bsp4j.ResourcesItem
 import ch.epfl.scala.bsp4j.ResourcesParams
 import ch.epfl.scala.bsp4j.ResourcesResult
+import ch.epfl.scala.bsp4j.ScalacOptionsItem
+import ch.epfl.scala.bsp4j.ScalacOptionsParams
+import ch.epfl.scala.bsp4j.ScalacOptionsResult
+import ch.epfl.scala.bsp4j.SourcesItem
 import ch.epfl.scala.bsp4j.SourcesParams
 import ch.epfl.scala.bsp4j.SourcesResult
+import com.intellij.openapi.diagnostic.logger
+import io.opentelemetry.api.trace.Span
+import io.opentelemetry.api.trace.StatusCode
+import org.eclipse.lsp4j.jsonrpc.ResponseErrorException
 import org.jetbrains.bsp.protocol.JoinedBuildServer
+import org.jetbrains.plugins.bsp.performance.testing.bspTracer
+import java.util.concurrent.CancellationException
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import kotlin.math.ceil
 import kotlin.math.sqrt
 
 private typealias BTI = BuildTargetIdentifier
 
-public class ChunkingBuildServer<S : JoinedBuildServer>(private val base: S, private val minChunkSize: Int) : JoinedBuildServer by base {
-  override fun buildTargetSources(params: SourcesParams?): CompletableFuture<SourcesResult> =
-    chunkedRequest(
-      unwrapReq = { it.targets },
-      wrapReq = { SourcesParams(it) },
-      doRequest = { base.buildTargetSources(it) },
-      unwrapRes = { it.items },
-      wrapRes = { SourcesResult(it) },
-    )(params)
+private val log = logger<ChunkingBuildServer<*>>()
+
+/**
+ * A request about many targets, which can be split into requests about chunks of the targets.
+ *
+ * [payloadOf] estimates the size of a result item, as the number of elements in it, e.g. source files.
+ */
+internal class ChunkedEndpoint<ReqW, Res, ResW>(
+  val name: String,
+  val unwrapReq: (ReqW) -> List<BTI>,
+  val wrapReq: (List<BTI>) -> ReqW,
+  val doRequest: JoinedBuildServer.(ReqW?) -> CompletableFuture<ResW>,
+  val unwrapRes: (ResW) -> List<Res>,
+  val wrapRes: (List<Res>) -> ResW,
+  val payloadOf: (Res) -> Int,
+) {
+  companion object {
+    val SOURCES =
+      ChunkedEndpoint<SourcesParams, SourcesItem, SourcesResult>(
+        name = "buildTarget.sources",
+        unwrapReq = { it.targets },
+        wrapReq = { SourcesParams(it) },
+        doRequest = { buildTargetSources(it) },
+        unwrapRes = { it.items },
+        wrapRes = { SourcesResult(it) },
+        payloadOf = { it.sources.size + it.roots.orEmpty().size },
+      )
+
+    val RESOURCES =
+      ChunkedEndpoint<ResourcesParams, ResourcesItem, ResourcesResult>(
+        name = "buildTarget.resources",
+        unwrapReq = { it.targets },
+        wrapReq = { ResourcesParams(it) },
+        doRequest = { buildTargetResources(it) },
+        unwrapRes = { it.items },
+        wrapRes = { ResourcesResult(it) },
+        payloadOf = { it.resources.size },
+      )
+
+    val DEPENDENCY_SOURCES =
+      ChunkedEndpoint<DependencySourcesParams, DependencySourcesItem, DependencySourcesResult>(
+        name = "buildTarget.dependencySources",
+        unwrapReq = { it.targets },
+        wrapReq = { DependencySourcesParams(it) },
+        doRequest = { buildTargetDependencySources(it) },
+        unwrapRes = { it.items },
+        wrapRes = { DependencySourcesResult(it) },
+        payloadOf = { it.sources.size },
+      )
+
+    val OUTPUT_PATHS =
+      ChunkedEndpoint<OutputPathsParams, OutputPathsItem, OutputPathsResult>(
+        name = "buildTarget.outputPaths",
+        unwrapReq = { it.targets },
+        wrapReq = { OutputPathsParams(it) },
+        doRequest = { buildTargetOutputPaths(it) },
+        unwrapRes = { it.items },
+        wrapRes = { OutputPathsResult(it) },
+        payloadOf = { it.outputPaths.size },
+      )
+
+    val DEPENDENCY_MODULES =
+      ChunkedEndpoint<DependencyModulesParams, DependencyModulesItem, DependencyModulesResult>(
+        name = "buildTarget.dependencyModules",
+        unwrapReq = { it.targets },
+        wrapReq = { DependencyModulesParams(it) },
+        doRequest = { buildTargetDependencyModules(it) },
+        unwrapRes = { it.items },
+        wrapRes = { DependencyModulesResult(it) },
+        payloadOf = { it.modules.size },
+      )
+
+    val JAVAC_OPTIONS =
+      ChunkedEndpoint<JavacOptionsParams, JavacOptionsItem, JavacOptionsResult>(
+        name = "buildTarget.javacOptions",
+        unwrapReq = { it.targets },
+        wrapReq = { JavacOptionsParams(it) },
+        doRequest = { buildTargetJavacOptions(it) },
+        unwrapRes = { it.items },
+        wrapRes = { JavacOptionsResult(it) },
+        payloadOf = { it.options.size + it.classpath.size },
+      )
+
+    val SCALAC_OPTIONS =
+      ChunkedEndpoint<ScalacOptionsParams, ScalacOptionsItem, ScalacOptionsResult>(
+        name = "buildTarget.scalacOptions",
+        unwrapReq = { it.targets },
+        wrapReq = { ScalacOptionsParams(it) },
+        doRequest = { buildTargetScalacOptions(it) },
+        unwrapRes = { it.items },
+        wrapRes = { ScalacOptionsResult(it) },
+        payloadOf = { it.options.size + it.classpath.size },
+      )
+
+    val PYTHON_OPTIONS =
+      ChunkedEndpoint<PythonOptionsParams, PythonOptionsItem, PythonOptionsResult>(
+        name = "buildTarget.pythonOptions",
+        unwrapReq = { it.targets },
+        wrapReq = { PythonOptionsParams(it) },
+        doRequest = { buildTargetPythonOptions(it) },
+        unwrapRes = { it.items },
+        wrapRes = { PythonOptionsResult(it) },
+        payloadOf = { it.interpreterOptions.size },
+      )
+
+    val CLEAN_CACHE =
+      ChunkedEndpoint<CleanCacheParams, CleanCacheResult, CleanCacheResult>(
+        name = "buildTarget.cleanCache",
+        unwrapReq = { it.targets },
+        wrapReq = { CleanCacheParams(it) },
+        doRequest = { buildTargetCleanCache(it) },
+        unwrapRes = { listOf(it) },
+        wrapRes = { results -> CleanCacheResult(results.all { it.cleaned }) },
+        payloadOf = { 1 },
+      )
+  }
+}
+
+/**
+ * Splits requests about many targets into requests about chunks of them, so the server can answer them
+ * in parallel and no response is too large.
+ *
+ * At most [maxChunksInFlight] chunks of a request are sent at once. The first chunks have `sqrt(n)` targets,
+ * the following ones are sized from the time and the payload per target measured for the endpoint, so a chunk
+ * takes about [TARGET_CHUNK_MILLIS] and has at most [MAX_CHUNK_PAYLOAD] elements. A chunk which failed on the way,
+ * e.g. timed out, is sent again up to [maxRetries] times, without the chunks which succeeded. An error response of the
+ * server fails the request right away, as it would be the same for every attempt.
+ *
+ * When the items are streamed, at most [maxUnhandledChunks] answered chunks of a request wait to be handled, no more
+ * chunks are sent until the handling catches up, so the answers don't pile up when it is slower than the server.
+ */
+public class ChunkingBuildServer<S : JoinedBuildServer>(
+  private val base: S,
+  private val minChunkSize: Int,
+  private val maxChunksInFlight: Int = 4,
+  private val maxRetries: Int = 2,
+  private val maxUnhandledChunks: Int = 2 * maxChunksInFlight,
+) : JoinedBuildServer by base {
+  init {
+    require(minChunkSize >= 1) { "minChunkSize must be positive, was $minChunkSize" }
+    require(maxChunksInFlight >= 1) { "maxChunksInFlight must be positive, was $maxChunksInFlight" }
+    require(maxRetries >= 0) { "maxRetries can't be negative, was $maxRetries" }
+    require(maxUnhandledChunks >= 1) { "maxUnhandledChunks must be positive, was $maxUnhandledChunks" }
+  }
+
+  private val statisticsByEndpoint = ConcurrentHashMap<String, ChunkStatistics>()
+
+  override fun buildTargetSources(params: SourcesParams?): CompletableFuture<SourcesResult> = request(ChunkedEndpoint.SOURCES, params)
 
   override fun buildTargetResources(params: ResourcesParams?): CompletableFuture<ResourcesResult> =
-    chunkedRequest(
-      unwrapReq = { it.targets },
-      wrapReq = { ResourcesParams(it) },
-      doRequest = { base.buildTargetResources(it) },
-      unwrapRes = { it.items },
-      wrapRes = { ResourcesResult(it) },
-    )(params)
+    request(ChunkedEndpoint.RESOURCES, params)
 
   override fun buildTargetDependencySources(params: DependencySourcesParams?): CompletableFuture<DependencySourcesResult> =
-    chunkedRequest(
-      unwrapReq = { it.targets },
-      wrapReq = { DependencySourcesParams(it) },
-      doRequest = { base.buildTargetDependencySources(it) },
-      unwrapRes = { it.items },
-      wrapRes = { DependencySourcesResult(it) },
-    )(params)
+    request(ChunkedEndpoint.DEPENDENCY_SOURCES, params)
 
   override fun buildTargetOutputPaths(params: OutputPathsParams?): CompletableFuture<OutputPathsResult> =
-    chunkedRequest(
-      unwrapReq = { it.targets },
-      wrapReq = { OutputPathsParams(it) },
-      doRequest = { base.buildTargetOutputPaths(it) },
-      unwrapRes = { it.items },
-      wrapRes = { OutputPathsResult(it) },
-    )(params)
+    request(ChunkedEndpoint.OUTPUT_PATHS, params)
 
   override fun buildTargetDependencyModules(params: DependencyModulesParams?): CompletableFuture<DependencyModulesResult> =
-    chunkedRequest(
-      unwrapReq = { it.targets },
-      wrapReq = { DependencyModulesParams(it) },
-      doRequest = { base.buildTargetDependencyModules(it) },
-      unwrapRes = { it.items },
-      wrapRes = { DependencyModulesResult(it) },
-    )(params)
+    request(ChunkedEndpoint.DEPENDENCY_MODULES, params)
 
   override fun buildTargetJavacOptions(params: JavacOptionsParams?): CompletableFuture<JavacOptionsResult> =
-    chunkedRequest(
-      unwrapReq = { it.targets },
-      wrapReq = { JavacOptionsParams(it) },
-      doRequest = { base.buildTargetJavacOptions(it) },
-      unwrapRes = { it.items },
-      wrapRes = { JavacOptionsResult(it) },
-    )(params)
+    request(ChunkedEndpoint.JAVAC_OPTIONS, params)
 
   override fun buildTargetCleanCache(params: CleanCacheParams?): CompletableFuture<CleanCacheResult> =
-    chunkedRequest(
-      unwrapReq = { it.targets },
-      wrapReq = { CleanCacheParams(it) },
-      doRequest = { base.buildTargetCleanCache(it) },
-      unwrapRes = { listOf(it) },
-      wrapRes = { results ->
-        CleanCacheResult(
-          results.all { it.cleaned },
-        )
-      },
-    )(params)
-
-  private fun <ReqW, Res, ResW> chunkedRequest(
-    unwrapReq: (ReqW) -> List<BTI>,
-    wrapReq: (List<BTI>) -> ReqW,
-    doRequest: (ReqW?) -> CompletableFuture<ResW>,
-    unwrapRes: (ResW) -> List<Res>,
-    wrapRes: (List<Res>) -> ResW,
-  ): (ReqW?) -> CompletableFuture<ResW> =
-    fun (requestParams: ReqW?): CompletableFuture<ResW> {
-      if (requestParams == null) return doRequest(null)
-      val allTargetsIds = unwrapReq(requestParams)
-      val requests =
-        allTargetsIds
-          .chunked(chunkSize(allTargetsIds))
-          .map { doRequest(wrapReq(it)) }
-      val all =
-        CompletableFuture.allOf(*requests.toTypedArray()).thenApply {
-          requests.map { unwrapRes(it.get()) }.flatten().let { wrapRes(it) }
+    request(ChunkedEndpoint.CLEAN_CACHE, params)
+
+  private fun <ReqW, Res, ResW> request(endpoint: ChunkedEndpoint<ReqW, Res, ResW>, params: ReqW?): CompletableFuture<ResW> {
+    if (params == null) return endpoint.doRequest(base, null)
+    return ChunkedRequest(endpoint, endpoint.unwrapReq(params), null).start { endpoint.wrapRes(it) }
+  }
+
+  /**
+   * Passes the targets and the items of every chunk to [onItems] as soon as the chunk is answered, instead of
+   * collecting all of them. [onItems] is never called concurrently, nor under the lock of the request, so the next
+   * chunks are sent while it runs. The returned future completes once it has returned for every chunk.
+   */
+  internal fun <ReqW, Res, ResW> stream(
+    endpoint: ChunkedEndpoint<ReqW, Res, ResW>,
+    params: ReqW,
+    onItems: (targetIds: List<BTI>, items: List<Res>) -> Unit,
+  ): CompletableFuture<Unit> =
+    streamAsync(endpoint, params) { targetIds, items ->
+      onItems(targetIds, items)
+      CompletableFuture.completedFuture(Unit)
+    }
+
+  /**
+   * Like [stream], but the items are handled once the future returned by [onItems] completes, so [onItems] can pass
+   * them on to other threads instead of handling them on the thread reading the responses.
+   */
+  internal fun <ReqW, Res, ResW> streamAsync(
+    endpoint: ChunkedEndpoint<ReqW, Res, ResW>,
+    params: ReqW,
+    onItems: (targetIds: List<BTI>, items: List<Res>) -> CompletableFuture<Unit>,
+  ): CompletableFuture<Unit> = ChunkedRequest(endpoint, endpoint.unwrapReq(params), onItems).start { }
+
+  private class ChunkStatistics {
+    private var millisPerTarget = Double.NaN
+    private var payloadPerTarget = Double.NaN
+
+    @Synchronized
+    fun record(
+      targets: Int,
+      millis: Double,
+      payload: Int,
+    ) {
+      millisPerTarget = average(millisPerTarget, millis / targets)
+      payloadPerTarget = average(payloadPerTarget, payload.toDouble() / targets)
+    }
+
+    @Synchronized
+    fun chunkSize(
+      allTargets: Int,
+      minChunkSize: Int,
+      maxChunksInFlight: Int,
+    ): Int {
+      val measuredSize =
+        if (millisPerTarget.isNaN()) {
+          sqrt(allTargets.toDouble())
+        } else {
+          minOf(TARGET_CHUNK_MILLIS / millisPerTarget, MAX_CHUNK_PAYLOAD / payloadPerTarget)
+        }
+      // larger chunks would leave some of the chunks in flight without targets
+      val evenShare = ceil(allTargets.toDouble() / maxChunksInFlight)
+      return minOf(measuredSize, evenShare).toInt().coerceAtLeast(minChunkSize)
+    }
+
+    private fun average(average: Double, value: Double): Double =
+      if (average.isNaN()) value else average + MEASUREMENT_WEIGHT * (value - average)
+  }
+
+  private class Chunk(
+    val index: Int,
+    val targetIds: List<BTI>,
+    val attempt: Int,
+  )
+
+  /**
+   * Keeps the state of one chunked request, all of it is guarded by the lock of the request. The answered items are
+   * passed to `onItems` under a separate [deliveryLock].
+   */
+  private inner class ChunkedRequest<ReqW, Res, ResW>(
+    private val endpoint: ChunkedEndpoint<ReqW, Res, ResW>,
+    private val targetIds: List<BTI>,
+    private val onItems: ((List<BTI>, List<Res>) -> CompletableFuture<Unit>)?,
+  ) {
+    private val result = CompletableFuture<List<Res>>()
+    private val statistics = statisticsByEndpoint.computeIfAbsent(endpoint.name) { ChunkStatistics() }
+    private val chunkResults = mutableListOf<List<Res>?>()
+    private val chunksToRetry = ArrayDeque<Chunk>()
+    private val requestsInFlight = mutableSetOf<CompletableFuture<ResW>>()
+    private var nextTarget = 0
+    private var pendingDeliveries = 0
+    private val deliveryLock = Any()
+
+    fun <T> start(mapResult: (List<Res>) -> T): CompletableFuture<T> {
+      val mappedResult = result.thenApply(mapResult)
+      // the caller can only cancel the mapped result, which doesn't cancel the result it depends on by itself
+      mappedResult.whenComplete { _, _ -> if (mappedResult.isCancelled) result.cancel(true) }
+      result.whenComplete { _, _ ->
+        if (result.isCancelled) synchronized(this) { requestsInFlight.toList() }.forEach { it.cancel(true) }
+      }
+      synchronized(this) { sendChunks() }
+      return mappedResult
+    }
+
+    private fun sendChunks() {
+      while (!result.isDone && requestsInFlight.size < maxChunksInFlight && pendingDeliveries < maxUnhandledChunks) {
+        val chunk = chunksToRetry.removeFirstOrNull() ?: nextChunk() ?: break
+        send(chunk)
+      }
+      if (requestsInFlight.isEmpty() && chunksToRetry.isEmpty() && pendingDeliveries == 0 && nextTarget == targetIds.size) {
+        result.complete(chunkResults.flatMap { it.orEmpty() })
+      }
+    }
+
+    private fun nextChunk(): Chunk? {
+      if (nextTarget == targetIds.size) return null
+      val size = statistics.chunkSize(targetIds.size, minChunkSize, maxChunksInFlight)
+      val chunkTargetIds = targetIds.subList(nextTarget, minOf(nextTarget + size, targetIds.size))
+      nextTarget += chunkTargetIds.size
+      chunkResults.add(null)
+      return Chunk(chunkResults.lastIndex, chunkTargetIds, 0)
+    }
+
+    private fun send(chunk: Chunk) {
+      val span =
+        bspTracer
+          .spanBuilder("${endpoint.name}.chunk.ms")
+          .setAttribute("targets", chunk.targetIds.size.toLong())
+          .setAttribute("attempt", chunk.attempt.toLong())
+          .startSpan()
+      val startNanos = System.nanoTime()
+      val request = endpoint.doRequest(base, endpoint.wrapReq(chunk.targetIds))
+      requestsInFlight.add(request)
+      request.whenComplete { response, error ->
+        val itemsToDeliver =
+          synchronized(this) {
+            requestsInFlight.remove(request)
+            val itemsToDeliver =
+              if (error == null) {
+                onChunkAnswered(chunk, response, System.nanoTime() - startNanos, span)
+              } else {
+                onChunkFailed(chunk, unwrap(error), span)
+                null
+              }
+            sendChunks()
+            itemsToDeliver
+          }
+        itemsToDeliver?.let { deliver(chunk, it) }
+      }
+    }
+
+    // returns the items which should be passed to onItems
+    private fun onChunkAnswered(
+      chunk: Chunk,
+      response: ResW,
+      nanos: Long,
+      span: Span,
+    ): List<Res>? {
+      val items = endpoint.unwrapRes(response)
+      val payload = items.sumOf(endpoint.payloadOf)
+      statistics.record(chunk.targetIds.size, nanos.toDouble() / TimeUnit.MILLISECONDS.toNanos(1), payload)
+      span.setAttribute("payload", payload.toLong())
+      span.end()
+      if (result.isDone) return null
+      if (onItems != null) {
+        pendingDeliveries++
+        return items
+      }
+      chunkResults[chunk.index] = items
+      return null
+    }
+
+    private fun deliver(chunk: Chunk, items: List<Res>) {
+      val handled =
+        try {
+          synchronized(deliveryLock) {
+            if (!result.isDone) onItems?.invoke(chunk.targetIds, items) else null
+          } ?: CompletableFuture.completedFuture(Unit)
+        } catch (e: Exception) {
+          CompletableFuture.failedFuture(e)
+        }
+      handled.whenComplete { _, error ->
+        synchronized(this) {
+          pendingDeliveries--
+          if (error != null) fail(unwrap(error))
+          sendChunks()
         }
-      return all.whenComplete { _, _ ->
-        if (all.isCancelled) requests.forEach { it.cancel(true) }
       }
     }
 
-  private fun chunkSize(targetIds: List<Any>) = sqrt(targetIds.size.toDouble()).toInt().coerceAtLeast(minChunkSize)
+    private fun onChunkFailed(
+      chunk: Chunk,
+      error: Throwable,
+      span: Span,
+    ) {
+      span.recordException(error)
+      span.setStatus(StatusCode.ERROR)
+      span.end()
+      when {
+        result.isDone -> {}
+        !isTransient(error) || chunk.attempt >= maxRetries -> fail(error)
+        else -> {
+          log.info("${endpoint.name} failed for ${chunk.targetIds.size} targets, retrying", error)
+          chunksToRetry.addLast(Chunk(chunk.index, chunk.targetIds, chunk.attempt + 1))
+        }
+      }
+    }
+
+    private fun fail(error: Throwable) {
+      result.completeExceptionally(error)
+      // a cancelled request completes at once and removes itself from the requests in flight
+      requestsInFlight.toList().forEach { it.cancel(true) }
+    }
+
+    // an error response is the result of the request, which wouldn't change when it's sent again
+    private fun isTransient(error: Throwable): Boolean = error !is CancellationException && error !is ResponseErrorException
+
+    private fun unwrap(error: Throwable): Throwable = if (error is CompletionException) error.cause ?: error else error
+  }
+
+  private companion object {
+    private const val TARGET_CHUNK_MILLIS = 1000.0
+    private const val MAX_CHUNK_PAYLOAD = 50_000.0
+
+    // the weight of the latest chunk in the averages per target, so they follow changes without jumping around
+    private const val MEASUREMENT_WEIGHT = 0.3
+  }
 }
+
+/**
+ * Passes the items of the response to [onItems] as they arrive, together with the targets they were requested for,
+ * chunk by chunk if the server is a [ChunkingBuildServer], otherwise all at once.
+ */
+internal fun <ReqW, Res, ResW> JoinedBuildServer.streamRequest(
+  endpoint: ChunkedEndpoint<ReqW, Res, ResW>,
+  params: ReqW,
+  onItems: (targetIds: List<BTI>, items: List<Res>) -> Unit,
+): CompletableFuture<Unit> =
+  if (this is ChunkingBuildServer<*>) {
+    stream(endpoint, params, onItems)
+  } else {
+    endpoint.doRequest(this, params).thenApply { onItems(endpoint.unwrapReq(params), endpoint.unwrapRes(it)) }
+  }
+
+/**
+ * Like [streamRequest], but the items are handled once the future returned by [onItems] completes, which also holds
+ * back the following chunks of a [ChunkingBuildServer] when too many of them wait to be handled.
+ */
+internal fun <ReqW, Res, ResW> JoinedBuildServer.streamRequestAsync(
+  endpoint: ChunkedEndpoint<ReqW, Res, ResW>,
+  params: ReqW,
+  onItems: (targetIds: List<BTI>, items: List<Res>) -> CompletableFuture<Unit>,
+): CompletableFuture<Unit> =
+  if (this is ChunkingBuildServer<*>) {
+    streamAsync(endpoint, params, onItems)
+  } else {
+    endpoint.doRequest(this, params).thenCompose { onItems(endpoint.unwrapReq(params), endpoint.unwrapRes(it)) }
+  }
@@ -23,6 +23,7 @@ import com.google.gson.JsonObject
 import com.intellij.build.events.MessageEvent
 import com.intellij.openapi.diagnostic.logger
 import com.intellij.openapi.project.Project
+import org.jetbrains.plugins.bsp.config.BspProjectAware
 import org.jetbrains.plugins.bsp.server.connection.TimeoutHandler
 import org.jetbrains.plugins.bsp.services.BspTaskEventsService
 import org.jetbrains.plugins.bsp.ui.console.TaskConsole
@@ -201,6 +202,8 @@ public class BspClient(
 
   override fun onBuildTargetDidChange(params: DidChangeBuildTarget?) {
     onBuildEvent()
+    // the server noticed a change of the targets, e.g. of the project view, so the project should be synced again
+    BspProjectAware.notify(project)
   }
 
   private fun onBuildEvent() {
@@ -362,8 +362,11 @@ internal class DefaultBspConnection(
 
   private fun JoinedBuildServer.wrapInChunkingServerIfRequired(): JoinedBuildServer =
     if (Registry.`is`("bsp.request.chunking.enable")) {
-      val minChunkSize = Registry.intValue("bsp.request.chunking.size.min")
-      ChunkingBuildServer(this, minChunkSize)
+      // the registry accepts any number, but a request needs at least one chunk of at least one target in flight
+      val minChunkSize = Registry.intValue("bsp.request.chunking.size.min").coerceAtLeast(1)
+      val maxChunksInFlight = Registry.intValue("bsp.request.chunking.in.flight.max").coerceAtLeast(1)
+      val maxRetries = Registry.intValue("bsp.request.chunking.retries").coerceAtLeast(0)
+      ChunkingBuildServer(this, minChunkSize, maxChunksInFlight, maxRetries)
     } else {
       this
     }
@@ -1,15 +1,20 @@
 package org.jetbrains.plugins.bsp.server.tasks
 
 import ch.epfl.scala.bsp4j.BuildTarget
+import ch.epfl.scala.bsp4j.BuildTargetDataKind
 import ch.epfl.scala.bsp4j.BuildTargetIdentifier
 import ch.epfl.scala.bsp4j.DependencySourcesItem
 import ch.epfl.scala.bsp4j.DependencySourcesParams
+import ch.epfl.scala.bsp4j.JavacOptionsItem
 import ch.epfl.scala.bsp4j.JavacOptionsParams
 import ch.epfl.scala.bsp4j.OutputPathsParams
-import ch.epfl.scala.bsp4j.OutputPathsResult
+import ch.epfl.scala.bsp4j.PythonOptionsItem
 import ch.epfl.scala.bsp4j.PythonOptionsParams
+import ch.epfl.scala.bsp4j.ResourcesItem
 import ch.epfl.scala.bsp4j.ResourcesParams
+import ch.epfl.scala.bsp4j.ScalacOptionsItem
 import ch.epfl.scala.bsp4j.ScalacOptionsParams
+import ch.epfl.scala.bsp4j.SourcesItem
 import ch.epfl.scala.bsp4j.SourcesParams
 import ch.epfl.scala.bsp4j.WorkspaceBuildTargetsResult
 import com.intellij.build.events.impl.FailureResultImpl
@@ -35,8 +40,12 @@ import com.intellij.platform.workspace.storage.url.VirtualFileUrlManager
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.future.await
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.withContext
 import org.jetbrains.bsp.protocol.BazelBuildServer
@@ -64,12 +73,14 @@ import org.jetbrains.plugins.bsp.extension.points.pythonSdkGetterExtension
 import org.jetbrains.plugins.bsp.extension.points.pythonSdkGetterExtensionExists
 import org.jetbrains.plugins.bsp.flow.open.projectSyncHook
 import org.jetbrains.plugins.bsp.magicmetamodel.ProjectDetails
-import org.jetbrains.plugins.bsp.magicmetamodel.impl.TargetIdToModuleEntitiesMap
+import org.jetbrains.plugins.bsp.magicmetamodel.impl.ModuleDetailsToModuleEntityTransformer
+import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.BuildTargetInfo
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.JavaModule
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.Module
+import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.ModuleDetails
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.WorkspaceModelUpdater
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers.LibraryGraph
-import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers.ProjectDetailsToModuleDetailsTransformer
+import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers.StreamingModuleDetailsTransformer
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers.androidJarToAndroidSdkName
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers.projectNameToJdkName
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers.scalaVersionToScalaSdkName
@@ -81,7 +92,12 @@ import org.jetbrains.plugins.bsp.performance.testing.bspTracer
 import org.jetbrains.plugins.bsp.scala.sdk.ScalaSdk
 import org.jetbrains.plugins.bsp.scala.sdk.scalaSdkExtension
 import org.jetbrains.plugins.bsp.scala.sdk.scalaSdkExtensionExists
+import org.jetbrains.plugins.bsp.server.ChunkedEndpoint
 import org.jetbrains.plugins.bsp.server.client.importSubtaskId
+import org.jetbrains.plugins.bsp.server.streamRequest
+import org.jetbrains.plugins.bsp.server.streamRequestAsync
+import org.jetbrains.plugins.bsp.target.FileTargetIndex
+import org.jetbrains.plugins.bsp.target.addSourcesOf
 import org.jetbrains.plugins.bsp.target.temporaryTargetUtils
 import org.jetbrains.plugins.bsp.ui.console.BspConsoleService
 import org.jetbrains.plugins.bsp.utils.SdkUtils
@@ -91,6 +107,7 @@ import org.jetbrains.plugins.bsp.utils.orDefault
 import org.jetbrains.plugins.bsp.workspacemodel.entities.BspDummyEntitySource
 import org.jetbrains.plugins.bsp.workspacemodel.entities.BspEntitySource
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ExecutionException
 import kotlin.coroutines.cancellation.CancellationException
 import kotlin.io.path.Path
@@ -122,6 +139,8 @@ public class CollectProjectDetailsTask(
 
   private var androidSdks: Set<AndroidSdk>? = null
 
+  private val moduleEntitiesCollector = ModuleEntitiesCollector()
+
   public suspend fun execute() {
     saveAllFiles()
     doExecute()
@@ -135,17 +154,6 @@ public class CollectProjectDetailsTask(
             calculateProjectDetailsSubtask(buildProject)
           } ?: return@reportSequentialProgress
 
-        reporter.indeterminateStep(text = BspPluginBundle.message("progress.bar.calculate.jdk.infos")) {
-          calculateAllUniqueJdkInfosSubtask(projectDetails)
-          uniqueJavaHomes.orEmpty().also {
-            if (it.isNotEmpty()) {
-              projectDetails.defaultJdkName = project.name.projectNameToJdkName(it.first())
-            } else {
-              projectDetails.defaultJdkName = SdkUtils.getProjectJdkOrMostRecentJdk(project)?.name
-            }
-          }
-        }
-
         if (BspFeatureFlags.isPythonSupportEnabled && pythonSdkGetterExtensionExists()) {
           reporter.indeterminateStep(text = BspPluginBundle.message("progress.bar.calculate.python.sdk.infos")) {
             calculateAllPythonSdkInfosSubtask(projectDetails)
@@ -201,6 +209,7 @@ public class CollectProjectDetailsTask(
           buildServerCapabilities = capabilities,
           projectRootDir = project.rootDir.url,
           buildProject = buildProject,
+          moduleDetailsConsumer = moduleEntitiesCollector,
         )
 
       bspSyncConsole.finishSubtask(importSubtaskId, BspPluginBundle.message("console.task.model.collect.success"))
@@ -314,7 +323,7 @@ public class CollectProjectDetailsTask(
   private fun calculateAllPythonSdkInfos(projectDetails: ProjectDetails): Set<PythonSdk> =
     projectDetails.targets
       .mapNotNull {
-        createPythonSdk(it, projectDetails.dependenciesSources.filter { a -> a.target.uri == it.id.uri })
+        createPythonSdk(it, moduleEntitiesCollector.pythonTargetIdToDependencySources[it.id].orEmpty())
       }.toSet()
 
   private suspend fun calculateAllAndroidSdkInfosSubtask(projectDetails: ProjectDetails) =
@@ -341,11 +350,60 @@ public class CollectProjectDetailsTask(
       )
     }
 
+  /**
+   * Creates the modules of the targets while the project details are collected, each one as soon as the responses
+   * about its target arrive, so the responses don't have to be kept until all of them arrive.
+   */
+  private inner class ModuleEntitiesCollector : ModuleDetailsConsumer {
+    lateinit var targetIdToTargetInfo: Map<BuildTargetIdentifier, BuildTargetInfo>
+    private lateinit var transformer: ModuleDetailsToModuleEntityTransformer
+    private val targetIdToModuleEntity = ConcurrentHashMap<BuildTargetIdentifier, Module>()
+    private val fileTargetIndexBuilder = FileTargetIndex.Builder()
+
+    // only the dependency sources of python targets are needed later, for their sdks
+    val pythonTargetIdToDependencySources = ConcurrentHashMap<BuildTargetIdentifier, List<DependencySourcesItem>>()
+
+    override suspend fun start(projectDetails: ProjectDetails) {
+      calculateAllUniqueJdkInfosSubtask(projectDetails)
+      uniqueJavaHomes.orEmpty().also {
+        if (it.isNotEmpty()) {
+          projectDetails.defaultJdkName = project.name.projectNameToJdkName(it.first())
+        } else {
+          projectDetails.defaultJdkName = SdkUtils.getProjectJdkOrMostRecentJdk(project)?.name
+        }
+      }
+      targetIdToTargetInfo = projectDetails.targets.associate { it.id to it.toBuildTargetInfo() }
+      transformer =
+        ModuleDetailsToModuleEntityTransformer(
+          targetIdToTargetInfo = targetIdToTargetInfo,
+          projectBasePath = project.rootDir.toNioPath(),
+          moduleNameProvider = project.findModuleNameProvider().orDefault(),
+          libraryNameProvider = project.findLibraryNameProvider().orDefault(),
+          hasDefaultPythonInterpreter = BspFeatureFlags.isPythonSupportEnabled,
+          isAndroidSupportEnabled = BspFeatureFlags.isAndroidSupportEnabled && androidSdkGetterExtensionExists(),
+        )
+    }
+
+    override suspend fun consume(moduleDetails: ModuleDetails) {
+      val targetId = moduleDetails.target.id
+      transformer.transform(moduleDetails)?.let { targetIdToModuleEntity[targetId] = it }
+      synchronized(fileTargetIndexBuilder) { fileTargetIndexBuilder.addSourcesOf(moduleDetails) }
+      if (moduleDetails.target.dataKind == BuildTargetDataKind.PYTHON) {
+        pythonTargetIdToDependencySources[targetId] = moduleDetails.dependenciesSources
+      }
+    }
+
+    // in the order of the targets, as the modules were created in any order
+    fun moduleEntities(targetIds: List<BuildTargetIdentifier>): Map<BuildTargetIdentifier, Module> =
+      targetIds.mapNotNull { targetId -> targetIdToModuleEntity[targetId]?.let { targetId to it } }.toMap()
+
+    fun fileTargetIndex(): FileTargetIndex = synchronized(fileTargetIndexBuilder) { fileTargetIndexBuilder.build() }
+  }
+
   private suspend fun updateInternalModelSubtask(projectDetails: ProjectDetails) {
     withSubtask("calculate-project-structure", BspPluginBundle.message("console.task.model.calculate.structure")) {
       runInterruptible {
         val projectBasePath = project.rootDir.toNioPath()
-        val moduleNameProvider = project.findModuleNameProvider().orDefault()
         val libraryNameProvider = project.findLibraryNameProvider().orDefault()
         val libraryGraph = LibraryGraph(projectDetails.libraries.orEmpty())
 
@@ -359,31 +417,15 @@ public class CollectProjectDetailsTask(
             libraryGraph.createLibraryModules(libraryNameProvider, projectDetails.defaultJdkName)
           }
 
-        val targetIdToModuleDetails =
-          bspTracer.spanBuilder("create.module.details.ms").use {
-            val transformer = ProjectDetailsToModuleDetailsTransformer(projectDetails, libraryGraph)
-            projectDetails.targetIds.associateWith { transformer.moduleDetailsForTargetId(it) }
-          }
-
+        // the modules were created while the project details were collected
         val targetIdToModuleEntitiesMap =
           bspTracer.spanBuilder("create.target.id.to.module.entities.map.ms").use {
-            val targetIdToTargetInfo = projectDetails.targets.associate { it.id to it.toBuildTargetInfo() }
-            val targetIdToModuleEntityMap =
-              TargetIdToModuleEntitiesMap(
-                projectDetails = projectDetails,
-                targetIdToModuleDetails = targetIdToModuleDetails,
-                targetIdToTargetInfo = targetIdToTargetInfo,
-                projectBasePath = projectBasePath,
-                moduleNameProvider = moduleNameProvider,
-                libraryNameProvider = libraryNameProvider,
-                hasDefaultPythonInterpreter = BspFeatureFlags.isPythonSupportEnabled,
-                isAndroidSupportEnabled = BspFeatureFlags.isAndroidSupportEnabled && androidSdkGetterExtensionExists(),
-              )
+            val targetIdToModuleEntityMap = moduleEntitiesCollector.moduleEntities(projectDetails.targetIds)
 
             project.temporaryTargetUtils.saveTargets(
-              targetIdToTargetInfo,
+              moduleEntitiesCollector.targetIdToTargetInfo,
               targetIdToModuleEntityMap,
-              targetIdToModuleDetails,
+              moduleEntitiesCollector.fileTargetIndex(),
               libraries,
               libraryModules,
             )
@@ -599,13 +641,49 @@ public class CollectProjectDetailsTask(
     }
 }
 
-@Suppress("LongMethod", "CyclomaticComplexMethod", "CognitiveComplexMethod")
 public suspend fun calculateProjectDetailsWithCapabilities(
   project: Project,
   server: JoinedBuildServer,
   buildServerCapabilities: BazelBuildServerCapabilities,
   projectRootDir: String,
   buildProject: Boolean,
+): ProjectDetails =
+  calculateProjectDetailsWithCapabilities(
+    project = project,
+    server = server,
+    buildServerCapabilities = buildServerCapabilities,
+    projectRootDir = projectRootDir,
+    buildProject = buildProject,
+    moduleDetailsConsumer = null,
+  )
+
+/**
+ * Receives the module details of the targets while [calculateProjectDetailsWithCapabilities] collects them,
+ * instead of the responses about single targets being kept in the project details until all of them arrive.
+ */
+internal interface ModuleDetailsConsumer {
+  /**
+   * Called before any module details, with the project details without the responses about single targets,
+   * the default JDK name set here is used in the module details.
+   */
+  suspend fun start(projectDetails: ProjectDetails)
+
+  /** Called for every target as soon as all responses about it arrive, from many coroutines at once. */
+  suspend fun consume(moduleDetails: ModuleDetails)
+}
+
+/**
+ * If [moduleDetailsConsumer] is given, the responses about single targets are passed to it as module details
+ * chunk by chunk, and the returned project details have no sources, resources, dependency sources or options.
+ */
+@Suppress("LongMethod", "CyclomaticComplexMethod", "CognitiveComplexMethod")
+internal suspend fun calculateProjectDetailsWithCapabilities(
+  project: Project,
+  server: JoinedBuildServer,
+  buildServerCapabilities: BazelBuildServerCapabilities,
+  projectRootDir: String,
+  buildProject: Boolean,
+  moduleDetailsConsumer: ModuleDetailsConsumer?,
 ): ProjectDetails =
   coroutineScope {
     val log = logger<Any>()
@@ -646,37 +724,22 @@ public suspend fun calculateProjectDetailsWithCapabilities(
       val workspaceBuildTargetsResult = queryBuildTargets() ?: throw IllegalStateException("query build target is not successful")
 
       val allTargetsIds = calculateAllTargetsIds(workspaceBuildTargetsResult)
-
-      val sourcesResult =
-        asyncQuery(true, "buildTarget/sources") {
-          server.buildTargetSources(SourcesParams(allTargetsIds))
-        }
-
-      // We have to check == true because bsp4j uses non-primitive Boolean (which is Boolean? in Kotlin)
-      val resourcesResult =
-        asyncQuery(buildServerCapabilities.resourcesProvider == true, "buildTarget/resources") {
-          server.buildTargetResources(ResourcesParams(allTargetsIds))
-        }
-
-      val dependencySourcesResult =
-        asyncQuery(buildServerCapabilities.dependencySourcesProvider == true, "buildTarget/dependencySources") {
-          server.buildTargetDependencySources(DependencySourcesParams(allTargetsIds))
-        }
-
       val javaTargetIds = calculateJavaTargetIds(workspaceBuildTargetsResult)
       val scalaTargetIds = calculateScalaTargetIds(workspaceBuildTargetsResult)
-      val libraries: WorkspaceLibrariesResult? =
-        query(buildServerCapabilities.workspaceLibrariesProvider, "workspace/libraries") {
+      val pythonTargetsIds = calculatePythonTargetsIds(workspaceBuildTargetsResult)
+
+      val librariesResult =
+        asyncQuery(buildServerCapabilities.workspaceLibrariesProvider, "workspace/libraries") {
           (server as BazelBuildServer).workspaceLibraries()
         }
 
       val directoriesResult =
-        query(buildServerCapabilities.workspaceDirectoriesProvider, "workspace/directories") {
+        asyncQuery(buildServerCapabilities.workspaceDirectoriesProvider, "workspace/directories") {
           (server as BazelBuildServer).workspaceDirectories()
         }
 
       val jvmBinaryJarsResult =
-        query(
+        asyncQuery(
           BspFeatureFlags.isAndroidSupportEnabled &&
             buildServerCapabilities.jvmBinaryJarsProvider &&
             javaTargetIds.isNotEmpty(),
@@ -685,59 +748,189 @@ public suspend fun calculateProjectDetailsWithCapabilities(
           server.buildTargetJvmBinaryJars(JvmBinaryJarsParams(javaTargetIds))
         }
 
+      val libraries: WorkspaceLibrariesResult? = librariesResult.await()
+
+      val projectDetails =
+        ProjectDetails(
+          targetIds = allTargetsIds,
+          targets = workspaceBuildTargetsResult.targets.toSet(),
+          sources = emptyList(),
+          resources = emptyList(),
+          dependenciesSources = emptyList(),
+          javacOptions = emptyList(),
+          scalacOptions = emptyList(),
+          pythonOptions = emptyList(),
+          outputPathUris = emptyList(),
+          libraries = libraries?.libraries,
+          directories =
+            directoriesResult.await()
+              ?: WorkspaceDirectoriesResult(listOf(DirectoryItem(projectRootDir)), emptyList()),
+          jvmBinaryJars = jvmBinaryJarsResult.await()?.items ?: emptyList(),
+        )
+
+      // the module details are created as soon as all responses about a target arrive, so the modules can be created
+      // while the responses about other targets are still coming, and the responses are released once converted
+      val moduleDetailsTransformer =
+        moduleDetailsConsumer?.let {
+          it.start(projectDetails)
+          StreamingModuleDetailsTransformer(projectDetails, LibraryGraph(projectDetails.libraries.orEmpty()))
+        }
+
+      // the callbacks of the requests run on the thread reading the responses, so they only hand the raw items off to
+      // the workers, which create the module details, and never wait for them; once the workers fall behind, the
+      // chunking server holds back the following chunks until the handed off ones are handled
+      val moduleDetailsWorkers = Runtime.getRuntime().availableProcessors()
+      val rawChunks =
+        Channel<Pair<StreamingModuleDetailsTransformer.() -> List<ModuleDetails>, CompletableFuture<Unit>>>(Channel.UNLIMITED) {
+          it.second.cancel(false)
+        }
+
+      val sources = mutableListOf<SourcesItem>()
+      val resources = mutableListOf<ResourcesItem>()
+      val dependenciesSources = mutableListOf<DependencySourcesItem>()
+      val javacOptions = mutableListOf<JavacOptionsItem>()
+      val scalacOptions = mutableListOf<ScalacOptionsItem>()
+      val pythonOptions = mutableListOf<PythonOptionsItem>()
+      val outputPathUris = LinkedHashSet<String>()
+
+      // every request is registered before any of them is sent, so no target is passed on before all responses about it arrive
+      val targetRequests = mutableListOf<() -> Deferred<Unit?>>()
+
+      fun <ReqW, Res, ResW> requestPerTarget(
+        check: Boolean,
+        endpoint: ChunkedEndpoint<ReqW, Res, ResW>,
+        params: ReqW,
+        collectedItems: MutableList<Res>,
+        addToTransformer: StreamingModuleDetailsTransformer.(List<BuildTargetIdentifier>, List<Res>) -> List<ModuleDetails>,
+      ) {
+        if (!check) return
+        moduleDetailsTransformer?.expect(endpoint.unwrapReq(params))
+        targetRequests += {
+          asyncQuery(true, endpoint.name) {
+            if (moduleDetailsTransformer != null) {
+              server.streamRequestAsync(endpoint, params) { targetIds, items ->
+                val handled = CompletableFuture<Unit>()
+                rawChunks.trySend(Pair({ addToTransformer(targetIds, items) }, handled)).getOrThrow()
+                handled
+              }
+            } else {
+              server.streamRequest(endpoint, params) { _, items -> collectedItems.addAll(items) }
+            }
+          }
+        }
+      }
+
+      requestPerTarget(
+        true,
+        ChunkedEndpoint.SOURCES,
+        SourcesParams(allTargetsIds),
+        sources,
+        StreamingModuleDetailsTransformer::addSources,
+      )
+
+      // We have to check == true because bsp4j uses non-primitive Boolean (which is Boolean? in Kotlin)
+      requestPerTarget(
+        buildServerCapabilities.resourcesProvider == true,
+        ChunkedEndpoint.RESOURCES,
+        ResourcesParams(allTargetsIds),
+        resources,
+        StreamingModuleDetailsTransformer::addResources,
+      )
+
+      requestPerTarget(
+        buildServerCapabilities.dependencySourcesProvider == true,
+        ChunkedEndpoint.DEPENDENCY_SOURCES,
+        DependencySourcesParams(allTargetsIds),
+        dependenciesSources,
+        StreamingModuleDetailsTransformer::addDependencySources,
+      )
+
       // We use javacOptions only to build the dependency tree based on the classpath.
       // If the workspace/libraries endpoint is NOT available (like SBT), we need to retrieve it.
       // If a server supports buildTarget/jvmCompileClasspath, then the classpath won't be passed via this endpoint
       // (see https://build-server-protocol.github.io/docs/extensions/java#javacoptionsitem).
       // In this case we can use this request to retrieve the javac options without the overhead of passing the whole classpath.
       // There's no capability for javacOptions.
-      val javacOptionsResult =
-        if (libraries == null || buildServerCapabilities.jvmCompileClasspathProvider) {
-          asyncQuery(javaTargetIds.isNotEmpty(), "buildTarget/javacOptions") {
-            server.buildTargetJavacOptions(JavacOptionsParams(javaTargetIds))
-          }
-        } else {
-          null
-        }
+      requestPerTarget(
+        (libraries == null || buildServerCapabilities.jvmCompileClasspathProvider) && javaTargetIds.isNotEmpty(),
+        ChunkedEndpoint.JAVAC_OPTIONS,
+        JavacOptionsParams(javaTargetIds),
+        javacOptions,
+        StreamingModuleDetailsTransformer::addJavacOptions,
+      )
 
       // Same for Scala
-      val scalacOptionsResult =
-        if (libraries == null) {
-          asyncQuery(scalaTargetIds.isNotEmpty() && BspFeatureFlags.isScalaSupportEnabled, "buildTarget/scalacOptions") {
-            server.buildTargetScalacOptions(ScalacOptionsParams(scalaTargetIds))
+      requestPerTarget(
+        libraries == null && scalaTargetIds.isNotEmpty() && BspFeatureFlags.isScalaSupportEnabled,
+        ChunkedEndpoint.SCALAC_OPTIONS,
+        ScalacOptionsParams(scalaTargetIds),
+        scalacOptions,
+        StreamingModuleDetailsTransformer::addScalacOptions,
+      )
+
+      requestPerTarget(
+        pythonTargetsIds.isNotEmpty() && BspFeatureFlags.isPythonSupportEnabled,
+        ChunkedEndpoint.PYTHON_OPTIONS,
+        PythonOptionsParams(pythonTargetsIds),
+        pythonOptions,
+        StreamingModuleDetailsTransformer::addPythonOptions,
+      )
+
+      // the raw items left in the channel are dropped as soon as the sync fails or is cancelled
+      try {
+        val targetResults = targetRequests.map { it() }
+
+        // output paths are not a part of the module details, only their distinct uris are kept
+        val outputPathsResult =
+          asyncQuery(buildServerCapabilities.outputPathsProvider == true, "buildTarget/outputPaths") {
+            server.streamRequest(ChunkedEndpoint.OUTPUT_PATHS, OutputPathsParams(allTargetsIds)) { _, items ->
+              items.filterNotNull().forEach { item -> item.outputPaths.forEach { outputPathUris.add(it.uri) } }
+            }
           }
-        } else {
-          null
-        }
 
-      val pythonTargetsIds = calculatePythonTargetsIds(workspaceBuildTargetsResult)
-      val pythonOptionsResult =
-        asyncQuery(pythonTargetsIds.isNotEmpty() && BspFeatureFlags.isPythonSupportEnabled, "buildTarget/pythonOptions") {
-          server.buildTargetPythonOptions(PythonOptionsParams(pythonTargetsIds))
-        }
+        val workers =
+          if (moduleDetailsTransformer != null && moduleDetailsConsumer != null) {
+            List(moduleDetailsWorkers) {
+              launch(Dispatchers.Default) {
+                for ((rawChunk, handled) in rawChunks) {
+                  try {
+                    moduleDetailsTransformer.rawChunk().forEach { moduleDetailsConsumer.consume(it) }
+                    handled.complete(Unit)
+                  } catch (e: Throwable) {
+                    handled.completeExceptionally(e)
+                    throw e
+                  }
+                }
+              }
+            }
+          } else {
+            emptyList()
+          }
 
-      val outputPathsResult =
-        asyncQuery(buildServerCapabilities.outputPathsProvider == true, "buildTarget/outputPaths") {
-          server.buildTargetOutputPaths(OutputPathsParams(allTargetsIds))
+        project.projectSyncHook?.onSync(project, server)
+
+        targetResults.awaitAll()
+        outputPathsResult.await()
+        rawChunks.close()
+        workers.joinAll()
+      } finally {
+        rawChunks.cancel()
+      }
+
+      if (moduleDetailsTransformer != null && moduleDetailsConsumer != null) {
+        withContext(Dispatchers.Default) {
+          moduleDetailsTransformer.finish().forEach { moduleDetailsConsumer.consume(it) }
         }
+      }
 
-      project.projectSyncHook?.onSync(project, server)
-
-      ProjectDetails(
-        targetIds = allTargetsIds,
-        targets = workspaceBuildTargetsResult.targets.toSet(),
-        sources = sourcesResult.await()?.items ?: emptyList(),
-        resources = resourcesResult.await()?.items ?: emptyList(),
-        dependenciesSources = dependencySourcesResult.await()?.items ?: emptyList(),
-        javacOptions = javacOptionsResult?.await()?.items ?: emptyList(),
-        scalacOptions = scalacOptionsResult?.await()?.items ?: emptyList(),
-        pythonOptions = pythonOptionsResult.await()?.items ?: emptyList(),
-        outputPathUris = outputPathsResult.await()?.obtainDistinctUris() ?: emptyList(),
-        libraries = libraries?.libraries,
-        directories =
-          directoriesResult
-            ?: WorkspaceDirectoriesResult(listOf(DirectoryItem(projectRootDir)), emptyList()),
-        jvmBinaryJars = jvmBinaryJarsResult?.items ?: emptyList(),
+      projectDetails.copy(
+        sources = sources,
+        resources = resources,
+        dependenciesSources = dependenciesSources,
+        javacOptions = javacOptions,
+        scalacOptions = scalacOptions,
+        pythonOptions = pythonOptions,
+        outputPathUris = outputPathUris.toList(),
       )
     } catch (e: Exception) {
       // TODO the type xd
@@ -762,10 +955,3 @@ private fun calculateScalaTargetIds(workspaceBuildTargetsResult: WorkspaceBuildT
 
 private fun calculatePythonTargetsIds(workspaceBuildTargetsResult: WorkspaceBuildTargetsResult): List<BuildTargetIdentifier> =
   workspaceBuildTargetsResult.targets.filter { it.languageIds.includesPython() }.map { it.id }
-
-private fun OutputPathsResult.obtainDistinctUris(): List<String> =
-  this.items
-    .filterNotNull()
-    .flatMap { it.outputPaths }
-    .map { it.uri }
-    .distinct()
@@ -0,0 +1,246 @@
+package org.jetbrains.plugins.bsp.target
+
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import java.net.URI
+
+/**
+ * Maps urls of files and directories to the targets they belong to.
+ *
+ * The urls are kept in a trie of their path segments, where a chain of directories with only one child is kept
+ * in a single node. Equal segments are shared by all nodes and equal lists of targets by all files, so a node
+ * costs little more than a reference to its segments and an index of its targets. Looking up a url doesn't allocate
+ * anything, it walks the trie along the segments of the url, which also finds the nearest directory with targets.
+ *
+ * Empty segments are skipped, so e.g. `file:/a/b/`, `file:///a/b` and `file:///a//b` are the same url.
+ */
+internal class FileTargetIndex private constructor(
+  private val root: Node,
+  private val targetLists: Array<List<BuildTargetIdentifier>>,
+  val size: Int,
+) {
+  private class Node(val segments: Array<String>, val targets: Int, val children: Array<Node?>?) {
+    fun child(
+      url: String,
+      start: Int,
+      end: Int,
+    ): Node? {
+      val children = children ?: return null
+      val mask = children.size - 1
+      var slot = hashOf(url, start, end) and mask
+      while (true) {
+        val child = children[slot] ?: return null
+        if (child.segments[0].matches(url, start, end)) return child
+        slot = (slot + 1) and mask
+      }
+    }
+
+    /** Returns the position in [url] after [segments], or -1 if the url doesn't continue with them. */
+    fun matchSegments(url: String, start: Int): Int {
+      var position = start
+      for (segment in segments) {
+        val segmentStart = skipSeparators(url, position)
+        val segmentEnd = segmentEnd(url, segmentStart)
+        if (segmentStart == segmentEnd || !segment.matches(url, segmentStart, segmentEnd)) return -1
+        position = segmentEnd
+      }
+      return position
+    }
+  }
+
+  /** Returns the targets of the file or directory with the given url, or `null` if it's not in the index. */
+  fun getTargets(url: String): List<BuildTargetIdentifier>? {
+    var node = root
+    var position = 0
+    while (true) {
+      val start = skipSeparators(url, position)
+      if (start == url.length) return targetsOf(node)
+      val child = node.child(url, start, segmentEnd(url, start)) ?: return null
+      position = child.matchSegments(url, start)
+      if (position < 0) return null
+      node = child
+    }
+  }
+
+  /**
+   * Returns the targets of the nearest directory containing the file with the given url, which is [rootUrl]
+   * or a directory inside it, or `null` if there is no such directory in the index.
+   */
+  fun getTargetsOfNearestAncestor(url: String, rootUrl: String): List<BuildTargetIdentifier>? {
+    val rootEnd = matchPrefix(url, rootUrl)
+    if (rootEnd < 0) return null
+
+    var nearest = NO_TARGETS
+    var node = root
+    var position = 0
+    while (true) {
+      val start = skipSeparators(url, position)
+      if (start == url.length) break
+      val child = node.child(url, start, segmentEnd(url, start)) ?: break
+      position = child.matchSegments(url, start)
+      if (position < 0 || skipSeparators(url, position) == url.length) break
+      if (position >= rootEnd && child.targets != NO_TARGETS) {
+        nearest = child.targets
+      }
+      node = child
+    }
+    return nearest.takeIf { it != NO_TARGETS }?.let { targetLists[it] }
+  }
+
+  /** Calls [action] for every url in the index, the urls are normalized, e.g. `file:///a/b` for `file:/a/b/`. */
+  fun forEach(action: (url: String, targets: List<BuildTargetIdentifier>) -> Unit) {
+    val path = ArrayList<String>()
+
+    fun visit(node: Node) {
+      path.addAll(node.segments)
+      targetsOf(node)?.let { action(urlOf(path), it) }
+      node.children?.forEach { child -> child?.let { visit(it) } }
+      repeat(node.segments.size) { path.removeAt(path.size - 1) }
+    }
+
+    visit(root)
+  }
+
+  /** Returns `true` if both indexes contain the same urls with the same targets. */
+  fun hasSameEntries(other: FileTargetIndex): Boolean {
+    fun sameNodes(node: Node, otherNode: Node): Boolean {
+      if (!node.segments.contentEquals(otherNode.segments) || targetsOf(node) != other.targetsOf(otherNode)) return false
+      val children = node.children?.filterNotNull().orEmpty()
+      val otherChildren = otherNode.children?.filterNotNull().orEmpty()
+      if (children.size != otherChildren.size) return false
+      return children.all { child ->
+        val firstSegment = child.segments[0]
+        val otherChild = otherNode.child(firstSegment, 0, firstSegment.length)
+        otherChild != null && sameNodes(child, otherChild)
+      }
+    }
+
+    return size == other.size && sameNodes(root, other.root)
+  }
+
+  private fun targetsOf(node: Node): List<BuildTargetIdentifier>? = node.targets.takeIf { it != NO_TARGETS }?.let { targetLists[it] }
+
+  // returns the position in url after the segments of prefixUrl, or -1 if url doesn't start with them
+  private fun matchPrefix(url: String, prefixUrl: String): Int {
+    var position = 0
+    var prefixPosition = skipSeparators(prefixUrl, 0)
+    while (prefixPosition < prefixUrl.length) {
+      val prefixSegmentEnd = segmentEnd(prefixUrl, prefixPosition)
+      val start = skipSeparators(url, position)
+      val end = segmentEnd(url, start)
+      if (end - start != prefixSegmentEnd - prefixPosition || !url.regionMatches(start, prefixUrl, prefixPosition, end - start)) return -1
+      position = end
+      prefixPosition = skipSeparators(prefixUrl, prefixSegmentEnd)
+    }
+    return position
+  }
+
+  class Builder {
+    private class BuilderNode {
+      var children: HashMap<String, BuilderNode>? = null
+      var targets: MutableList<BuildTargetIdentifier>? = null
+    }
+
+    private val root = BuilderNode()
+    private val segments = HashMap<String, String>()
+    private var size = 0
+
+    fun add(url: String, target: BuildTargetIdentifier): Builder {
+      var node = root
+      var position = skipSeparators(url, 0)
+      while (position < url.length) {
+        val end = segmentEnd(url, position)
+        val segment = url.substring(position, end).let { segments.getOrPut(it) { it } }
+        val children = node.children ?: HashMap<String, BuilderNode>().also { node.children = it }
+        node = children.getOrPut(segment) { BuilderNode() }
+        position = skipSeparators(url, end)
+      }
+      val targets = node.targets ?: mutableListOf<BuildTargetIdentifier>().also { node.targets = it }.also { size++ }
+      if (target !in targets) targets.add(target)
+      return this
+    }
+
+    fun build(): FileTargetIndex {
+      val targetLists = LinkedHashMap<List<BuildTargetIdentifier>, Int>()
+
+      fun indexOf(targets: List<BuildTargetIdentifier>?): Int = targets?.let { targetLists.getOrPut(it) { targetLists.size } } ?: NO_TARGETS
+
+      // a chain of nodes without targets and with a single child is kept in its last node
+      fun compress(segment: String?, node: BuilderNode): Node {
+        val chain = mutableListOf<String>()
+        segment?.let { chain.add(it) }
+        var last = node
+        while (segment != null && last.targets == null && last.children?.size == 1) {
+          val (childSegment, child) = last.children!!.entries.single()
+          chain.add(childSegment)
+          last = child
+        }
+        val children =
+          last.children?.let { children ->
+            val table = arrayOfNulls<Node>(tableSize(children.size))
+            for ((childSegment, child) in children) {
+              var slot = childSegment.hashCode() and (table.size - 1)
+              while (table[slot] != null) slot = (slot + 1) and (table.size - 1)
+              table[slot] = compress(childSegment, child)
+            }
+            table
+          }
+        return Node(chain.toTypedArray(), indexOf(last.targets), children)
+      }
+
+      val root = compress(null, root)
+      return FileTargetIndex(root, targetLists.keys.toTypedArray(), size)
+    }
+  }
+
+  companion object {
+    private const val NO_TARGETS = -1
+
+    val EMPTY: FileTargetIndex = Builder().build()
+
+    /** Returns the url of the file [uri] points to, with percent-encoded characters decoded, as in `VirtualFile.url`. */
+    fun urlOf(uri: URI): String =
+      if (uri.scheme != null && uri.path != null) {
+        "${uri.scheme}://${uri.path}"
+      } else {
+        uri.toString()
+      }
+
+    private fun urlOf(segments: List<String>): String =
+      when (segments.size) {
+        0 -> ""
+        1 -> segments[0]
+        else -> segments[0] + "//" + segments.subList(1, segments.size).joinToString(separator = "/", prefix = "/")
+      }
+
+    private fun tableSize(count: Int): Int = Integer.highestOneBit(count * 2 - 1) shl 1
+
+    private fun skipSeparators(url: String, start: Int): Int {
+      var position = start
+      while (position < url.length && url[position] == '/') position++
+      return position
+    }
+
+    private fun segmentEnd(url: String, start: Int): Int {
+      var position = start
+      while (position < url.length && url[position] != '/') position++
+      return position
+    }
+
+    // the same as String.hashCode of the segment, so the segment doesn't have to be copied out of the url
+    private fun hashOf(
+      url: String,
+      start: Int,
+      end: Int,
+    ): Int {
+      var hash = 0
+      for (i in start until end) hash = 31 * hash + url[i].code
+      return hash
+    }
+
+    private fun String.matches(
+      url: String,
+      start: Int,
+      end: Int,
+    ): Boolean = length == end - start && url.regionMatches(start, this, 0, length)
+  }
+}
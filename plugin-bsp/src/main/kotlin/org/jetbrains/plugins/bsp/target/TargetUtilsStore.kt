@@ -0,0 +1,155 @@
+package org.jetbrains.plugins.bsp.target
+
+import com.intellij.openapi.diagnostic.logger
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import kotlin.io.path.exists
+
+private val log = logger<TargetUtilsStore>()
+
+/**
+ * Keeps sections of the project data in compact binary files in [directory], one file per section, so a section
+ * can be loaded when it's needed and written again only when it changes.
+ *
+ * Every file starts with a table of all strings used in it, so a string repeated in many places, e.g. a target id,
+ * is written only once, and all numbers are written as varints.
+ */
+internal class TargetUtilsStore(private val directory: Path) {
+  internal class Section<T>(
+    val fileName: String,
+    val write: BinaryWriter.(T) -> Unit,
+    val read: BinaryReader.() -> T,
+  )
+
+  /** Returns `null` if the section was never written or can't be read, e.g. because it was written by another version. */
+  fun <T> read(section: Section<T>): T? {
+    val file = directory.resolve(section.fileName)
+    if (!file.exists()) return null
+    return try {
+      BinaryReader.open(ByteBuffer.wrap(Files.readAllBytes(file)))?.let { section.read(it) }
+    } catch (e: IOException) {
+      log.warn("Could not read $file", e)
+      null
+    } catch (e: RuntimeException) {
+      // a truncated or corrupted file, e.g. a varint running past the end or an index outside of the string table
+      log.warn("$file is corrupted", e)
+      null
+    }
+  }
+
+  fun <T> write(section: Section<T>, value: T) {
+    val bytes = BinaryWriter().apply { section.write(this, value) }.toByteArray()
+    Files.createDirectories(directory)
+    val temporaryFile = Files.createTempFile(directory, section.fileName, ".tmp")
+    try {
+      Files.write(temporaryFile, bytes)
+      Files.move(temporaryFile, directory.resolve(section.fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } finally {
+      Files.deleteIfExists(temporaryFile)
+    }
+  }
+}
+
+internal class BinaryWriter {
+  private val stringIndices = HashMap<String, Int>()
+  private val strings = ByteArrayOutputStream()
+  private val body = ByteArrayOutputStream()
+
+  fun writeInt(value: Int) {
+    body.writeVarInt(value)
+  }
+
+  fun writeBoolean(value: Boolean) {
+    body.write(if (value) 1 else 0)
+  }
+
+  fun writeString(value: String) {
+    writeInt(indexOf(value))
+  }
+
+  fun writeNullableString(value: String?) {
+    writeInt(value?.let { indexOf(it) + 1 } ?: 0)
+  }
+
+  fun writeStrings(values: Collection<String>) {
+    writeInt(values.size)
+    values.forEach { writeString(it) }
+  }
+
+  fun toByteArray(): ByteArray {
+    val result = ByteArrayOutputStream(strings.size() + body.size() + 16)
+    result.writeVarInt(MAGIC)
+    result.writeVarInt(VERSION)
+    result.writeVarInt(stringIndices.size)
+    strings.writeTo(result)
+    body.writeTo(result)
+    return result.toByteArray()
+  }
+
+  private fun indexOf(value: String): Int =
+    stringIndices.getOrPut(value) {
+      val bytes = value.toByteArray(Charsets.UTF_8)
+      strings.writeVarInt(bytes.size)
+      strings.write(bytes)
+      stringIndices.size
+    }
+
+  private fun ByteArrayOutputStream.writeVarInt(value: Int) {
+    var remaining = value
+    while (remaining and 0x7F.inv() != 0) {
+      write((remaining and 0x7F) or 0x80)
+      remaining = remaining ushr 7
+    }
+    write(remaining)
+  }
+}
+
+internal class BinaryReader private constructor(private val buffer: ByteBuffer) {
+  private val strings: Array<String> =
+    Array(readCount()) {
+      val length = readInt()
+      val string = String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Charsets.UTF_8)
+      buffer.position(buffer.position() + length)
+      string
+    }
+
+  fun readInt(): Int = buffer.readVarInt()
+
+  /** Reads the size of a collection, which can't be larger than the number of bytes left as every element takes one at least. */
+  fun readCount(): Int = readInt().also { check(it in 0..buffer.remaining()) { "Invalid size $it" } }
+
+  fun readBoolean(): Boolean = buffer.get().toInt() != 0
+
+  fun readString(): String = strings[readInt()]
+
+  fun readNullableString(): String? = readInt().takeIf { it != 0 }?.let { strings[it - 1] }
+
+  fun readStrings(): List<String> = List(readCount()) { readString() }
+
+  companion object {
+    /** Returns `null` if the buffer was not written by this version of the store. */
+    fun open(buffer: ByteBuffer): BinaryReader? {
+      if (buffer.readVarInt() != MAGIC || buffer.readVarInt() != VERSION) return null
+      return BinaryReader(buffer)
+    }
+  }
+}
+
+private fun ByteBuffer.readVarInt(): Int {
+  var result = 0
+  var shift = 0
+  while (shift < Int.SIZE_BITS) {
+    val byte = get().toInt()
+    result = result or ((byte and 0x7F) shl shift)
+    if (byte and 0x80 == 0) return result
+    shift += 7
+  }
+  throw IllegalStateException("Malformed varint at ${position()}")
+}
+
+private const val MAGIC = 0x42535054 // "BSPT"
+private const val VERSION = 2
@@ -7,22 +7,25 @@ import com.intellij.openapi.components.State
 import com.intellij.openapi.components.Storage
 import com.intellij.openapi.components.StoragePathMacros
 import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.vfs.VfsUtil
+import com.intellij.openapi.project.getProjectDataPath
 import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.util.concurrency.SequentialTaskExecutor
 import org.jetbrains.plugins.bsp.config.BspFeatureFlags
 import org.jetbrains.plugins.bsp.config.rootDir
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.BuildTargetInfoState
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.LibraryState
-import org.jetbrains.plugins.bsp.magicmetamodel.impl.toState
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.BuildTargetInfo
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.JavaModule
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.Library
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.Module
+import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.ModuleCapabilities
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.ModuleDetails
 import org.jetbrains.plugins.bsp.utils.safeCastToURI
-import java.net.URI
+import java.io.IOException
 
+// only read to move the data of older versions, which kept it in workspace.xml, to the binary store
 public data class TemporaryTargetUtilsState(
   var idToTargetInfo: Map<String, BuildTargetInfoState> = emptyMap(),
   var moduleIdToBuildTargetId: Map<String, String> = emptyMap(),
@@ -30,19 +33,32 @@ public data class TemporaryTargetUtilsState(
   var libraries: List<LibraryState> = emptyList(),
 )
 
+private class TargetsSection(
+  val targetIdToTargetInfo: Map<BuildTargetIdentifier, BuildTargetInfo>,
+  val moduleIdToBuildTargetId: Map<String, BuildTargetIdentifier>,
+)
+
 // This whole service is very temporary, it will be removed in the following PR
 @Service(Service.Level.PROJECT)
 @State(
   name = "TemporaryTargetUtils",
   storages = [Storage(StoragePathMacros.WORKSPACE_FILE)],
 )
-public class TemporaryTargetUtils : PersistentStateComponent<TemporaryTargetUtilsState> {
-  private var targetIdToTargetInfo: Map<BuildTargetIdentifier, BuildTargetInfo> = emptyMap()
-  private var moduleIdToBuildTargetId: Map<String, BuildTargetIdentifier> = emptyMap()
+public class TemporaryTargetUtils(project: Project) : PersistentStateComponent<TemporaryTargetUtilsState> {
+  // the data is kept in binary files instead of workspace.xml, read on the first query and written when it changes
+  private val store = TargetUtilsStore(project.getProjectDataPath(STORE_DIRECTORY_NAME))
+  private val storeWriter = SequentialTaskExecutor.createSequentialApplicationPoolExecutor("BSP target utils store writer")
+
+  @Volatile
+  private var isLoaded = false
 
-  // we must use URI as comparing URI path strings is susceptible to errors.
-  // e.g., file:/test and file:///test should be similar in the URI world
-  private var fileToTargetId: Map<URI, List<BuildTargetIdentifier>> = hashMapOf()
+  @Volatile
+  private var targets = TargetsSection(emptyMap(), emptyMap())
+
+  @Volatile
+  private var fileTargetIndex = FileTargetIndex.EMPTY
+
+  @Volatile
   private var libraries: List<Library> = emptyList()
   private var libraryModules: List<JavaModule> = emptyList()
   private var libraryModulesLookupTable: HashSet<String> = hashSetOf()
@@ -56,27 +72,62 @@ public class TemporaryTargetUtils : PersistentStateComponent<TemporaryTargetUtil
     libraries: List<Library>,
     libraryModules: List<JavaModule>,
   ) {
-    this.targetIdToTargetInfo = targetIdToTargetInfo
-    moduleIdToBuildTargetId =
+    val fileTargetIndexBuilder = FileTargetIndex.Builder()
+    targetIdToModuleDetails.values.forEach { fileTargetIndexBuilder.addSourcesOf(it) }
+    saveTargets(targetIdToTargetInfo, targetIdToModuleEntity, fileTargetIndexBuilder.build(), libraries, libraryModules)
+  }
+
+  /** Saves the targets with the index of their sources, built while their module details were created. */
+  internal fun saveTargets(
+    targetIdToTargetInfo: Map<BuildTargetIdentifier, BuildTargetInfo>,
+    targetIdToModuleEntity: Map<BuildTargetIdentifier, Module>,
+    fileTargetIndex: FileTargetIndex,
+    libraries: List<Library>,
+    libraryModules: List<JavaModule>,
+  ) {
+    val moduleIdToBuildTargetId =
       targetIdToModuleEntity.entries.associate { (targetId, module) ->
         module.getModuleName() to targetId
       }
-    fileToTargetId =
-      targetIdToModuleDetails.values
-        .flatMap { it.toPairsUrlToId() }
-        .groupBy { it.first }
-        .mapValues { it.value.map { pair -> pair.second } }
-    this.libraries = libraries
+    synchronized(this) {
+      ensureLoaded()
+      if (targets.targetIdToTargetInfo != targetIdToTargetInfo || targets.moduleIdToBuildTargetId != moduleIdToBuildTargetId) {
+        targets = TargetsSection(targetIdToTargetInfo, moduleIdToBuildTargetId)
+        writeInBackground(TARGETS_SECTION, targets)
+      }
+      if (!this.fileTargetIndex.hasSameEntries(fileTargetIndex)) {
+        this.fileTargetIndex = fileTargetIndex
+        writeInBackground(FILES_SECTION, fileTargetIndex)
+      }
+      if (this.libraries != libraries) {
+        this.libraries = libraries
+        writeInBackground(LIBRARIES_SECTION, libraries)
+      }
+    }
     this.libraryModules = libraryModules
     this.libraryModulesLookupTable = createLibraryModulesLookupTable()
   }
 
-  private fun ModuleDetails.toPairsUrlToId(): List<Pair<URI, BuildTargetIdentifier>> =
-    sources.flatMap { sources ->
-      sources.sources.mapNotNull { it.uri.processUriString().safeCastToURI() }.map { it to target.id }
+  private fun ensureLoaded() {
+    if (isLoaded) return
+    synchronized(this) {
+      if (isLoaded) return
+      store.read(TARGETS_SECTION)?.let { targets = it }
+      store.read(FILES_SECTION)?.let { fileTargetIndex = it }
+      store.read(LIBRARIES_SECTION)?.let { libraries = it }
+      isLoaded = true
     }
+  }
 
-  private fun String.processUriString() = this.trimEnd('/')
+  private fun <T> writeInBackground(section: TargetUtilsStore.Section<T>, value: T) {
+    storeWriter.execute {
+      try {
+        store.write(section, value)
+      } catch (e: IOException) {
+        log.warn("Could not write ${section.fileName}", e)
+      }
+    }
+  }
 
   private fun createLibraryModulesLookupTable() = libraryModules.map { it.genericModuleInfo.name }.toHashSet()
 
@@ -88,55 +139,165 @@ public class TemporaryTargetUtils : PersistentStateComponent<TemporaryTargetUtil
     listeners += listener
   }
 
-  public fun allTargetIds(): List<BuildTargetIdentifier> = targetIdToTargetInfo.keys.toList()
+  public fun allTargetIds(): List<BuildTargetIdentifier> {
+    ensureLoaded()
+    return targets.targetIdToTargetInfo.keys.toList()
+  }
 
-  public fun getTargetsForFile(file: VirtualFile, project: Project): List<BuildTargetIdentifier> =
-    fileToTargetId[file.url.processUriString().safeCastToURI()]
+  public fun getTargetsForFile(file: VirtualFile, project: Project): List<BuildTargetIdentifier> {
+    ensureLoaded()
+    return fileTargetIndex.getTargets(file.url)
       ?: getTargetsFromAncestorsForFile(file, project)
+  }
 
-  private fun getTargetsFromAncestorsForFile(file: VirtualFile, project: Project): List<BuildTargetIdentifier> {
-    return if (BspFeatureFlags.isRetrieveTargetsForFileFromAncestorsEnabled) {
-      val rootDir = project.rootDir
-      var iter = file.parent
-      while (VfsUtil.isAncestor(rootDir, iter, false)) {
-        val key = iter.url.processUriString().safeCastToURI()
-        if (key in fileToTargetId) return fileToTargetId[key]!!
-        iter = iter.parent
-      }
-      emptyList()
+  private fun getTargetsFromAncestorsForFile(file: VirtualFile, project: Project): List<BuildTargetIdentifier> =
+    if (BspFeatureFlags.isRetrieveTargetsForFileFromAncestorsEnabled) {
+      fileTargetIndex.getTargetsOfNearestAncestor(file.url, project.rootDir.url).orEmpty()
     } else {
       emptyList()
     }
-  }
 
-  public fun getTargetIdForModuleId(moduleId: String): BuildTargetIdentifier? = moduleIdToBuildTargetId[moduleId]
+  public fun getTargetIdForModuleId(moduleId: String): BuildTargetIdentifier? {
+    ensureLoaded()
+    return targets.moduleIdToBuildTargetId[moduleId]
+  }
 
-  public fun getBuildTargetInfoForId(buildTargetIdentifier: BuildTargetIdentifier): BuildTargetInfo? =
-    targetIdToTargetInfo[buildTargetIdentifier]
+  public fun getBuildTargetInfoForId(buildTargetIdentifier: BuildTargetIdentifier): BuildTargetInfo? {
+    ensureLoaded()
+    return targets.targetIdToTargetInfo[buildTargetIdentifier]
+  }
 
-  public fun getAllLibraries(): List<Library> = libraries
+  public fun getAllLibraries(): List<Library> {
+    ensureLoaded()
+    return libraries
+  }
 
   public fun isLibraryModule(name: String): Boolean = name in libraryModulesLookupTable
 
   public fun getAllLibraryModules(): List<JavaModule> = libraryModules
 
-  override fun getState(): TemporaryTargetUtilsState =
-    TemporaryTargetUtilsState(
-      idToTargetInfo = targetIdToTargetInfo.mapKeys { it.key.uri }.mapValues { it.value.toState() },
-      moduleIdToBuildTargetId = moduleIdToBuildTargetId.mapValues { it.value.uri },
-      fileToId = fileToTargetId.mapKeys { o -> o.key.toString() }.mapValues { o -> o.value.map { it.uri } },
-      libraries = libraries.map { it.toState() },
-    )
+  // the data is not kept in workspace.xml anymore, the default state removes what older versions stored there
+  override fun getState(): TemporaryTargetUtilsState = TemporaryTargetUtilsState()
 
   override fun loadState(state: TemporaryTargetUtilsState) {
-    targetIdToTargetInfo =
-      state.idToTargetInfo
-        .mapKeys { BuildTargetIdentifier(it.key) }
-        .mapValues { it.value.fromState() }
-    moduleIdToBuildTargetId = state.moduleIdToBuildTargetId.mapValues { BuildTargetIdentifier(it.value) }
-    fileToTargetId =
-      state.fileToId.mapKeys { o -> o.key.safeCastToURI() }.mapValues { o -> o.value.map { BuildTargetIdentifier(it) } }
-    libraries = state.libraries.map { it.fromState() }
+    if (state == TemporaryTargetUtilsState()) return
+    synchronized(this) {
+      val targetIdToTargetInfo =
+        state.idToTargetInfo
+          .mapKeys { BuildTargetIdentifier(it.key) }
+          .mapValues { it.value.fromState() }
+      targets = TargetsSection(targetIdToTargetInfo, state.moduleIdToBuildTargetId.mapValues { BuildTargetIdentifier(it.value) })
+      val fileTargetIndexBuilder = FileTargetIndex.Builder()
+      state.fileToId.forEach { (uri, targetIds) ->
+        targetIds.forEach { fileTargetIndexBuilder.add(FileTargetIndex.urlOf(uri.safeCastToURI()), BuildTargetIdentifier(it)) }
+      }
+      fileTargetIndex = fileTargetIndexBuilder.build()
+      libraries = state.libraries.map { it.fromState() }
+      isLoaded = true
+      writeInBackground(TARGETS_SECTION, targets)
+      writeInBackground(FILES_SECTION, fileTargetIndex)
+      writeInBackground(LIBRARIES_SECTION, libraries)
+    }
+  }
+
+  private companion object {
+    private val log = logger<TemporaryTargetUtils>()
+
+    private const val STORE_DIRECTORY_NAME = "bsp-targets"
+
+    private val TARGETS_SECTION =
+      TargetUtilsStore.Section(
+        fileName = "targets.bin",
+        write = { targets: TargetsSection ->
+          writeInt(targets.targetIdToTargetInfo.size)
+          targets.targetIdToTargetInfo.values.forEach { writeBuildTargetInfo(it) }
+          writeInt(targets.moduleIdToBuildTargetId.size)
+          targets.moduleIdToBuildTargetId.forEach { (moduleId, targetId) ->
+            writeString(moduleId)
+            writeString(targetId.uri)
+          }
+        },
+        read = {
+          val targetIdToTargetInfo = List(readCount()) { readBuildTargetInfo() }.associateBy { it.id }
+          val moduleIdToBuildTargetId = List(readCount()) { readString() to BuildTargetIdentifier(readString()) }.toMap()
+          TargetsSection(targetIdToTargetInfo, moduleIdToBuildTargetId)
+        },
+      )
+
+    private val FILES_SECTION =
+      TargetUtilsStore.Section(
+        fileName = "files.bin",
+        write = { fileTargetIndex: FileTargetIndex ->
+          writeInt(fileTargetIndex.size)
+          fileTargetIndex.forEach { url, targetIds ->
+            writeString(url)
+            writeStrings(targetIds.map { it.uri })
+          }
+        },
+        read = {
+          val builder = FileTargetIndex.Builder()
+          repeat(readCount()) {
+            val url = readString()
+            readStrings().forEach { builder.add(url, BuildTargetIdentifier(it)) }
+          }
+          builder.build()
+        },
+      )
+
+    private val LIBRARIES_SECTION =
+      TargetUtilsStore.Section(
+        fileName = "libraries.bin",
+        write = { libraries: List<Library> ->
+          writeInt(libraries.size)
+          libraries.forEach {
+            writeString(it.displayName)
+            writeStrings(it.iJars)
+            writeStrings(it.sourceJars)
+            writeStrings(it.classJars)
+          }
+        },
+        read = {
+          List(readCount()) {
+            Library(displayName = readString(), iJars = readStrings(), sourceJars = readStrings(), classJars = readStrings())
+          }
+        },
+      )
+
+    private fun BinaryWriter.writeBuildTargetInfo(info: BuildTargetInfo) {
+      writeString(info.id.uri)
+      writeNullableString(info.displayName)
+      writeStrings(info.dependencies.map { it.uri })
+      writeBoolean(info.capabilities.canRun)
+      writeBoolean(info.capabilities.canTest)
+      writeBoolean(info.capabilities.canCompile)
+      writeBoolean(info.capabilities.canDebug)
+      writeStrings(info.tags)
+      writeStrings(info.languageIds)
+      writeNullableString(info.baseDirectory)
+    }
+
+    private fun BinaryReader.readBuildTargetInfo(): BuildTargetInfo =
+      BuildTargetInfo(
+        id = BuildTargetIdentifier(readString()),
+        displayName = readNullableString(),
+        dependencies = readStrings().map { BuildTargetIdentifier(it) },
+        capabilities =
+          ModuleCapabilities(
+            canRun = readBoolean(),
+            canTest = readBoolean(),
+            canCompile = readBoolean(),
+            canDebug = readBoolean(),
+          ),
+        tags = readStrings(),
+        languageIds = readStrings(),
+        baseDirectory = readNullableString(),
+      )
+  }
+}
+
+internal fun FileTargetIndex.Builder.addSourcesOf(moduleDetails: ModuleDetails) {
+  moduleDetails.sources.forEach { sources ->
+    sources.sources.forEach { add(FileTargetIndex.urlOf(it.uri.safeCastToURI()), moduleDetails.target.id) }
   }
 }
 
@@ -14,6 +14,7 @@ import org.jetbrains.plugins.bsp.extension.points.BuildToolWindowTargetActionPro
 import org.jetbrains.plugins.bsp.extension.points.withBuildToolId
 import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.BuildTargetInfo
 import org.jetbrains.plugins.bsp.ui.widgets.tool.window.actions.CopyTargetIdAction
+import org.jetbrains.plugins.bsp.ui.widgets.tool.window.search.BuildTargetNameIndex
 import org.jetbrains.plugins.bsp.ui.widgets.tool.window.search.LazySearchListDisplay
 import org.jetbrains.plugins.bsp.ui.widgets.tool.window.search.LazySearchTreeDisplay
 import org.jetbrains.plugins.bsp.ui.widgets.tool.window.search.SearchBarPanel
@@ -49,6 +50,13 @@ public class BuildTargetSearch(
 
   private val targets = targets.sortedBy { it.getBuildTargetName() }
 
+  // built on the first search, in the background
+  private val targetNameIndex = lazy { BuildTargetNameIndex(this.targets.map { it.getBuildTargetName() }) }
+
+  // the results of the last displayed search, a query extending it is run only on these results
+  @Volatile
+  private var lastSearchResults: BuildTargetNameIndex.Result? = null
+
   private val mouseListenerBuilders = mutableSetOf<(BuildTargetContainer) -> MouseListener>()
   private val queryChangeListeners = mutableSetOf<() -> Unit>()
 
@@ -79,7 +87,7 @@ public class BuildTargetSearch(
       noResultsInfoComponent.isVisible = false
       searchBarPanel.inProgress = true
       ReadAction
-        .nonBlocking(SearchCallable(query, targets))
+        .nonBlocking(SearchCallable(query, targets, targetNameIndex, lastSearchResults))
         .finishOnUiThread(ModalityState.defaultModalityState()) { displaySearchResultsUnlessOutdated(it) }
         .coalesceBy(this)
         .submit(NonUrgentExecutor.getInstance())
@@ -88,6 +96,7 @@ public class BuildTargetSearch(
 
   private fun displaySearchResultsUnlessOutdated(results: SearchResults) {
     if (results.query.pattern == getCurrentSearchQuery().pattern) {
+      lastSearchResults = results.indexResult
       searchListDisplay.updateSearch(results.targets, results.query)
       searchTreeDisplay.updateSearch(results.targets, results.query)
       reloadPanels()
@@ -155,13 +164,21 @@ public class BuildTargetSearch(
       .withBuildToolId(project.buildToolId)
       ?.getTargetActions(targetSearchPanel, project, buildTargetInfo) ?: emptyList()
 
-  private class SearchCallable(private val query: Regex, private val targets: Collection<BuildTargetInfo>) : Callable<SearchResults> {
-    override fun call(): SearchResults =
-      SearchResults(
-        query,
-        targets.filter { query.containsMatchIn(it.getBuildTargetName()) },
-      )
+  private class SearchCallable(
+    private val query: Regex,
+    private val targets: List<BuildTargetInfo>,
+    private val targetNameIndex: Lazy<BuildTargetNameIndex>,
+    private val previousResults: BuildTargetNameIndex.Result?,
+  ) : Callable<SearchResults> {
+    override fun call(): SearchResults {
+      val indexResult = targetNameIndex.value.search(query, previousResults)
+      return SearchResults(query, indexResult.indices.map { targets[it] }, indexResult)
+    }
   }
 }
 
-private data class SearchResults(val query: Regex, val targets: List<BuildTargetInfo>)
+private data class SearchResults(
+  val query: Regex,
+  val targets: List<BuildTargetInfo>,
+  val indexResult: BuildTargetNameIndex.Result,
+)
@@ -0,0 +1,249 @@
+package org.jetbrains.plugins.bsp.ui.widgets.tool.window.search
+
+/**
+ * Finds the target names matching a search query without running the query on every name.
+ *
+ * Before a query is run, the names are narrowed down to candidates:
+ * - the literal parts of the query, which every match has to contain, are looked up in an index of the trigrams
+ *   of all names;
+ * - a query anchored at the start of the names, e.g. `^//foo`, is looked up in the sorted names;
+ * - a literal query which contains the previous one, e.g. after the user types another character, is run only
+ *   on the previous results.
+ *
+ * The results are indices of the names in [names], so they keep the order of the names.
+ */
+internal class BuildTargetNameIndex(private val names: List<String>) {
+  class Result(val query: Regex, val indices: IntArray)
+
+  init {
+    require(names.zipWithNext().all { (previous, next) -> previous <= next }) { "Names have to be sorted" }
+  }
+
+  private val trigramToIndices: Map<Long, IntArray> = createTrigramIndex()
+
+  /** Returns the names matching [query], [previous] is the result of the last query, if it was a search in the same names. */
+  fun search(query: Regex, previous: Result? = null): Result {
+    val candidates =
+      if (previous != null && query.isLiteral() && previous.query.isLiteral() && query.pattern.contains(previous.query.pattern)) {
+        previous.indices
+      } else {
+        findCandidates(query)
+      }
+    val matches = IntArrayBuilder()
+    candidates.forEach { if (query.containsMatchIn(names[it])) matches.add(it) }
+    return Result(query, matches.toIntArray())
+  }
+
+  private fun findCandidates(query: Regex): IntArray {
+    val requiredLiterals = RequiredLiterals.of(query) ?: return IntArray(names.size) { it }
+    val range = requiredLiterals.prefix?.let { rangeOfPrefix(it) } ?: names.indices
+    // all names in the range start with the prefix, so they contain its trigrams
+    val trigramLists =
+      (requiredLiterals.literals - setOfNotNull(requiredLiterals.prefix))
+        .flatMap { trigramsOf(it) }
+        .distinct()
+        .map { trigramToIndices[it] ?: return IntArray(0) }
+        .sortedBy { it.size }
+    val rangeSize = range.last - range.first + 1
+    return if (trigramLists.isEmpty() || trigramLists.first().size >= rangeSize) {
+      IntArray(rangeSize) { range.first + it }
+    } else {
+      intersect(trigramLists, range)
+    }
+  }
+
+  private fun rangeOfPrefix(prefix: String): IntRange {
+    val first = partitionPoint(0, names.size) { names[it] < prefix }
+    val end = partitionPoint(first, names.size) { names[it].startsWith(prefix) }
+    return first until end
+  }
+
+  private fun createTrigramIndex(): Map<Long, IntArray> {
+    val trigramToIndices = HashMap<Long, IntArrayBuilder>()
+    names.forEachIndexed { index, name ->
+      for (start in 0..name.length - 3) {
+        trigramToIndices.getOrPut(trigramAt(name, start)) { IntArrayBuilder() }.addIfNotLast(index)
+      }
+    }
+    return trigramToIndices.mapValues { it.value.toIntArray() }
+  }
+
+  private class IntArrayBuilder {
+    private var values = IntArray(4)
+    private var size = 0
+
+    fun add(value: Int) {
+      if (size == values.size) values = values.copyOf(size * 2)
+      values[size++] = value
+    }
+
+    // the names are indexed in order, so a name containing a trigram more than once adds the same index in a row
+    fun addIfNotLast(value: Int) {
+      if (size == 0 || values[size - 1] != value) add(value)
+    }
+
+    fun toIntArray(): IntArray = values.copyOf(size)
+  }
+
+  /**
+   * Literals which every name matching a query has to contain, and the literal it has to start with, if any.
+   * Only literals of simple queries are found, a query with groups or alternatives is run on all names.
+   */
+  private class RequiredLiterals(val literals: List<String>, val prefix: String?) {
+    companion object {
+      private const val ESCAPED_CLASSES = "dDsSwWbBhHvVRXAZzG"
+
+      fun of(query: Regex): RequiredLiterals? =
+        when {
+          query.isLiteral() -> RequiredLiterals(listOf(query.pattern), null)
+          query.options.isEmpty() -> parse(query.pattern)
+          else -> null
+        }
+
+      private fun parse(pattern: String): RequiredLiterals? {
+        val literals = mutableListOf<String>()
+        var prefix: String? = null
+        val current = StringBuilder()
+        var currentStart = -1
+        var isLastAtomInCurrent = false
+        var isAfterQuantifier = false
+        val isAnchored = pattern.startsWith('^')
+
+        fun endCurrent() {
+          if (current.isNotEmpty()) {
+            if (isAnchored && currentStart == 1) prefix = current.toString()
+            literals.add(current.toString())
+            current.clear()
+          }
+          isLastAtomInCurrent = false
+        }
+
+        fun append(char: Char, position: Int) {
+          if (current.isEmpty()) currentStart = position
+          current.append(char)
+          isLastAtomInCurrent = true
+        }
+
+        // the last atom can occur zero times, so it's not required
+        fun dropLastAtom() {
+          if (isLastAtomInCurrent) current.setLength(current.length - 1)
+          endCurrent()
+        }
+
+        var position = if (isAnchored) 1 else 0
+        while (position < pattern.length) {
+          val char = pattern[position]
+          val wasAfterQuantifier = isAfterQuantifier
+          isAfterQuantifier = false
+          when (char) {
+            '\\' -> {
+              val escaped = pattern.getOrNull(position + 1) ?: return null
+              when {
+                !escaped.isLetterOrDigit() -> append(escaped, position)
+                escaped in ESCAPED_CLASSES -> endCurrent()
+                escaped == 'p' || escaped == 'P' -> {
+                  endCurrent()
+                  if (pattern.getOrNull(position + 2) == '{') {
+                    position = (pattern.indexOf('}', position).takeIf { it >= 0 } ?: return null) + 1
+                    continue
+                  }
+                  position++
+                }
+                // e.g. \Q, \x41 or a back reference
+                else -> return null
+              }
+              position += 2
+              continue
+            }
+            '[' -> {
+              endCurrent()
+              position = endOfCharacterClass(pattern, position) ?: return null
+            }
+            // a quantifier after another one makes it lazy or possessive, e.g. a*? or a++
+            '?', '*' ->
+              if (!wasAfterQuantifier) {
+                dropLastAtom()
+                isAfterQuantifier = true
+              }
+            '+' ->
+              if (!wasAfterQuantifier) {
+                endCurrent()
+                isAfterQuantifier = true
+              }
+            '{' -> {
+              val end = pattern.indexOf('}', position).takeIf { it >= 0 } ?: return null
+              val minimum = pattern.substring(position + 1, end).substringBefore(',').toIntOrNull() ?: return null
+              if (minimum == 0) dropLastAtom() else endCurrent()
+              isAfterQuantifier = true
+              position = end
+            }
+            '.', '^', '$' -> endCurrent()
+            '(', ')', '|' -> return null
+            else -> append(char, position)
+          }
+          position++
+        }
+        endCurrent()
+        return RequiredLiterals(literals, prefix)
+      }
+
+      // returns the position of the closing bracket, classes can be nested, e.g. [a-z&&[^b]]
+      private fun endOfCharacterClass(pattern: String, start: Int): Int? {
+        var depth = 0
+        var position = start
+        while (position < pattern.length) {
+          when (pattern[position]) {
+            '\\' -> position++
+            '[' -> depth++
+            ']' -> if (pattern[position - 1] != '[' && pattern.substring(position - 2, position) != "[^") depth--
+          }
+          if (depth == 0) return position
+          position++
+        }
+        return null
+      }
+    }
+  }
+
+  private companion object {
+    fun Regex.isLiteral(): Boolean = options == setOf(RegexOption.LITERAL)
+
+    // a list much longer than the candidates found so far would take longer to intersect than to match them
+    const val MAX_INTERSECTED_LIST_RATIO = 16
+
+    fun trigramsOf(text: String): List<Long> = (0..text.length - 3).map { trigramAt(text, it) }
+
+    fun trigramAt(text: String, start: Int): Long =
+      (text[start].code.toLong() shl 32) or (text[start + 1].code.toLong() shl 16) or text[start + 2].code.toLong()
+
+    // the lists are intersected starting from the shortest one, each element is looked up in the next list
+    fun intersect(listsBySize: List<IntArray>, range: IntRange): IntArray {
+      val first = IntArrayBuilder()
+      listsBySize.first().forEach { if (it in range) first.add(it) }
+      var result = first.toIntArray()
+      for (list in listsBySize.drop(1)) {
+        if (result.isEmpty() || list.size > result.size * MAX_INTERSECTED_LIST_RATIO) break
+        val intersection = IntArrayBuilder()
+        var from = 0
+        for (element in result) {
+          val position = list.binarySearch(element, from)
+          if (position >= 0) intersection.add(element)
+          from = if (position >= 0) position + 1 else -position - 1
+        }
+        result = intersection.toIntArray()
+      }
+      return result
+    }
+
+    // returns the first index in from until to for which predicate is false, the predicate has to be true before it
+    inline fun partitionPoint(from: Int, to: Int, predicate: (Int) -> Boolean): Int {
+      var low = from
+      var high = to
+      while (low < high) {
+        val middle = (low + high) ushr 1
+        if (predicate(middle)) low = middle + 1 else high = middle
+      }
+      return low
+    }
+  }
+}
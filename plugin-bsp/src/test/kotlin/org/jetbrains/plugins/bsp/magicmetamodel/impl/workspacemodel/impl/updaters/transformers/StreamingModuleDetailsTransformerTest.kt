@@ -0,0 +1,111 @@
+package org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.impl.updaters.transformers
+
+import ch.epfl.scala.bsp4j.BuildTarget
+import ch.epfl.scala.bsp4j.BuildTargetCapabilities
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import ch.epfl.scala.bsp4j.JavacOptionsItem
+import ch.epfl.scala.bsp4j.ResourcesItem
+import ch.epfl.scala.bsp4j.SourceItem
+import ch.epfl.scala.bsp4j.SourceItemKind
+import ch.epfl.scala.bsp4j.SourcesItem
+import io.kotest.matchers.shouldBe
+import org.jetbrains.plugins.bsp.magicmetamodel.ProjectDetails
+import org.jetbrains.plugins.bsp.magicmetamodel.impl.workspacemodel.ModuleDetails
+import org.junit.jupiter.api.DisplayName
+import org.junit.jupiter.api.Test
+
+@DisplayName("StreamingModuleDetailsTransformer tests")
+class StreamingModuleDetailsTransformerTest {
+  private val targetIds = (1..3).map { BuildTargetIdentifier("//target$it") }
+  private val targets = targetIds.map { BuildTarget(it, emptyList(), listOf("java"), emptyList(), BuildTargetCapabilities()) }
+  private val sources = targetIds.map { SourcesItem(it, listOf(SourceItem("file:///${it.uri}/File.java", SourceItemKind.FILE, false))) }
+  private val resources = targetIds.map { ResourcesItem(it, listOf("file:///${it.uri}/resource.txt")) }
+  private val javacOptions = targetIds.map { JavacOptionsItem(it, listOf("-opt"), listOf("classpath"), "class/dir") }
+  private val projectDetails =
+    ProjectDetails(
+      targetIds = targetIds,
+      targets = targets.toSet(),
+      sources = sources,
+      resources = resources,
+      dependenciesSources = emptyList(),
+      javacOptions = javacOptions,
+      scalacOptions = emptyList(),
+      pythonOptions = emptyList(),
+      outputPathUris = emptyList(),
+      libraries = emptyList(),
+    )
+
+  @Test
+  fun `should pass on a target only when all expected responses about it arrived`() {
+    // given
+    val moduleDetails = mutableListOf<ModuleDetails>()
+    val transformer = StreamingModuleDetailsTransformer(projectDetails, LibraryGraph(emptyList()))
+    transformer.expect(targetIds)
+    transformer.expect(targetIds)
+
+    // when
+    moduleDetails += transformer.addSources(targetIds.take(2), sources.take(2))
+
+    // then
+    moduleDetails shouldBe emptyList()
+
+    // when
+    moduleDetails += transformer.addResources(targetIds.take(1), resources.take(1))
+
+    // then
+    moduleDetails.map { it.target.id } shouldBe targetIds.take(1)
+    moduleDetails.single().sources shouldBe sources.take(1)
+    moduleDetails.single().resources shouldBe resources.take(1)
+  }
+
+  @Test
+  fun `should count a chunk without items about a target as its response`() {
+    // given
+    val moduleDetails = mutableListOf<ModuleDetails>()
+    val transformer = StreamingModuleDetailsTransformer(projectDetails, LibraryGraph(emptyList()))
+    transformer.expect(targetIds)
+
+    // when
+    moduleDetails += transformer.addSources(targetIds, sources.take(1))
+
+    // then
+    moduleDetails.map { it.target.id } shouldBe targetIds
+    moduleDetails.map { it.sources } shouldBe listOf(sources.take(1), emptyList(), emptyList())
+  }
+
+  @Test
+  fun `should pass on the remaining targets when finished`() {
+    // given
+    val moduleDetails = mutableListOf<ModuleDetails>()
+    val transformer = StreamingModuleDetailsTransformer(projectDetails, LibraryGraph(emptyList()))
+    transformer.expect(targetIds.take(1))
+    moduleDetails += transformer.addSources(targetIds.take(1), sources.take(1))
+
+    // when
+    moduleDetails += transformer.finish()
+
+    // then
+    moduleDetails.map { it.target.id }.toSet() shouldBe targetIds.toSet()
+  }
+
+  @Test
+  fun `should create the same module details as from the whole responses`() {
+    // given
+    val moduleDetails = mutableListOf<ModuleDetails>()
+    val transformer = StreamingModuleDetailsTransformer(projectDetails, LibraryGraph(emptyList()))
+    transformer.expect(targetIds)
+    transformer.expect(targetIds)
+    transformer.expect(targetIds)
+
+    // when
+    moduleDetails += transformer.addJavacOptions(targetIds, javacOptions)
+    moduleDetails += transformer.addResources(targetIds.take(2), resources.take(2))
+    moduleDetails += transformer.addSources(targetIds.takeLast(2), sources.takeLast(2))
+    moduleDetails += transformer.addResources(targetIds.takeLast(1), resources.takeLast(1))
+    moduleDetails += transformer.addSources(targetIds.take(1), sources.take(1))
+
+    // then
+    val wholeResponsesTransformer = ProjectDetailsToModuleDetailsTransformer(projectDetails, LibraryGraph(emptyList()))
+    moduleDetails.sortedBy { it.target.id.uri } shouldBe targetIds.map { wholeResponsesTransformer.moduleDetailsForTargetId(it) }
+  }
+}
@@ -0,0 +1,315 @@
+package org.jetbrains.plugins.bsp.server
+
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import ch.epfl.scala.bsp4j.SourceItem
+import ch.epfl.scala.bsp4j.SourceItemKind
+import ch.epfl.scala.bsp4j.SourcesItem
+import ch.epfl.scala.bsp4j.SourcesParams
+import ch.epfl.scala.bsp4j.SourcesResult
+import io.kotest.matchers.shouldBe
+import org.eclipse.lsp4j.jsonrpc.ResponseErrorException
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseError
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseErrorCode
+import org.jetbrains.bsp.protocol.JoinedBuildServer
+import org.junit.jupiter.api.Test
+import java.lang.reflect.Proxy
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class ChunkingBuildServerTest {
+  private val targetIds = (0 until 100).map { BuildTargetIdentifier("//target:$it") }
+
+  // answers buildTarget/sources only when the test completes the requests
+  private class FakeServer {
+    val requests = mutableListOf<Pair<List<BuildTargetIdentifier>, CompletableFuture<SourcesResult>>>()
+    var maxRequestsInFlight = 0
+
+    val server =
+      Proxy.newProxyInstance(javaClass.classLoader, arrayOf(JoinedBuildServer::class.java)) { _, method, args ->
+        if (method.name != "buildTargetSources") throw UnsupportedOperationException(method.name)
+        val request = CompletableFuture<SourcesResult>()
+        requests.add((args[0] as SourcesParams).targets to request)
+        maxRequestsInFlight = maxOf(maxRequestsInFlight, requestsInFlight().size)
+        request
+      } as JoinedBuildServer
+
+    fun requestsInFlight() = requests.filterNot { it.second.isDone }
+
+    fun answerNext() {
+      val (targetIds, request) = requestsInFlight().first()
+      request.complete(SourcesResult(targetIds.map { SourcesItem(it, emptyList()) }))
+    }
+
+    fun failNext() {
+      requestsInFlight().first().second.completeExceptionally(IllegalStateException("server failed"))
+    }
+
+    fun rejectNext() {
+      val error = ResponseError(ResponseErrorCode.InternalError, "invalid target", null)
+      requestsInFlight().first().second.completeExceptionally(ResponseErrorException(error))
+    }
+  }
+
+  @Test
+  fun `should send a limited number of chunks at once and return the items in the order of targets`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 3)
+
+    // when
+    val result = server.buildTargetSources(SourcesParams(targetIds))
+    fakeServer.requestsInFlight().size shouldBe 3
+    // the chunks are answered in reverse order
+    while (fakeServer.requestsInFlight().isNotEmpty()) {
+      val (chunkTargetIds, request) = fakeServer.requestsInFlight().last()
+      request.complete(SourcesResult(chunkTargetIds.map { SourcesItem(it, emptyList()) }))
+    }
+
+    // then
+    fakeServer.maxRequestsInFlight shouldBe 3
+    result.get().items.map { it.target } shouldBe targetIds
+  }
+
+  @Test
+  fun `should size the following chunks from the payload of the answered ones`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 1, maxChunksInFlight = 1)
+    val sources = List(2_500) { SourceItem("file:///Source$it.kt", SourceItemKind.FILE, false) }
+
+    // when
+    server.buildTargetSources(SourcesParams(targetIds))
+    val (firstChunkTargetIds, firstRequest) = fakeServer.requestsInFlight().single()
+    firstRequest.complete(SourcesResult(firstChunkTargetIds.map { SourcesItem(it, sources) }))
+
+    // then
+    firstChunkTargetIds.size shouldBe 10
+    // 50 000 source files at most in a chunk
+    fakeServer.requestsInFlight().single().first.size shouldBe 20
+  }
+
+  @Test
+  fun `should retry only the failed chunk`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 1)
+
+    // when
+    val result = server.buildTargetSources(SourcesParams(targetIds))
+    fakeServer.answerNext()
+    val failedTargetIds = fakeServer.requestsInFlight().first().first
+    fakeServer.failNext()
+    val retriedTargetIds = fakeServer.requestsInFlight().first().first
+    while (fakeServer.requestsInFlight().isNotEmpty()) fakeServer.answerNext()
+
+    // then
+    retriedTargetIds shouldBe failedTargetIds
+    fakeServer.requests.size shouldBe fakeServer.requests.map { it.first }.distinct().size + 1
+    result.get().items.map { it.target } shouldBe targetIds
+  }
+
+  @Test
+  fun `should fail when a chunk fails more times than it can be retried`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 1, maxRetries = 1)
+
+    // when
+    val result = server.buildTargetSources(SourcesParams(targetIds))
+    fakeServer.failNext()
+    fakeServer.failNext()
+
+    // then
+    result.isCompletedExceptionally shouldBe true
+    (runCatching { result.get() }.exceptionOrNull() as ExecutionException).cause?.message shouldBe "server failed"
+    fakeServer.requests.size shouldBe 2
+  }
+
+  @Test
+  fun `should not retry a chunk the server answered with an error`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 1)
+
+    // when
+    val result = server.buildTargetSources(SourcesParams(targetIds))
+    fakeServer.rejectNext()
+
+    // then
+    result.isCompletedExceptionally shouldBe true
+    (runCatching { result.get() }.exceptionOrNull() as ExecutionException).cause?.message shouldBe "invalid target"
+    fakeServer.requests.size shouldBe 1
+  }
+
+  @Test
+  fun `should cancel the chunks in flight when the request is cancelled`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 2)
+
+    // when
+    val result = server.buildTargetSources(SourcesParams(targetIds))
+    fakeServer.answerNext()
+    result.cancel(true)
+
+    // then
+    fakeServer.requests.size shouldBe 3
+    fakeServer.requestsInFlight().size shouldBe 0
+    fakeServer.requests.drop(1).all { it.second.isCancelled } shouldBe true
+  }
+
+  @Test
+  fun `should stream the items of every chunk as soon as it is answered`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 2)
+    val streamedTargetIds = mutableListOf<BuildTargetIdentifier>()
+    val chunkTargetIds = mutableListOf<BuildTargetIdentifier>()
+
+    // when
+    val result =
+      server.streamRequest(ChunkedEndpoint.SOURCES, SourcesParams(targetIds)) { chunk, items ->
+        chunkTargetIds += chunk
+        streamedTargetIds += items.map { it.target }
+      }
+    fakeServer.answerNext()
+
+    // then
+    streamedTargetIds shouldBe targetIds.take(10)
+    chunkTargetIds shouldBe targetIds.take(10)
+    result.isDone shouldBe false
+
+    // when
+    while (fakeServer.requestsInFlight().isNotEmpty()) fakeServer.answerNext()
+
+    // then
+    result.isDone shouldBe true
+    streamedTargetIds.toSet() shouldBe targetIds.toSet()
+  }
+
+  @Test
+  fun `should send the next chunk before the items of the answered one are handled`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 1)
+    val requestsInFlightWhileHandling = mutableListOf<Int>()
+
+    // when
+    val result =
+      server.streamRequest(ChunkedEndpoint.SOURCES, SourcesParams(targetIds)) { _, _ ->
+        requestsInFlightWhileHandling += fakeServer.requestsInFlight().size
+      }
+    while (fakeServer.requestsInFlight().isNotEmpty()) fakeServer.answerNext()
+
+    // then
+    result.isDone shouldBe true
+    requestsInFlightWhileHandling.first() shouldBe 1
+    requestsInFlightWhileHandling.last() shouldBe 0
+  }
+
+  @Test
+  fun `should not complete the stream until the items of every chunk are handled`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 100, maxChunksInFlight = 1)
+    val handlingStarted = CountDownLatch(1)
+    val finishHandling = CountDownLatch(1)
+
+    // when
+    val result =
+      server.streamRequest(ChunkedEndpoint.SOURCES, SourcesParams(targetIds)) { _, _ ->
+        handlingStarted.countDown()
+        finishHandling.await()
+      }
+    val answering = thread { fakeServer.answerNext() }
+    handlingStarted.await(10, TimeUnit.SECONDS) shouldBe true
+
+    // then
+    result.isDone shouldBe false
+
+    // when
+    finishHandling.countDown()
+    answering.join()
+
+    // then
+    result.get(10, TimeUnit.SECONDS) shouldBe Unit
+  }
+
+  @Test
+  fun `should not send more chunks while too many answered ones are not handled`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 1, maxUnhandledChunks = 1)
+    val handlings = mutableListOf<CompletableFuture<Unit>>()
+
+    // when
+    val result =
+      server.streamRequestAsync(ChunkedEndpoint.SOURCES, SourcesParams(targetIds)) { _, _ ->
+        CompletableFuture<Unit>().also { handlings += it }
+      }
+    fakeServer.answerNext()
+
+    // then
+    handlings.size shouldBe 1
+    fakeServer.requestsInFlight().size shouldBe 0
+
+    // when
+    handlings.last().complete(Unit)
+
+    // then
+    fakeServer.requestsInFlight().size shouldBe 1
+
+    // when
+    while (fakeServer.requestsInFlight().isNotEmpty()) {
+      fakeServer.answerNext()
+      handlings.last().complete(Unit)
+    }
+
+    // then
+    result.isDone shouldBe true
+    handlings.size shouldBe fakeServer.requests.size
+  }
+
+  @Test
+  fun `should fail the stream when the handling of the items fails`() {
+    // given
+    val fakeServer = FakeServer()
+    val server = ChunkingBuildServer(fakeServer.server, minChunkSize = 10, maxChunksInFlight = 2)
+
+    // when
+    val result =
+      server.streamRequestAsync(ChunkedEndpoint.SOURCES, SourcesParams(targetIds)) { _, _ ->
+        CompletableFuture.failedFuture(IllegalStateException("handling failed"))
+      }
+    fakeServer.answerNext()
+
+    // then
+    result.isCompletedExceptionally shouldBe true
+    (runCatching { result.get() }.exceptionOrNull() as ExecutionException).cause?.message shouldBe "handling failed"
+    fakeServer.requestsInFlight().size shouldBe 0
+  }
+
+  @Test
+  fun `should stream the whole response if the server does not chunk requests`() {
+    // given
+    val fakeServer = FakeServer()
+    val streamedTargetIds = mutableListOf<BuildTargetIdentifier>()
+    val chunkTargetIds = mutableListOf<BuildTargetIdentifier>()
+
+    // when
+    val result =
+      fakeServer.server.streamRequest(ChunkedEndpoint.SOURCES, SourcesParams(targetIds)) { chunk, items ->
+        chunkTargetIds += chunk
+        streamedTargetIds += items.map { it.target }
+      }
+    fakeServer.answerNext()
+
+    // then
+    result.isDone shouldBe true
+    streamedTargetIds shouldBe targetIds
+    chunkTargetIds shouldBe targetIds
+  }
+}
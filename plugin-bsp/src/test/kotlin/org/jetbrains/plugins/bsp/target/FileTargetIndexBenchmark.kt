@@ -0,0 +1,94 @@
+package org.jetbrains.plugins.bsp.target
+
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import org.jetbrains.plugins.bsp.utils.safeCastToURI
+import java.net.URI
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares the memory footprint and lookup latency of [FileTargetIndex] with the map of source uris to targets
+ * which `TemporaryTargetUtils` used before.
+ *
+ * Usage: `bazel run //plugin-bsp/src:FileTargetIndexBenchmark -- [files]`
+ */
+fun main(args: Array<String>) {
+  val filesCount = args.firstOrNull()?.toInt() ?: 500_000
+  val sources = generateSources(filesCount)
+  val fileUrls = sources.map { it.first }.filter { it.endsWith(".kt") }.shuffled(java.util.Random(0))
+  // files in directories added as a whole, e.g. resources, which are found by the nearest ancestor
+  val nestedUrls = sources.map { it.first }.filterNot { it.endsWith(".kt") }.map { "$it/nested/File.txt" }
+
+  lateinit var map: Map<URI, List<BuildTargetIdentifier>>
+  val mapBytes =
+    retainedBytes {
+      map =
+        sources
+          .map { (url, target) -> url.trimEnd('/').safeCastToURI() to target }
+          .groupBy({ it.first }, { it.second })
+    }
+  lateinit var index: FileTargetIndex
+  val indexBytes =
+    retainedBytes {
+      val builder = FileTargetIndex.Builder()
+      sources.forEach { (url, target) -> builder.add(FileTargetIndex.urlOf(url.safeCastToURI()), target) }
+      index = builder.build()
+    }
+
+  val mapExact = measureLookups(fileUrls) { map[it.trimEnd('/').safeCastToURI()] }
+  val indexExact = measureLookups(fileUrls) { index.getTargets(it) }
+  val mapAncestor = measureLookups(nestedUrls) { mapAncestorLookup(map, it) }
+  val indexAncestor = measureLookups(nestedUrls) { index.getTargets(it) ?: index.getTargetsOfNearestAncestor(it, ROOT_URL) }
+
+  println("Files: $filesCount, directories: ${nestedUrls.size}")
+  println("Map of uris:       ${mapBytes / 1024 / 1024} MiB, exact $mapExact ns, ancestor $mapAncestor ns")
+  println("File target index: ${indexBytes / 1024 / 1024} MiB, exact $indexExact ns, ancestor $indexAncestor ns")
+}
+
+private const val ROOT_URL = "file:///home/user/project"
+private const val FILES_PER_TARGET = 50
+private const val WARMUP_ITERATIONS = 3
+private const val MEASURED_ITERATIONS = 5
+
+private fun generateSources(filesCount: Int): List<Pair<String, BuildTargetIdentifier>> =
+  (0 until filesCount / FILES_PER_TARGET).flatMap { targetIndex ->
+    val packagePath = "module${targetIndex / 100}/src/main/kotlin/org/example/module${targetIndex / 100}/package${targetIndex % 100}"
+    val target = BuildTargetIdentifier("@//$packagePath:target$targetIndex")
+    val files = (0 until FILES_PER_TARGET - 1).map { "$ROOT_URL/$packagePath/File$it.kt" to target }
+    files + ("$ROOT_URL/$packagePath/resources/" to target)
+  }
+
+// the walk over parents which TemporaryTargetUtils did, with a uri created for every parent
+private fun mapAncestorLookup(map: Map<URI, List<BuildTargetIdentifier>>, url: String): List<BuildTargetIdentifier>? {
+  map[url.safeCastToURI()]?.let { return it }
+  var parent = url.substringBeforeLast('/')
+  while (parent.startsWith(ROOT_URL)) {
+    map[parent.safeCastToURI()]?.let { return it }
+    parent = parent.substringBeforeLast('/')
+  }
+  return null
+}
+
+/** Returns the average time of a lookup in nanoseconds. */
+private fun measureLookups(urls: List<String>, lookup: (String) -> List<BuildTargetIdentifier>?): Long {
+  var found = 0
+  repeat(WARMUP_ITERATIONS) { urls.forEach { if (lookup(it) != null) found++ } }
+  val nanos =
+    (1..MEASURED_ITERATIONS).minOf {
+      measureNanoTime { urls.forEach { if (lookup(it) != null) found++ } }
+    }
+  check(found == urls.size * (WARMUP_ITERATIONS + MEASURED_ITERATIONS)) { "Not all urls were found" }
+  return nanos / urls.size
+}
+
+// create has to keep what it builds reachable, e.g. in a variable of the caller
+private fun retainedBytes(create: () -> Unit): Long {
+  val before = usedMemory()
+  create()
+  return usedMemory() - before
+}
+
+private fun usedMemory(): Long {
+  repeat(3) { System.gc() }
+  val runtime = Runtime.getRuntime()
+  return runtime.totalMemory() - runtime.freeMemory()
+}
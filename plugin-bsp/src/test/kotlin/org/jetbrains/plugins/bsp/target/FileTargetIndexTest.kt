@@ -0,0 +1,93 @@
+package org.jetbrains.plugins.bsp.target
+
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+import java.net.URI
+
+class FileTargetIndexTest {
+  private val targetA = BuildTargetIdentifier("//a")
+  private val targetB = BuildTargetIdentifier("//b")
+
+  private val index =
+    FileTargetIndex
+      .Builder()
+      .add("file:///project/a/src/main/A.kt", targetA)
+      .add("file:///project/a/src/main/Shared.kt", targetA)
+      .add("file:///project/a/src/main/Shared.kt", targetB)
+      .add("file:///project/b/src/", targetB)
+      .add("file:///project/b/src/nested/B.kt", targetA)
+      .add("file:///project", targetB)
+      .build()
+
+  @Test
+  fun `should return targets of a file`() {
+    index.getTargets("file:///project/a/src/main/A.kt") shouldBe listOf(targetA)
+    index.getTargets("file:///project/a/src/main/Shared.kt") shouldBe listOf(targetA, targetB)
+    index.getTargets("file:///project/b/src") shouldBe listOf(targetB)
+    index.size shouldBe 5
+  }
+
+  @Test
+  fun `should treat urls differing only in slashes as the same`() {
+    index.getTargets("file:/project/a/src/main/A.kt") shouldBe listOf(targetA)
+    index.getTargets("file:///project//b/src/") shouldBe listOf(targetB)
+  }
+
+  @Test
+  fun `should not return targets of files which are not in the index`() {
+    index.getTargets("file:///project/a/src/main/Other.kt") shouldBe null
+    index.getTargets("file:///project/a/src") shouldBe null
+    index.getTargets("file:///project/a/src/main/A.kt/more") shouldBe null
+    index.getTargets("file:///project/a/src/main/A.k") shouldBe null
+    index.getTargets("file:///other") shouldBe null
+  }
+
+  @Test
+  fun `should return targets of the nearest ancestor inside the root`() {
+    index.getTargetsOfNearestAncestor("file:///project/b/src/nested/Other.kt", "file:///project") shouldBe listOf(targetB)
+    index.getTargetsOfNearestAncestor("file:///project/b/src/nested/B.kt", "file:///project") shouldBe listOf(targetB)
+    index.getTargetsOfNearestAncestor("file:///project/a/src/main/Other.kt", "file:///project") shouldBe listOf(targetB)
+    index.getTargetsOfNearestAncestor("file:///project/a/src/main/Other.kt", "file:///project/a") shouldBe null
+    index.getTargetsOfNearestAncestor("file:///project/b/src/nested/Other.kt", "file:///project/a") shouldBe null
+    index.getTargetsOfNearestAncestor("file:///project", "file:///") shouldBe null
+  }
+
+  @Test
+  fun `should list all entries with normalized urls`() {
+    // given
+    val entries = mutableMapOf<String, List<BuildTargetIdentifier>>()
+
+    // when
+    index.forEach { url, targets -> entries[url] = targets }
+
+    // then
+    entries shouldBe
+      mapOf(
+        "file:///project" to listOf(targetB),
+        "file:///project/a/src/main/A.kt" to listOf(targetA),
+        "file:///project/a/src/main/Shared.kt" to listOf(targetA, targetB),
+        "file:///project/b/src" to listOf(targetB),
+        "file:///project/b/src/nested/B.kt" to listOf(targetA),
+      )
+  }
+
+  @Test
+  fun `should compare entries of indexes`() {
+    // given
+    val sameIndex = FileTargetIndex.Builder()
+    index.forEach { url, targets -> targets.forEach { sameIndex.add(url, it) } }
+    val otherIndex = FileTargetIndex.Builder().add("file:///project/a/src/main/A.kt", targetB).build()
+
+    // then
+    index.hasSameEntries(sameIndex.build()) shouldBe true
+    index.hasSameEntries(otherIndex) shouldBe false
+    FileTargetIndex.EMPTY.hasSameEntries(FileTargetIndex.Builder().build()) shouldBe true
+  }
+
+  @Test
+  fun `should decode urls of uris`() {
+    FileTargetIndex.urlOf(URI("file:///path/my%20project/A.kt")) shouldBe "file:///path/my project/A.kt"
+    FileTargetIndex.urlOf(URI("file:/path/A.kt")) shouldBe "file:///path/A.kt"
+  }
+}
@@ -0,0 +1,102 @@
+package org.jetbrains.plugins.bsp.target
+
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Files
+import java.nio.file.Path
+
+class TargetUtilsStoreTest {
+  private data class Entry(
+    val name: String,
+    val description: String?,
+    val tags: List<String>,
+    val number: Int,
+    val flag: Boolean,
+  )
+
+  private val section =
+    TargetUtilsStore.Section(
+      fileName = "entries.bin",
+      write = { entries: List<Entry> ->
+        writeInt(entries.size)
+        entries.forEach {
+          writeString(it.name)
+          writeNullableString(it.description)
+          writeStrings(it.tags)
+          writeInt(it.number)
+          writeBoolean(it.flag)
+        }
+      },
+      read = {
+        List(readCount()) {
+          Entry(readString(), readNullableString(), readStrings(), readInt(), readBoolean())
+        }
+      },
+    )
+
+  @Test
+  fun `should read what was written`(@TempDir directory: Path) {
+    // given
+    val store = TargetUtilsStore(directory)
+    val entries =
+      listOf(
+        Entry("//target:a", null, listOf("manual", "ąę"), 0, true),
+        Entry("//target:b", "", emptyList(), 300, false),
+        Entry("//target:a", "description", listOf("manual"), Int.MAX_VALUE, true),
+        Entry("", "//target:a", listOf("", "manual"), -1, false),
+      )
+
+    // when
+    store.write(section, entries)
+    val readEntries = store.read(section)
+
+    // then
+    readEntries shouldBe entries
+  }
+
+  @Test
+  fun `should write every string once`(@TempDir directory: Path) {
+    // given
+    val store = TargetUtilsStore(directory)
+    val name = "file:///very/long/path/to/the/workspace/and/a/source/file/Source.kt"
+    val entries = List(1000) { Entry(name, name, listOf(name), it, false) }
+
+    // when
+    store.write(section, entries)
+
+    // then
+    (Files.size(directory.resolve("entries.bin")) < 10 * 1000) shouldBe true
+    store.read(section) shouldBe entries
+  }
+
+  @Test
+  fun `should return null if the section was not written`(@TempDir directory: Path) {
+    // given
+    val store = TargetUtilsStore(directory)
+
+    // when
+    val readEntries = store.read(section)
+
+    // then
+    readEntries shouldBe null
+  }
+
+  @Test
+  fun `should return null if the file is corrupted`(@TempDir directory: Path) {
+    // given
+    val store = TargetUtilsStore(directory)
+    store.write(section, listOf(Entry("//target:a", null, listOf("manual"), 1, true)))
+    val file = directory.resolve("entries.bin")
+
+    // when
+    Files.write(file, Files.readAllBytes(file).copyOf(Files.size(file).toInt() - 3))
+    val truncated = store.read(section)
+    Files.write(file, byteArrayOf(1, 2, 3))
+    val unknownFormat = store.read(section)
+
+    // then
+    truncated shouldBe null
+    unknownFormat shouldBe null
+  }
+}
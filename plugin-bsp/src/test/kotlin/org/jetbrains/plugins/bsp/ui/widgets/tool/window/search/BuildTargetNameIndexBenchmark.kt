@@ -0,0 +1,72 @@
+package org.jetbrains.plugins.bsp.ui.widgets.tool.window.search
+
+import kotlin.system.measureNanoTime
+
+/**
+ * Measures the latency of a search after every keystroke while typing queries into the target search, comparing
+ * [BuildTargetNameIndex] with running the query on every target name.
+ *
+ * Usage: `bazel run //plugin-bsp/src:BuildTargetNameIndexBenchmark -- [targets]`
+ */
+fun main(args: Array<String>) {
+  val targetsCount = args.firstOrNull()?.toInt() ?: 40_000
+  val names = generateNames(targetsCount)
+  val typedQueries =
+    listOf(
+      "module17/package3:target" to false,
+      "target1234" to false,
+      "^//module2/" to true,
+      "package4.*test" to true,
+    )
+
+  val buildNanos = measureNanoTime { BuildTargetNameIndex(names) }
+  val index = BuildTargetNameIndex(names)
+
+  repeat(WARMUP_ITERATIONS) { typedQueries.forEach { (query, isRegex) -> typeWithFullScan(names, query, isRegex) } }
+  val fullScanNanos = (1..MEASURED_ITERATIONS).flatMap { typedQueries.flatMap { (query, isRegex) -> typeWithFullScan(names, query, isRegex) } }
+  repeat(WARMUP_ITERATIONS) { typedQueries.forEach { (query, isRegex) -> typeWithIndex(index, query, isRegex) } }
+  val indexNanos = (1..MEASURED_ITERATIONS).flatMap { typedQueries.flatMap { (query, isRegex) -> typeWithIndex(index, query, isRegex) } }
+
+  println("Targets: $targetsCount, index built in ${buildNanos / 1_000_000} ms")
+  println("Full scan: ${describe(fullScanNanos)}")
+  println("Index:     ${describe(indexNanos)}")
+}
+
+private const val WARMUP_ITERATIONS = 3
+private const val MEASURED_ITERATIONS = 5
+
+private fun generateNames(targetsCount: Int): List<String> =
+  (0 until targetsCount)
+    .map { "//module${it / 1000}/src/main/kotlin/package${it % 100}:target$it" + if (it % 7 == 0) "_test" else "" }
+    .sorted()
+
+// returns the latency of the search after every typed character, as in the search bar
+private fun typeWithFullScan(names: List<String>, text: String, isRegex: Boolean): List<Long> =
+  (1..text.length).map { length ->
+    val query = queryOf(text.substring(0, length), isRegex) ?: return@map 0L
+    measureNanoTime { names.filter { query.containsMatchIn(it) } }
+  }
+
+private fun typeWithIndex(index: BuildTargetNameIndex, text: String, isRegex: Boolean): List<Long> {
+  var previous: BuildTargetNameIndex.Result? = null
+  return (1..text.length).map { length ->
+    val query = queryOf(text.substring(0, length), isRegex) ?: return@map 0L
+    measureNanoTime { previous = index.search(query, previous) }
+  }
+}
+
+// a prefix of a regex typed so far can be invalid, e.g. `[a`
+private fun queryOf(text: String, isRegex: Boolean): Regex? =
+  if (isRegex) {
+    runCatching { text.toRegex() }.getOrNull()
+  } else {
+    text.toRegex(RegexOption.LITERAL)
+  }
+
+private fun describe(nanos: List<Long>): String {
+  val sorted = nanos.sorted()
+  val median = sorted[sorted.size / 2] / 1000
+  val p95 = sorted[sorted.size * 95 / 100] / 1000
+  val total = nanos.sum() / MEASURED_ITERATIONS / 1_000_000
+  return "median $median us, p95 $p95 us, max ${sorted.last() / 1000} us per keystroke, $total ms to type all queries"
+}
@@ -0,0 +1,92 @@
+package org.jetbrains.plugins.bsp.ui.widgets.tool.window.search
+
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+
+class BuildTargetNameIndexTest {
+  private val names =
+    listOf(
+      "//app:app",
+      "//app/src/main:lib",
+      "//app/src/test:tests",
+      "//lib/foo:foo",
+      "//lib/foo:foo_test",
+      "//lib/foobar:foobar",
+      "//lib/bar.baz:bar",
+      "//third_party/aaa:aaa",
+      "@maven//:com_google_guava_guava",
+    ).sorted()
+
+  private val index = BuildTargetNameIndex(names)
+
+  @Test
+  fun `should find the same names as matching the query on every name`() {
+    val queries =
+      listOf(
+        "foo".toRegex(RegexOption.LITERAL),
+        "lib/foo:".toRegex(RegexOption.LITERAL),
+        "bar.baz".toRegex(RegexOption.LITERAL),
+        "a.b".toRegex(RegexOption.LITERAL),
+        "fo".toRegex(RegexOption.LITERAL),
+        "".toRegex(RegexOption.LITERAL),
+        "foo(bar)?".toRegex(),
+        "foo|app".toRegex(),
+        "^//lib".toRegex(),
+        "^//lib/foob?".toRegex(),
+        "^//lib/fo*bar".toRegex(),
+        "^@maven".toRegex(),
+        "lib/foo.*test$".toRegex(),
+        "bar\\.baz".toRegex(),
+        "ba[rz]:".toRegex(),
+        "[a-z&&[^b]]ar".toRegex(),
+        "fooo?bar".toRegex(),
+        "a{3}".toRegex(),
+        "src\\/main".toRegex(),
+        "\\w+_test".toRegex(),
+        "\\p{Lower}{3}:aaa".toRegex(),
+        "guava_guav*".toRegex(),
+        "test+?s".toRegex(),
+        "APP".toRegex(RegexOption.IGNORE_CASE),
+        "nothing".toRegex(),
+      )
+
+    queries.forEach { query ->
+      index.search(query).indices.map { names[it] } shouldBe names.filter { query.containsMatchIn(it) }
+    }
+  }
+
+  @Test
+  fun `should find names starting with the prefix of an anchored query`() {
+    // when
+    val result = index.search("^//lib/foo".toRegex())
+
+    // then
+    result.indices.map { names[it] } shouldBe listOf("//lib/foo:foo", "//lib/foo:foo_test", "//lib/foobar:foobar")
+  }
+
+  @Test
+  fun `should search only in previous results if the literal query extends the previous one`() {
+    // given
+    val previous = BuildTargetNameIndex.Result("foo".toRegex(RegexOption.LITERAL), intArrayOf(names.indexOf("//lib/foo:foo_test")))
+
+    // when
+    val result = index.search("foo:".toRegex(RegexOption.LITERAL), previous)
+
+    // then
+    result.indices.map { names[it] } shouldBe listOf("//lib/foo:foo_test")
+  }
+
+  @Test
+  fun `should search in all names if the query doesn't extend the previous one`() {
+    // given
+    val previous = index.search("foo_".toRegex(RegexOption.LITERAL))
+
+    // when
+    val shorterResult = index.search("foo".toRegex(RegexOption.LITERAL), previous)
+    val regexResult = index.search("foo_?".toRegex(), previous)
+
+    // then
+    shorterResult.indices.size shouldBe 3
+    regexResult.indices.size shouldBe 3
+  }
+}
@@ -35,6 +35,9 @@ import java.io.OutputStream;
 import java.time.Duration;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
@@ -212,23 +215,25 @@ public interface CommandLineTask {
             // These tasks are non-interactive, so close the stream connected to the process's
             // input.
             process.getOutputStream().close();
-            Thread stdoutThread = ProcessUtil.forwardAsync(process.getInputStream(), stdout);
-            Thread stderrThread = null;
+            Future<?> stdoutForwarder = ProcessUtil.forwardAsync(process.getInputStream(), stdout);
+            Future<?> stderrForwarder = null;
             if (!redirectErrorStream) {
-              stderrThread = ProcessUtil.forwardAsync(process.getErrorStream(), stderr);
+              stderrForwarder = ProcessUtil.forwardAsync(process.getErrorStream(), stderr);
             }
+            CompletableFuture<Process> exit = process.onExit();
             if (timeout != null) {
-              if (!process.waitFor(timeout.toMillis(), MILLISECONDS)) {
-                throw new TimeoutException();
-              }
+              exit.get(timeout.toMillis(), MILLISECONDS);
             } else {
-              process.waitFor();
+              exit.get();
             }
-            stdoutThread.join();
+            stdoutForwarder.get();
             if (!redirectErrorStream) {
-              stderrThread.join();
+              stderrForwarder.get();
             }
             return process.exitValue();
+          } catch (ExecutionException e) {
+            process.destroy();
+            throw new IOException(e.getCause());
           } catch (InterruptedException | TimeoutException e) {
             process.destroy();
             throw e;
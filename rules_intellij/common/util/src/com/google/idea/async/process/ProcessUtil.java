@@ -18,36 +18,39 @@
  */
 package com.google.idea.async.process;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 class ProcessUtil {
   private static final Logger logger = Logger.getInstance(ProcessUtil.class);
 
-  public static Thread forwardAsync(final InputStream input, final OutputStream output) {
-    Thread thread =
-        new Thread(
-            new Runnable() {
-              @Override
-              public void run() {
-                int bufferSize = 4096;
-                byte[] buffer = new byte[bufferSize];
+  /** Shared by all processes, so short-lived tasks reuse idle threads instead of starting new ones. */
+  private static final ExecutorService forwarders =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("process-output-forwarder-%d").setDaemon(true).build());
 
-                int read = 0;
-                try {
-                  read = input.read(buffer);
-                  while (read != -1) {
-                    output.write(buffer, 0, read);
-                    read = input.read(buffer);
-                  }
-                } catch (IOException e) {
-                  logger.warn("Error redirecting output", e);
-                }
-              }
-            });
-    thread.start();
-    return thread;
+  public static Future<?> forwardAsync(final InputStream input, final OutputStream output) {
+    return forwarders.submit(
+        () -> {
+          int bufferSize = 4096;
+          byte[] buffer = new byte[bufferSize];
+
+          int read = 0;
+          try {
+            read = input.read(buffer);
+            while (read != -1) {
+              output.write(buffer, 0, read);
+              read = input.read(buffer);
+            }
+          } catch (IOException e) {
+            logger.warn("Error redirecting output", e);
+          }
+        });
   }
 }
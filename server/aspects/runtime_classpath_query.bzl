@@ -19,6 +19,7 @@ def format(target):
 
     return {
         #bazel5 returning dict, because struct not available in queries
+        "label": str(target.label),
         "runtime_classpath": [f.path for f in runtime_classpath],
         "compile_classpath": [f.path for f in compile_classpath],
     }
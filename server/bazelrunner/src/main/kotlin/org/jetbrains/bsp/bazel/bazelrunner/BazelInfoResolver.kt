@@ -1,6 +1,7 @@
 package org.jetbrains.bsp.bazel.bazelrunner
 
 import ch.epfl.scala.bsp4j.StatusCode
+import org.apache.logging.log4j.LogManager
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.jetbrains.bsp.bazel.bazelrunner.utils.BasicBazelInfo
 import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelInfo
@@ -8,18 +9,102 @@ import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
 import org.jetbrains.bsp.bazel.bazelrunner.utils.LazyBazelInfo
 import org.jetbrains.bsp.bazel.bazelrunner.utils.orLatestSupported
 import org.jetbrains.bsp.bazel.commons.escapeNewLines
+import java.nio.file.Path
 import java.nio.file.Paths
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.concurrent.thread
 
-class BazelInfoResolver(private val bazelRunner: BazelRunner) {
-  fun resolveBazelInfo(cancelChecker: CancelChecker): BazelInfo = LazyBazelInfo { bazelInfoFromBazel(cancelChecker) }
+/**
+ * Resolves [BazelInfo] with `bazel info`.
+ *
+ * If [bazelInfoStorage] has a valid info from the previous run, it's returned right away and checked with Bazel
+ * in the background. Requests can use it meanwhile, but a sync waits for the check with [BazelInfo.awaitVerification],
+ * so nothing it resolves or caches is based on outdated values. Should Bazel report something else, the stored info
+ * is replaced, the returned one is updated and the change listeners are notified, so whatever was derived from the old
+ * values before the check can be dropped and the targets synced again.
+ */
+class BazelInfoResolver(private val bazelRunner: BazelRunner, private val bazelInfoStorage: BazelInfoStorage? = null) {
+  fun resolveBazelInfo(cancelChecker: CancelChecker): BazelInfo =
+    LazyBazelInfo {
+      val bazelBinary = bazelBinary()
+      bazelInfoStorage?.load(bazelBinary)?.let { storedBazelInfo ->
+        VerifiedInBackgroundBazelInfo(storedBazelInfo).also { verifyInBackground(it, bazelBinary) }
+      } ?: bazelInfoFromBazel(cancelChecker).also { bazelInfoStorage?.store(it, bazelBinary) }
+    }
+
+  private fun bazelBinary(): String =
+    bazelRunner.workspaceContextProvider
+      .currentWorkspaceContext()
+      .bazelBinary.value
+      .toString()
+
+  private fun verifyInBackground(bazelInfo: VerifiedInBackgroundBazelInfo, bazelBinary: String) {
+    thread(name = "bazel-info-verifier", isDaemon = true) {
+      val changed =
+        try {
+          val actualBazelInfo = bazelInfoFromBazel { }
+          (actualBazelInfo != bazelInfo.bazelInfo).also { changed ->
+            if (changed) {
+              LOGGER.warn("Stored bazel info {} is different from the actual one {}, replacing it", bazelInfo.bazelInfo, actualBazelInfo)
+              bazelInfo.bazelInfo = actualBazelInfo
+              bazelInfoStorage?.store(actualBazelInfo, bazelBinary)
+            }
+          }
+        } catch (e: Exception) {
+          LOGGER.warn("Could not verify the stored bazel info", e)
+          false
+        } finally {
+          bazelInfo.verification.complete(Unit)
+        }
+      if (changed) bazelInfo.notifyChanged()
+    }
+  }
+
+  private class VerifiedInBackgroundBazelInfo(
+    @Volatile var bazelInfo: BazelInfo,
+  ) : BazelInfo {
+    val verification = CompletableFuture<Unit>()
+    private val listeners = CopyOnWriteArrayList<(BazelInfo) -> Unit>()
+
+    fun notifyChanged() {
+      listeners.forEach { it(bazelInfo) }
+    }
+
+    override val execRoot: String
+      get() = bazelInfo.execRoot
+
+    override val outputBase: Path
+      get() = bazelInfo.outputBase
+
+    override val workspaceRoot: Path
+      get() = bazelInfo.workspaceRoot
+
+    override val release: BazelRelease
+      get() = bazelInfo.release
+
+    override val isBzlModEnabled: Boolean
+      get() = bazelInfo.isBzlModEnabled
+
+    override fun awaitVerification() {
+      verification.join()
+    }
+
+    override fun addChangeListener(listener: (BazelInfo) -> Unit) {
+      listeners.add(listener)
+    }
+  }
 
   private fun bazelInfoFromBazel(cancelChecker: CancelChecker): BazelInfo {
     val isBzlModEnabled = calculateBzlModEnabled(cancelChecker)
     val command = bazelRunner.buildBazelCommand { info() }
     val processResult =
-      bazelRunner
-        .runBazelCommand(command, serverPidFuture = null)
-        .waitAndGetResult(cancelChecker, true)
+      bazelRunner.runQueryCommand(
+        command,
+        cancelChecker,
+        cachePolicy = QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE,
+        logProcessOutput = true,
+      )
     return parseBazelInfo(processResult, isBzlModEnabled)
   }
 
@@ -58,11 +143,11 @@ class BazelInfoResolver(private val bazelRunner: BazelRunner) {
   private fun calculateBzlModEnabled(cancelChecker: CancelChecker): Boolean =
     bazelRunner
       .buildBazelCommand { showRepo() }
-      .let { bazelRunner.runBazelCommand(it, logProcessOutput = false, serverPidFuture = null) }
-      .waitAndGetResult(cancelChecker)
+      .let { bazelRunner.runQueryCommand(it, cancelChecker, cachePolicy = QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE) }
       .statusCode == StatusCode.OK
 
   companion object {
+    private val LOGGER = LogManager.getLogger(BazelInfoResolver::class.java)
     private val InfoLinePattern = "([\\w-]+): (.*)".toRegex()
   }
 }
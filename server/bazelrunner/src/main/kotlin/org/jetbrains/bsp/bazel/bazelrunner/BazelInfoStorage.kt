@@ -0,0 +1,95 @@
+package org.jetbrains.bsp.bazel.bazelrunner
+
+import org.apache.logging.log4j.LogManager
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BasicBazelInfo
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelInfo
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.HexFormat
+import java.util.Properties
+import kotlin.io.path.isDirectory
+import kotlin.io.path.isRegularFile
+
+/**
+ * Stores [BazelInfo] in `.bazelbsp/`, so a restarted server doesn't have to wait for `bazel info`.
+ *
+ * The stored info is valid as long as the Bazel binary and the workspace files which can change the Bazel version,
+ * the output base or bzlmod (`.bazelversion`, `.bazelrc`, `MODULE.bazel`, `WORKSPACE`, ...) are the same and the output
+ * base still exists.
+ */
+class BazelInfoStorage(private val file: Path, private val workspaceRoot: Path) {
+  fun load(bazelBinary: String): BazelInfo? {
+    if (!file.isRegularFile()) return null
+    return try {
+      val properties = Properties().apply { Files.newBufferedReader(file).use { load(it) } }
+      if (properties.getProperty(FORMAT_VERSION_KEY) != FORMAT_VERSION || properties.getProperty(VALIDATION_KEY) != validationKey(bazelBinary)) {
+        LOGGER.info("Stored bazel info {} is outdated, ignoring it", file)
+        return null
+      }
+      BasicBazelInfo(
+        execRoot = properties.getProperty("execRoot"),
+        outputBase = Paths.get(properties.getProperty("outputBase")),
+        workspaceRoot = Paths.get(properties.getProperty("workspaceRoot")),
+        release = BazelRelease(properties.getProperty("release").toInt()),
+        isBzlModEnabled = properties.getProperty("isBzlModEnabled").toBoolean(),
+      ).takeIf { it.outputBase.isDirectory() }
+    } catch (e: Exception) {
+      LOGGER.warn("Could not load bazel info from $file", e)
+      null
+    }
+  }
+
+  fun store(bazelInfo: BazelInfo, bazelBinary: String) {
+    val properties =
+      Properties().apply {
+        setProperty(FORMAT_VERSION_KEY, FORMAT_VERSION)
+        setProperty(VALIDATION_KEY, validationKey(bazelBinary))
+        setProperty("execRoot", bazelInfo.execRoot)
+        setProperty("outputBase", bazelInfo.outputBase.toString())
+        setProperty("workspaceRoot", bazelInfo.workspaceRoot.toString())
+        setProperty("release", bazelInfo.release.major.toString())
+        setProperty("isBzlModEnabled", bazelInfo.isBzlModEnabled.toString())
+      }
+    try {
+      Files.createDirectories(file.parent)
+      val temporaryFile = Files.createTempFile(file.parent, file.fileName.toString(), ".tmp")
+      try {
+        Files.newBufferedWriter(temporaryFile).use { properties.store(it, null) }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      } finally {
+        Files.deleteIfExists(temporaryFile)
+      }
+    } catch (e: Exception) {
+      LOGGER.warn("Could not store bazel info in $file", e)
+    }
+  }
+
+  private fun validationKey(bazelBinary: String): String {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(bazelBinary.toByteArray())
+    digest.update(workspaceRoot.toAbsolutePath().normalize().toString().toByteArray())
+    WORKSPACE_FILE_NAMES.forEach { name ->
+      val workspaceFile = workspaceRoot.resolve(name)
+      digest.update(name.toByteArray())
+      if (workspaceFile.isRegularFile()) {
+        digest.update(Files.readAllBytes(workspaceFile))
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest())
+  }
+
+  companion object {
+    private val LOGGER = LogManager.getLogger(BazelInfoStorage::class.java)
+
+    private const val FORMAT_VERSION_KEY = "formatVersion"
+    private const val FORMAT_VERSION = "1"
+    private const val VALIDATION_KEY = "validationKey"
+
+    private val WORKSPACE_FILE_NAMES =
+      listOf(".bazelversion", ".bazelrc", "MODULE.bazel", "WORKSPACE", "WORKSPACE.bazel", "WORKSPACE.bzlmod")
+  }
+}
@@ -3,6 +3,7 @@ package org.jetbrains.bsp.bazel.bazelrunner
 import org.apache.logging.log4j.LogManager
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.jetbrains.bsp.bazel.bazelrunner.outputs.AsyncOutputProcessor
+import org.jetbrains.bsp.bazel.bazelrunner.outputs.OutputCollector
 import org.jetbrains.bsp.bazel.bazelrunner.outputs.OutputProcessor
 import org.jetbrains.bsp.bazel.bazelrunner.outputs.SyncOutputProcessor
 import org.jetbrains.bsp.bazel.commons.Format
@@ -16,20 +17,28 @@ class BazelProcess internal constructor(
   private val logger: BspClientLogger? = null,
   private val serverPidFuture: CompletableFuture<Long>?,
 ) {
-  fun waitAndGetResult(cancelChecker: CancelChecker, ensureAllOutputRead: Boolean = false): BazelProcessResult {
+  /**
+   * @param logOnly the output is only needed in the logs, so the result keeps just its end
+   */
+  fun waitAndGetResult(
+    cancelChecker: CancelChecker,
+    ensureAllOutputRead: Boolean = false,
+    logOnly: Boolean = false,
+  ): BazelProcessResult {
     val stopwatch = Stopwatch.start()
+    val outputMaxBytes = OutputCollector.LOG_OUTPUT_MAX_BYTES.takeIf { logOnly }
     val outputProcessor: OutputProcessor =
       if (logger != null) {
         if (ensureAllOutputRead) {
-          SyncOutputProcessor(process, logger::message, LOGGER::info)
+          SyncOutputProcessor(process, logger::message, LOGGER::info, outputMaxBytes = outputMaxBytes)
         } else {
-          AsyncOutputProcessor(process, logger::message, LOGGER::info)
+          AsyncOutputProcessor(process, logger::message, LOGGER::info, outputMaxBytes = outputMaxBytes)
         }
       } else {
         if (ensureAllOutputRead) {
-          SyncOutputProcessor(process, LOGGER::info)
+          SyncOutputProcessor(process, LOGGER::info, outputMaxBytes = outputMaxBytes)
         } else {
-          AsyncOutputProcessor(process, LOGGER::info)
+          AsyncOutputProcessor(process, LOGGER::info, outputMaxBytes = outputMaxBytes)
         }
       }
 
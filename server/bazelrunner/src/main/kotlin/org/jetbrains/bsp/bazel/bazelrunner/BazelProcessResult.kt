@@ -3,6 +3,7 @@ package org.jetbrains.bsp.bazel.bazelrunner
 import ch.epfl.scala.bsp4j.StatusCode
 import org.jetbrains.bsp.bazel.bazelrunner.outputs.OutputCollector
 import org.jetbrains.bsp.bazel.commons.ExitCodeMapper
+import java.io.InputStream
 
 class BazelProcessResult(
   private val stdoutCollector: OutputCollector,
@@ -13,6 +14,9 @@ class BazelProcessResult(
   val statusCode: StatusCode get() = ExitCodeMapper.mapExitCode(exitCode)
   val stdoutLines: List<String> get() = stdoutCollector.lines()
   val stdout: String get() = stdoutCollector.output()
+
+  /** Reads stdout without copying it into a string, for parsers of big outputs. */
+  val stdoutStream: InputStream get() = stdoutCollector.inputStream()
   val stderrLines: List<String> get() = stderrCollector.lines()
   val stderr: String get() = stderrCollector.output()
 }
@@ -0,0 +1,228 @@
+package org.jetbrains.bsp.bazel.bazelrunner
+
+import org.eclipse.lsp4j.jsonrpc.CancelChecker
+import org.jetbrains.bsp.bazel.server.benchmark.BatchMetrics
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+enum class QueryCachePolicy {
+  /** Only shares the result with identical commands which are running at the same time. */
+  DEDUPLICATE,
+
+  /**
+   * Also keeps a successful result until one of the workspace files (`MODULE.bazel`, `WORKSPACE`, `.bazelrc`, ...)
+   * or a `.bzl` file of the main repository they load changes. Meant for commands which don't depend on BUILD files,
+   * e.g. `info`, `mod` or `query //external:*`.
+   */
+  UNTIL_WORKSPACE_FILES_CHANGE,
+}
+
+/**
+ * Shares results of read-only Bazel commands like `query`, `cquery` and `info`.
+ *
+ * Most of the time of such a command is spent starting the client and waiting for the server lock, so an identical
+ * command which is already running is joined instead of starting another one. Depending on the [QueryCachePolicy]
+ * successful results are also kept, keyed by the command line and the state of the workspace files.
+ */
+internal class BazelQueryCache(private val workspaceRoot: Path?) {
+  private data class WorkspaceFile(val path: Path, val lastModifiedMillis: Long, val size: Long)
+
+  private data class CacheKey(val commandLine: List<String>, val workspaceFiles: List<WorkspaceFile>)
+
+  private val inFlight = ConcurrentHashMap<List<String>, CompletableFuture<BazelProcessResult>>()
+
+  private val loadedLabelsCache = ConcurrentHashMap<Path, Pair<WorkspaceFile, List<String>>>()
+
+  private val results =
+    object : LinkedHashMap<List<String>, Pair<CacheKey, BazelProcessResult>>(16, 0.75f, true) {
+      override fun removeEldestEntry(eldest: MutableMap.MutableEntry<List<String>, Pair<CacheKey, BazelProcessResult>>): Boolean =
+        size > MAX_CACHED_RESULTS
+    }
+
+  fun run(
+    commandLine: List<String>,
+    cancelChecker: CancelChecker,
+    cachePolicy: QueryCachePolicy,
+    runCommand: () -> BazelProcessResult,
+  ): BazelProcessResult {
+    metrics.registerIfNeeded()
+    val cacheKey = if (cachePolicy == QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE) cacheKey(commandLine) else null
+    cacheKey?.let { cachedResult(it) }?.let {
+      hits.incrementAndGet()
+      return it
+    }
+
+    while (true) {
+      val result = CompletableFuture<BazelProcessResult>()
+      val running = inFlight.putIfAbsent(commandLine, result)
+      if (running != null) {
+        hits.incrementAndGet()
+        // if whoever started the command cancelled it, this caller runs it again
+        awaitShared(running, cancelChecker)?.let { return it } ?: continue
+      }
+
+      misses.incrementAndGet()
+      val startNanos = System.nanoTime()
+      try {
+        val processResult = runCommand()
+        if (cancelChecker.isCanceled) {
+          // the process was killed, its output is incomplete
+          result.completeExceptionally(CancellationException())
+        } else {
+          if (cacheKey != null && !processResult.isNotSuccess) {
+            synchronized(results) { results[commandLine] = cacheKey to processResult }
+          }
+          result.complete(processResult)
+        }
+        return processResult
+      } catch (e: Throwable) {
+        result.completeExceptionally(e)
+        throw e
+      } finally {
+        inFlight.remove(commandLine, result)
+        recordLatency(System.nanoTime() - startNanos)
+      }
+    }
+  }
+
+  private fun cachedResult(cacheKey: CacheKey): BazelProcessResult? =
+    synchronized(results) {
+      val (key, result) = results[cacheKey.commandLine] ?: return null
+      if (key == cacheKey) {
+        result
+      } else {
+        results.remove(cacheKey.commandLine)
+        null
+      }
+    }
+
+  /** Returns `null` if the shared command was cancelled. */
+  private fun awaitShared(running: CompletableFuture<BazelProcessResult>, cancelChecker: CancelChecker): BazelProcessResult? {
+    while (true) {
+      cancelChecker.checkCanceled()
+      try {
+        return running.get(AWAIT_POLL_MILLIS, TimeUnit.MILLISECONDS)
+      } catch (e: TimeoutException) {
+        continue
+      } catch (e: ExecutionException) {
+        if (e.cause is CancellationException) return null
+        throw e.cause ?: e
+      }
+    }
+  }
+
+  private fun cacheKey(commandLine: List<String>): CacheKey? {
+    val root = workspaceRoot ?: return null
+    val workspaceFiles = WORKSPACE_FILE_NAMES.mapNotNull { workspaceFile(root.resolve(it)) }
+    return CacheKey(commandLine, workspaceFiles + loadedBzlFiles(root, workspaceFiles))
+  }
+
+  private fun workspaceFile(file: Path): WorkspaceFile? =
+    try {
+      val attributes = Files.readAttributes(file, BasicFileAttributes::class.java)
+      WorkspaceFile(file, attributes.lastModifiedTime().toMillis(), attributes.size())
+    } catch (e: IOException) {
+      null
+    }
+
+  /**
+   * The `.bzl` files of the main repository loaded by `WORKSPACE` or `MODULE.bazel`, also through other `.bzl` files,
+   * define external repositories as well. Files of other repositories can only change with a workspace file.
+   */
+  private fun loadedBzlFiles(root: Path, workspaceFiles: List<WorkspaceFile>): List<WorkspaceFile> {
+    val loadedFiles = mutableListOf<WorkspaceFile>()
+    val visitedPaths = HashSet<Path>()
+    // every file comes with the directory of its package, which labels like ":defs.bzl" are relative to
+    val filesToScan = ArrayDeque(workspaceFiles.filter { it.path.fileName.toString() in LOADING_FILE_NAMES }.map { it to root })
+    while (filesToScan.isNotEmpty() && loadedFiles.size < MAX_LOADED_BZL_FILES) {
+      val (file, packageDirectory) = filesToScan.removeFirst()
+      for (label in loadedLabels(file)) {
+        val (bzlPath, bzlPackageDirectory) = resolveMainRepositoryLabel(root, packageDirectory, label) ?: continue
+        if (!visitedPaths.add(bzlPath)) continue
+        val bzlFile = workspaceFile(bzlPath) ?: continue
+        loadedFiles.add(bzlFile)
+        filesToScan.add(bzlFile to bzlPackageDirectory)
+      }
+    }
+    return loadedFiles
+  }
+
+  // the labels are parsed again only when the file changes, the cache key is computed for every cached command
+  private fun loadedLabels(file: WorkspaceFile): List<String> {
+    loadedLabelsCache[file.path]?.takeIf { it.first == file }?.let { return it.second }
+    val labels =
+      try {
+        LOAD_REGEX.findAll(Files.readString(file.path)).map { it.groupValues[1] }.filter { it.endsWith(".bzl") }.toList()
+      } catch (e: IOException) {
+        emptyList()
+      }
+    loadedLabelsCache[file.path] = file to labels
+    return labels
+  }
+
+  /** Returns the file of a `.bzl` label in the main repository and the directory of its package. */
+  private fun resolveMainRepositoryLabel(
+    root: Path,
+    packageDirectory: Path,
+    label: String,
+  ): Pair<Path, Path>? {
+    if (label.startsWith(":")) return packageDirectory.resolve(label.removePrefix(":")) to packageDirectory
+    val repositoryRelativeLabel = label.removePrefix("@@").removePrefix("@")
+    if (!repositoryRelativeLabel.startsWith("//") || ':' !in repositoryRelativeLabel) return null
+    val labelPackageDirectory = root.resolve(repositoryRelativeLabel.removePrefix("//").substringBefore(':'))
+    return labelPackageDirectory.resolve(repositoryRelativeLabel.substringAfter(':')) to labelPackageDirectory
+  }
+
+  private fun recordLatency(nanos: Long) {
+    val millis = nanos / 1_000_000
+    totalLatencyMillis.addAndGet(millis)
+    maxLatencyMillis.accumulateAndGet(millis, ::max)
+  }
+
+  companion object {
+    private const val MAX_CACHED_RESULTS = 64
+    private const val AWAIT_POLL_MILLIS = 50L
+
+    private val WORKSPACE_FILE_NAMES =
+      listOf("MODULE.bazel", "MODULE.bazel.lock", "WORKSPACE", "WORKSPACE.bazel", "WORKSPACE.bzlmod", ".bazelrc", ".bazelversion")
+
+    // the files which can load `.bzl` files defining external repositories
+    private val LOADING_FILE_NAMES = listOf("MODULE.bazel", "WORKSPACE", "WORKSPACE.bazel", "WORKSPACE.bzlmod")
+    private val LOAD_REGEX = Regex("""\b(?:load|use_extension|use_repo_rule)\(\s*"([^"]+)"""")
+    private const val MAX_LOADED_BZL_FILES = 256
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val totalLatencyMillis = AtomicLong()
+    private val maxLatencyMillis = AtomicLong()
+
+    // hits include commands joined while running, the latency is measured only for the commands which were actually run
+    private val metrics =
+      BatchMetrics {
+        val hitsGauge = longGauge("bazel.query.cache.hits")
+        val missesGauge = longGauge("bazel.query.cache.misses")
+        val hitRatioGauge = longGauge("bazel.query.cache.hit.ratio.percent")
+        val avgLatencyGauge = longGauge("bazel.query.avg.latency.ms")
+        val maxLatencyGauge = longGauge("bazel.query.max.latency.ms")
+        onCollect {
+          val hits = hits.get()
+          val misses = misses.get()
+          hitsGauge.record(hits)
+          missesGauge.record(misses)
+          hitRatioGauge.record(if (hits + misses > 0) hits * 100 / (hits + misses) else 0)
+          avgLatencyGauge.record(if (misses > 0) totalLatencyMillis.get() / misses else 0)
+          maxLatencyGauge.record(maxLatencyMillis.get())
+        }
+      }
+  }
+}
@@ -2,6 +2,7 @@ package org.jetbrains.bsp.bazel.bazelrunner
 
 import ch.epfl.scala.bsp4j.BuildTargetIdentifier
 import org.apache.logging.log4j.LogManager
+import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.jetbrains.bsp.bazel.bazelrunner.params.BazelFlag.repositoryOverride
 import org.jetbrains.bsp.bazel.commons.Constants
 import org.jetbrains.bsp.bazel.logger.BspClientLogger
@@ -20,6 +21,8 @@ class BazelRunner(
     private val LOGGER = LogManager.getLogger(BazelRunner::class.java)
   }
 
+  private val queryCache = BazelQueryCache(workspaceRoot)
+
   inner class CommandBuilder {
     private val workspaceContext = workspaceContextProvider.currentWorkspaceContext()
     private val bazelBinary = workspaceContext.bazelBinary.value.pathString
@@ -118,6 +121,21 @@ class BazelRunner(
     )
   }
 
+  /**
+   * Runs a read-only command (`query`, `cquery`, `info`, `mod`) and waits for its result, which is shared with
+   * identical commands running at the same time and kept according to [cachePolicy].
+   */
+  fun runQueryCommand(
+    command: BazelCommand,
+    cancelChecker: CancelChecker,
+    cachePolicy: QueryCachePolicy = QueryCachePolicy.DEDUPLICATE,
+    logProcessOutput: Boolean = false,
+  ): BazelProcessResult =
+    queryCache.run(command.makeCommandLine(), cancelChecker, cachePolicy) {
+      runBazelCommand(command, logProcessOutput = logProcessOutput, serverPidFuture = null)
+        .waitAndGetResult(cancelChecker, ensureAllOutputRead = true)
+    }
+
   private fun envToString(environment: Map<String, String>): String = environment.entries.joinToString(" ") { "${it.key}=${it.value}" }
 
   private fun logInvocation(
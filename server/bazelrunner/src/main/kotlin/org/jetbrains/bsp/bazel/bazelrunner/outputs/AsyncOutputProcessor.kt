@@ -4,7 +4,11 @@ import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
 import java.util.concurrent.atomic.AtomicBoolean
 
-class AsyncOutputProcessor(process: Process, vararg loggers: OutputHandler) : OutputProcessor(process, *loggers) {
+class AsyncOutputProcessor(
+  process: Process,
+  vararg loggers: OutputHandler,
+  outputMaxBytes: Int? = null,
+) : OutputProcessor(process, *loggers, outputMaxBytes = outputMaxBytes) {
   private val isRunning = AtomicBoolean(true)
 
   override fun isRunning(): Boolean = isRunning.get()
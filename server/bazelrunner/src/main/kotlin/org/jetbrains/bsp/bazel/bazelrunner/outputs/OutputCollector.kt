@@ -1,16 +1,106 @@
 package org.jetbrains.bsp.bazel.bazelrunner.outputs
 
-class OutputCollector : OutputHandler {
-  private val lines = mutableListOf<String>()
-  private val stringBuilder = StringBuilder()
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.util.Collections
+import kotlin.math.min
+
+/**
+ * Keeps the output of a process as UTF-8 bytes in chunks, lines are decoded again only when they are read.
+ *
+ * The output can be read at once with [lines] and [output], line by line with [lineSequence] or as a stream with
+ * [inputStream], which reads the chunks directly. If [maxBytes] is set, only the last chunks are kept, which caps the
+ * memory needed for outputs which are only logged, e.g. of builds. The first line kept this way may be incomplete,
+ * so it's skipped when reading.
+ */
+class OutputCollector(private val maxBytes: Int? = null) : OutputHandler {
+  private class Chunk(val bytes: ByteArray) {
+    var size = 0
+  }
+
+  // results are sent to the client as data of TestResult, the raw bytes shouldn't be serialized
+  @Transient
+  private val chunks = ArrayDeque<Chunk>()
+  private var keptBytes = 0L
+  private var droppedBytes = 0L
 
   override fun onNextLine(line: String) {
-    lines.add(line)
-    stringBuilder.append(line)
-    stringBuilder.append(System.lineSeparator())
+    val bytes = line.toByteArray(Charsets.UTF_8)
+    synchronized(this) {
+      append(bytes)
+      append(LINE_SEPARATOR)
+      dropOldChunksIfNeeded()
+    }
+  }
+
+  /** Number of bytes of the output, including the dropped ones. */
+  val size: Long
+    @Synchronized get() = keptBytes + droppedBytes
+
+  fun lines(): List<String> = lineSequence().toList()
+
+  fun lineSequence(): Sequence<String> =
+    sequence {
+      inputStream().bufferedReader(Charsets.UTF_8).use { reader ->
+        if (isTruncated()) reader.readLine()
+        while (true) {
+          yield(reader.readLine() ?: break)
+        }
+      }
+    }
+
+  fun output(): String {
+    val output = String(inputStream().readAllBytes(), Charsets.UTF_8)
+    return if (isTruncated()) output.substringAfter('\n') else output
+  }
+
+  /** Returns the output collected so far, lines written later are not included. */
+  fun inputStream(): InputStream {
+    val streams =
+      synchronized(this) {
+        chunks.map { ByteArrayInputStream(it.bytes, 0, it.size) }
+      }
+    return SequenceInputStream(Collections.enumeration(streams))
   }
 
-  fun lines(): List<String> = lines.toList()
+  @Synchronized
+  private fun isTruncated(): Boolean = droppedBytes > 0
 
-  fun output(): String = stringBuilder.toString()
+  private fun append(bytes: ByteArray) {
+    var offset = 0
+    while (offset < bytes.size) {
+      val chunk = chunks.lastOrNull()?.takeIf { it.size < it.bytes.size } ?: newChunk()
+      val length = min(bytes.size - offset, chunk.bytes.size - chunk.size)
+      System.arraycopy(bytes, offset, chunk.bytes, chunk.size, length)
+      chunk.size += length
+      offset += length
+    }
+    keptBytes += bytes.size
+  }
+
+  // small outputs (e.g. of bazel info) shouldn't allocate a big chunk, so the chunks grow up to MAX_CHUNK_SIZE
+  private fun newChunk(): Chunk {
+    val chunkSize = chunks.lastOrNull()?.let { min(it.bytes.size * 2, MAX_CHUNK_SIZE) } ?: MIN_CHUNK_SIZE
+    return Chunk(ByteArray(chunkSize)).also { chunks.addLast(it) }
+  }
+
+  private fun dropOldChunksIfNeeded() {
+    val maxBytes = maxBytes ?: return
+    while (chunks.size > 1 && keptBytes - chunks.first().size >= maxBytes) {
+      val dropped = chunks.removeFirst()
+      keptBytes -= dropped.size
+      droppedBytes += dropped.size
+    }
+  }
+
+  companion object {
+    private const val MIN_CHUNK_SIZE = 1024
+    private const val MAX_CHUNK_SIZE = 64 * 1024
+
+    private val LINE_SEPARATOR = System.lineSeparator().toByteArray(Charsets.UTF_8)
+
+    /** Enough to show the end of the output of a failed command, used for outputs which are only logged. */
+    const val LOG_OUTPUT_MAX_BYTES = 1024 * 1024
+  }
 }
@@ -1,22 +1,21 @@
 package org.jetbrains.bsp.bazel.bazelrunner.outputs
 
-import com.google.common.base.Charsets
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.jetbrains.bsp.bazel.logger.BspClientLogger
-import java.io.BufferedReader
-import java.io.IOException
 import java.io.InputStream
-import java.io.InputStreamReader
 import java.util.concurrent.CompletableFuture
-import java.util.concurrent.Executors
 import java.util.concurrent.Future
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
-abstract class OutputProcessor(private val process: Process, vararg loggers: OutputHandler) {
-  val stdoutCollector = OutputCollector()
-  val stderrCollector = OutputCollector()
+abstract class OutputProcessor(
+  private val process: Process,
+  vararg loggers: OutputHandler,
+  outputMaxBytes: Int? = null,
+) {
+  val stdoutCollector = OutputCollector(outputMaxBytes)
+  val stderrCollector = OutputCollector(outputMaxBytes)
 
-  private val executorService = Executors.newCachedThreadPool()
   protected val runningProcessors = mutableListOf<Future<*>>()
 
   init {
@@ -24,37 +23,21 @@ abstract class OutputProcessor(private val process: Process, vararg loggers: Out
     start(process.errorStream, stderrCollector, *loggers)
   }
 
-  protected open fun shutdown() {
-    executorService.shutdown()
-  }
+  protected open fun shutdown() {}
 
   protected abstract fun isRunning(): Boolean
 
   protected fun start(inputStream: InputStream, vararg handlers: OutputHandler) {
-    val runnable =
-      Runnable {
-        try {
-          BufferedReader(InputStreamReader(inputStream, Charsets.UTF_8)).use { reader ->
-            var prevLine: String? = null
-
-            while (!Thread.currentThread().isInterrupted) {
-              val line = reader.readLine() ?: return@Runnable
-              if (line == prevLine) continue
-              prevLine = line
-              if (isRunning()) {
-                handlers.forEach { it.onNextLine(line) }
-              } else {
-                break
-              }
-            }
+    var prevLine: String? = null
+    ProcessOutputPump
+      .pump(process, inputStream) { line ->
+        if (line != prevLine) {
+          prevLine = line
+          if (isRunning()) {
+            handlers.forEach { it.onNextLine(line) }
           }
-        } catch (e: IOException) {
-          if (Thread.currentThread().isInterrupted) return@Runnable
-          throw RuntimeException(e)
         }
-      }
-
-    executorService.submit(runnable).also { runningProcessors.add(it) }
+      }.also { runningProcessors.add(it) }
   }
 
   fun waitForExit(
@@ -62,10 +45,21 @@ abstract class OutputProcessor(private val process: Process, vararg loggers: Out
     serverPidFuture: CompletableFuture<Long>?,
     logger: BspClientLogger?,
   ): Int {
+    val exit = process.onExit()
     var isFinished = false
+    var isCancelled = false
     while (!isFinished) {
-      isFinished = process.waitFor(500, TimeUnit.MILLISECONDS)
-      if (cancelChecker.isCanceled) {
+      // the exit is noticed right away, the cancel checker can only be polled
+      isFinished =
+        try {
+          exit.get(CANCEL_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+          true
+        } catch (e: TimeoutException) {
+          false
+        }
+      // interrupting the server repeatedly could kill it
+      if (!isFinished && !isCancelled && cancelChecker.isCanceled) {
+        isCancelled = true
         process.destroy()
         serverPidFuture
           ?.get()
@@ -79,4 +73,8 @@ abstract class OutputProcessor(private val process: Process, vararg loggers: Out
     shutdown()
     return exitCode
   }
+
+  companion object {
+    private const val CANCEL_CHECK_INTERVAL_MILLIS = 100L
+  }
 }
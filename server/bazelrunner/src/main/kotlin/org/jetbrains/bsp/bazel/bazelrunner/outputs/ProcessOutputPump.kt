@@ -0,0 +1,147 @@
+package org.jetbrains.bsp.bazel.bazelrunner.outputs
+
+import org.apache.logging.log4j.LogManager
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Reads the output of running processes.
+ *
+ * Every stream is read with blocking reads on a pooled thread, which is reused by the next processes instead of
+ * starting new threads for each of them, and the lines are handled right on that thread. A slow handler only holds up
+ * the reading of its own stream, and so its process, once the pipe buffer is full.
+ *
+ * At most [MAX_POOLED_READERS] threads are kept. A stream which comes when all of them are busy gets its own thread,
+ * which ends with the stream. Waiting for a pooled thread instead could leave its process blocked on a full pipe,
+ * while the pooled threads wait for other streams of the same process to end.
+ */
+internal object ProcessOutputPump {
+  private val LOGGER = LogManager.getLogger(ProcessOutputPump::class.java)
+
+  private const val BUFFER_SIZE = 8192
+  private const val MAX_POOLED_READERS = 16
+  private const val IDLE_READER_TIMEOUT_SECONDS = 60L
+
+  private val readerThreadFactory = ThreadFactory { runnable -> Thread(runnable, "process-output-reader").apply { isDaemon = true } }
+
+  private val readExecutor =
+    ThreadPoolExecutor(
+      0,
+      MAX_POOLED_READERS,
+      IDLE_READER_TIMEOUT_SECONDS,
+      TimeUnit.SECONDS,
+      SynchronousQueue(),
+      readerThreadFactory,
+      RejectedExecutionHandler { runnable, _ -> readerThreadFactory.newThread(runnable).start() },
+    )
+
+  /** Passes every line of [input] to [onLine], the returned future completes when all lines were handled. */
+  fun pump(
+    process: Process,
+    input: InputStream,
+    onLine: (String) -> Unit,
+  ): CompletableFuture<Unit> {
+    val done = CompletableFuture<Unit>()
+    readExecutor.execute { read(process, input, onLine, done) }
+    return done
+  }
+
+  private fun read(
+    process: Process,
+    input: InputStream,
+    onLine: (String) -> Unit,
+    done: CompletableFuture<Unit>,
+  ) {
+    try {
+      val lineDecoder =
+        LineDecoder { line ->
+          // after a failure the rest of the output is still read, so the process isn't blocked until it exits
+          if (!done.isDone) {
+            try {
+              onLine(line)
+            } catch (e: Exception) {
+              fail(process, done, e)
+            }
+          }
+        }
+      val buffer = ByteArray(BUFFER_SIZE)
+      while (true) {
+        val read = input.read(buffer)
+        if (read < 0) break
+        lineDecoder.decode(buffer, read)
+      }
+      lineDecoder.finish()
+      done.complete(Unit)
+    } catch (e: Exception) {
+      // the stream is closed when the process is destroyed, e.g. after cancellation
+      if (e !is IOException || process.isAlive) fail(process, done, e) else done.complete(Unit)
+    }
+  }
+
+  private fun fail(
+    process: Process,
+    done: CompletableFuture<Unit>,
+    e: Exception,
+  ) {
+    LOGGER.warn("Could not process the output of process {}", process.pid(), e)
+    done.completeExceptionally(e)
+  }
+
+  /** Splits bytes into lines like [java.io.BufferedReader.readLine], lines end with `\n`, `\r` or `\r\n`. */
+  class LineDecoder(private val onLine: (String) -> Unit) {
+    private var line = ByteArray(INITIAL_BUFFER_SIZE)
+    private var lineLength = 0
+    private var skipLineFeed = false
+
+    // both line terminators are ASCII, so they can't be a part of a multi-byte UTF-8 character
+    fun decode(bytes: ByteArray, length: Int) {
+      for (i in 0 until length) {
+        val byte = bytes[i]
+        if (skipLineFeed) {
+          skipLineFeed = false
+          if (byte == LINE_FEED) continue
+        }
+        when (byte) {
+          LINE_FEED -> emitLine()
+          CARRIAGE_RETURN -> {
+            emitLine()
+            skipLineFeed = true
+          }
+          else -> append(byte)
+        }
+      }
+    }
+
+    fun finish() {
+      if (lineLength > 0) emitLine()
+    }
+
+    private fun append(byte: Byte) {
+      if (lineLength == line.size) {
+        line = line.copyOf(line.size * 2)
+      }
+      line[lineLength++] = byte
+    }
+
+    private fun emitLine() {
+      val decoded = String(line, 0, lineLength, Charsets.UTF_8)
+      lineLength = 0
+      // a single huge line (e.g. of a cquery) shouldn't keep its buffer for the rest of the output
+      if (line.size > MAX_KEPT_BUFFER_SIZE) line = ByteArray(INITIAL_BUFFER_SIZE)
+      onLine(decoded)
+    }
+
+    companion object {
+      private const val LINE_FEED = '\n'.code.toByte()
+      private const val CARRIAGE_RETURN = '\r'.code.toByte()
+      private const val INITIAL_BUFFER_SIZE = 256
+      private const val MAX_KEPT_BUFFER_SIZE = 64 * 1024
+    }
+  }
+}
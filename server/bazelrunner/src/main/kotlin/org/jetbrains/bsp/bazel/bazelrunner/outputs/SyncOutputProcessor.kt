@@ -2,7 +2,11 @@ package org.jetbrains.bsp.bazel.bazelrunner.outputs
 
 import java.util.concurrent.TimeUnit
 
-class SyncOutputProcessor(process: Process, vararg loggers: OutputHandler) : OutputProcessor(process, *loggers) {
+class SyncOutputProcessor(
+  process: Process,
+  vararg loggers: OutputHandler,
+  outputMaxBytes: Int? = null,
+) : OutputProcessor(process, *loggers, outputMaxBytes = outputMaxBytes) {
   override fun isRunning(): Boolean = true
 
   override fun shutdown() {
@@ -1,6 +1,7 @@
 package org.jetbrains.bsp.bazel.bazelrunner.utils
 
 import java.nio.file.Path
+import java.util.concurrent.CopyOnWriteArrayList
 import kotlin.io.path.isReadable
 import kotlin.io.path.readText
 
@@ -10,6 +11,12 @@ interface BazelInfo {
   val workspaceRoot: Path
   val release: BazelRelease
   val isBzlModEnabled: Boolean
+
+  /** Blocks until the values are confirmed by Bazel, a sync shouldn't use the ones restored from the previous run before. */
+  fun awaitVerification() {}
+
+  /** Registers [listener] to be called with the actual info when Bazel reports different values than the restored ones. */
+  fun addChangeListener(listener: (BazelInfo) -> Unit) {}
 }
 
 data class BazelRelease(val major: Int) {
@@ -47,7 +54,12 @@ data class BasicBazelInfo(
 ) : BazelInfo
 
 class LazyBazelInfo(bazelInfoSupplier: () -> BazelInfo) : BazelInfo {
-  private val bazelInfo: BazelInfo by lazy { bazelInfoSupplier() }
+  // listeners can be registered before the info is resolved
+  private val listeners = CopyOnWriteArrayList<(BazelInfo) -> Unit>()
+
+  private val bazelInfo: BazelInfo by lazy {
+    bazelInfoSupplier().also { info -> info.addChangeListener { changed -> listeners.forEach { it(changed) } } }
+  }
 
   override val execRoot: String
     get() = bazelInfo.execRoot
@@ -63,4 +75,10 @@ class LazyBazelInfo(bazelInfoSupplier: () -> BazelInfo) : BazelInfo {
 
   override val isBzlModEnabled: Boolean
     get() = bazelInfo.isBzlModEnabled
+
+  override fun awaitVerification() = bazelInfo.awaitVerification()
+
+  override fun addChangeListener(listener: (BazelInfo) -> Unit) {
+    listeners.add(listener)
+  }
 }
@@ -0,0 +1,122 @@
+package org.jetbrains.bsp.bazel.bazelrunner
+
+import io.kotest.matchers.shouldBe
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BasicBazelInfo
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.nio.file.Path
+import kotlin.io.path.createDirectories
+import kotlin.io.path.createTempDirectory
+import kotlin.io.path.deleteExisting
+import kotlin.io.path.writeText
+
+class BazelInfoStorageTest {
+  private lateinit var workspaceRoot: Path
+  private lateinit var bazelInfo: BasicBazelInfo
+  private lateinit var storage: BazelInfoStorage
+
+  @BeforeEach
+  fun beforeEach() {
+    workspaceRoot = createTempDirectory("workspace")
+    workspaceRoot.resolve(".bazelversion").writeText("7.1.0\n")
+    workspaceRoot.resolve("MODULE.bazel").writeText("module(name = \"test\")\n")
+    val outputBase = createTempDirectory("output_base")
+    bazelInfo =
+      BasicBazelInfo(
+        execRoot = outputBase.resolve("execroot/_main").toString(),
+        outputBase = outputBase,
+        workspaceRoot = workspaceRoot,
+        release = BazelRelease(7),
+        isBzlModEnabled = true,
+      )
+    storage = BazelInfoStorage(workspaceRoot.resolve(".bazelbsp/bazel-info.properties"), workspaceRoot)
+  }
+
+  @Test
+  fun `should load the stored bazel info`() {
+    // given
+    storage.store(bazelInfo, "bazel")
+
+    // when
+    val loaded = storage.load("bazel")
+
+    // then
+    loaded shouldBe bazelInfo
+  }
+
+  @Test
+  fun `should not load anything if nothing was stored`() {
+    // given & when
+    val loaded = storage.load("bazel")
+
+    // then
+    loaded shouldBe null
+  }
+
+  @Test
+  fun `should not load the stored bazel info after the bazel version changes`() {
+    // given
+    storage.store(bazelInfo, "bazel")
+
+    // when
+    workspaceRoot.resolve(".bazelversion").writeText("8.0.0\n")
+    val loaded = storage.load("bazel")
+
+    // then
+    loaded shouldBe null
+  }
+
+  @Test
+  fun `should not load the stored bazel info after a workspace file is added`() {
+    // given
+    storage.store(bazelInfo, "bazel")
+
+    // when
+    workspaceRoot.resolve(".bazelrc").writeText("startup --output_base=/tmp/other\n")
+    val loaded = storage.load("bazel")
+
+    // then
+    loaded shouldBe null
+  }
+
+  @Test
+  fun `should not load the stored bazel info for another bazel binary`() {
+    // given
+    storage.store(bazelInfo, "bazel")
+
+    // when
+    val loaded = storage.load("/usr/local/bin/bazelisk")
+
+    // then
+    loaded shouldBe null
+  }
+
+  @Test
+  fun `should not load the stored bazel info if the output base was removed`() {
+    // given
+    storage.store(bazelInfo, "bazel")
+
+    // when
+    bazelInfo.outputBase.deleteExisting()
+    val loaded = storage.load("bazel")
+
+    // then
+    loaded shouldBe null
+  }
+
+  @Test
+  fun `should replace the stored bazel info`() {
+    // given
+    storage.store(bazelInfo, "bazel")
+    val otherOutputBase = createTempDirectory("other_output_base").resolve("nested").createDirectories()
+    val updatedBazelInfo = bazelInfo.copy(outputBase = otherOutputBase, isBzlModEnabled = false)
+
+    // when
+    storage.store(updatedBazelInfo, "bazel")
+    val loaded = storage.load("bazel")
+
+    // then
+    loaded shouldBe updatedBazelInfo
+  }
+}
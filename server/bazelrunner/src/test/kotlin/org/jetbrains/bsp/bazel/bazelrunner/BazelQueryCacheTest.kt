@@ -0,0 +1,134 @@
+package org.jetbrains.bsp.bazel.bazelrunner
+
+import io.kotest.matchers.shouldBe
+import org.eclipse.lsp4j.jsonrpc.CancelChecker
+import org.jetbrains.bsp.bazel.bazelrunner.outputs.OutputCollector
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.nio.file.Path
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.io.path.createDirectories
+import kotlin.io.path.createTempDirectory
+import kotlin.io.path.writeText
+
+class BazelQueryCacheTest {
+  private val cancelChecker = CancelChecker {}
+  private val commandLine = listOf("bazel", "query", "--", "//external:*")
+
+  private lateinit var workspaceRoot: Path
+  private lateinit var queryCache: BazelQueryCache
+  private lateinit var runs: AtomicInteger
+
+  @BeforeEach
+  fun beforeEach() {
+    workspaceRoot = createTempDirectory("workspace")
+    workspaceRoot.resolve("MODULE.bazel").writeText("module(name = \"test\")\n")
+    queryCache = BazelQueryCache(workspaceRoot)
+    runs = AtomicInteger()
+  }
+
+  private fun result(output: String, exitCode: Int = 0): BazelProcessResult {
+    val stdout = OutputCollector().apply { onNextLine(output) }
+    return BazelProcessResult(stdout, OutputCollector(), exitCode)
+  }
+
+  private fun runQuery(
+    cachePolicy: QueryCachePolicy,
+    exitCode: Int = 0,
+  ): BazelProcessResult =
+    queryCache.run(commandLine, cancelChecker, cachePolicy) {
+      result("run ${runs.incrementAndGet()}", exitCode)
+    }
+
+  @Test
+  fun `should run identical concurrent commands once`() {
+    // given
+    val started = CountDownLatch(1)
+    val release = CountDownLatch(1)
+    val executor = Executors.newFixedThreadPool(2)
+
+    // when
+    val first =
+      executor.submit<BazelProcessResult> {
+        queryCache.run(commandLine, cancelChecker, QueryCachePolicy.DEDUPLICATE) {
+          started.countDown()
+          release.await()
+          result("run ${runs.incrementAndGet()}")
+        }
+      }
+    started.await()
+    val second = executor.submit<BazelProcessResult> { runQuery(QueryCachePolicy.DEDUPLICATE) }
+    // give the second command time to join the running one
+    Thread.sleep(200)
+    release.countDown()
+
+    // then
+    first.get(10, TimeUnit.SECONDS).stdout shouldBe second.get(10, TimeUnit.SECONDS).stdout
+    runs.get() shouldBe 1
+    executor.shutdown()
+  }
+
+  @Test
+  fun `should not keep results of finished commands when only deduplicating`() {
+    // given
+    runQuery(QueryCachePolicy.DEDUPLICATE)
+
+    // when
+    runQuery(QueryCachePolicy.DEDUPLICATE)
+
+    // then
+    runs.get() shouldBe 2
+  }
+
+  @Test
+  fun `should keep the result until a workspace file changes`() {
+    // given
+    val first = runQuery(QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
+
+    // when
+    val cached = runQuery(QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
+    workspaceRoot.resolve("MODULE.bazel").writeText("module(name = \"test\")\nbazel_dep(name = \"rules_java\")\n")
+    val afterChange = runQuery(QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
+
+    // then
+    cached.stdout shouldBe first.stdout
+    afterChange.stdout shouldBe "run 2${System.lineSeparator()}"
+    runs.get() shouldBe 2
+  }
+
+  @Test
+  fun `should keep the result until a bzl file loaded by the workspace changes`() {
+    // given
+    workspaceRoot.resolve("WORKSPACE").writeText("load(\"//tools:deps.bzl\", \"deps\")\n\ndeps()\n")
+    workspaceRoot.resolve("tools").createDirectories()
+    workspaceRoot.resolve("tools/deps.bzl").writeText("load(\":repositories.bzl\", \"repositories\")\n")
+    workspaceRoot.resolve("tools/repositories.bzl").writeText("def repositories():\n    pass\n")
+    val first = runQuery(QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
+
+    // when
+    val cached = runQuery(QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
+    workspaceRoot.resolve("tools/repositories.bzl").writeText("def repositories():\n    http_archive(name = \"new\")\n")
+    val afterChange = runQuery(QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
+
+    // then
+    cached.stdout shouldBe first.stdout
+    afterChange.stdout shouldBe "run 2${System.lineSeparator()}"
+    runs.get() shouldBe 2
+  }
+
+  @Test
+  fun `should not keep failed results`() {
+    // given
+    runQuery(QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE, exitCode = 1)
+
+    // when
+    val result = runQuery(QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
+
+    // then
+    result.isNotSuccess shouldBe false
+    runs.get() shouldBe 2
+  }
+}
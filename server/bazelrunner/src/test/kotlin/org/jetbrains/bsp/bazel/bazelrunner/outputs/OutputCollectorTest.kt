@@ -0,0 +1,94 @@
+package org.jetbrains.bsp.bazel.bazelrunner.outputs
+
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+
+class OutputCollectorTest {
+  private val lineSeparator = System.lineSeparator()
+
+  @Test
+  fun `should return collected lines and output`() {
+    // given
+    val collector = OutputCollector()
+
+    // when
+    collector.onNextLine("first line")
+    collector.onNextLine("zażółć gęślą jaźń")
+    collector.onNextLine("")
+
+    // then
+    collector.lines() shouldBe listOf("first line", "zażółć gęślą jaźń", "")
+    collector.output() shouldBe "first line${lineSeparator}zażółć gęślą jaźń$lineSeparator$lineSeparator"
+  }
+
+  @Test
+  fun `should return nothing if nothing was collected`() {
+    // given
+    val collector = OutputCollector()
+
+    // when & then
+    collector.lines() shouldBe emptyList()
+    collector.output() shouldBe ""
+    collector.inputStream().readAllBytes().size shouldBe 0
+  }
+
+  @Test
+  fun `should keep lines longer than a chunk`() {
+    // given
+    val collector = OutputCollector()
+    val longLine = "x".repeat(200_000)
+
+    // when
+    collector.onNextLine("before")
+    collector.onNextLine(longLine)
+    collector.onNextLine("after")
+
+    // then
+    collector.lines() shouldBe listOf("before", longLine, "after")
+  }
+
+  @Test
+  fun `should stream the same bytes as the output`() {
+    // given
+    val collector = OutputCollector()
+    val lines = (0 until 10_000).map { "{\"label\": \"//package:target_$it\"}" }
+
+    // when
+    lines.forEach(collector::onNextLine)
+
+    // then
+    String(collector.inputStream().readAllBytes(), Charsets.UTF_8) shouldBe collector.output()
+    collector.lineSequence().toList() shouldBe lines
+  }
+
+  @Test
+  fun `should keep only the end of the output in ring mode`() {
+    // given
+    val collector = OutputCollector(maxBytes = 100_000)
+    val lines = (0 until 100_000).map { "line number $it" }
+
+    // when
+    lines.forEach(collector::onNextLine)
+
+    // then
+    val keptLines = collector.lines()
+    (collector.inputStream().readAllBytes().size < 100_000 + 64 * 1024) shouldBe true
+    keptLines.last() shouldBe "line number 99999"
+    keptLines shouldBe lines.takeLast(keptLines.size)
+    collector.output() shouldBe keptLines.joinToString(separator = lineSeparator, postfix = lineSeparator)
+    collector.size shouldBe lines.sumOf { it.length + lineSeparator.length }.toLong()
+  }
+
+  @Test
+  fun `should keep the whole output in ring mode if it fits`() {
+    // given
+    val collector = OutputCollector(maxBytes = 100_000)
+
+    // when
+    collector.onNextLine("first")
+    collector.onNextLine("second")
+
+    // then
+    collector.lines() shouldBe listOf("first", "second")
+  }
+}
@@ -0,0 +1,118 @@
+package org.jetbrains.bsp.bazel.bazelrunner.outputs
+
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ProcessOutputPumpTest {
+  private fun decode(vararg parts: String): List<String> {
+    val lines = mutableListOf<String>()
+    val decoder = ProcessOutputPump.LineDecoder { lines.add(it) }
+    parts.forEach {
+      val bytes = it.toByteArray(Charsets.UTF_8)
+      decoder.decode(bytes, bytes.size)
+    }
+    decoder.finish()
+    return lines
+  }
+
+  private fun pumpOutput(script: String): List<String> {
+    val process = ProcessBuilder("bash", "-c", script).start()
+    val lines = Collections.synchronizedList(mutableListOf<String>())
+    ProcessOutputPump.pump(process, process.inputStream) { lines.add(it) }.get(1, TimeUnit.MINUTES)
+    return lines
+  }
+
+  @Test
+  fun `should split lines like BufferedReader`() {
+    // given & when
+    val lines = decode("first\nsecond\r\nthird\rfourth\n\nlast without new line")
+
+    // then
+    lines shouldBe listOf("first", "second", "third", "fourth", "", "last without new line")
+  }
+
+  @Test
+  fun `should join lines split between reads`() {
+    // given
+    val bytes = "zażółć\r\ngęślą\n".toByteArray(Charsets.UTF_8)
+    val lines = mutableListOf<String>()
+    val decoder = ProcessOutputPump.LineDecoder { lines.add(it) }
+
+    // when
+    bytes.forEach { decoder.decode(byteArrayOf(it), 1) }
+    decoder.finish()
+
+    // then
+    lines shouldBe listOf("zażółć", "gęślą")
+  }
+
+  @Test
+  fun `should read the whole output of a process`() {
+    // given & when
+    val lines = pumpOutput("for i in $(seq 1 10000); do echo \"line \$i\"; done")
+
+    // then
+    lines.size shouldBe 10000
+    lines.first() shouldBe "line 1"
+    lines.last() shouldBe "line 10000"
+  }
+
+  @Test
+  fun `should read output of many processes`() {
+    // given
+    val processes = (1..100).map { ProcessBuilder("bash", "-c", "sleep 0.2; echo done $it").start() }
+
+    // when
+    val results =
+      processes.map { process ->
+        val lines = Collections.synchronizedList(mutableListOf<String>())
+        lines to ProcessOutputPump.pump(process, process.inputStream) { lines.add(it) }
+      }
+    results.forEach { (_, done) -> done.get(1, TimeUnit.MINUTES) }
+
+    // then
+    results.mapIndexed { index, (lines, _) -> lines shouldBe listOf("done ${index + 1}") }
+  }
+
+  @Test
+  fun `should handle lines on the reading thread`() {
+    // given
+    val process = ProcessBuilder("bash", "-c", "echo line").start()
+    var handlingThread: String? = null
+
+    // when
+    ProcessOutputPump.pump(process, process.inputStream) { handlingThread = Thread.currentThread().name }.get(1, TimeUnit.MINUTES)
+
+    // then
+    handlingThread shouldBe "process-output-reader"
+  }
+
+  @Test
+  fun `should not hold up other processes while a handler is blocked`() {
+    // given
+    val blockedProcess = ProcessBuilder("bash", "-c", "echo first; echo second").start()
+    val otherProcess = ProcessBuilder("bash", "-c", "echo other").start()
+    val unblockHandler = CountDownLatch(1)
+    val blockedLines = Collections.synchronizedList(mutableListOf<String>())
+    val otherLines = Collections.synchronizedList(mutableListOf<String>())
+
+    // when
+    val blockedDone =
+      ProcessOutputPump.pump(blockedProcess, blockedProcess.inputStream) {
+        unblockHandler.await()
+        blockedLines.add(it)
+      }
+    ProcessOutputPump.pump(otherProcess, otherProcess.inputStream) { otherLines.add(it) }.get(1, TimeUnit.MINUTES)
+    val blockedDoneBeforeUnblocking = blockedDone.isDone
+    unblockHandler.countDown()
+    blockedDone.get(1, TimeUnit.MINUTES)
+
+    // then
+    otherLines shouldBe listOf("other")
+    blockedDoneBeforeUnblocking shouldBe false
+    blockedLines shouldBe listOf("first", "second")
+  }
+}
@@ -1,37 +1,218 @@
 package org.jetbrains.bsp.bazel.workspacecontext
 
+import org.apache.logging.log4j.LogManager
 import org.jetbrains.bsp.bazel.projectview.generator.DefaultProjectViewGenerator
 import org.jetbrains.bsp.bazel.projectview.model.ProjectView
 import org.jetbrains.bsp.bazel.projectview.parser.DefaultProjectViewParser
+import java.io.IOException
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchKey
+import java.nio.file.WatchService
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.HexFormat
+import java.util.concurrent.CopyOnWriteArrayList
 import kotlin.io.path.notExists
 
 interface WorkspaceContextProvider {
   fun currentWorkspaceContext(): WorkspaceContext
+
+  /** Registers [listener] to be called with the new context whenever the project view or one of its imports changes. */
+  fun addChangeListener(listener: (WorkspaceContext) -> Unit) {}
+
+  fun removeChangeListener(listener: (WorkspaceContext) -> Unit) {}
 }
 
+/**
+ * Parses the project view only when it or one of the files it imports has changed.
+ *
+ * The parsed context is kept together with the modification time, size and content hash of every file read, so
+ * a call only has to check the file attributes. Once a change listener is registered, the directories of the files
+ * are watched, so a change is noticed and published even if nobody asks for the context.
+ */
 class DefaultWorkspaceContextProvider(
   private val workspaceRoot: Path,
   private val projectViewPath: Path,
   dotBazelBspDirPath: Path,
 ) : WorkspaceContextProvider {
+  private data class FileFingerprint(
+    val lastModifiedTime: FileTime,
+    val size: Long,
+    val contentHash: String,
+  )
+
+  private class CachedWorkspaceContext(val workspaceContext: WorkspaceContext, val files: Map<Path, FileFingerprint>)
+
+  /** Remembers every file it reads, including the imported project views. */
+  private inner class FingerprintingProjectViewParser : DefaultProjectViewParser(workspaceRoot) {
+    val files = LinkedHashMap<Path, FileFingerprint>()
+
+    override fun parse(projectViewFilePath: Path): ProjectView {
+      // attributes are read first, so a write during parsing is noticed in the next call
+      val attributes = Files.readAttributes(projectViewFilePath, BasicFileAttributes::class.java)
+      val content = Files.readAllBytes(projectViewFilePath)
+      files[projectViewFilePath] = FileFingerprint(attributes.lastModifiedTime(), attributes.size(), contentHash(content))
+      return parse(String(content, Charsets.UTF_8))
+    }
+  }
+
   private val workspaceContextConstructor = WorkspaceContextConstructor(workspaceRoot, dotBazelBspDirPath)
 
-  override fun currentWorkspaceContext(): WorkspaceContext {
-    val projectView = ensureProjectViewExistsAndParse()
+  @Volatile
+  private var cached: CachedWorkspaceContext? = null
+  private val listeners = CopyOnWriteArrayList<(WorkspaceContext) -> Unit>()
+  private var watcher: ProjectViewWatcher? = null
+
+  override fun currentWorkspaceContext(): WorkspaceContext =
+    cached?.takeIf { it.hasSameAttributes() }?.workspaceContext ?: reload()
 
-    return workspaceContextConstructor.construct(projectView)
+  override fun addChangeListener(listener: (WorkspaceContext) -> Unit) {
+    listeners.add(listener)
+    synchronized(this) {
+      if (watcher == null) {
+        watcher = ProjectViewWatcher.start(projectViewPath) { currentWorkspaceContext() }
+        cached?.let { watcher?.watch(it.files.keys) }
+      }
+    }
+  }
+
+  override fun removeChangeListener(listener: (WorkspaceContext) -> Unit) {
+    listeners.remove(listener)
+  }
+
+  private fun reload(): WorkspaceContext {
+    val (previous, current) =
+      synchronized(this) {
+        val previous = cached
+        previous?.takeIf { it.hasSameAttributes() }?.let { return it.workspaceContext }
+        val current = previous?.withUpdatedAttributesIfContentIsSame() ?: parse()
+        cached = current
+        watcher?.watch(current.files.keys)
+        previous to current
+      }
+    if (previous != null && previous.workspaceContext != current.workspaceContext) {
+      LOGGER.info("Project view {} has changed", projectViewPath)
+      listeners.forEach { it(current.workspaceContext) }
+    }
+    return current.workspaceContext
   }
 
-  private fun ensureProjectViewExistsAndParse(): ProjectView {
+  private fun parse(): CachedWorkspaceContext {
     if (projectViewPath.notExists()) {
       generateEmptyProjectView()
     }
-    return DefaultProjectViewParser(workspaceRoot).parse(projectViewPath)
+    val parser = FingerprintingProjectViewParser()
+    val projectView = parser.parse(projectViewPath)
+    return CachedWorkspaceContext(workspaceContextConstructor.construct(projectView), parser.files)
   }
 
   private fun generateEmptyProjectView() {
     val emptyProjectView = ProjectView.Builder().build()
     DefaultProjectViewGenerator.generatePrettyStringAndSaveInFile(emptyProjectView, projectViewPath)
   }
+
+  private fun CachedWorkspaceContext.hasSameAttributes(): Boolean =
+    files.all { (file, fingerprint) ->
+      val attributes = readAttributesOrNull(file)
+      attributes != null && attributes.lastModifiedTime() == fingerprint.lastModifiedTime && attributes.size() == fingerprint.size
+    }
+
+  /** Files can be touched (e.g. by VCS operations) without changing, then the parsed context is still valid. */
+  private fun CachedWorkspaceContext.withUpdatedAttributesIfContentIsSame(): CachedWorkspaceContext? {
+    val updatedFiles =
+      files.mapValues { (file, fingerprint) ->
+        val attributes = readAttributesOrNull(file) ?: return null
+        val content =
+          try {
+            Files.readAllBytes(file)
+          } catch (e: IOException) {
+            return null
+          }
+        if (contentHash(content) != fingerprint.contentHash) return null
+        FileFingerprint(attributes.lastModifiedTime(), attributes.size(), fingerprint.contentHash)
+      }
+    return CachedWorkspaceContext(workspaceContext, updatedFiles)
+  }
+
+  private fun readAttributesOrNull(file: Path): BasicFileAttributes? =
+    try {
+      Files.readAttributes(file, BasicFileAttributes::class.java)
+    } catch (e: IOException) {
+      null
+    }
+
+  /** Watches directories of the project view files and refreshes the context on every change in them. */
+  private class ProjectViewWatcher(private val watchService: WatchService, private val refresh: () -> Unit) {
+    private val watchedDirectories = HashMap<Path, WatchKey>()
+
+    @Synchronized
+    fun watch(files: Collection<Path>) {
+      val directories = files.mapNotNull { it.toAbsolutePath().parent }.toSet()
+      (watchedDirectories.keys - directories).forEach { watchedDirectories.remove(it)?.cancel() }
+      (directories - watchedDirectories.keys).forEach { directory ->
+        try {
+          watchedDirectories[directory] =
+            directory.register(
+              watchService,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_MODIFY,
+              StandardWatchEventKinds.ENTRY_DELETE,
+            )
+        } catch (e: IOException) {
+          LOGGER.warn("Could not watch {} for project view changes", directory, e)
+        }
+      }
+    }
+
+    private fun run() {
+      try {
+        while (true) {
+          val key = watchService.take()
+          // editors often save a file in a few steps, wait for the last one
+          Thread.sleep(DEBOUNCE_MILLIS)
+          generateSequence(key) { watchService.poll() }.forEach {
+            it.pollEvents()
+            it.reset()
+          }
+          try {
+            refresh()
+          } catch (e: Exception) {
+            // the file may be in the middle of being edited, the next change triggers another attempt
+            LOGGER.warn("Could not parse the changed project view", e)
+          }
+        }
+      } catch (e: InterruptedException) {
+        Thread.currentThread().interrupt()
+      } catch (e: ClosedWatchServiceException) {
+        // the file system was closed
+      }
+    }
+
+    companion object {
+      private const val DEBOUNCE_MILLIS = 200L
+
+      fun start(projectViewPath: Path, refresh: () -> Unit): ProjectViewWatcher? =
+        try {
+          ProjectViewWatcher(projectViewPath.fileSystem.newWatchService(), refresh).also { watcher ->
+            watcher.watch(listOf(projectViewPath))
+            Thread(watcher::run, "project-view-watcher").apply { isDaemon = true }.start()
+          }
+        } catch (e: IOException) {
+          LOGGER.warn("Could not watch the project view, changes will be noticed on the next request", e)
+          null
+        } catch (e: UnsupportedOperationException) {
+          null
+        }
+    }
+  }
+
+  companion object {
+    private val LOGGER = LogManager.getLogger(DefaultWorkspaceContextProvider::class.java)
+
+    private fun contentHash(content: ByteArray): String = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content))
+  }
 }
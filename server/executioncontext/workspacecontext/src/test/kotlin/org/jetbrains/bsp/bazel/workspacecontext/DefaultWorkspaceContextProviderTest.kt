@@ -2,14 +2,17 @@ package org.jetbrains.bsp.bazel.workspacecontext
 
 import ch.epfl.scala.bsp4j.BuildTargetIdentifier
 import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import java.nio.file.Path
+import java.nio.file.attribute.FileTime
 import kotlin.io.path.createFile
 import kotlin.io.path.createTempDirectory
 import kotlin.io.path.deleteIfExists
 import kotlin.io.path.exists
 import kotlin.io.path.readText
+import kotlin.io.path.setLastModifiedTime
 import kotlin.io.path.writeText
 
 class DefaultWorkspaceContextProviderTest {
@@ -58,4 +61,82 @@ class DefaultWorkspaceContextProviderTest {
     projectViewFile.exists() shouldBe true
     projectViewFile.readText().trim() shouldBe ""
   }
+
+  @Test
+  fun `should return the same workspace context until the project view changes`() {
+    // given
+    projectViewFile.writeText("targets:\n  //...")
+    projectViewFile.setLastModifiedTime(FileTime.fromMillis(1_000))
+    val provider = DefaultWorkspaceContextProvider(workspaceRoot, projectViewFile, dotBazelBspDirPath)
+    val firstWorkspaceContext = provider.currentWorkspaceContext()
+
+    // when
+    val unchangedWorkspaceContext = provider.currentWorkspaceContext()
+    projectViewFile.writeText("targets:\n  //src/...")
+    projectViewFile.setLastModifiedTime(FileTime.fromMillis(2_000))
+    val changedWorkspaceContext = provider.currentWorkspaceContext()
+
+    // then
+    unchangedWorkspaceContext shouldBeSameInstanceAs firstWorkspaceContext
+    changedWorkspaceContext.targets shouldBe TargetsSpec(listOf(BuildTargetIdentifier("//src/...")), emptyList())
+  }
+
+  @Test
+  fun `should keep the workspace context if the project view was touched without changing`() {
+    // given
+    projectViewFile.writeText("targets:\n  //...")
+    projectViewFile.setLastModifiedTime(FileTime.fromMillis(1_000))
+    val provider = DefaultWorkspaceContextProvider(workspaceRoot, projectViewFile, dotBazelBspDirPath)
+    val firstWorkspaceContext = provider.currentWorkspaceContext()
+
+    // when
+    projectViewFile.setLastModifiedTime(FileTime.fromMillis(2_000))
+    val workspaceContext = provider.currentWorkspaceContext()
+
+    // then
+    workspaceContext shouldBeSameInstanceAs firstWorkspaceContext
+  }
+
+  @Test
+  fun `should parse the project view again and notify listeners when an imported file changes`() {
+    // given
+    val importedFile = workspaceRoot.resolve("imported.bazelproject")
+    importedFile.writeText("targets:\n  //...")
+    importedFile.setLastModifiedTime(FileTime.fromMillis(1_000))
+    projectViewFile.writeText("import imported.bazelproject")
+    val provider = DefaultWorkspaceContextProvider(workspaceRoot, projectViewFile, dotBazelBspDirPath)
+    val notifiedWorkspaceContexts = mutableListOf<WorkspaceContext>()
+    provider.addChangeListener { notifiedWorkspaceContexts.add(it) }
+    provider.currentWorkspaceContext().targets shouldBe TargetsSpec(listOf(BuildTargetIdentifier("//...")), emptyList())
+
+    // when
+    importedFile.writeText("targets:\n  //src/...")
+    importedFile.setLastModifiedTime(FileTime.fromMillis(2_000))
+    val workspaceContext = provider.currentWorkspaceContext()
+
+    // then
+    workspaceContext.targets shouldBe TargetsSpec(listOf(BuildTargetIdentifier("//src/...")), emptyList())
+    notifiedWorkspaceContexts.last() shouldBeSameInstanceAs workspaceContext
+  }
+
+  @Test
+  fun `should not notify a removed listener`() {
+    // given
+    projectViewFile.writeText("targets:\n  //...")
+    projectViewFile.setLastModifiedTime(FileTime.fromMillis(1_000))
+    val provider = DefaultWorkspaceContextProvider(workspaceRoot, projectViewFile, dotBazelBspDirPath)
+    val notifiedWorkspaceContexts = mutableListOf<WorkspaceContext>()
+    val listener: (WorkspaceContext) -> Unit = { notifiedWorkspaceContexts.add(it) }
+    provider.addChangeListener(listener)
+    provider.currentWorkspaceContext()
+
+    // when
+    provider.removeChangeListener(listener)
+    projectViewFile.writeText("targets:\n  //src/...")
+    projectViewFile.setLastModifiedTime(FileTime.fromMillis(2_000))
+    provider.currentWorkspaceContext()
+
+    // then
+    notifiedWorkspaceContexts shouldBe emptyList()
+  }
 }
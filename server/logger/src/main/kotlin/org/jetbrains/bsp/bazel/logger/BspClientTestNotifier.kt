@@ -86,10 +86,16 @@ class BspClientTestNotifier(private val bspClient: BuildClient, private val orig
    *
    * @param testReport report concerning conducted tests
    * @param taskId     TaskId of the testing target execution
+   * @param message    optional message shown with the report, e.g. about flaky runs
    */
-  fun endTestTarget(testReport: TestReport, taskId: TaskId) {
+  fun endTestTarget(
+    testReport: TestReport,
+    taskId: TaskId,
+    message: String? = null,
+  ) {
     val taskFinishParams = TaskFinishParams(taskId, StatusCode.OK)
     taskFinishParams.originId = originId
+    taskFinishParams.message = message
     taskFinishParams.dataKind = TaskFinishDataKind.TEST_REPORT
     taskFinishParams.data = testReport
     bspClient.onBuildTaskFinish(taskFinishParams)
@@ -1,8 +1,10 @@
 package org.jetbrains.bsp.bazel.server
 
+import ch.epfl.scala.bsp4j.DidChangeBuildTarget
 import ch.epfl.scala.bsp4j.TextDocumentIdentifier
 import org.eclipse.lsp4j.jsonrpc.Launcher
 import org.jetbrains.bsp.bazel.bazelrunner.BazelInfoResolver
+import org.jetbrains.bsp.bazel.bazelrunner.BazelInfoStorage
 import org.jetbrains.bsp.bazel.bazelrunner.BazelRunner
 import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelInfo
 import org.jetbrains.bsp.bazel.logger.BspClientLogger
@@ -12,6 +14,7 @@ import org.jetbrains.bsp.bazel.server.bsp.BazelServices
 import org.jetbrains.bsp.bazel.server.bsp.BspIntegrationData
 import org.jetbrains.bsp.bazel.server.bsp.BspRequestsRunner
 import org.jetbrains.bsp.bazel.server.bsp.BspServerApi
+import org.jetbrains.bsp.bazel.server.bsp.CoalescingBuildClient
 import org.jetbrains.bsp.bazel.server.bsp.TelemetryContextPropagatingLauncherBuilder
 import org.jetbrains.bsp.bazel.server.bsp.info.BspInfo
 import org.jetbrains.bsp.bazel.server.bsp.managers.BazelBspAspectsManager
@@ -25,6 +28,7 @@ import org.jetbrains.bsp.bazel.server.sync.AdditionalAndroidBuildTargetsProvider
 import org.jetbrains.bsp.bazel.server.sync.BazelProjectMapper
 import org.jetbrains.bsp.bazel.server.sync.BspProjectMapper
 import org.jetbrains.bsp.bazel.server.sync.ExecuteService
+import org.jetbrains.bsp.bazel.server.sync.FileProjectStorage
 import org.jetbrains.bsp.bazel.server.sync.ProjectProvider
 import org.jetbrains.bsp.bazel.server.sync.ProjectResolver
 import org.jetbrains.bsp.bazel.server.sync.ProjectSyncService
@@ -42,6 +46,7 @@ import org.jetbrains.bsp.bazel.server.sync.languages.python.PythonLanguagePlugin
 import org.jetbrains.bsp.bazel.server.sync.languages.rust.RustLanguagePlugin
 import org.jetbrains.bsp.bazel.server.sync.languages.scala.ScalaLanguagePlugin
 import org.jetbrains.bsp.bazel.server.sync.languages.thrift.ThriftLanguagePlugin
+import org.jetbrains.bsp.bazel.workspacecontext.WorkspaceContext
 import org.jetbrains.bsp.bazel.workspacecontext.WorkspaceContextProvider
 import org.jetbrains.bsp.protocol.JoinedBuildClient
 import java.nio.file.Path
@@ -56,6 +61,7 @@ class BazelBspServer(
   private val bspState: MutableMap<Label, Set<TextDocumentIdentifier>> = ConcurrentHashMap()
 
   private fun bspServerData(
+    client: CoalescingBuildClient,
     bspClientLogger: BspClientLogger,
     bazelRunner: BazelRunner,
     compilationManager: BazelBspCompilationManager,
@@ -75,6 +81,13 @@ class BazelBspServer(
         compilationManager = compilationManager,
         bspClientLogger = bspClientLogger,
       )
+    // the paths and the project were resolved against the stored bazel info, which was replaced, so they are resolved
+    // again on the next request and the client is asked to sync
+    bazelInfo.addChangeListener {
+      bazelPathsResolver.clearCache()
+      projectProvider.invalidate()
+      client.onBuildTargetDidChange(DidChangeBuildTarget(emptyList()))
+    }
     val bspProjectMapper =
       BspProjectMapper(
         languagePluginsService = languagePluginsService,
@@ -85,7 +98,12 @@ class BazelBspServer(
       )
 
     val serverLifetime = BazelBspServerLifetime(workspaceContextProvider)
-    val bspRequestsRunner = BspRequestsRunner(serverLifetime)
+    // changes of the project view affect the targets, so the client should import the project again
+    val onProjectViewChanged: (WorkspaceContext) -> Unit = { client.onBuildTargetDidChange(DidChangeBuildTarget(emptyList())) }
+    workspaceContextProvider.addChangeListener(onProjectViewChanged)
+    // the provider outlives the connection, it mustn't keep notifying a client which is gone
+    serverLifetime.whenFinished { workspaceContextProvider.removeChangeListener(onProjectViewChanged) }
+    val bspRequestsRunner = BspRequestsRunner(serverLifetime, client)
     val telemetryConfigWithLogger = telemetryConfig.copy(bspClientLogger = bspClientLogger)
     val projectSyncService = ProjectSyncService(bspProjectMapper, projectProvider, telemetryConfigWithLogger)
     val additionalBuildTargetsProvider = AdditionalAndroidBuildTargetsProvider(projectProvider)
@@ -108,7 +126,8 @@ class BazelBspServer(
   }
 
   private fun createBazelInfo(bazelRunner: BazelRunner): BazelInfo {
-    val bazelDataResolver = BazelInfoResolver(bazelRunner)
+    val bazelInfoStorage = BazelInfoStorage(bspInfo.bazelBspDir().resolve("bazel-info.properties"), workspaceRoot)
+    val bazelDataResolver = BazelInfoResolver(bazelRunner, bazelInfoStorage)
     return bazelDataResolver.resolveBazelInfo { }
   }
 
@@ -145,14 +164,15 @@ class BazelBspServer(
     compilationManager: BazelBspCompilationManager,
     bspClientLogger: BspClientLogger,
   ): ProjectProvider {
-    val aspectsResolver = InternalAspectsResolver(bspInfo, bazelInfo.release)
+    // the release may still change if the stored bazel info turns out to be outdated
+    val aspectsResolver = InternalAspectsResolver(bspInfo) { bazelInfo.release }
 
     val bazelBspAspectsManager =
       BazelBspAspectsManager(
         bazelBspCompilationManager = compilationManager,
         aspectsResolver = aspectsResolver,
       )
-    val bazelBspLanguageExtensionsGenerator = BazelBspLanguageExtensionsGenerator(aspectsResolver, bazelInfo.release)
+    val bazelBspLanguageExtensionsGenerator = BazelBspLanguageExtensionsGenerator(aspectsResolver) { bazelInfo.release }
     val bazelBspFallbackAspectsManager = BazelBspFallbackAspectsManager(bazelRunner, workspaceContextProvider)
     val targetKindResolver = TargetKindResolver()
     val kotlinAndroidModulesMerger = KotlinAndroidModulesMerger()
@@ -164,7 +184,7 @@ class BazelBspServer(
         kotlinAndroidModulesMerger,
         bspClientLogger,
       )
-    val targetInfoReader = TargetInfoReader(bspClientLogger)
+    val targetInfoReader = TargetInfoReader(bspClientLogger, bspInfo.bazelBspDir().resolve("target-info-cache.bin"))
 
     val projectResolver =
       ProjectResolver(
@@ -178,12 +198,14 @@ class BazelBspServer(
         bazelRunner = bazelRunner,
         bazelPathsResolver = bazelPathsResolver,
       )
-    return ProjectProvider(projectResolver)
+    val projectStorage = FileProjectStorage(bspInfo, bazelInfo, workspaceContextProvider)
+    return ProjectProvider(projectResolver, projectStorage)
   }
 
   fun buildServer(bspIntegrationData: BspIntegrationData): Launcher<JoinedBuildClient> {
     val bspServerApi =
-      BspServerApi { client: JoinedBuildClient ->
+      BspServerApi { remoteClient: JoinedBuildClient ->
+        val client = CoalescingBuildClient(remoteClient)
         val bspClientLogger = BspClientLogger(client)
         val bazelRunner = BazelRunner(workspaceContextProvider, bspClientLogger, workspaceRoot)
         val bazelInfo = createBazelInfo(bazelRunner)
@@ -191,6 +213,7 @@ class BazelBspServer(
         val compilationManager =
           BazelBspCompilationManager(bazelRunner, bazelPathsResolver, client, workspaceRoot)
         bspServerData(
+          client,
           bspClientLogger,
           bazelRunner,
           compilationManager,
@@ -3,6 +3,8 @@ package org.jetbrains.bsp.bazel.server.benchmark
 import io.opentelemetry.api.common.AttributeKey
 import io.opentelemetry.api.common.Attributes
 import io.opentelemetry.api.metrics.Meter
+import io.opentelemetry.api.metrics.ObservableLongMeasurement
+import io.opentelemetry.api.metrics.ObservableMeasurement
 import io.opentelemetry.api.trace.Tracer
 import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator
 import io.opentelemetry.context.propagation.ContextPropagators
@@ -17,6 +19,7 @@ import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor
 import org.jetbrains.bsp.bazel.commons.Constants
 import org.jetbrains.bsp.bazel.logger.BspClientLogger
 import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicBoolean
 
 private const val INSTRUMENTATION_SCOPE_NAME = "bazel-bsp"
 
@@ -34,6 +37,39 @@ val meter: Meter
 
 private val shutdownRoutines = mutableListOf<() -> Unit>()
 
+/**
+ * Observable metrics which are recorded together by one batch callback.
+ *
+ * Telemetry is set up during the initialize request, so the owner calls [registerIfNeeded] whenever it is used and the
+ * metrics are registered by the first call after that, only once for the instance.
+ */
+class BatchMetrics(private val registration: Registration.() -> Unit) {
+  class Registration internal constructor(private val meter: Meter) {
+    internal val instruments = mutableListOf<ObservableMeasurement>()
+    internal var callback: Runnable? = null
+
+    fun longGauge(name: String): ObservableLongMeasurement =
+      meter.gaugeBuilder(name).ofLongs().buildObserver().also { instruments += it }
+
+    fun longCounter(name: String): ObservableLongMeasurement = meter.counterBuilder(name).buildObserver().also { instruments += it }
+
+    /** Sets what records the values of the instruments on every collection. */
+    fun onCollect(callback: () -> Unit) {
+      this.callback = Runnable(callback)
+    }
+  }
+
+  private val registered = AtomicBoolean(false)
+
+  fun registerIfNeeded() {
+    if (openTelemetryInitialized && registered.compareAndSet(false, true)) {
+      val registration = Registration(meter).apply(registration)
+      val instruments = registration.instruments
+      meter.batchCallback(checkNotNull(registration.callback), instruments.first(), *instruments.drop(1).toTypedArray())
+    }
+  }
+}
+
 data class TelemetryConfig(
   val bspClientLogger: BspClientLogger? = null,
   val metricsFile: Path? = null,
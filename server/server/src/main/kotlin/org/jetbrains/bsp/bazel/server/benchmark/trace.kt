@@ -48,7 +48,6 @@ inline fun <T> Span.useWithoutActiveScope(operation: (Span) -> T): T {
   }
 }
 
-@Suppress("unused")
 suspend inline fun <T> SpanBuilder.useWithScope(
   context: CoroutineContext = EmptyCoroutineContext,
   crossinline operation: suspend CoroutineScope.(Span) -> T,
@@ -70,5 +69,11 @@ suspend inline fun <T> SpanBuilder.useWithScope(
   }
 }
 
+/**
+ * Carries the current span to coroutines started with the returned context,
+ * so spans created on other threads are still nested to it.
+ */
+fun currentSpanContext(): CoroutineContext = Context.current().asContextElement()
+
 val SpanData.durationMs: Long
   get() = (this.endEpochNanos - this.startEpochNanos) / 1_000_000
@@ -11,7 +11,14 @@ import kotlin.io.path.Path
 
 data class TextProtoDepSet(val files: Collection<Path>, val children: Collection<String>)
 
-class BepOutputBuilder(private val bazelPathsResolver: BazelPathsResolver) {
+/**
+ * @param textProtoFilesListener notified about `bsp-info.textproto` files as soon as their named set is announced,
+ * long before the build finishes and [build] is called
+ */
+class BepOutputBuilder(
+  private val bazelPathsResolver: BazelPathsResolver,
+  private val textProtoFilesListener: ((Collection<Path>) -> Unit)? = null,
+) {
   private val outputGroups: MutableMap<String, MutableSet<String>> = HashMap()
   private val textProtoFileSets: MutableMap<String, TextProtoDepSet> = HashMap()
   private val rootTargets: MutableSet<Label> = HashSet()
@@ -28,6 +35,7 @@ class BepOutputBuilder(private val bazelPathsResolver: BazelPathsResolver) {
       )
 
     textProtoFileSets[id] = textProtoDepSet
+    textProtoFilesListener?.invoke(textProtoDepSet.files)
   }
 
   private fun BuildEventStreamProtos.File.toLocalPath(): Path {
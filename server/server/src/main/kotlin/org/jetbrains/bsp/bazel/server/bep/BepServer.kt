@@ -8,8 +8,6 @@ import ch.epfl.scala.bsp4j.TaskFinishParams
 import ch.epfl.scala.bsp4j.TaskId
 import ch.epfl.scala.bsp4j.TaskStartDataKind
 import ch.epfl.scala.bsp4j.TaskStartParams
-import ch.epfl.scala.bsp4j.TestReport
-import ch.epfl.scala.bsp4j.TestStatus
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos
 import com.google.devtools.build.v1.BuildEvent
 import com.google.devtools.build.v1.PublishBuildEventGrpc
@@ -23,22 +21,20 @@ import org.apache.logging.log4j.Logger
 import org.jetbrains.bsp.bazel.commons.Constants
 import org.jetbrains.bsp.bazel.commons.ExitCodeMapper
 import org.jetbrains.bsp.bazel.logger.BspClientLogger
-import org.jetbrains.bsp.bazel.logger.BspClientTestNotifier
 import org.jetbrains.bsp.bazel.server.diagnostics.DiagnosticsService
 import org.jetbrains.bsp.bazel.server.model.Label
 import org.jetbrains.bsp.bazel.server.paths.BazelPathsResolver
 import org.jetbrains.bsp.protocol.JoinedBuildClient
-import org.jetbrains.bsp.protocol.PublishOutputParams
-import org.jetbrains.bsp.protocol.TestCoverageReport
+import java.io.BufferedReader
 import java.io.IOException
 import java.net.URI
 import java.nio.file.FileSystemNotFoundException
 import java.nio.file.Files
+import java.nio.file.Path
 import java.nio.file.Paths
 import java.util.AbstractMap.SimpleEntry
 import java.util.ArrayDeque
 import java.util.Deque
-import java.util.UUID
 
 class BepServer(
   private val bspClient: JoinedBuildClient,
@@ -46,12 +42,14 @@ class BepServer(
   private val originId: String?,
   private val target: BuildTargetIdentifier?,
   bazelPathsResolver: BazelPathsResolver,
+  textProtoFilesListener: ((Collection<Path>) -> Unit)? = null,
 ) : PublishBuildEventGrpc.PublishBuildEventImplBase() {
   private val bspClientLogger = BspClientLogger(bspClient)
   private val bepLogger = BepLogger(bspClientLogger)
 
   private val startedEvents: Deque<Map.Entry<TaskId, String?>> = ArrayDeque()
-  private val bepOutputBuilder = BepOutputBuilder(bazelPathsResolver)
+  private val bepOutputBuilder = BepOutputBuilder(bazelPathsResolver, textProtoFilesListener)
+  private val testResultsReporter = originId?.let { TestResultsReporter(bspClient, it, target) }
 
   override fun publishLifecycleEvent(request: PublishLifecycleEventRequest, responseObserver: StreamObserver<Empty>) {
     responseObserver.onNext(Empty.getDefaultInstance())
@@ -89,83 +87,23 @@ class BepServer(
 
   private fun processTestResult(event: BuildEventStreamProtos.BuildEvent) {
     if (event.hasTestResult()) {
-      if (originId == null) {
-        return
-      }
-
-      val bspClientTestNotifier = BspClientTestNotifier(bspClient, originId)
-      val testResult = event.testResult
-
-      val taskId = TaskId(UUID.randomUUID().toString())
-
-      bspClientTestNotifier.beginTestTarget(target, taskId)
-
-      // TODO: this is the place where we could parse the test result and produce individual test events
-      // TODO: there's some other interesting data
-      //  If testing is requested, a TestResult event is sent for each test attempt,
-      //  shard, and run per test. This allows BEP consumers to identify precisely
-      //  which test actions failed their tests and identify the test outputs
-      //  (such as logs, test.xml files) for each test action.
-
-      val testStatus =
-        when (testResult.status) {
-          BuildEventStreamProtos.TestStatus.NO_STATUS -> TestStatus.SKIPPED
-          BuildEventStreamProtos.TestStatus.PASSED -> TestStatus.PASSED
-          BuildEventStreamProtos.TestStatus.FLAKY -> TestStatus.FAILED
-          BuildEventStreamProtos.TestStatus.TIMEOUT -> TestStatus.FAILED
-          BuildEventStreamProtos.TestStatus.FAILED -> TestStatus.FAILED
-          BuildEventStreamProtos.TestStatus.INCOMPLETE -> TestStatus.SKIPPED
-          BuildEventStreamProtos.TestStatus.REMOTE_FAILURE -> TestStatus.IGNORED
-          BuildEventStreamProtos.TestStatus.FAILED_TO_BUILD -> TestStatus.CANCELLED
-          BuildEventStreamProtos.TestStatus.TOOL_HALTED_BEFORE_TESTING -> TestStatus.SKIPPED
-          else -> TestStatus.FAILED
-        }
-
-      val coverageReportUri = testResult.testActionOutputList.find { it.name == "test.lcov" }?.uri
-      if (coverageReportUri != null) {
-        bspClient.onBuildPublishOutput(
-          PublishOutputParams(originId, taskId, target, TestCoverageReport.DATA_KIND, TestCoverageReport(coverageReportUri)),
-        )
-      }
-
-      val testXmlUri = testResult.testActionOutputList.find { it.name == "test.xml" }?.uri
-      if (testXmlUri != null) {
-        // Test cases identified and sent to the client by TestXmlParser.
-        TestXmlParser(taskId, bspClientTestNotifier).parseAndReport(testXmlUri)
-      } else {
-        // Send a generic notification if individual tests cannot be processed.
-        val childId = TaskId(UUID.randomUUID().toString())
-        childId.parents = listOf(taskId.id)
-        bspClientTestNotifier.startTest("Test", childId)
-        bspClientTestNotifier.finishTest("Test", childId, testStatus, "Test finished")
-      }
-
-      val passed = if (testStatus == TestStatus.PASSED) 1 else 0
-      val failed = if (testStatus == TestStatus.FAILED) 1 else 0
-      val ignored = if (testStatus == TestStatus.IGNORED) 1 else 0
-      val cancelled = if (testStatus == TestStatus.CANCELLED) 1 else 0
-      val skipped = if (testStatus == TestStatus.SKIPPED) 1 else 0
-
-      val testReport =
-        TestReport(
-          target,
-          passed,
-          failed,
-          ignored,
-          cancelled,
-          skipped,
-        )
-
-      bspClientTestNotifier.endTestTarget(testReport, taskId)
+      // If testing is requested, a TestResult event is sent for each test attempt, shard, and run per test.
+      testResultsReporter?.onTestResult(event.id.testResult, event.testResult)
     }
   }
 
   private fun processTestSummary(event: BuildEventStreamProtos.BuildEvent) {
     if (event.hasTestSummary()) {
-      // TODO: this is probably only relevant in remote scenarios
+      // The summary is sent once all results of a test target were sent.
+      testResultsReporter?.onTestSummary(event.id.testSummary)
     }
   }
 
+  /** Waits until test results of all targets have been reported, called after the last event. */
+  fun finishTestResults() {
+    testResultsReporter?.finish()
+  }
+
   private fun fetchNamedSet(event: BuildEventStreamProtos.BuildEvent) {
     if (event.id.hasNamedSet()) {
       bepOutputBuilder.storeNamedSet(
@@ -258,8 +196,7 @@ class BepServer(
       BuildEventStreamProtos.File.FileCase.URI -> {
         try {
           val path = Paths.get(URI.create(event.stderr.uri))
-          val stdErrText = Files.readString(path)
-          processDiagnosticText(stdErrText, label)
+          processDiagnosticOutput(Files.newBufferedReader(path), label)
         } catch (e: FileSystemNotFoundException) {
           LOGGER.warn(e)
         } catch (e: IOException) {
@@ -268,26 +205,23 @@ class BepServer(
       }
 
       BuildEventStreamProtos.File.FileCase.CONTENTS -> {
-        processDiagnosticText(event.stderr.contents.toStringUtf8(), label)
+        processDiagnosticOutput(event.stderr.contents.newInput().bufferedReader(), label)
       }
 
       else -> {}
     }
   }
 
-  private fun processDiagnosticText(stdErrText: String, targetLabel: Label) {
-    if (startedEvents.isNotEmpty() && stdErrText.isNotEmpty()) {
-      val events =
-        diagnosticsService.extractDiagnostics(
-          stdErrText,
-          targetLabel,
-          startedEvents.first.value!!,
-        )
-      events.forEach {
-        bspClient.onBuildPublishDiagnostics(
-          it,
-        )
-      }
+  // the output is parsed line by line, so diagnostics of a file are published before the whole output is read
+  private fun processDiagnosticOutput(stdErr: BufferedReader, targetLabel: Label) {
+    stdErr.use { reader ->
+      if (startedEvents.isEmpty()) return
+      val diagnostics =
+        diagnosticsService.streamDiagnostics(targetLabel, startedEvents.first.value!!) {
+          bspClient.onBuildPublishDiagnostics(it)
+        }
+      reader.lineSequence().forEach(diagnostics::onLine)
+      diagnostics.finish()
     }
   }
 
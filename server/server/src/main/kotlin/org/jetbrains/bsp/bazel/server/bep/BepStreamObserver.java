@@ -44,6 +44,7 @@ public class BepStreamObserver implements StreamObserver<PublishBuildToolEventSt
 
   @Override
   public void onCompleted() {
+    bepServer.finishTestResults();
     responseObserver.onCompleted();
   }
 
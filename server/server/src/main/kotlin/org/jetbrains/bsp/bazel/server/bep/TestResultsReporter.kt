@@ -0,0 +1,156 @@
+package org.jetbrains.bsp.bazel.server.bep
+
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import ch.epfl.scala.bsp4j.TaskId
+import ch.epfl.scala.bsp4j.TestReport
+import ch.epfl.scala.bsp4j.TestStatus
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
+import org.jetbrains.bsp.bazel.logger.BspClientTestNotifier
+import org.jetbrains.bsp.protocol.JoinedBuildClient
+import org.jetbrains.bsp.protocol.PublishOutputParams
+import org.jetbrains.bsp.protocol.TestCoverageReport
+import java.util.UUID
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+
+/**
+ * Reports `TestResult` events of a test command to the client without blocking the BEP thread.
+ *
+ * Every test target gets a lane: its results are reported one after another on a small shared pool, so results of
+ * one target keep their order, while a slow `test.xml` of one target doesn't hold back other targets or the rest
+ * of the events. A target is reported as one test task, which is finished by its `TestSummary` with a report merged
+ * from all runs, shards and attempts.
+ *
+ * Methods of this class have to be called from a single thread, e.g. the one handling the BEP events.
+ */
+class TestResultsReporter(
+  private val bspClient: JoinedBuildClient,
+  private val originId: String,
+  private val target: BuildTargetIdentifier?,
+  private val executor: Executor = testResultsExecutor,
+) {
+  private class TargetResults(val taskId: TaskId) {
+    // statuses of the attempts of every run and shard, in the order of attempts
+    val attemptStatuses = LinkedHashMap<Pair<Int, Int>, MutableList<TestStatus>>()
+    var durationMillis = 0L
+  }
+
+  private val bspClientTestNotifier = BspClientTestNotifier(bspClient, originId)
+  private val lanes = HashMap<String, CompletableFuture<Void>>()
+  private val targetResults = ConcurrentHashMap<String, TargetResults>()
+
+  fun onTestResult(id: BuildEventStreamProtos.BuildEventId.TestResultId, testResult: BuildEventStreamProtos.TestResult) {
+    submit(id.label) { reportTestResult(id, testResult) }
+  }
+
+  fun onTestSummary(id: BuildEventStreamProtos.BuildEventId.TestSummaryId) {
+    submit(id.label) { finishTarget(id.label) }
+  }
+
+  /** Finishes targets which got no summary, e.g. when the build was interrupted, and waits until all are reported. */
+  fun finish() {
+    lanes.keys.toList().forEach { label -> submit(label) { finishTarget(label) } }
+    CompletableFuture.allOf(*lanes.values.toTypedArray()).join()
+    lanes.clear()
+  }
+
+  private fun submit(label: String, task: () -> Unit) {
+    val lane = lanes[label] ?: CompletableFuture.completedFuture(null)
+    lanes[label] =
+      lane.thenRunAsync({
+        try {
+          task()
+        } catch (e: Exception) {
+          LOGGER.error("Could not report test results of {}", label, e)
+        }
+      }, executor)
+  }
+
+  private fun reportTestResult(id: BuildEventStreamProtos.BuildEventId.TestResultId, testResult: BuildEventStreamProtos.TestResult) {
+    val results =
+      targetResults.getOrPut(id.label) {
+        TargetResults(TaskId(UUID.randomUUID().toString())).also { bspClientTestNotifier.beginTestTarget(target, it.taskId) }
+      }
+    val taskId = results.taskId
+    val testStatus = testResult.status.toTestStatus()
+
+    val coverageReportUri = testResult.testActionOutputList.find { it.name == "test.lcov" }?.uri
+    if (coverageReportUri != null) {
+      bspClient.onBuildPublishOutput(
+        PublishOutputParams(originId, taskId, target, TestCoverageReport.DATA_KIND, TestCoverageReport(coverageReportUri)),
+      )
+    }
+
+    val testXmlUri = testResult.testActionOutputList.find { it.name == "test.xml" }?.uri
+    if (testXmlUri != null) {
+      // Test cases identified and sent to the client by TestXmlParser.
+      TestXmlParser(taskId, bspClientTestNotifier).parseAndReport(testXmlUri)
+    } else {
+      // Send a generic notification if individual tests cannot be processed.
+      val childId = TaskId(UUID.randomUUID().toString())
+      childId.parents = listOf(taskId.id)
+      bspClientTestNotifier.startTest("Test", childId)
+      bspClientTestNotifier.finishTest("Test", childId, testStatus, "Test finished")
+    }
+
+    results.attemptStatuses.getOrPut(id.run to id.shard) { mutableListOf() }.add(testStatus)
+    results.durationMillis += testResult.testAttemptDurationMillis
+  }
+
+  /**
+   * Every run of every shard is counted once, with the status of its last attempt. A run which passed only after
+   * a retry is counted as passed, and its failed attempts are mentioned in the message of the report.
+   */
+  private fun finishTarget(label: String) {
+    val results = targetResults.remove(label) ?: return
+    val finalStatuses = results.attemptStatuses.values.map { it.last() }
+    val flakyRuns = results.attemptStatuses.values.filter { it.last() == TestStatus.PASSED && it.size > 1 }
+
+    val testReport =
+      TestReport(
+        target,
+        finalStatuses.count { it == TestStatus.PASSED },
+        finalStatuses.count { it == TestStatus.FAILED },
+        finalStatuses.count { it == TestStatus.IGNORED },
+        finalStatuses.count { it == TestStatus.CANCELLED },
+        finalStatuses.count { it == TestStatus.SKIPPED },
+      )
+    testReport.time = results.durationMillis
+    val message =
+      if (flakyRuns.isNotEmpty()) {
+        "Flaky runs: ${flakyRuns.size}, failed attempts: ${flakyRuns.sumOf { it.size - 1 }}"
+      } else {
+        null
+      }
+    bspClientTestNotifier.endTestTarget(testReport, results.taskId, message)
+  }
+
+  private fun BuildEventStreamProtos.TestStatus.toTestStatus(): TestStatus =
+    when (this) {
+      BuildEventStreamProtos.TestStatus.NO_STATUS -> TestStatus.SKIPPED
+      BuildEventStreamProtos.TestStatus.PASSED -> TestStatus.PASSED
+      BuildEventStreamProtos.TestStatus.FLAKY -> TestStatus.FAILED
+      BuildEventStreamProtos.TestStatus.TIMEOUT -> TestStatus.FAILED
+      BuildEventStreamProtos.TestStatus.FAILED -> TestStatus.FAILED
+      BuildEventStreamProtos.TestStatus.INCOMPLETE -> TestStatus.SKIPPED
+      BuildEventStreamProtos.TestStatus.REMOTE_FAILURE -> TestStatus.IGNORED
+      BuildEventStreamProtos.TestStatus.FAILED_TO_BUILD -> TestStatus.CANCELLED
+      BuildEventStreamProtos.TestStatus.TOOL_HALTED_BEFORE_TESTING -> TestStatus.SKIPPED
+      else -> TestStatus.FAILED
+    }
+
+  companion object {
+    private val LOGGER: Logger = LogManager.getLogger(TestResultsReporter::class.java)
+
+    private const val MAX_WORKERS = 4
+
+    private val testResultsExecutor =
+      Executors.newFixedThreadPool(minOf(MAX_WORKERS, Runtime.getRuntime().availableProcessors())) { runnable ->
+        Thread(runnable, "bep-test-results").apply { isDaemon = true }
+      }
+  }
+}
@@ -2,164 +2,214 @@ package org.jetbrains.bsp.bazel.server.bep
 
 import ch.epfl.scala.bsp4j.TaskId
 import ch.epfl.scala.bsp4j.TestStatus
-import com.fasterxml.jackson.databind.DeserializationFeature
-import com.fasterxml.jackson.dataformat.xml.XmlMapper
-import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper
-import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty
-import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement
-import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlText
-import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.Logger
 import org.jetbrains.bsp.bazel.logger.BspClientTestNotifier
 import org.jetbrains.bsp.protocol.JUnitStyleTestCaseData
 import org.jetbrains.bsp.protocol.JUnitStyleTestSuiteData
 import java.io.File
 import java.net.URI
 import java.util.UUID
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamReader
 
-@JacksonXmlRootElement(localName = "testsuites")
-data class TestSuites(
-  @JacksonXmlElementWrapper(useWrapping = false)
-  @JacksonXmlProperty(localName = "testsuite")
-  val testsuite: List<TestSuite> = emptyList(),
-)
-
-data class TestSuite(
-  // Individual test cases are grouped within a suite.
-  @JacksonXmlProperty(isAttribute = true)
+private class TestSuite(
   val name: String,
-  @JacksonXmlProperty(isAttribute = true)
-  val timestamp: String,
-  @JacksonXmlProperty(isAttribute = true)
-  val hostname: String,
-  @JacksonXmlProperty(isAttribute = true)
-  val tests: Int,
-  @JacksonXmlProperty(isAttribute = true)
-  val failures: Int,
-  @JacksonXmlProperty(isAttribute = true)
-  val errors: Int,
-  @JacksonXmlProperty(isAttribute = true)
+  val taskId: TaskId,
+  val status: TestStatus,
   val time: Double,
-  @JacksonXmlProperty(isAttribute = true)
-  val id: Int,
-  @JacksonXmlElementWrapper(useWrapping = false)
-  @JacksonXmlProperty(localName = "testcase")
-  val testcase: List<TestCase> = emptyList(),
-  @JacksonXmlProperty(localName = "system-out")
-  val systemOut: Any? = null,
-  @JacksonXmlProperty(localName = "system-err")
-  val systemErr: Any? = null,
-  @JacksonXmlProperty(isAttribute = true, localName = "package")
-  val pkg: String?,
-  val properties: Any? = null,
-)
-
-data class TestCase(
+  // Bazel writes only a few attributes for JUnit5 tests, such suites are reported by FallbackTestXmlParser.
+  val isIncomplete: Boolean,
+) {
+  var systemOut: String? = null
+  var systemErr: String? = null
+  var reportedTestCases = 0
+}
+
+private class TestCase(
   // Name of the test case, typically method name.
-  @JacksonXmlProperty(isAttribute = true)
   val name: String,
   // Class name corresponding to the test case.
-  @JacksonXmlProperty(isAttribute = true)
-  val classname: String,
+  val classname: String?,
   // Time value included with the test case.
-  @JacksonXmlProperty(isAttribute = true)
   val time: Double,
+) {
   // One of the following will be included if test did not pass.
-  @JacksonXmlProperty(localName = "error")
-  val error: TestResultDetail? = null,
-  @JacksonXmlProperty(localName = "failure")
-  val failure: TestResultDetail? = null,
-  @JacksonXmlProperty(localName = "skipped")
-  val skipped: TestResultDetail? = null,
-)
-
-// This is a regular class due to limitations deserializing plain xml tag contents.
-// https://github.com/FasterXML/jackson-dataformat-xml/issues/615
-class TestResultDetail {
-  // Shortened error message, as provided by the test framework.
-  @JacksonXmlProperty(isAttribute = true)
-  var message: String? = null
+  var error: TestResultDetail? = null
+  var failure: TestResultDetail? = null
+  var skipped: TestResultDetail? = null
+}
 
+private class TestResultDetail(
+  // Shortened error message, as provided by the test framework.
+  val message: String?,
   // Error type information.
   // This typically gives the class name of the error, but may be absent or used for a similar alternative value.
-  @JacksonXmlProperty(isAttribute = true)
-  var type: String? = null
-
+  val type: String?,
+) {
   // Content between the tags, which typically includes the full error stack trace.
-  @JacksonXmlText(value = true)
-  @JacksonXmlProperty(localName = "")
   var content: String? = null
 }
 
 class TestXmlParser(private var parentId: TaskId, private var bspClientTestNotifier: BspClientTestNotifier) {
-  private val fallbackTestXmlParser = FallbackTestXmlParser(parentId, bspClientTestNotifier)
+  private val fallbackTestXmlParser = FallbackTestXmlParser(bspClientTestNotifier)
+
+  private var suite: TestSuite? = null
+  private var testCase: TestCase? = null
+  private var text: TruncatedText? = null
 
   /**
    * Processes a test result xml file, reporting suite and test case results as task start and finish notifications.
    * Parent-child relationship is identified within each suite based on the TaskId.
+   * The file is read as a stream, so every test case is reported as soon as it is read and the file is never kept
+   * in memory as a whole.
    * @param testXmlUri Uri corresponding to the test result xml file to be processed.
    */
   fun parseAndReport(testXmlUri: String) {
-    val testSuites = parseTestXml(testXmlUri, TestSuites::class.java)
-    testSuites?.testsuite?.forEach { suite ->
-      processSuite(suite)
-    } ?: let {
-      parseTestXml(testXmlUri, FallbackTestXmlParser.IncompleteTestSuites::class.java)
-    }?.testsuite?.forEach { suite ->
-      fallbackTestXmlParser.processIncompleteInfoSuite(suite)
+    try {
+      File(URI.create(testXmlUri)).inputStream().buffered().use { input ->
+        val reader = xmlInputFactory.createXMLStreamReader(input)
+        try {
+          readEvents(reader)
+        } finally {
+          reader.close()
+        }
+      }
+    } catch (e: Exception) {
+      LOGGER.warn("Could not parse test results from {}", testXmlUri, e)
+      finishUnfinishedTests()
     }
   }
 
-  /**
-   * Deserialize the given test report into the TestSuites/IncompleteTestSuites type as defined above.
-   */
-  private fun <T> parseTestXml(uri: String, valueType: Class<T>): T? {
-    val xmlMapper =
-      XmlMapper().apply {
-        registerKotlinModule()
-        configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+  private fun readEvents(reader: XMLStreamReader) {
+    while (reader.hasNext()) {
+      when (reader.next()) {
+        XMLStreamConstants.START_ELEMENT -> onElementStart(reader)
+        XMLStreamConstants.END_ELEMENT -> onElementEnd(reader.localName)
+        XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE ->
+          text?.append(reader.textCharacters, reader.textStart, reader.textLength)
       }
+    }
+  }
 
-    var rawContent = File(URI.create(uri)).readText()
-    // Single empty tag does not deserialize properly, replace with empty pair.
-    rawContent = rawContent.replace("<skipped />", "<skipped></skipped>")
-    val testSuites: T? =
-      runCatching {
-        xmlMapper.readValue(rawContent, valueType)
-      }.onFailure { }.getOrNull()
-    return testSuites
+  private fun onElementStart(reader: XMLStreamReader) {
+    val suite = suite
+    val testCase = testCase
+    when (reader.localName) {
+      "testsuite" -> if (suite == null) startSuite(reader)
+      "testcase" -> if (suite != null && testCase == null) startTestCase(reader)
+      "error", "failure", "skipped" -> if (testCase != null) startTestResultDetail(testCase, reader)
+      "system-out", "system-err" -> if (suite != null && testCase == null) text = TruncatedText()
+    }
   }
 
-  /**
-   * Convert each TestSuite into a series of taskStart and taskFinish notification to the client.
-   * The parents field in each notification's TaskId will be used to indicate the parent-child relationship.
-   * @param suite TestSuite to be processed.
-   */
-  private fun processSuite(suite: TestSuite) {
+  private fun onElementEnd(name: String) {
+    val suite = suite ?: return
+    val testCase = testCase
+    when (name) {
+      "testsuite" -> {
+        finishSuite(suite)
+        this.suite = null
+      }
+      "testcase" -> {
+        testCase?.let { finishTestCase(suite, it) }
+        this.testCase = null
+      }
+      "error" -> testCase?.error?.content = takeText()?.ifEmpty { null }
+      "failure" -> testCase?.failure?.content = takeText()?.ifEmpty { null }
+      "skipped" -> testCase?.skipped?.content = takeText()?.ifEmpty { null }
+      "system-out" -> if (testCase == null) suite.systemOut = takeText()
+      "system-err" -> if (testCase == null) suite.systemErr = takeText()
+    }
+  }
+
+  private fun takeText(): String? = text?.toString().also { text = null }
+
+  private fun startSuite(reader: XMLStreamReader) {
     val suiteTaskId = TaskId(UUID.randomUUID().toString())
     suiteTaskId.parents = emptyList()
-
-    val suiteData = JUnitStyleTestCaseData(suite.time, null, suite.systemErr?.toString(), null, null)
+    val failures = reader.attribute("failures")?.toIntOrNull() ?: 0
+    val errors = reader.attribute("errors")?.toIntOrNull() ?: 0
     val suiteStatus =
       when {
-        suite.failures > 0 -> TestStatus.FAILED
-        suite.errors > 0 -> TestStatus.FAILED
+        failures > 0 -> TestStatus.FAILED
+        errors > 0 -> TestStatus.FAILED
         else -> TestStatus.PASSED
       }
+    val suite =
+      TestSuite(
+        name = reader.attribute("name").orEmpty(),
+        taskId = suiteTaskId,
+        status = suiteStatus,
+        time = reader.attribute("time")?.toDoubleOrNull() ?: 0.0,
+        isIncomplete = reader.attribute("timestamp") == null || reader.attribute("hostname") == null,
+      )
+    this.suite = suite
+    bspClientTestNotifier.startTest(suite.name, suite.taskId)
+  }
+
+  private fun startTestCase(reader: XMLStreamReader) {
+    testCase =
+      TestCase(
+        name = reader.attribute("name").orEmpty(),
+        classname = reader.attribute("classname"),
+        time = reader.attribute("time")?.toDoubleOrNull() ?: 0.0,
+      )
+  }
+
+  private fun startTestResultDetail(testCase: TestCase, reader: XMLStreamReader) {
+    val detail = TestResultDetail(reader.attribute("message"), reader.attribute("type"))
+    when (reader.localName) {
+      "error" -> testCase.error = detail
+      "failure" -> testCase.failure = detail
+      else -> testCase.skipped = detail
+    }
+    text = TruncatedText()
+  }
+
+  private fun finishTestCase(suite: TestSuite, testCase: TestCase) {
+    if (suite.isIncomplete) {
+      // A Bazel target is represented by a test suite containing one test case
+      if (suite.reportedTestCases == 0) {
+        fallbackTestXmlParser.processIncompleteInfoCase(testCase, suite.taskId.id, suite.status)
+      }
+    } else {
+      processTestCase(suite.taskId.id, testCase)
+    }
+    suite.reportedTestCases++
+  }
 
-    bspClientTestNotifier.startTest(suite.name, suiteTaskId)
-    suite.testcase.forEach { case ->
-      processTestCase(suiteTaskId.id, case)
+  /**
+   * Finishes the suite task, its test cases have been already reported.
+   * @param suite TestSuite to be finished.
+   */
+  private fun finishSuite(suite: TestSuite) {
+    if (suite.isIncomplete) {
+      fallbackTestXmlParser.finishIncompleteInfoSuite(suite)
+      return
     }
+    val suiteData = JUnitStyleTestCaseData(suite.time, null, suite.systemErr, null, null)
     bspClientTestNotifier.finishTest(
       suite.name,
-      suiteTaskId,
-      suiteStatus,
-      suite.systemOut.toString(),
+      suite.taskId,
+      suite.status,
+      suite.systemOut,
       JUnitStyleTestCaseData.DATA_KIND,
       suiteData,
     )
   }
 
+  // the client would show tests of a broken file as running forever
+  private fun finishUnfinishedTests() {
+    val suite = suite ?: return
+    testCase?.let { finishTestCase(suite, it) }
+    finishSuite(suite)
+    this.suite = null
+    this.testCase = null
+    this.text = null
+  }
+
   /**
    * Convert a TestCase into a taskStart and taskFinish notification to the client.
    * The test case will be associated with its parent suite.
@@ -170,38 +220,42 @@ class TestXmlParser(private var parentId: TaskId, private var bspClientTestNotif
     val testCaseTaskId = TaskId(UUID.randomUUID().toString())
     testCaseTaskId.parents = listOf(parentId)
 
+    val error = testCase.error
+    val failure = testCase.failure
+    val skipped = testCase.skipped
+
     // Extract the error summary message.
     val outcomeMessage =
       when {
-        testCase.error != null -> testCase.error.message
-        testCase.failure != null -> testCase.failure.message
-        testCase.skipped != null -> testCase.skipped.message
+        error != null -> error.message
+        failure != null -> failure.message
+        skipped != null -> skipped.message
         else -> null
       }
 
     // Extract the full error message content.
     val fullOutput =
       when {
-        testCase.error != null -> testCase.error.content
-        testCase.failure != null -> testCase.failure.content
-        testCase.skipped != null -> testCase.skipped.content
+        error != null -> error.content
+        failure != null -> failure.content
+        skipped != null -> skipped.content
         else -> ""
       }
 
     // Map the outcome into a TestStatus value.
     val testStatusOutcome =
       when {
-        testCase.error != null -> TestStatus.FAILED
-        testCase.failure != null -> TestStatus.FAILED
-        testCase.skipped != null -> TestStatus.SKIPPED
+        error != null -> TestStatus.FAILED
+        failure != null -> TestStatus.FAILED
+        skipped != null -> TestStatus.SKIPPED
         else -> TestStatus.PASSED
       }
 
     // Extract error type information if provided.
     val errorType =
       when {
-        testCase.error != null -> testCase.error.type
-        testCase.failure != null -> testCase.failure.type
+        error != null -> error.type
+        failure != null -> failure.type
         else -> null
       }
     val testCaseData =
@@ -222,63 +276,63 @@ class TestXmlParser(private var parentId: TaskId, private var bspClientTestNotif
       testCaseData,
     )
   }
+
+  private fun XMLStreamReader.attribute(name: String): String? = getAttributeValue(null, name)
+
+  companion object {
+    private val LOGGER: Logger = LogManager.getLogger(TestXmlParser::class.java)
+
+    // Woodstox is found by the service loader, unlike the JDK parser it returns long texts in parts, so a huge
+    // system-out is never kept whole. The factory is thread-safe once configured.
+    private val xmlInputFactory: XMLInputFactory =
+      XMLInputFactory.newFactory().apply {
+        setProperty(XMLInputFactory.SUPPORT_DTD, false)
+        setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+      }
+  }
+}
+
+/**
+ * Keeps at most [maxLength] last characters of a text, e.g. of a `system-out` with the whole log of a test.
+ * The beginning of such a text is replaced with a note about how much was dropped.
+ */
+internal class TruncatedText(private val maxLength: Int = MAX_TEXT_LENGTH) {
+  private val text = StringBuilder()
+  private var droppedLength = 0L
+
+  fun append(chars: CharArray, start: Int, length: Int) {
+    text.appendRange(chars, start, start + length)
+    // dropping in bigger steps, so the kept part isn't moved for every appended piece
+    if (text.length >= 2 * maxLength) {
+      val dropped = text.length - maxLength
+      text.deleteRange(0, dropped)
+      droppedLength += dropped
+    }
+  }
+
+  override fun toString(): String {
+    val excess = (text.length - maxLength).coerceAtLeast(0)
+    if (droppedLength == 0L && excess == 0) return text.toString()
+    // the kept part starts with the first whole line
+    val start = text.indexOf("\n", excess).takeIf { it != -1 }?.plus(1) ?: excess
+    return "... (${droppedLength + start} characters truncated)\n${text.substring(start)}"
+  }
+
+  companion object {
+    const val MAX_TEXT_LENGTH = 1024 * 1024
+  }
 }
 
 /** Bazel has a separate way of parsing JUnit4 and JUnit5 test results into a xml file, resulting in
  * incomplete data about the latter.
  * **/
-private class FallbackTestXmlParser(private var parentId: TaskId, private var bspClientTestNotifier: BspClientTestNotifier) {
-  @JacksonXmlRootElement(localName = "testsuites")
-  data class IncompleteTestSuites(
-    @JacksonXmlElementWrapper(useWrapping = false)
-    @JacksonXmlProperty(localName = "testsuite")
-    val testsuite: List<IncompleteTestSuite> = emptyList(),
-  )
-
-  data class IncompleteTestSuite(
-    @JacksonXmlProperty(isAttribute = true)
-    val name: String,
-    @JacksonXmlProperty(isAttribute = true)
-    val failures: Int,
-    @JacksonXmlProperty(isAttribute = true)
-    val errors: Int,
-    @JacksonXmlProperty(localName = "system-out")
-    val systemOut: String? = null,
-    @JacksonXmlElementWrapper(useWrapping = false)
-    @JacksonXmlProperty(localName = "testcase")
-    val testcase: List<IncompleteTestCase> = emptyList(),
-  )
-
-  data class IncompleteTestCase(
-    @JacksonXmlProperty(isAttribute = true)
-    val name: String,
-    @JacksonXmlProperty(localName = "error")
-    val error: TestResultDetail? = null,
-    @JacksonXmlProperty(localName = "failure")
-    val failure: TestResultDetail? = null,
-    @JacksonXmlProperty(localName = "skipped")
-    val skipped: TestResultDetail? = null,
-  )
-
-  // A Bazel target is represented by a test suite containing one test case
-  fun processIncompleteInfoSuite(suite: IncompleteTestSuite) {
-    val suiteTaskId = TaskId(UUID.randomUUID().toString())
-    suiteTaskId.parents = emptyList()
-    val suiteStatus =
-      when {
-        suite.failures > 0 -> TestStatus.FAILED
-        suite.errors > 0 -> TestStatus.FAILED
-        else -> TestStatus.PASSED
-      }
+private class FallbackTestXmlParser(private var bspClientTestNotifier: BspClientTestNotifier) {
+  fun finishIncompleteInfoSuite(suite: TestSuite) {
     val testSuiteData = JUnitStyleTestSuiteData(null, suite.systemOut, null)
-    val testCase = suite.testcase.firstOrNull()
-
-    bspClientTestNotifier.startTest(suite.name, suiteTaskId)
-    testCase?.let { processIncompleteInfoCase(it, suiteTaskId.id, suiteStatus) }
     bspClientTestNotifier.finishTest(
       suite.name,
-      suiteTaskId,
-      suiteStatus,
+      suite.taskId,
+      suite.status,
       null,
       JUnitStyleTestSuiteData.DATA_KIND,
       testSuiteData,
@@ -289,20 +343,24 @@ private class FallbackTestXmlParser(private var parentId: TaskId, private var bs
    * Converts a TestCase into a testStart and a testFinish events.
    * @param testSuiteStatus - using test suite's status as test case status, because the xml one is not correct
    */
-  private fun processIncompleteInfoCase(
-    testCase: IncompleteTestCase,
+  fun processIncompleteInfoCase(
+    testCase: TestCase,
     parentId: String,
     testSuiteStatus: TestStatus,
   ) {
     val testCaseTaskId = TaskId(UUID.randomUUID().toString())
     testCaseTaskId.parents = listOf(parentId)
 
+    val error = testCase.error
+    val failure = testCase.failure
+    val skipped = testCase.skipped
+
     // Extract the error summary message.
     val outcomeMessage =
       when {
-        testCase.error != null -> testCase.error.message
-        testCase.failure != null -> testCase.failure.message
-        testCase.skipped != null -> testCase.skipped.message
+        error != null -> error.message
+        failure != null -> failure.message
+        skipped != null -> skipped.message
         else -> null
       }
 
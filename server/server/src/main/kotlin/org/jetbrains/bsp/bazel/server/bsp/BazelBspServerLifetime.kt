@@ -40,6 +40,11 @@ class BazelBspServerLifetime(private val workspaceContextProvider: WorkspaceCont
     finishedStatus.complete(null)
   }
 
+  /** Runs [action] once the client has shut the server down. */
+  fun whenFinished(action: () -> Unit) {
+    finishedStatus.thenRun(action)
+  }
+
   fun forceFinish() {
     try {
       finishedStatus.get(1, TimeUnit.SECONDS)
@@ -1,5 +1,7 @@
 package org.jetbrains.bsp.bazel.server.bsp
 
+import io.opentelemetry.api.common.AttributeKey
+import io.opentelemetry.api.common.Attributes
 import io.opentelemetry.context.Context
 import org.apache.logging.log4j.LogManager
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
@@ -8,13 +10,50 @@ import org.eclipse.lsp4j.jsonrpc.ResponseErrorException
 import org.eclipse.lsp4j.jsonrpc.messages.Either
 import org.eclipse.lsp4j.jsonrpc.messages.ResponseError
 import org.eclipse.lsp4j.jsonrpc.messages.ResponseErrorCode
+import org.jetbrains.bsp.bazel.server.benchmark.BatchMetrics
 import java.io.PrintWriter
 import java.io.StringWriter
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.function.BiFunction
 import java.util.function.Function
 
-class BspRequestsRunner(private val serverLifetime: BazelBspServerLifetime) {
+class BspRequestsRunner(
+  private val serverLifetime: BazelBspServerLifetime,
+  private val notifications: CoalescingBuildClient? = null,
+) {
+  private class LanePool(lane: RequestLane) {
+    private val threadNumber = AtomicInteger()
+    val executor =
+      ThreadPoolExecutor(lane.parallelism, lane.parallelism, 1, TimeUnit.MINUTES, LinkedBlockingQueue()) { runnable ->
+        Thread(runnable, "bsp-requests-${lane.name.lowercase()}-${threadNumber.incrementAndGet()}").apply { isDaemon = true }
+      }.apply { allowCoreThreadTimeOut(true) }
+    val startedRequests = AtomicLong()
+    val waitNanos = AtomicLong()
+  }
+
+  private val lanes = RequestLane.entries.associateWith { LanePool(it) }
+
+  // the metrics can be registered only once telemetry is set up, which happens during the initialize request
+  private val metrics =
+    BatchMetrics {
+      val queueDepthGauge = longGauge("bsp.requests.queue.depth")
+      val startedCounter = longCounter("bsp.requests.started")
+      val waitCounter = longCounter("bsp.requests.wait.ms")
+      onCollect {
+        lanes.forEach { (lane, pool) ->
+          val attributes = Attributes.of(LANE_ATTRIBUTE, lane.name.lowercase())
+          queueDepthGauge.record(pool.executor.queue.size.toLong(), attributes)
+          startedCounter.record(pool.startedRequests.get(), attributes)
+          waitCounter.record(TimeUnit.NANOSECONDS.toMillis(pool.waitNanos.get()), attributes)
+        }
+      }
+    }
+
   fun <T, R> handleRequest(
     methodName: String,
     function: BiFunction<CancelChecker, T, R>,
@@ -78,16 +117,24 @@ class BspRequestsRunner(private val serverLifetime: BazelBspServerLifetime) {
     }
 
   private fun <T> runAsync(methodName: String, request: Function<CancelChecker, T>): CompletableFuture<T> {
+    metrics.registerIfNeeded()
+    val lane = lanes.getValue(RequestLane.of(methodName))
     val telemetryContext = Context.current()
+    val submittedNanos = System.nanoTime()
     val requestWrapped =
       Function<CancelChecker, T> { cancelChecker ->
+        lane.startedRequests.incrementAndGet()
+        lane.waitNanos.addAndGet(System.nanoTime() - submittedNanos)
         telemetryContext.makeCurrent().use { request.apply(cancelChecker) }
       }
+    // a request cancelled while waiting in the queue of its lane is not started at all
     return CancellableFuture
-      .from(CompletableFutures.computeAsync(requestWrapped))
+      .from(CompletableFutures.computeAsync(lane.executor, requestWrapped))
       .thenApply<Either<Throwable, T>> { right: T -> Either.forRight(right) }
       .exceptionally { left: Throwable? -> Either.forLeft(left) }
       .thenCompose { either: Either<Throwable, T> ->
+        // the client should get all notifications of the request before its response
+        notifications?.flush()
         if (either.isLeft) {
           failure(
             methodName,
@@ -130,6 +177,8 @@ class BspRequestsRunner(private val serverLifetime: BazelBspServerLifetime) {
   }
 
   companion object {
+    private val LANE_ATTRIBUTE: AttributeKey<String> = AttributeKey.stringKey("lane")
+
     private val LOGGER =
       LogManager.getLogger(
         BspRequestsRunner::class.java,
@@ -0,0 +1,260 @@
+package org.jetbrains.bsp.bazel.server.bsp
+
+import ch.epfl.scala.bsp4j.DidChangeBuildTarget
+import ch.epfl.scala.bsp4j.LogMessageParams
+import ch.epfl.scala.bsp4j.MessageType
+import ch.epfl.scala.bsp4j.PrintParams
+import ch.epfl.scala.bsp4j.PublishDiagnosticsParams
+import ch.epfl.scala.bsp4j.ShowMessageParams
+import ch.epfl.scala.bsp4j.TaskFinishParams
+import ch.epfl.scala.bsp4j.TaskId
+import ch.epfl.scala.bsp4j.TaskProgressParams
+import ch.epfl.scala.bsp4j.TaskStartParams
+import org.apache.logging.log4j.LogManager
+import org.jetbrains.bsp.bazel.server.benchmark.BatchMetrics
+import org.jetbrains.bsp.protocol.JoinedBuildClient
+import org.jetbrains.bsp.protocol.PublishOutputParams
+import java.time.Duration
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Merges consecutive `build/logMessage`, `run/printStdout` and `run/printStderr` notifications of the same origin
+ * and task into one, so a build printing thousands of lines doesn't send thousands of notifications to the client.
+ *
+ * A merged notification is sent at the latest [window] after its first line was received, once it reaches
+ * [maxMessageLength] characters, or right before any other notification, so the client still gets all notifications
+ * in the order they were sent. Pending lines should be [flushed][flush] before a response is sent.
+ *
+ * The client is never called under the lock guarding the pending lines. The notifications are queued in order under
+ * the lock and sent after it's released by whichever thread finds nobody else sending, and every caller waits until
+ * its own notification was sent. Lines flushed when the window ends are sent on [sender], not on [scheduler].
+ */
+class CoalescingBuildClient(
+  private val client: JoinedBuildClient,
+  private val window: Duration = DEFAULT_WINDOW,
+  private val maxMessageLength: Int = MAX_MESSAGE_LENGTH,
+  private val scheduler: ScheduledExecutorService = flushScheduler,
+  private val sender: Executor = windowSender,
+) : JoinedBuildClient {
+  private sealed interface PendingKey {
+    val originId: String?
+    val task: TaskId?
+
+    data class Log(val type: MessageType, override val originId: String?, override val task: TaskId?) : PendingKey
+
+    data class Stdout(override val originId: String?, override val task: TaskId?) : PendingKey
+
+    data class Stderr(override val originId: String?, override val task: TaskId?) : PendingKey
+  }
+
+  private class Pending(val key: PendingKey, message: String) {
+    val message = StringBuilder(message)
+    var count = 1
+  }
+
+  private val lock = Any()
+  private var pending: Pending? = null
+  private var flushScheduled = false
+
+  // notifications ready to be sent, queued under the lock so their order is kept
+  private val outbox = ConcurrentLinkedQueue<() -> Unit>()
+  private var queuedCount = 0L
+  private val isSending = AtomicBoolean(false)
+  private val sentLock = ReentrantLock()
+  private val notificationSent = sentLock.newCondition()
+  private var sentCount = 0L
+
+  init {
+    metrics.registerIfNeeded()
+  }
+
+  override fun onBuildLogMessage(params: LogMessageParams) {
+    coalesce(PendingKey.Log(params.type, params.originId, params.task), params.message, LOG_SEPARATOR)
+  }
+
+  override fun onRunPrintStdout(params: PrintParams) {
+    coalesce(PendingKey.Stdout(params.originId, params.task), params.message, separator = "")
+  }
+
+  override fun onRunPrintStderr(params: PrintParams) {
+    coalesce(PendingKey.Stderr(params.originId, params.task), params.message, separator = "")
+  }
+
+  override fun onBuildShowMessage(params: ShowMessageParams) = passThrough { client.onBuildShowMessage(params) }
+
+  override fun onBuildPublishDiagnostics(params: PublishDiagnosticsParams) = passThrough { client.onBuildPublishDiagnostics(params) }
+
+  override fun onBuildTargetDidChange(params: DidChangeBuildTarget) = passThrough { client.onBuildTargetDidChange(params) }
+
+  override fun onBuildTaskStart(params: TaskStartParams) = passThrough { client.onBuildTaskStart(params) }
+
+  override fun onBuildTaskProgress(params: TaskProgressParams) = passThrough { client.onBuildTaskProgress(params) }
+
+  override fun onBuildTaskFinish(params: TaskFinishParams) = passThrough { client.onBuildTaskFinish(params) }
+
+  override fun onBuildPublishOutput(params: PublishOutputParams) = passThrough { client.onBuildPublishOutput(params) }
+
+  /** Sends the pending merged notification, if there is one, and waits until all earlier notifications were sent. */
+  fun flush() {
+    val queued =
+      synchronized(lock) {
+        queuePending()
+        queuedCount
+      }
+    send(queued)
+  }
+
+  private fun coalesce(
+    key: PendingKey,
+    message: String,
+    separator: String,
+  ) {
+    val queued =
+      synchronized(lock) {
+        val current = pending
+        if (current != null && current.key == key && current.message.length + separator.length + message.length <= maxMessageLength) {
+          current.message.append(separator).append(message)
+          current.count++
+          coalescedNotifications.incrementAndGet()
+          return
+        }
+        val queued = queuePending()
+        pending = Pending(key, message)
+        if (!flushScheduled) {
+          flushScheduled = true
+          scheduler.schedule({ sender.execute(::scheduledFlush) }, window.toNanos(), TimeUnit.NANOSECONDS)
+        }
+        queued
+      }
+    send(queued)
+  }
+
+  private fun scheduledFlush() {
+    val queued =
+      synchronized(lock) {
+        flushScheduled = false
+        queuePending()
+      }
+    send(queued)
+  }
+
+  private fun passThrough(notification: () -> Unit) {
+    val queued =
+      synchronized(lock) {
+        queuePending()
+        queue(notification)
+      }
+    send(queued)
+  }
+
+  // returns the number of the queued notification, or 0 if nothing was pending
+  private fun queuePending(): Long {
+    val current = pending ?: return 0
+    pending = null
+    if (current.count > 1) {
+      val separatorLength = if (current.key is PendingKey.Log) JSON_SEPARATOR_LENGTH else 0
+      savedBytes.addAndGet((current.count - 1L) * (envelopeLength(current.key) - separatorLength))
+    }
+    val message = current.message.toString()
+    return when (val key = current.key) {
+      is PendingKey.Log ->
+        queue {
+          client.onBuildLogMessage(
+            LogMessageParams(key.type, message).apply {
+              originId = key.originId
+              task = key.task
+            },
+          )
+        }
+      is PendingKey.Stdout -> queue { client.onRunPrintStdout(PrintParams(key.originId, message).apply { task = key.task }) }
+      is PendingKey.Stderr -> queue { client.onRunPrintStderr(PrintParams(key.originId, message).apply { task = key.task }) }
+    }
+  }
+
+  private fun queue(notification: () -> Unit): Long {
+    sentNotifications.incrementAndGet()
+    outbox.add(notification)
+    return ++queuedCount
+  }
+
+  // sends the queued notifications unless another thread is already sending them, then waits for the given one
+  private fun send(upTo: Long) {
+    if (upTo == 0L) return
+    // checked again after sending, a notification may have been queued while the flag was still set
+    while (outbox.isNotEmpty() && isSending.compareAndSet(false, true)) {
+      try {
+        while (true) {
+          val notification = outbox.poll() ?: break
+          try {
+            notification()
+          } catch (e: Exception) {
+            LOGGER.warn("Could not send a notification to the client", e)
+          }
+          sentLock.withLock {
+            sentCount++
+            notificationSent.signalAll()
+          }
+        }
+      } finally {
+        isSending.set(false)
+      }
+    }
+    sentLock.withLock {
+      while (sentCount < upTo) notificationSent.awaitUninterruptibly()
+    }
+  }
+
+  // an estimate of what a notification costs apart from its message: the header, the JSON-RPC envelope and the ids
+  private fun envelopeLength(key: PendingKey): Int = ENVELOPE_LENGTH + (key.originId?.length ?: 0) + (key.task?.id?.length ?: 0)
+
+  companion object {
+    private val LOGGER = LogManager.getLogger(CoalescingBuildClient::class.java)
+
+    private val DEFAULT_WINDOW: Duration = Duration.ofMillis(20)
+    private const val MAX_MESSAGE_LENGTH = 64 * 1024
+    private const val LOG_SEPARATOR = "\n"
+
+    // `Content-Length: NNN\r\n\r\n{"jsonrpc":"2.0","method":"build/logMessage","params":{"type":4,"originId":"",
+    // "task":{"id":""},"message":""}}`
+    private const val ENVELOPE_LENGTH = 125
+
+    // the separator of merged log lines is escaped as `\n` in JSON
+    private const val JSON_SEPARATOR_LENGTH = 2
+
+    private val flushScheduler =
+      Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "bsp-notifications-flush").apply { isDaemon = true }
+      }
+
+    // the lines of a window are sent off the scheduler, so a slow client doesn't delay the windows of other clients
+    private val windowSender =
+      Executors.newCachedThreadPool { runnable ->
+        Thread(runnable, "bsp-notifications-sender").apply { isDaemon = true }
+      }
+
+    private val coalescedNotifications = AtomicLong()
+    private val sentNotifications = AtomicLong()
+    private val savedBytes = AtomicLong()
+
+    // the counters are shared by all clients of the process, they can be registered only once telemetry is set up
+    private val metrics =
+      BatchMetrics {
+        val coalescedCounter = longCounter("bsp.notifications.coalesced")
+        val sentCounter = longCounter("bsp.notifications.sent")
+        val savedBytesCounter = longCounter("bsp.notifications.saved.bytes")
+        onCollect {
+          coalescedCounter.record(coalescedNotifications.get())
+          sentCounter.record(sentNotifications.get())
+          savedBytesCounter.record(savedBytes.get())
+        }
+      }
+  }
+}
@@ -0,0 +1,63 @@
+package org.jetbrains.bsp.bazel.server.bsp
+
+/**
+ * Requests of every lane are run on a separate pool, so e.g. a quick `buildTarget/sources` doesn't wait until
+ * a pool busy with syncs and builds gets a free thread.
+ *
+ * The parallelism of a lane can be changed with the `bazel.bsp.requests.<lane>.parallelism` system property.
+ */
+enum class RequestLane(private val defaultParallelism: Int) {
+  /** Queries answered from the last synced project without running Bazel, including the ones needed by an import. */
+  INTERACTIVE(Runtime.getRuntime().availableProcessors().coerceAtLeast(2)),
+
+  /** Queries which run Bazel for their answer, e.g. `bazel query` for inverse sources or `bazel cquery` for classpaths. */
+  QUERY(2),
+
+  /** Syncs and builds, which run Bazel commands taking the whole workspace into account. */
+  HEAVY(4),
+
+  /** Runs and debug sessions, which can last until the user stops them, so they shouldn't hold up syncs and builds. */
+  RUN(4),
+  ;
+
+  val parallelism: Int
+    get() = Integer.getInteger("bazel.bsp.requests.${name.lowercase()}.parallelism", defaultParallelism).coerceAtLeast(1)
+
+  companion object {
+    // the javac and scalac options include the classpath from a `bazel cquery` unless the client asks for it separately
+    private val queryRequests =
+      setOf(
+        "buildTargetInverseSources",
+        "jvmRunEnvironment",
+        "jvmTestEnvironment",
+        "jvmCompileClasspath",
+        "buildTargetJavacOptions",
+        "buildTargetScalacOptions",
+      )
+
+    private val heavyRequests =
+      setOf(
+        "workspaceBuildTargets",
+        "workspaceBuildAndGetBuildTargets",
+        "workspaceReload",
+        "buildTargetCompile",
+        "buildTargetTest",
+        "buildTargetMobileInstall",
+        "buildTargetCleanCache",
+      )
+
+    private val runRequests =
+      setOf(
+        "buildTargetRun",
+        "buildTargetRunWithDebug",
+      )
+
+    fun of(methodName: String): RequestLane =
+      when (methodName) {
+        in queryRequests -> QUERY
+        in heavyRequests -> HEAVY
+        in runRequests -> RUN
+        else -> INTERACTIVE
+      }
+  }
+}
@@ -12,6 +12,7 @@ import org.jetbrains.bsp.bazel.server.bep.BepOutput
 import org.jetbrains.bsp.bazel.server.bsp.utils.InternalAspectsResolver
 import org.jetbrains.bsp.bazel.workspacecontext.TargetsSpec
 import org.jetbrains.bsp.bazel.workspacecontext.WorkspaceContext
+import java.nio.file.Path
 import java.nio.file.Paths
 
 data class BazelBspAspectsManagerResult(val bepOutput: BepOutput, val isFailure: Boolean)
@@ -53,6 +54,7 @@ class BazelBspAspectsManager(
     outputGroups: List<String>,
     shouldBuildManualFlags: Boolean,
     isRustEnabled: Boolean,
+    textProtoFilesListener: ((Collection<Path>) -> Unit)? = null,
   ): BazelBspAspectsManagerResult {
     if (targetSpecs.values.isEmpty()) return BazelBspAspectsManagerResult(BepOutput(), isFailure = false)
     val defaultFlags =
@@ -82,6 +84,7 @@ class BazelBspAspectsManager(
         // see: https://bazelbuild.github.io/rules_rust/crate_universe.html#crates_repository.
         // In our server used only with `bazel build` command.
         environment = if (isRustEnabled) listOf(Pair("CARGO_BAZEL_REPIN", "1")) else emptyList(),
+        textProtoFilesListener = textProtoFilesListener,
       ).let {
         BazelBspAspectsManagerResult(it.bepOutput, it.processResult.isNotSuccess)
       }
@@ -23,10 +23,11 @@ class BazelBspCompilationManager(
     extraFlags: List<String> = emptyList(),
     originId: String? = null,
     environment: List<Pair<String, String>> = emptyList(),
+    textProtoFilesListener: ((Collection<Path>) -> Unit)? = null,
   ): BepBuildResult {
     val target = targetSpecs.values.firstOrNull()
     val diagnosticsService = DiagnosticsService(workspaceRoot)
-    val bepServer = BepServer(client, diagnosticsService, originId, target, bazelPathsResolver)
+    val bepServer = BepServer(client, diagnosticsService, originId, target, bazelPathsResolver, textProtoFilesListener)
     val bepReader = BepReader(bepServer)
     return try {
       bepReader.start()
@@ -42,7 +43,7 @@ class BazelBspCompilationManager(
       val result =
         bazelRunner
           .runBazelCommand(command, originId = originId, serverPidFuture = bepReader.serverPid)
-          .waitAndGetResult(cancelChecker, true)
+          .waitAndGetResult(cancelChecker, true, logOnly = true)
       bepReader.finishBuild()
       bepReader.await()
       BepBuildResult(result, bepServer.bepOutput)
@@ -19,8 +19,7 @@ class BazelBspFallbackAspectsManager(
         }
       }
     return bazelRunner
-      .runBazelCommand(command, logProcessOutput = false, serverPidFuture = null)
-      .waitAndGetResult(cancelChecker, ensureAllOutputRead = true)
+      .runQueryCommand(command, cancelChecker)
       .stdoutLines
       .map { Label.parse(it) }
   }
@@ -41,7 +41,15 @@ enum class Language(
   fun toAspectTemplateRelativePath(): String = "${toAspectRelativePath()}.template"
 }
 
-class BazelBspLanguageExtensionsGenerator(internalAspectsResolver: InternalAspectsResolver, private val bazelRelease: BazelRelease) {
+class BazelBspLanguageExtensionsGenerator(
+  internalAspectsResolver: InternalAspectsResolver,
+  private val bazelReleaseProvider: () -> BazelRelease,
+) {
+  constructor(internalAspectsResolver: InternalAspectsResolver, bazelRelease: BazelRelease) : this(internalAspectsResolver, { bazelRelease })
+
+  private val bazelRelease: BazelRelease
+    get() = bazelReleaseProvider()
+
   private val aspectsPath = Paths.get(internalAspectsResolver.bazelBspRoot, Constants.ASPECTS_ROOT)
   private val velocityEngine = VelocityEngine()
 
@@ -6,6 +6,7 @@ import com.google.gson.JsonObject
 import org.apache.logging.log4j.LogManager
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.jetbrains.bsp.bazel.bazelrunner.BazelRunner
+import org.jetbrains.bsp.bazel.bazelrunner.QueryCachePolicy
 import org.jetbrains.bsp.bazel.commons.escapeNewLines
 import org.jetbrains.bsp.bazel.workspacecontext.EnabledRulesSpec
 import org.w3c.dom.Document
@@ -52,8 +53,7 @@ class BazelWorkspaceExternalRulesQueryImpl(private val bazelRunner: BazelRunner)
           }
         }
 
-      runBazelCommand(command, logProcessOutput = false, serverPidFuture = null)
-        .waitAndGetResult(cancelChecker, ensureAllOutputRead = true)
+      runQueryCommand(command, cancelChecker, cachePolicy = QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
         .let { result ->
           if (result.isNotSuccess) {
             log.warn("Bazel query failed with output: '${result.stderr.escapeNewLines()}'")
@@ -99,8 +99,7 @@ class BazelBzlModExternalRulesQueryImpl(private val bazelRunner: BazelRunner) :
       }
     val bzlmodGraphJson =
       bazelRunner
-        .runBazelCommand(command, logProcessOutput = false, serverPidFuture = null)
-        .waitAndGetResult(cancelChecker, ensureAllOutputRead = true)
+        .runQueryCommand(command, cancelChecker, cachePolicy = QueryCachePolicy.UNTIL_WORKSPACE_FILES_CHANGE)
         .let { result ->
           if (result.isNotSuccess) {
             log.warn("Bazel query failed with output: '${result.stderr.escapeNewLines()}'")
@@ -0,0 +1,158 @@
+package org.jetbrains.bsp.bazel.server.bsp.managers
+
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos
+import org.apache.logging.log4j.LogManager
+import org.jetbrains.bsp.bazel.server.bep.BepServer
+import org.jetbrains.bsp.bazel.server.benchmark.BatchMetrics
+import java.io.File
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.PosixFilePermission
+import java.nio.file.attribute.PosixFilePermissions
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+import kotlin.concurrent.thread
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Tails the binary BEP file written by Bazel and passes the events to [BepServer].
+ *
+ * One thread reads the file with a [FileChannel] and parses complete frames, another one handles the events.
+ * They are connected by a bounded queue, so a slow consumer makes the reader wait instead of buffering the whole
+ * stream. When there is nothing to read, the reader parks for a short time which grows while the file stays idle,
+ * and it is woken up right away when the build finishes.
+ */
+class BepReader(private val bepServer: BepServer) {
+  private class QueuedEvent(val event: BuildEventStreamProtos.BuildEvent?, val readNanos: Long)
+
+  val eventFile: File =
+    Files
+      .createTempFile(
+        "bazel-bsp-binary",
+        null,
+        PosixFilePermissions.asFileAttribute(setOf(PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ)),
+      ).toFile()
+
+  val serverPid = CompletableFuture<Long>()
+
+  private val bazelBuildFinished = CompletableFuture<Boolean>()
+  private val bepReaderFinished = CompletableFuture<Boolean>()
+  private val events = ArrayBlockingQueue<QueuedEvent>(EVENT_QUEUE_CAPACITY)
+
+  @Volatile
+  private var tailerThread: Thread? = null
+
+  fun start() {
+    metrics.registerIfNeeded()
+    LOGGER.info("Start listening to BEP events")
+    thread(name = "bep-event-consumer") { consumeEvents() }
+    tailerThread = thread(name = "bep-file-tailer") { tailEventFile() }
+  }
+
+  private fun tailEventFile() {
+    try {
+      FileChannel.open(eventFile.toPath(), StandardOpenOption.READ).use { channel ->
+        val frameReader = DelimitedFrameReader()
+        var idleNanos = MIN_IDLE_NANOS
+        while (true) {
+          // checked before reading, so everything written before the build finished is read in this iteration
+          val finished = bazelBuildFinished.isDone
+          val readBytes = frameReader.readFrom(channel)
+          frameReader.drainFrames { frame ->
+            events.put(QueuedEvent(BuildEventStreamProtos.BuildEvent.parseFrom(frame), System.nanoTime()))
+          }
+          if (readBytes > 0) {
+            idleNanos = MIN_IDLE_NANOS
+          } else if (finished) {
+            break
+          } else {
+            LockSupport.parkNanos(idleNanos)
+            idleNanos = min(idleNanos * 2, MAX_IDLE_NANOS)
+          }
+        }
+        if (frameReader.hasIncompleteFrame) {
+          LOGGER.warn("BEP file {} ends with an incomplete event", eventFile)
+        }
+      }
+    } catch (e: Exception) {
+      LOGGER.error("Could not read BEP events from $eventFile", e)
+    } finally {
+      events.put(QueuedEvent(null, System.nanoTime()))
+    }
+  }
+
+  private fun consumeEvents() {
+    var eventsCount = 0L
+    var firstEventNanos = 0L
+    var maxLagNanos = 0L
+    try {
+      while (true) {
+        val queuedEvent = events.take()
+        val event = queuedEvent.event ?: break
+        if (eventsCount++ == 0L) firstEventNanos = queuedEvent.readNanos
+        try {
+          bepServer.handleBuildEventStreamProtosEvent(event)
+          setServerPid(event)
+        } catch (e: Exception) {
+          LOGGER.error("Error while handling BEP event", e)
+        }
+        maxLagNanos = max(maxLagNanos, System.nanoTime() - queuedEvent.readNanos)
+      }
+      LOGGER.info("BEP events listening finished")
+    } finally {
+      // test results are reported in the background, await() returns once they have all been sent
+      try {
+        bepServer.finishTestResults()
+      } catch (e: Exception) {
+        LOGGER.error("Error while reporting test results", e)
+      }
+      val durationNanos = System.nanoTime() - firstEventNanos
+      if (eventsCount > 0 && durationNanos > 0) {
+        lastEventsPerSecond.set(eventsCount * 1_000_000_000 / durationNanos)
+        lastMaxLagMillis.set(maxLagNanos / 1_000_000)
+      }
+      bepReaderFinished.complete(true)
+    }
+  }
+
+  private fun setServerPid(event: BuildEventStreamProtos.BuildEvent) {
+    if (event.hasStarted() && !serverPid.isDone) {
+      serverPid.complete(event.started.serverPid)
+    }
+  }
+
+  fun finishBuild() {
+    bazelBuildFinished.complete(true)
+    tailerThread?.let(LockSupport::unpark)
+  }
+
+  fun await() {
+    bepReaderFinished.get()
+  }
+
+  companion object {
+    private val LOGGER = LogManager.getLogger(BepReader::class.java)
+
+    private const val EVENT_QUEUE_CAPACITY = 1024
+    private const val MIN_IDLE_NANOS = 100_000L
+    private const val MAX_IDLE_NANOS = 10_000_000L
+
+    private val lastEventsPerSecond = AtomicLong()
+    private val lastMaxLagMillis = AtomicLong()
+
+    // the gauges report the last finished build, they can be registered only once telemetry is set up
+    private val metrics =
+      BatchMetrics {
+        val eventsPerSecondGauge = longGauge("bep.events.per.second")
+        val maxLagGauge = longGauge("bep.max.lag.ms")
+        onCollect {
+          eventsPerSecondGauge.record(lastEventsPerSecond.get())
+          maxLagGauge.record(lastMaxLagMillis.get())
+        }
+      }
+  }
+}
@@ -0,0 +1,65 @@
+package org.jetbrains.bsp.bazel.server.bsp.managers
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
+
+/**
+ * Splits varint length-delimited frames out of a channel which may still be written to, like the BEP file of
+ * a running build. Bytes of a frame which is not complete yet are kept until the rest of it is read.
+ */
+class DelimitedFrameReader(initialCapacity: Int = DEFAULT_CAPACITY) {
+  // in the write mode, [0, position) holds the bytes which were read but not consumed yet
+  private var buffer: ByteBuffer = ByteBuffer.allocate(initialCapacity)
+
+  val hasIncompleteFrame: Boolean
+    get() = buffer.position() > 0
+
+  /** Returns the number of bytes read, 0 if there was nothing new in the channel. */
+  fun readFrom(channel: ReadableByteChannel): Int {
+    if (!buffer.hasRemaining()) {
+      buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip())
+    }
+    return channel.read(buffer).coerceAtLeast(0)
+  }
+
+  /** Calls [consume] for every complete frame, the frame is only valid until [consume] returns. */
+  fun drainFrames(consume: (ByteBuffer) -> Unit) {
+    buffer.flip()
+    try {
+      while (true) {
+        val frameStart = buffer.position()
+        val length = readVarint()
+        if (length == null || buffer.remaining() < length) {
+          buffer.position(frameStart)
+          return
+        }
+        val frame = buffer.slice(buffer.position(), length)
+        buffer.position(buffer.position() + length)
+        consume(frame)
+      }
+    } finally {
+      buffer.compact()
+    }
+  }
+
+  /** Returns null if the varint is not complete yet. */
+  private fun readVarint(): Int? {
+    var result = 0
+    for (shift in 0 until MAX_VARINT_BYTES * 7 step 7) {
+      if (!buffer.hasRemaining()) return null
+      val byte = buffer.get().toInt()
+      result = result or ((byte and 0x7f) shl shift)
+      if (byte and 0x80 == 0) {
+        if (result < 0) throw IOException("Negative frame length $result")
+        return result
+      }
+    }
+    throw IOException("Malformed frame length")
+  }
+
+  private companion object {
+    const val DEFAULT_CAPACITY = 64 * 1024
+    const val MAX_VARINT_BYTES = 5
+  }
+}
@@ -4,10 +4,14 @@ import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
 import org.jetbrains.bsp.bazel.commons.Constants
 import org.jetbrains.bsp.bazel.server.bsp.info.BspInfo
 
-class InternalAspectsResolver(val bspInfo: BspInfo, val bazelRelease: BazelRelease) {
-  private val prefix: Lazy<String> = lazy { getPrefix() }
+// the release is read on every use, as the one restored from the previous run can be replaced once Bazel is asked
+class InternalAspectsResolver(val bspInfo: BspInfo, private val bazelReleaseProvider: () -> BazelRelease) {
+  constructor(bspInfo: BspInfo, bazelRelease: BazelRelease) : this(bspInfo, { bazelRelease })
 
-  fun resolveLabel(aspect: String): String = prefix.value + aspect
+  val bazelRelease: BazelRelease
+    get() = bazelReleaseProvider()
+
+  fun resolveLabel(aspect: String): String = getPrefix() + aspect
 
   val bazelBspRoot: String
     get() = bspInfo.bazelBspDir().toString()
@@ -1,97 +1,174 @@
 package org.jetbrains.bsp.bazel.server.dependencygraph
 
-import org.jetbrains.bsp.bazel.info.BspTargetInfo.Dependency
 import org.jetbrains.bsp.bazel.info.BspTargetInfo.TargetInfo
 import org.jetbrains.bsp.bazel.server.model.Label
+import java.util.BitSet
 
-class DependencyGraph(private val rootTargets: Set<Label> = emptySet(), private val idToTargetInfo: Map<Label, TargetInfo> = emptyMap()) {
-  private val idToDirectDependenciesIds: Map<Label, Set<Label>>
-  private val idToLazyTransitiveDependencies: Map<Label, Lazy<Set<TargetInfo>>>
+/**
+ * Every label is interned to a dense int id and the edges are kept in primitive arrays in the compressed sparse row
+ * format, so no transitive closure is ever materialized. Traversals reuse a per-thread visited bitset and queue.
+ */
+class DependencyGraph(rootTargets: Set<Label> = emptySet(), idToTargetInfo: Map<Label, TargetInfo> = emptyMap()) {
+  private val labelToId = HashMap<Label, Int>(idToTargetInfo.size * 2)
+  private val labels = ArrayList<Label>(idToTargetInfo.size)
+
+  // labels of the known targets are interned first, so target ids are exactly 0 until targetInfos.size
+  private val targetInfos: Array<TargetInfo> = idToTargetInfo.values.toTypedArray()
+
+  // direct dependencies of the target with id i are dependencyIds[dependencyOffsets[i] until dependencyOffsets[i + 1]]
+  private val dependencyOffsets = IntArray(targetInfos.size + 1)
+  private val dependencyIds: IntArray
+  private val rootTargetIds = BitSet()
+
+  private val reverseDependencies: Lazy<Pair<IntArray, IntArray>> = lazy { createReverseDependencies() }
+  private val traversals = ThreadLocal.withInitial { Traversal(labels.size) }
 
   init {
-    idToDirectDependenciesIds =
-      idToTargetInfo.entries.associate { (id, target) ->
-        Pair(
-          id,
-          getDependencies(target),
-        )
-      }
-    idToLazyTransitiveDependencies = createIdToLazyTransitiveDependenciesMap(idToTargetInfo)
+    idToTargetInfo.keys.forEach(::intern)
+    dependencyIds = createDependencyIds()
+    rootTargets.forEach { label -> labelToId[label]?.let(rootTargetIds::set) }
   }
 
-  private fun createIdToLazyTransitiveDependenciesMap(idToTargetInfo: Map<Label, TargetInfo>): Map<Label, Lazy<Set<TargetInfo>>> =
-    idToTargetInfo.mapValues { (_, targetInfo) ->
-      calculateLazyTransitiveDependenciesForTarget(targetInfo)
+  private fun intern(label: Label): Int =
+    labelToId.getOrPut(label) {
+      labels.add(label)
+      labels.size - 1
     }
 
-  private fun calculateLazyTransitiveDependenciesForTarget(targetInfo: TargetInfo): Lazy<Set<TargetInfo>> =
-    lazy { calculateTransitiveDependenciesForTarget(targetInfo) }
+  private fun createDependencyIds(): IntArray {
+    // dependencies are written as raw strings, the same ones repeat a lot, so they are parsed only once
+    val rawLabelToId = HashMap<String, Int>()
+    val rawDependencyIds = IntArray(targetInfos.sumOf { it.dependenciesCount })
+    var rawSize = 0
+    targetInfos.forEach { targetInfo ->
+      targetInfo.dependenciesList.forEach { dependency ->
+        rawDependencyIds[rawSize++] = rawLabelToId.getOrPut(dependency.id) { intern(Label.parse(dependency.id)) }
+      }
+    }
 
-  private fun calculateTransitiveDependenciesForTarget(targetInfo: TargetInfo): Set<TargetInfo> {
-    val dependencies = getDependencies(targetInfo)
-    val strictlyTransitiveDependencies = calculateStrictlyTransitiveDependencies(dependencies)
-    val directDependencies = idsToTargetInfo(dependencies)
-    return strictlyTransitiveDependencies + directDependencies
+    // the same dependency can be listed more than once, e.g. in deps and in runtime_deps
+    val lastSeenBy = IntArray(labels.size) { -1 }
+    var size = 0
+    var rawIndex = 0
+    targetInfos.forEachIndexed { id, targetInfo ->
+      repeat(targetInfo.dependenciesCount) {
+        val dependencyId = rawDependencyIds[rawIndex++]
+        if (lastSeenBy[dependencyId] != id) {
+          lastSeenBy[dependencyId] = id
+          rawDependencyIds[size++] = dependencyId
+        }
+      }
+      dependencyOffsets[id + 1] = size
+    }
+    return rawDependencyIds.copyOf(size)
   }
 
-  private fun calculateStrictlyTransitiveDependencies(dependencies: Set<Label>): Set<TargetInfo> =
-    dependencies
-      .flatMap {
-        idToLazyTransitiveDependencies[it]?.value.orEmpty()
-      }.toSet()
+  private fun createReverseDependencies(): Pair<IntArray, IntArray> {
+    val offsets = IntArray(labels.size + 1)
+    dependencyIds.forEach { offsets[it + 1]++ }
+    for (id in 1..labels.size) {
+      offsets[id] += offsets[id - 1]
+    }
+    val nextFree = offsets.copyOf(labels.size)
+    val reverseIds = IntArray(dependencyIds.size)
+    for (id in targetInfos.indices) {
+      for (index in dependencyOffsets[id] until dependencyOffsets[id + 1]) {
+        reverseIds[nextFree[dependencyIds[index]]++] = id
+      }
+    }
+    return offsets to reverseIds
+  }
 
-  private fun idsToTargetInfo(dependencies: Set<Label>): Set<TargetInfo> = dependencies.mapNotNull(idToTargetInfo::get).toSet()
+  fun allTargetsAtDepth(depth: Int, targets: Set<Label>): Set<TargetInfo> =
+    traverse(dependencyOffsets, dependencyIds, depth) { visit ->
+      targets.forEach { label -> labelToId[label]?.let(visit) }
+    }.toTargetInfos()
+
+  fun transitiveDependenciesWithoutRootTargets(targetId: Label): Set<TargetInfo> {
+    val id = labelToId[targetId]?.takeIf { it < targetInfos.size } ?: return emptySet()
+    return traverse(dependencyOffsets, dependencyIds, UNLIMITED_DEPTH) { visit ->
+      for (index in dependencyOffsets[id] until dependencyOffsets[id + 1]) {
+        val dependencyId = dependencyIds[index]
+        if (!rootTargetIds[dependencyId]) {
+          visit(dependencyId)
+        }
+      }
+    }.toTargetInfos()
+  }
 
-  private fun directDependenciesIds(targetIds: Set<Label>) =
-    targetIds
-      .flatMap {
-        idToDirectDependenciesIds[it].orEmpty()
-      }.toSet()
+  /**
+   * Returns the given targets together with every target which depends on any of them, directly or transitively.
+   */
+  fun transitiveReverseDependencies(targetIds: Set<Label>): Set<Label> {
+    val (offsets, reverseIds) = reverseDependencies.value
+    val reached = traverse(offsets, reverseIds, UNLIMITED_DEPTH) { visit -> targetIds.forEach { label -> labelToId[label]?.let(visit) } }
+    return targetIds + reached.map(labels::get)
+  }
 
-  fun allTargetsAtDepth(depth: Int, targets: Set<Label>): Set<TargetInfo> {
-    if (depth < 0) {
-      return idsToTargetInfo(targets) + calculateStrictlyTransitiveDependencies(targets)
+  /**
+   * Visits everything reachable from the start ids in at most [maxDepth] steps (any number of steps if negative)
+   * and returns the visited ids, including the start ones.
+   */
+  private inline fun traverse(
+    offsets: IntArray,
+    edges: IntArray,
+    maxDepth: Int,
+    start: ((Int) -> Unit) -> Unit,
+  ): IntArray {
+    val traversal = traversals.get()
+    try {
+      start(traversal::visit)
+      var head = 0
+      var depth = 0
+      while (head < traversal.size && (maxDepth < 0 || depth < maxDepth)) {
+        val levelEnd = traversal.size
+        while (head < levelEnd) {
+          val id = traversal.queue[head++]
+          // labels which are only referenced as dependencies have no edges of their own
+          if (id + 1 < offsets.size) {
+            for (index in offsets[id] until offsets[id + 1]) {
+              traversal.visit(edges[index])
+            }
+          }
+        }
+        depth++
+      }
+      return traversal.queue.copyOf(traversal.size)
+    } finally {
+      traversal.clear()
     }
+  }
 
-    var currentDepth = depth
-    val searched: MutableSet<TargetInfo> = mutableSetOf()
-    var currentTargets = targets
+  private fun IntArray.toTargetInfos(): Set<TargetInfo> {
+    val result = HashSet<TargetInfo>(size * 2)
+    forEach { id -> if (id < targetInfos.size) result.add(targetInfos[id]) }
+    return result
+  }
 
-    while (currentDepth > 0) {
-      searched.addAll(idsToTargetInfo(currentTargets))
-      currentTargets = directDependenciesIds(currentTargets)
-      currentDepth--
+  private class Traversal(labelsCount: Int) {
+    private val visited = BitSet(labelsCount)
+
+    // every id is queued at most once, so the queue never needs to grow
+    val queue = IntArray(labelsCount)
+    var size = 0
+      private set
+
+    fun visit(id: Int) {
+      if (!visited[id]) {
+        visited.set(id)
+        queue[size++] = id
+      }
     }
 
-    searched.addAll(idsToTargetInfo(currentTargets))
-    return searched
+    fun clear() {
+      for (index in 0 until size) {
+        visited.clear(queue[index])
+      }
+      size = 0
+    }
   }
 
-  fun transitiveDependenciesWithoutRootTargets(targetId: Label): Set<TargetInfo> =
-    idToTargetInfo[targetId]
-      ?.let(::getDependencies)
-      .orEmpty()
-      .filter(::isNotARootTarget)
-      .flatMap(::collectTransitiveDependenciesAndAddTarget)
-      .toSet()
-
-  private fun getDependencies(target: TargetInfo): Set<Label> =
-    target.dependenciesList
-      .map(Dependency::getId)
-      .map(Label::parse)
-      .toSet()
-
-  private fun isNotARootTarget(targetId: Label): Boolean = !rootTargets.contains(targetId)
-
-  private fun collectTransitiveDependenciesAndAddTarget(targetId: Label): Set<TargetInfo> {
-    val target = idToTargetInfo[targetId]?.let(::setOf).orEmpty()
-    val dependencies =
-      idToLazyTransitiveDependencies[targetId]
-        ?.let(::setOf)
-        .orEmpty()
-        .map(Lazy<Set<TargetInfo>>::value)
-        .flatten()
-        .toSet()
-    return dependencies + target
+  private companion object {
+    const val UNLIMITED_DEPTH = -1
   }
 }
@@ -18,4 +18,14 @@ class DiagnosticsService(
     val events = mapper.createDiagnostics(parsedDiagnostics, originId)
     return events
   }
+
+  /**
+   * Returns a stream which parses the output line by line and calls [publish] for a file as soon as the block
+   * of its diagnostics ends, instead of waiting for the whole output.
+   */
+  fun streamDiagnostics(
+    targetLabel: Label,
+    originId: String,
+    publish: (PublishDiagnosticsParams) -> Unit,
+  ): DiagnosticsStream = DiagnosticsStream(targetLabel, originId, mapper, publish)
 }
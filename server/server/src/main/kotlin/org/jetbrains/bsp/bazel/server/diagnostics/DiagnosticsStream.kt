@@ -0,0 +1,47 @@
+package org.jetbrains.bsp.bazel.server.diagnostics
+
+import ch.epfl.scala.bsp4j.PublishDiagnosticsParams
+import org.jetbrains.bsp.bazel.server.model.Label
+
+/**
+ * Diagnostics of a single action output, see [DiagnosticsService.streamDiagnostics].
+ *
+ * Compilers report diagnostics grouped by file, so the diagnostics of a file are published once a diagnostic
+ * of another file is found, instead of sending a growing list after every diagnostic.
+ */
+class DiagnosticsStream internal constructor(
+  targetLabel: Label,
+  private val originId: String,
+  private val mapper: DiagnosticBspMapper,
+  private val publish: (PublishDiagnosticsParams) -> Unit,
+) {
+  private val diagnosticsByFile = mutableMapOf<String, MutableList<Diagnostic>>()
+  private val parser = DiagnosticsStreamParser(targetLabel, ::onDiagnostic)
+  private var pendingFile: String? = null
+  private var isEmpty = true
+
+  fun onLine(line: String) {
+    isEmpty = false
+    parser.onLine(line)
+  }
+
+  /** Publishes the rest of the diagnostics, nothing is published for an empty output. */
+  fun finish() {
+    if (isEmpty) return
+    parser.finish()
+    pendingFile?.let(::publishFile)
+    pendingFile = null
+  }
+
+  private fun onDiagnostic(diagnostic: Diagnostic) {
+    val file = diagnostic.fileLocation
+    pendingFile?.takeIf { it != file }?.let(::publishFile)
+    pendingFile = file
+    diagnosticsByFile.getOrPut(file) { mutableListOf() }.add(diagnostic)
+  }
+
+  // all diagnostics found so far are sent, because they replace the ones published before
+  private fun publishFile(file: String) {
+    mapper.createDiagnostics(diagnosticsByFile.getValue(file), originId).forEach(publish)
+  }
+}
@@ -0,0 +1,99 @@
+package org.jetbrains.bsp.bazel.server.diagnostics
+
+import org.jetbrains.bsp.bazel.server.model.Label
+import kotlin.math.max
+
+/**
+ * Parses diagnostics from lines of a Bazel output as they arrive, every diagnostic is passed to [onDiagnostic]
+ * as soon as the block of lines it was parsed from ends.
+ *
+ * The [Parser]s look at most [LOOKAHEAD] lines ahead, so a block is parsed only when that many lines follow it
+ * (or the output is finished) and otherwise it's parsed again when more lines arrive. This gives the same diagnostics
+ * as parsing the whole output at once. Duplicated diagnostics are skipped, and if no diagnostic was found at all,
+ * the whole output is reported as a diagnostic of an `<unknown>` file on [finish].
+ */
+class DiagnosticsStreamParser(private val targetLabel: Label, private val onDiagnostic: (Diagnostic) -> Unit) {
+  private val output = Output(targetLabel)
+  private val reportedDiagnostics = HashSet<Triple<String, String, Position>>()
+
+  // only needed until the first diagnostic is found
+  private var unparsedOutput: MutableList<String>? = mutableListOf()
+
+  // a block which didn't end is parsed again only after its size doubles, so long blocks aren't parsed too often
+  private var requiredLines = LOOKAHEAD + 1
+
+  fun onLine(line: String) {
+    if (IgnoredLines.any { it.matches(line) }) return
+    output.append(line)
+    unparsedOutput?.add(line)
+    if (output.remaining() >= requiredLines) {
+      parseAvailableLines(isFinished = false)
+    }
+  }
+
+  fun finish() {
+    parseAvailableLines(isFinished = true)
+    unparsedOutput?.let { lines ->
+      report(
+        Diagnostic(
+          position = Position(0, 0),
+          message = lines.joinToString(System.lineSeparator()),
+          fileLocation = "<unknown>",
+          targetLabel = targetLabel,
+        ),
+      )
+    }
+  }
+
+  private fun parseAvailableLines(isFinished: Boolean) {
+    while (output.remaining() > (if (isFinished) 0 else LOOKAHEAD)) {
+      val mark = output.mark()
+      val diagnostics = parseNextBlock()
+      if (!isFinished && output.remaining() < LOOKAHEAD) {
+        val blockSize = output.mark() - mark
+        output.reset(mark)
+        requiredLines = blockSize + max(blockSize, LOOKAHEAD)
+        break
+      }
+      requiredLines = LOOKAHEAD + 1
+      diagnostics.forEach(::report)
+    }
+    if (output.mark() > MAX_TAKEN_LINES || isFinished) {
+      output.dropTakenLines()
+    }
+  }
+
+  private fun parseNextBlock(): List<Diagnostic> {
+    for (parser in Parsers) {
+      val result = parser.tryParse(output)
+      if (result.isNotEmpty()) return result
+    }
+    return emptyList()
+  }
+
+  private fun report(diagnostic: Diagnostic) {
+    unparsedOutput = null
+    if (reportedDiagnostics.add(Triple(diagnostic.fileLocation, diagnostic.message, diagnostic.position))) {
+      onDiagnostic(diagnostic)
+    }
+  }
+
+  companion object {
+    /** The furthest any of the [Parsers] looks ahead of the lines it takes. */
+    private const val LOOKAHEAD = 20
+    private const val MAX_TAKEN_LINES = 1024
+
+    private val Parsers =
+      listOf(
+        BazelRootMessageParser,
+        CompilerDiagnosticParser,
+        Scala3CompilerDiagnosticParser,
+        AllCatchParser,
+      )
+    private val IgnoredLines =
+      listOf(
+        "^$".toRegex(),
+        "Use --sandbox_debug to see verbose messages from the sandbox".toRegex(),
+      )
+  }
+}
@@ -2,16 +2,25 @@ package org.jetbrains.bsp.bazel.server.diagnostics
 
 import org.jetbrains.bsp.bazel.server.model.Label
 
-class Output(private val lines: List<String>, val targetLabel: Label) {
+/**
+ * Lines of a Bazel output read by the [Parser]s.
+ *
+ * Lines can be [appended][append] while the output is parsed, the lines which were already taken are dropped
+ * by [dropTakenLines], so a long output doesn't have to be kept whole.
+ */
+class Output(lines: List<String>, val targetLabel: Label) {
+  private val lines = ArrayList(lines)
   private var pointer = 0
 
+  constructor(targetLabel: Label) : this(emptyList(), targetLabel)
+
   fun nonEmpty(): Boolean = pointer < lines.size
 
   fun peek(): String? = lines.getOrNull(pointer)
 
   fun take(): String = lines[pointer++]
 
-  fun peek(limit: Int): List<String> = lines.subList(pointer, (pointer + limit).coerceAtMost(lines.size))
+  fun peek(limit: Int): List<String> = lines.subList(pointer.coerceAtMost(lines.size), (pointer + limit).coerceAtMost(lines.size))
 
   fun take(count: Int): List<String> = peek(count).also { pointer += count }
 
@@ -20,4 +29,24 @@ class Output(private val lines: List<String>, val targetLabel: Label) {
   fun tryTake(regex: Regex): MatchResult? = peek()?.let { regex.matchEntire(it) }?.also { take() }
 
   fun fullOutput(): String = lines.joinToString(System.lineSeparator())
+
+  fun append(line: String) {
+    lines.add(line)
+  }
+
+  /** Number of lines which were not taken yet. */
+  fun remaining(): Int = (lines.size - pointer).coerceAtLeast(0)
+
+  /** Returns the current position, lines taken after it can be given back with [reset]. */
+  fun mark(): Int = pointer
+
+  fun reset(mark: Int) {
+    pointer = mark
+  }
+
+  fun dropTakenLines() {
+    val taken = pointer.coerceAtMost(lines.size)
+    lines.subList(0, taken).clear()
+    pointer -= taken
+  }
 }
@@ -3,18 +3,73 @@ package org.jetbrains.bsp.bazel.server.paths
 import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelInfo
 import org.jetbrains.bsp.bazel.info.BspTargetInfo.FileLocation
 import java.net.URI
-import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.io.path.exists
 import kotlin.io.path.toPath
 
+/**
+ * Resolves paths reported by the aspect to absolute paths and URIs.
+ *
+ * Resolved paths are kept in a trie of path segments hanging off the few roots Bazel uses (workspace root, execution
+ * root, output base and the file system root), so every directory and file name is stored once no matter how many
+ * locations share it. [Path]s and [URI]s of the nodes are created when they are first requested.
+ *
+ * The cache is kept between syncs, it stops growing at [MAX_CACHED_NODES] and is dropped by [trimCache] once full.
+ * Only the URIs are forgotten after every sync: whether a path is a directory, which decides if its URI ends with
+ * a slash, can change between syncs.
+ */
 class BazelPathsResolver(private val bazelInfo: BazelInfo) {
-  private val uris = ConcurrentHashMap<Path, URI>()
-  private val paths = ConcurrentHashMap<FileLocation, Path>()
+  private class CachedUri(val uri: URI, val generation: Int)
 
-  fun resolveUri(path: Path): URI = uris.computeIfAbsent(path, Path::toUri)
+  private class Node(private val parent: Node?, private val name: String, rootPath: Path? = null) {
+    private var children: HashMap<String, Node>? = null
+
+    @Volatile
+    private var cachedPath: Path? = rootPath
+
+    @Volatile
+    private var cachedUri: CachedUri? = null
+
+    val path: Path
+      get() = cachedPath ?: checkNotNull(parent).path.resolve(name).also { cachedPath = it }
+
+    // Path.toUri checks if the file is a directory to append a slash, so it's worth caching until the sync is over
+    fun uri(generation: Int): URI =
+      cachedUri?.takeIf { it.generation == generation }?.uri
+        ?: path.toUri().also { cachedUri = CachedUri(it, generation) }
+
+    fun child(name: String, canGrow: () -> Boolean): Node? =
+      synchronized(this) {
+        children?.get(name)?.let { return it }
+        if (!canGrow()) return null
+        val child = Node(this, name)
+        val children = children ?: HashMap<String, Node>(4).also { children = it }
+        children[name] = child
+        child
+      }
+  }
+
+  private inner class Roots {
+    val workspaceRoot = Node(null, "", bazelInfo.workspaceRoot)
+    val execRoot = Node(null, "", Paths.get(bazelInfo.execRoot))
+    val outputBase = Node(null, "", bazelInfo.outputBase)
+    val fileSystemRoot = Node(null, "", Paths.get("/"))
+  }
+
+  // bazel info may be fetched lazily, so the roots are created on the first use
+  @Volatile
+  private var roots: Roots? = null
+  private val nodesCount = AtomicInteger()
+
+  // the URIs cached before the last sync was over are resolved again
+  @Volatile
+  private var uriGeneration = 0
+
+  private fun roots(): Roots = roots ?: synchronized(this) { roots ?: Roots().also { roots = it } }
+
+  fun resolveUri(path: Path): URI = findCachedNode(path)?.uri(uriGeneration) ?: path.toUri()
 
   fun unresolvedWorkspaceRoot(): Path = bazelInfo.workspaceRoot
 
@@ -27,47 +82,44 @@ class BazelPathsResolver(private val bazelInfo: BazelInfo) {
 
   fun resolvePaths(fileLocations: List<FileLocation>): List<Path> = fileLocations.map(::resolve)
 
-  fun resolveUri(fileLocation: FileLocation): URI = resolveUri(resolve(fileLocation))
+  fun resolveUri(fileLocation: FileLocation): URI = resolveLocation(fileLocation).let { it.node?.uri(uriGeneration) ?: it.path.toUri() }
 
-  fun resolve(fileLocation: FileLocation): Path = paths.computeIfAbsent(fileLocation, ::doResolve)
+  fun resolve(fileLocation: FileLocation): Path = resolveLocation(fileLocation).path
 
-  private fun doResolve(fileLocation: FileLocation): Path =
-    when {
-      isAbsolute(fileLocation) -> resolveAbsolute(fileLocation)
-      isMainWorkspaceSource(fileLocation) -> resolveSource(fileLocation)
-      isInExternalWorkspace(fileLocation) -> resolveExternal(fileLocation)
-      else -> resolveOutput(fileLocation)
-    }
-
-  private fun isAbsolute(fileLocation: FileLocation): Boolean {
-    val relative = fileLocation.relativePath
-    return relative.startsWith("/") && Files.exists(Paths.get(relative))
+  private class ResolvedLocation(val node: Node?, private val root: Node, private val segments: List<String>) {
+    // only computed when the trie is full and the node couldn't be cached
+    val path: Path
+      get() = node?.path ?: segments.fold(root.path, Path::resolve)
   }
 
-  private fun resolveAbsolute(fileLocation: FileLocation): Path = Paths.get(fileLocation.relativePath)
-
-  private fun resolveExternal(fileLocation: FileLocation): Path {
-    val outputBaseRelativePath = Paths.get(fileLocation.rootExecutionPathFragment, fileLocation.relativePath)
-    return resolveExternal(outputBaseRelativePath)
+  private fun resolveLocation(fileLocation: FileLocation): ResolvedLocation {
+    val roots = roots()
+    val relativePath = fileLocation.relativePath
+    return when {
+      isAbsolute(fileLocation) -> lookup(roots.fileSystemRoot, segments(relativePath))
+      isMainWorkspaceSource(fileLocation) -> lookup(roots.workspaceRoot, segments(relativePath))
+      isInExternalWorkspace(fileLocation) ->
+        lookup(roots.outputBase, segments(fileLocation.rootExecutionPathFragment) + segments(relativePath))
+      else -> resolveOutput(segments(fileLocation.rootExecutionPathFragment) + segments(relativePath))
+    }
   }
 
-  private fun resolveExternal(outputBaseRelativePath: Path): Path =
-    bazelInfo
-      .outputBase
-      .resolve(outputBaseRelativePath)
-
-  private fun resolveOutput(fileLocation: FileLocation): Path {
-    val execRootRelativePath = Paths.get(fileLocation.rootExecutionPathFragment, fileLocation.relativePath)
-    return resolveOutput(execRootRelativePath)
-  }
+  // an absolute path can only point outside of Bazel's roots, no need to check if the file exists
+  private fun isAbsolute(fileLocation: FileLocation): Boolean = fileLocation.relativePath.startsWith("/")
 
   fun resolveOutput(execRootRelativePath: Path): Path =
-    when {
-      execRootRelativePath.startsWith("external") -> resolveExternal(execRootRelativePath)
-      else -> Paths.get(bazelInfo.execRoot).resolve(execRootRelativePath)
+    if (execRootRelativePath.isAbsolute) {
+      // resolving against a root would return the absolute path anyway
+      execRootRelativePath
+    } else {
+      resolveOutput(segments(execRootRelativePath.toString())).path
     }
 
-  private fun resolveSource(fileLocation: FileLocation): Path = bazelInfo.workspaceRoot.resolve(fileLocation.relativePath)
+  private fun resolveOutput(execRootRelativeSegments: List<String>): ResolvedLocation =
+    when {
+      execRootRelativeSegments.firstOrNull() == "external" -> lookup(roots().outputBase, execRootRelativeSegments)
+      else -> lookup(roots().execRoot, execRootRelativeSegments)
+    }
 
   private fun isMainWorkspaceSource(fileLocation: FileLocation): Boolean = fileLocation.isSource && !fileLocation.isExternal
 
@@ -87,8 +139,57 @@ class BazelPathsResolver(private val bazelInfo: BazelInfo) {
 
   fun relativePathToExecRootAbsolute(path: String): Path = Paths.get(bazelInfo.execRoot, path)
 
-  fun clear() {
-    uris.clear()
-    paths.clear()
+  /**
+   * Called after a sync. Keeps the paths for the next one, but forgets their URIs, so they are checked against
+   * the file system again, and drops the whole cache if it got full.
+   */
+  fun trimCache() {
+    uriGeneration++
+    if (nodesCount.get() >= MAX_CACHED_NODES) {
+      clearCache()
+    }
+  }
+
+  /** Drops the whole cache, e.g. when the roots it hangs off have changed. */
+  fun clearCache() {
+    synchronized(this) {
+      roots = null
+      nodesCount.set(0)
+    }
+  }
+
+  private fun lookup(root: Node, segments: List<String>): ResolvedLocation {
+    var node = root
+    for (segment in segments) {
+      node = node.child(segment, ::reserveNode) ?: return ResolvedLocation(null, root, segments)
+    }
+    return ResolvedLocation(node, root, segments)
+  }
+
+  private fun reserveNode(): Boolean =
+    if (nodesCount.incrementAndGet() <= MAX_CACHED_NODES) {
+      true
+    } else {
+      nodesCount.decrementAndGet()
+      false
+    }
+
+  /** Finds the node of an absolute path which is under one of the roots, the execution root is checked before the output base. */
+  private fun findCachedNode(path: Path): Node? {
+    val roots = roots()
+    val root =
+      listOf(roots.execRoot, roots.outputBase, roots.workspaceRoot, roots.fileSystemRoot)
+        .firstOrNull { path.startsWith(it.path) } ?: return null
+    val relativePath = root.path.relativize(path)
+    // relativize doesn't collapse ".." which could lead outside of the root
+    if (relativePath.any { it.toString() == ".." }) return null
+    return lookup(root, relativePath.map { it.toString() }.filter { it.isNotEmpty() }).node
+  }
+
+  private fun segments(path: String): List<String> = path.split('/').filter { it.isNotEmpty() }
+
+  companion object {
+    // every node takes about 200 bytes with its name and the cached path and URI
+    private const val MAX_CACHED_NODES = 1_000_000
   }
 }
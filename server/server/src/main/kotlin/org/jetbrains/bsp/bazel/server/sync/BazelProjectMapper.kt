@@ -2,7 +2,11 @@ package org.jetbrains.bsp.bazel.server.sync
 
 import com.google.common.hash.Hashing
 import com.google.devtools.build.lib.view.proto.Deps
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.runBlocking
@@ -10,8 +14,10 @@ import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelInfo
 import org.jetbrains.bsp.bazel.info.BspTargetInfo.FileLocation
 import org.jetbrains.bsp.bazel.info.BspTargetInfo.TargetInfo
 import org.jetbrains.bsp.bazel.logger.BspClientLogger
+import org.jetbrains.bsp.bazel.server.benchmark.currentSpanContext
 import org.jetbrains.bsp.bazel.server.benchmark.tracer
 import org.jetbrains.bsp.bazel.server.benchmark.use
+import org.jetbrains.bsp.bazel.server.benchmark.useWithScope
 import org.jetbrains.bsp.bazel.server.dependencygraph.DependencyGraph
 import org.jetbrains.bsp.bazel.server.model.Label
 import org.jetbrains.bsp.bazel.server.model.Language
@@ -46,18 +52,35 @@ class BazelProjectMapper(
   private val kotlinAndroidModulesMerger: KotlinAndroidModulesMerger,
   private val bspClientLogger: BspClientLogger,
 ) {
+  private val moduleCache = ModuleCache()
+
   private fun <T> measure(description: String, body: () -> T): T = tracer.spanBuilder(description).use { body() }
 
-  private fun <T> measureIf(
+  /**
+   * Runs [body] in its own span as soon as all the [dependencies] are computed,
+   * so the phases which don't depend on each other run concurrently.
+   */
+  private fun <T> CoroutineScope.phase(
+    description: String,
+    vararg dependencies: Deferred<*>,
+    body: suspend () -> T,
+  ): Deferred<T> =
+    async {
+      dependencies.toList().awaitAll()
+      tracer.spanBuilder(description).useWithScope { body() }
+    }
+
+  private fun <T> CoroutineScope.phaseIf(
     description: String,
     predicate: () -> Boolean,
     ifFalse: T,
-    body: () -> T,
-  ): T =
+    vararg dependencies: Deferred<*>,
+    body: suspend () -> T,
+  ): Deferred<T> =
     if (predicate()) {
-      measure(description, body)
+      phase(description, *dependencies, body = body)
     } else {
-      ifFalse
+      CompletableDeferred(ifFalse)
     }
 
   fun createProject(
@@ -76,132 +99,162 @@ class BazelProjectMapper(
       measure("Select targets") {
         selectTargetsToImport(workspaceContext, rootTargets, dependencyGraph)
       }
-    val interfacesAndBinariesFromTargetsToImport =
-      measure("Collect interfaces and classes from targets to import") {
-        collectInterfacesAndClasses(targetsToImport)
-      }
-    val targetsAsLibraries =
-      measure("Targets as libraries") {
-        targets - targetsToImport.map { Label.parse(it.id) }.toSet()
-      }
-    val outputJarsLibraries =
-      measure("Create output jars libraries") {
-        calculateOutputJarsLibraries(targetsToImport, workspaceContext)
-      }
-    val annotationProcessorLibraries =
-      measure("Create AP libraries") {
-        annotationProcessorLibraries(targetsToImport)
-      }
-    val kotlinStdlibsMapper =
-      measure("Create kotlin stdlibs") {
-        calculateKotlinStdlibsMapper(targetsToImport)
-      }
-    val kotlincPluginLibrariesMapper =
-      measure("Create kotlinc plugin libraries") {
-        calculateKotlincPluginLibrariesMapper(targetsToImport)
-      }
-    val scalaLibrariesMapper =
-      measure("Create scala libraries") {
-        calculateScalaLibrariesMapper(targetsToImport)
-      }
-    val androidLibrariesMapper =
-      measure("Create android libraries") {
-        calculateAndroidLibrariesMapper(targetsToImport, workspaceContext)
-      }
-    val librariesFromTransitiveCompileTimeJars =
-      measure("Libraries from transitive compile-time jars") {
-        createLibrariesFromTransitiveCompileTimeJars(
-          targetsToImport,
-          workspaceContext,
-          interfacesAndBinariesFromTargetsToImport,
-          targets,
-        )
-      }
-    val librariesFromDeps =
-      measure("Merge libraries from deps") {
-        concatenateMaps(
+    // the phases below only read their inputs, the edges between them are the deferred results they wait for
+    return runBlocking(PHASE_DISPATCHER + currentSpanContext()) {
+      val moduleCacheStarted =
+        phase("Find changed targets") {
+          moduleCache.startSync(targets, dependencyGraph, workspaceContext to languagePluginsService.syncState())
+        }
+      val interfacesAndBinariesFromTargetsToImport =
+        phase("Collect interfaces and classes from targets to import") {
+          collectInterfacesAndClasses(targetsToImport)
+        }
+      val targetsAsLibraries =
+        phase("Targets as libraries") {
+          targets - targetsToImport.map { Label.parse(it.id) }.toSet()
+        }
+      val outputJarsLibraries =
+        phase("Create output jars libraries") {
+          calculateOutputJarsLibraries(targetsToImport, workspaceContext)
+        }
+      val annotationProcessorLibraries =
+        phase("Create AP libraries") {
+          annotationProcessorLibraries(targetsToImport)
+        }
+      val kotlinStdlibsMapper =
+        phase("Create kotlin stdlibs") {
+          calculateKotlinStdlibsMapper(targetsToImport)
+        }
+      val kotlincPluginLibrariesMapper =
+        phase("Create kotlinc plugin libraries") {
+          calculateKotlincPluginLibrariesMapper(targetsToImport)
+        }
+      val scalaLibrariesMapper =
+        phase("Create scala libraries") {
+          calculateScalaLibrariesMapper(targetsToImport)
+        }
+      val androidLibrariesMapper =
+        phase("Create android libraries") {
+          calculateAndroidLibrariesMapper(targetsToImport, workspaceContext)
+        }
+      val librariesFromTransitiveCompileTimeJars =
+        phase("Libraries from transitive compile-time jars", interfacesAndBinariesFromTargetsToImport) {
+          createLibrariesFromTransitiveCompileTimeJars(
+            targetsToImport,
+            workspaceContext,
+            interfacesAndBinariesFromTargetsToImport.await(),
+            targets,
+          )
+        }
+      val librariesFromDeps =
+        phase(
+          "Merge libraries from deps",
           outputJarsLibraries,
           annotationProcessorLibraries,
           kotlinStdlibsMapper,
           kotlincPluginLibrariesMapper,
           scalaLibrariesMapper,
           androidLibrariesMapper,
-        )
-      }
-    val librariesFromDepsAndTargets =
-      measure("Libraries from targets and deps") {
-        createLibraries(targetsAsLibraries) +
-          librariesFromDeps.values
-            .flatten()
-            .distinct()
-            .associateBy { it.label }
-      }
-    val extraLibrariesFromJdeps =
-      measure("Libraries from jdeps") {
-        jdepsLibraries(
-          targetsToImport.associateBy { Label.parse(it.id) },
+        ) {
+          concatenateMaps(
+            outputJarsLibraries.await(),
+            annotationProcessorLibraries.await(),
+            kotlinStdlibsMapper.await(),
+            kotlincPluginLibrariesMapper.await(),
+            scalaLibrariesMapper.await(),
+            androidLibrariesMapper.await(),
+          )
+        }
+      val librariesFromDepsAndTargets =
+        phase("Libraries from targets and deps", targetsAsLibraries, librariesFromDeps) {
+          createLibraries(targetsAsLibraries.await()) +
+            librariesFromDeps
+              .await()
+              .values
+              .flatten()
+              .distinct()
+              .associateBy { it.label }
+        }
+      val extraLibrariesFromJdeps =
+        phase("Libraries from jdeps", librariesFromDeps, librariesFromDepsAndTargets, interfacesAndBinariesFromTargetsToImport) {
+          jdepsLibraries(
+            targetsToImport.associateBy { Label.parse(it.id) },
+            librariesFromDeps.await(),
+            librariesFromDepsAndTargets.await(),
+            interfacesAndBinariesFromTargetsToImport.await(),
+          )
+        }
+      val workspaceRoot = bazelPathsResolver.workspaceRoot()
+      val modulesFromBazel =
+        phase(
+          "Create modules",
+          moduleCacheStarted,
           librariesFromDeps,
+          extraLibrariesFromJdeps,
+          librariesFromTransitiveCompileTimeJars,
+        ) {
+          createModules(
+            targetsToImport,
+            dependencyGraph,
+            concatenateMaps(
+              librariesFromDeps.await(),
+              extraLibrariesFromJdeps.await(),
+              librariesFromTransitiveCompileTimeJars.await(),
+            ),
+          )
+        }
+      val mergedModulesFromBazel =
+        phase("Merge Kotlin Android modules", modulesFromBazel) {
+          kotlinAndroidModulesMerger.mergeKotlinAndroidModules(modulesFromBazel.await(), workspaceContext)
+        }
+      val sourceToTarget =
+        phase("Build reverse sources", mergedModulesFromBazel) {
+          buildReverseSourceMapping(mergedModulesFromBazel.await())
+        }
+      val librariesToImport =
+        phase(
+          "Merge all libraries",
           librariesFromDepsAndTargets,
-          interfacesAndBinariesFromTargetsToImport,
-        )
-      }
-    val workspaceRoot = bazelPathsResolver.workspaceRoot()
-    val modulesFromBazel =
-      measure("Create modules") {
-        createModules(
-          targetsToImport,
-          dependencyGraph,
-          concatenateMaps(
-            librariesFromDeps,
-            extraLibrariesFromJdeps,
-            librariesFromTransitiveCompileTimeJars,
-          ),
-        )
-      }
-    val mergedModulesFromBazel =
-      measure("Merge Kotlin Android modules") {
-        kotlinAndroidModulesMerger.mergeKotlinAndroidModules(modulesFromBazel, workspaceContext)
-      }
-    val sourceToTarget =
-      measure("Build reverse sources") {
-        buildReverseSourceMapping(mergedModulesFromBazel)
-      }
-    val librariesToImport =
-      measure("Merge all libraries") {
-        librariesFromDepsAndTargets +
-          extraLibrariesFromJdeps.values.flatten().associateBy { it.label } +
-          librariesFromTransitiveCompileTimeJars.values.flatten().associateBy { it.label }
-      }
-    val invalidTargets =
-      measure("Save invalid target labels") {
-        removeDotBazelBspTarget(allTargetNames) - targetsToImport.map { Label.parse(it.id) }.toSet()
-      }
-    val rustExternalTargetsToImport =
-      measureIf(
-        description = "Select external Rust targets",
-        predicate = { workspaceContext.isRustEnabled },
-        ifFalse = emptySequence(),
-      ) {
-        selectRustExternalTargetsToImport(rootTargets, dependencyGraph)
-      }
-    val rustExternalModules =
-      measureIf(
-        description = "Create Rust external modules",
-        predicate = { workspaceContext.isRustEnabled },
-        ifFalse = emptySequence(),
-      ) {
-        createRustExternalModules(rustExternalTargetsToImport, dependencyGraph, librariesFromDeps)
-      }
-    val allModules = mergedModulesFromBazel + rustExternalModules
-
-    return Project(
-      workspaceRoot,
-      allModules.toList(),
-      sourceToTarget,
-      librariesToImport,
-      invalidTargets,
-      bazelInfo.release,
-    )
+          extraLibrariesFromJdeps,
+          librariesFromTransitiveCompileTimeJars,
+        ) {
+          librariesFromDepsAndTargets.await() +
+            extraLibrariesFromJdeps.await().values.flatten().associateBy { it.label } +
+            librariesFromTransitiveCompileTimeJars.await().values.flatten().associateBy { it.label }
+        }
+      val invalidTargets =
+        phase("Save invalid target labels") {
+          removeDotBazelBspTarget(allTargetNames) - targetsToImport.map { Label.parse(it.id) }.toSet()
+        }
+      val rustExternalTargetsToImport =
+        phaseIf(
+          description = "Select external Rust targets",
+          predicate = { workspaceContext.isRustEnabled },
+          ifFalse = emptySequence(),
+        ) {
+          selectRustExternalTargetsToImport(rootTargets, dependencyGraph)
+        }
+      val rustExternalModules =
+        phaseIf(
+          "Create Rust external modules",
+          { workspaceContext.isRustEnabled },
+          emptySequence(),
+          rustExternalTargetsToImport,
+          librariesFromDeps,
+        ) {
+          createRustExternalModules(rustExternalTargetsToImport.await(), dependencyGraph, librariesFromDeps.await())
+        }
+      val allModules = mergedModulesFromBazel.await() + rustExternalModules.await()
+
+      Project(
+        workspaceRoot,
+        allModules.toList(),
+        sourceToTarget.await(),
+        librariesToImport.await(),
+        invalidTargets.await(),
+        bazelInfo.release,
+      )
+    }
   }
 
   private fun <K, V> concatenateMaps(vararg maps: Map<K, List<V>>): Map<K, List<V>> =
@@ -714,17 +767,19 @@ class BazelProjectMapper(
     targetsToImport: Sequence<TargetInfo>,
     dependencyGraph: DependencyGraph,
     generatedLibraries: Map<Label, Collection<Library>>,
+    useModuleCache: Boolean = true,
   ): List<Module> =
     runBlocking(Dispatchers.Default) {
       targetsToImport
         .toList()
         .map {
           async {
-            createModule(
-              it,
-              dependencyGraph,
-              generatedLibraries[Label.parse(it.id)].orEmpty(),
-            )
+            val extraLibraries = generatedLibraries[Label.parse(it.id)].orEmpty()
+            if (useModuleCache) {
+              moduleCache.getOrCreate(it, extraLibraries) { createModule(it, dependencyGraph, extraLibraries) }
+            } else {
+              createModule(it, dependencyGraph, extraLibraries)
+            }
           }
         }.awaitAll()
         .filterNot { it.tags.contains(Tag.NO_IDE) }
@@ -846,9 +901,16 @@ class BazelProjectMapper(
     dependencyGraph: DependencyGraph,
     generatedLibraries: Map<Label, Collection<Library>>,
   ): Sequence<Module> {
-    val modules = createModules(targetsToImport, dependencyGraph, generatedLibraries)
+    // these modules are modified below, so they can't be shared with the next sync
+    val modules = createModules(targetsToImport, dependencyGraph, generatedLibraries, useModuleCache = false)
     return modules.asSequence().onEach {
       (it.languageData as? RustModule)?.isExternalModule = true
     }
   }
+
+  companion object {
+    // phases block on files and some of them run their own work on Dispatchers.Default, so they don't occupy it
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private val PHASE_DISPATCHER = Dispatchers.IO.limitedParallelism(Runtime.getRuntime().availableProcessors())
+  }
 }
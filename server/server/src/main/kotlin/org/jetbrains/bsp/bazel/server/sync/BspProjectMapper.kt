@@ -100,6 +100,9 @@ class BspProjectMapper(
   private val bazelRunner: BazelRunner,
   private val bspInfo: BspInfo,
 ) {
+  private val inverseSourcesQuery = InverseSourcesQuery(bazelRunner)
+  private val classpathQuery = ClasspathQuery(bspInfo, bazelRunner)
+
   fun initializeServer(supportedLanguages: Set<Language>): InitializeBuildResult {
     val languageNames = supportedLanguages.map { it.id }
     val capabilities =
@@ -302,7 +305,7 @@ class BspProjectMapper(
       documentUri
         .toPath()
         .relativeToOrNull(project.workspaceRoot.toPath()) ?: throw RuntimeException("File path outside of project root")
-    return InverseSourcesQuery.inverseSourcesQuery(documentRelativePath, bazelRunner, project.bazelRelease, cancelChecker)
+    return inverseSourcesQuery.inverseSources(project, documentRelativePath, cancelChecker)
   }
 
   fun dependencySources(project: Project, dependencySourcesParams: DependencySourcesParams): DependencySourcesResult {
@@ -387,11 +390,11 @@ class BspProjectMapper(
         }
       }
 
-    return targets.mapNotNull {
-      val label = Label.parse(it.uri)
+    val labels = targets.map { Label.parse(it.uri) }
+    val classpaths = classpathQuery.classPathQuery(project, labels, cancelChecker)
+    return labels.mapNotNull { label ->
       val module = project.findModule(label)
-      val cqueryResult = ClasspathQuery.classPathQuery(it, cancelChecker, bspInfo, bazelRunner).runtime_classpath
-      val resolvedClasspath = resolveClasspath(cqueryResult)
+      val resolvedClasspath = resolveClasspath(classpaths.getValue(label).runtime_classpath)
       module?.let { extractJvmEnvironmentItem(module, resolvedClasspath) }
     }
   }
@@ -465,17 +468,17 @@ class BspProjectMapper(
     includeClasspath: Boolean,
     cancelChecker: CancelChecker,
     mapper: (Module, List<URI>) -> T?,
-  ): List<T> =
-    this
-      .mapNotNull { project.findModule(Label.parse(it.uri)) }
-      .mapNotNull {
-        val classpath = if (includeClasspath) readIdeClasspath(it.label, cancelChecker) else emptyList()
-        mapper(it, classpath)
-      }
+  ): List<T> {
+    val modules = this.mapNotNull { project.findModule(Label.parse(it.uri)) }
+    val classpaths =
+      if (includeClasspath) classpathQuery.classPathQuery(project, modules.map { it.label }, cancelChecker) else emptyMap()
+    return modules.mapNotNull {
+      val classpath = classpaths[it.label]?.let { classPathFromQuery -> readIdeClasspath(it.label, classPathFromQuery) }.orEmpty()
+      mapper(it, classpath)
+    }
+  }
 
-  private fun readIdeClasspath(targetLabel: Label, cancelChecker: CancelChecker): List<URI> {
-    val targetIdentifier = BspMappings.toBspId(targetLabel)
-    val classPathFromQuery = ClasspathQuery.classPathQuery(targetIdentifier, cancelChecker, bspInfo, bazelRunner)
+  private fun readIdeClasspath(targetLabel: Label, classPathFromQuery: ClasspathQuery.JvmClasspath): List<URI> {
     val ideClasspath =
       IdeClasspathResolver.resolveIdeClasspath(
         label = targetLabel,
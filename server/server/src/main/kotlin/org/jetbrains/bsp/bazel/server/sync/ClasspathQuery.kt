@@ -1,45 +1,162 @@
 package org.jetbrains.bsp.bazel.server.sync
 
-import ch.epfl.scala.bsp4j.BuildTargetIdentifier
-import com.google.gson.Gson
-import com.google.gson.JsonSyntaxException
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.jetbrains.bsp.bazel.bazelrunner.BazelRunner
 import org.jetbrains.bsp.bazel.server.bsp.info.BspInfo
+import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.model.Project
+import java.io.InputStreamReader
+import java.io.Reader
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Queries runtime and compile classpaths of JVM targets.
+ *
+ * All the requested targets are queried with a single `bazel cquery` over `set(...)`, the starlark file prints one
+ * JSON object per configured target. The results are cached per label until the project is synced again.
+ *
+ * [runClasspathQuery] runs the cquery for the given `set(...)` expression and returns its output.
+ */
+class ClasspathQuery(private val runClasspathQuery: (targetsExpression: String, CancelChecker) -> Reader) {
+  constructor(bspInfo: BspInfo, bazelRunner: BazelRunner) :
+    this({ targetsExpression, cancelChecker -> runCquery(bspInfo, bazelRunner, targetsExpression, cancelChecker) })
+
+  private class ProjectClasspaths(val project: Project, val classpaths: ConcurrentHashMap<Label, JvmClasspath>)
+
+  @Volatile
+  private var projectClasspaths: ProjectClasspaths? = null
 
-object ClasspathQuery {
   fun classPathQuery(
-    target: BuildTargetIdentifier,
+    project: Project,
+    targets: Collection<Label>,
     cancelChecker: CancelChecker,
-    bspInfo: BspInfo,
-    bazelRunner: BazelRunner,
-  ): JvmClasspath {
-    val queryFile = bspInfo.bazelBspDir().resolve("aspects/runtime_classpath_query.bzl")
-    val command =
-      bazelRunner.buildBazelCommand(inheritProjectviewOptionsOverride = true) {
-        cquery {
-          targets.add(target)
-          options.addAll(listOf("--starlark:file=$queryFile", "--output=starlark"))
-        }
-      }
-    val cqueryResult =
-      bazelRunner
-        .runBazelCommand(command, logProcessOutput = false, serverPidFuture = null)
-        .waitAndGetResult(cancelChecker, ensureAllOutputRead = true)
-    if (cqueryResult.isNotSuccess) throw RuntimeException("Could not query target '${target.uri}' for runtime classpath")
-    try {
-      val classpaths = Gson().fromJson(cqueryResult.stdout, JvmClasspath::class.java)
-      return classpaths
-    } catch (e: JsonSyntaxException) {
-      // sometimes Bazel returns two values to a query when multiple configurations apply to a target
-      return if (cqueryResult.stdoutLines.size > 1) {
-        val allOpts = cqueryResult.stdoutLines.map { Gson().fromJson(it, JvmClasspath::class.java) }
-        allOpts.maxByOrNull { it.runtime_classpath.size + it.compile_classpath.size }!!
+  ): Map<Label, JvmClasspath> {
+    val classpaths = classpathsOf(project)
+    val missingTargets = targets.filterNot { classpaths.containsKey(it) }.distinct()
+    if (missingTargets.isNotEmpty()) {
+      classpaths.putAll(queryClasspaths(missingTargets, cancelChecker))
+    }
+    return targets.associateWith {
+      classpaths[it] ?: throw RuntimeException("Could not query target '$it' for runtime classpath")
+    }
+  }
+
+  // a new project instance is created by every sync, the cached classpaths of the previous one are dropped with it
+  private fun classpathsOf(project: Project): ConcurrentHashMap<Label, JvmClasspath> =
+    projectClasspaths?.takeIf { it.project === project }?.classpaths
+      ?: ProjectClasspaths(project, ConcurrentHashMap()).also { projectClasspaths = it }.classpaths
+
+  private fun queryClasspaths(targets: List<Label>, cancelChecker: CancelChecker): Map<Label, JvmClasspath> {
+    val targetsExpression = targets.joinToString(separator = " ", prefix = "set(", postfix = ")") { it.value }
+    val classpaths = runClasspathQuery(targetsExpression, cancelChecker).use { parseClasspaths(it) }
+    return matchRequestedTargets(targets, classpaths)
+  }
+
+  /**
+   * Keys the classpaths by the requested labels. Bazel may print a label with the canonical name of its repository
+   * (e.g. `@@rules_jvm_external~5.3//:jar` for `@rules_jvm_external//:jar`), so such labels are matched by their
+   * path in the repository.
+   */
+  private fun matchRequestedTargets(targets: List<Label>, classpaths: Map<Label, JvmClasspath>): Map<Label, JvmClasspath> {
+    val requestedTargets = targets.toSet()
+    val result = HashMap(classpaths.filterKeys { it in requestedTargets })
+    val unmatchedClasspaths = classpaths.filterKeys { it !in requestedTargets }
+    if (unmatchedClasspaths.isEmpty()) return result
+
+    val unmatchedTargets = targets.filterNot { it in result }.toMutableSet()
+    val unmatchedTargetsByPath = unmatchedTargets.groupBy { it.pathInRepository() }
+    val stillUnmatched = mutableListOf<Pair<Label, JvmClasspath>>()
+    unmatchedClasspaths.forEach { (label, classpath) ->
+      val candidates = unmatchedTargetsByPath[label.pathInRepository()].orEmpty().filter { it in unmatchedTargets }
+      val target = candidates.singleOrNull() ?: candidates.firstOrNull { it.isSameRepositoryAs(label) }
+      if (target != null) {
+        result[target] = classpath
+        unmatchedTargets.remove(target)
       } else {
-        throw e
+        stillUnmatched.add(label to classpath)
       }
     }
+    // a single target is unambiguous even if Bazel printed a completely different label for it
+    if (unmatchedTargets.size == 1 && stillUnmatched.size == 1) {
+      result[unmatchedTargets.single()] = stillUnmatched.single().second
+    }
+    return result
   }
 
-  data class JvmClasspath(val runtime_classpath: List<String>, val compile_classpath: List<String>)
+  private fun Label.pathInRepository(): String = value.substringAfter("//")
+
+  // canonical repository names are the apparent ones with the module version or extension names joined by `~` or `+`
+  private fun Label.isSameRepositoryAs(printedLabel: Label): Boolean =
+    repoName == printedLabel.repoName || repoName in printedLabel.repoName.split('~', '+')
+
+  private fun parseClasspaths(reader: Reader): Map<Label, JvmClasspath> {
+    val classpaths = HashMap<Label, JvmClasspath>()
+    JsonReader(reader).use { json ->
+      // every configured target is printed as a separate JSON object
+      json.isLenient = true
+      while (json.peek() != JsonToken.END_DOCUMENT) {
+        val (label, classpath) = readClasspath(json)
+        // sometimes Bazel returns two values to a query when multiple configurations apply to a target
+        classpaths.merge(label, classpath) { old, new -> if (new.size > old.size) new else old }
+      }
+    }
+    return classpaths
+  }
+
+  private fun readClasspath(json: JsonReader): Pair<Label, JvmClasspath> {
+    var label: Label? = null
+    var runtimeClasspath = emptyList<String>()
+    var compileClasspath = emptyList<String>()
+    json.beginObject()
+    while (json.hasNext()) {
+      when (json.nextName()) {
+        "label" -> label = Label.parse(json.nextString())
+        "runtime_classpath" -> runtimeClasspath = readStrings(json)
+        "compile_classpath" -> compileClasspath = readStrings(json)
+        else -> json.skipValue()
+      }
+    }
+    json.endObject()
+    return (label ?: error("Classpath query result without a label")) to JvmClasspath(runtimeClasspath, compileClasspath)
+  }
+
+  private fun readStrings(json: JsonReader): List<String> {
+    val strings = mutableListOf<String>()
+    json.beginArray()
+    while (json.hasNext()) {
+      strings.add(json.nextString())
+    }
+    json.endArray()
+    return strings
+  }
+
+  companion object {
+    private fun runCquery(
+      bspInfo: BspInfo,
+      bazelRunner: BazelRunner,
+      targetsExpression: String,
+      cancelChecker: CancelChecker,
+    ): Reader {
+      val queryFile = bspInfo.bazelBspDir().resolve("aspects/runtime_classpath_query.bzl")
+      val command =
+        bazelRunner.buildBazelCommand(inheritProjectviewOptionsOverride = true) {
+          cquery {
+            options.addAll(listOf("--starlark:file=$queryFile", "--output=starlark"))
+            options.add(targetsExpression)
+          }
+        }
+      val cqueryResult = bazelRunner.runQueryCommand(command, cancelChecker)
+      if (cqueryResult.isNotSuccess) {
+        throw RuntimeException("Could not query targets $targetsExpression for runtime classpath")
+      }
+      return InputStreamReader(cqueryResult.stdoutStream, Charsets.UTF_8)
+    }
+  }
+
+  data class JvmClasspath(val runtime_classpath: List<String>, val compile_classpath: List<String>) {
+    val size: Int
+      get() = runtime_classpath.size + compile_classpath.size
+  }
 }
@@ -122,7 +122,7 @@ class ExecuteService(
             command,
             originId = params.originId,
             serverPidFuture = bepReader.serverPid,
-          ).waitAndGetResult(cancelChecker, true)
+          ).waitAndGetResult(cancelChecker, true, logOnly = true)
       }
 
     return TestResult(result.statusCode).apply {
@@ -158,7 +158,7 @@ class ExecuteService(
           command,
           originId = params.originId,
           serverPidFuture = null,
-        ).waitAndGetResult(cancelChecker)
+        ).waitAndGetResult(cancelChecker, logOnly = true)
     return RunResult(bazelProcessResult.statusCode).apply { originId = originId }
   }
 
@@ -241,7 +241,9 @@ class ExecuteService(
       }
 
     val bazelProcessResult =
-      bazelRunner.runBazelCommand(command, originId = params.originId, serverPidFuture = null).waitAndGetResult(cancelChecker)
+      bazelRunner
+        .runBazelCommand(command, originId = params.originId, serverPidFuture = null)
+        .waitAndGetResult(cancelChecker, logOnly = true)
     return MobileInstallResult(bazelProcessResult.statusCode, params.originId)
   }
 
@@ -254,7 +256,7 @@ class ExecuteService(
             useBes(bepReader.eventFile.toPath().toAbsolutePath())
           }
         }
-      bazelRunner.runBazelCommand(command, serverPidFuture = bepReader.serverPid).waitAndGetResult(cancelChecker)
+      bazelRunner.runBazelCommand(command, serverPidFuture = bepReader.serverPid).waitAndGetResult(cancelChecker, logOnly = true)
     }
     return CleanCacheResult(true)
   }
@@ -279,7 +281,7 @@ class ExecuteService(
         }
       bazelRunner
         .runBazelCommand(command, originId = originId, serverPidFuture = bepReader.serverPid)
-        .waitAndGetResult(cancelChecker, true)
+        .waitAndGetResult(cancelChecker, true, logOnly = true)
     }
   }
 
@@ -0,0 +1,91 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import org.apache.logging.log4j.LogManager
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelInfo
+import org.jetbrains.bsp.bazel.server.benchmark.tracer
+import org.jetbrains.bsp.bazel.server.benchmark.use
+import org.jetbrains.bsp.bazel.server.bsp.info.BspInfo
+import org.jetbrains.bsp.bazel.server.model.Project
+import org.jetbrains.bsp.bazel.workspacecontext.WorkspaceContextProvider
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.io.path.exists
+
+/**
+ * Stores the last synced [Project] in `.bazelbsp/`, so a restarted server can answer requests before the first sync.
+ *
+ * The snapshot is only valid for the same workspace root, Bazel release and project view, otherwise [load] returns null.
+ */
+class FileProjectStorage(
+  private val bspInfo: BspInfo,
+  private val bazelInfo: BazelInfo,
+  private val workspaceContextProvider: WorkspaceContextProvider,
+) : ProjectStorage {
+  private val snapshotFile: Path = bspInfo.bazelBspDir().resolve(SNAPSHOT_FILE_NAME)
+
+  override fun load(): Project? {
+    if (!snapshotFile.exists()) return null
+    return try {
+      tracer.spanBuilder("Loading project snapshot").use {
+        openSnapshot().use { input ->
+          if (input.readInt() != FORMAT_VERSION || input.readUTF() != snapshotKey()) {
+            LOGGER.info("Project snapshot {} is outdated, ignoring it", snapshotFile)
+            null
+          } else {
+            ProjectSnapshotCodec.read(input)
+          }
+        }
+      }
+    } catch (e: Exception) {
+      LOGGER.warn("Could not load project snapshot from $snapshotFile", e)
+      null
+    }
+  }
+
+  override fun store(project: Project) {
+    try {
+      tracer.spanBuilder("Storing project snapshot").use {
+        Files.createDirectories(snapshotFile.parent)
+        val temporaryFile = Files.createTempFile(snapshotFile.parent, SNAPSHOT_FILE_NAME, ".tmp")
+        try {
+          DataOutputStream(BufferedOutputStream(GZIPOutputStream(Files.newOutputStream(temporaryFile)))).use { output ->
+            output.writeInt(FORMAT_VERSION)
+            output.writeUTF(snapshotKey())
+            ProjectSnapshotCodec.write(project, output)
+          }
+          Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+          Files.deleteIfExists(temporaryFile)
+        }
+      }
+    } catch (e: Exception) {
+      LOGGER.warn("Could not store project snapshot in $snapshotFile", e)
+    }
+  }
+
+  private fun openSnapshot(): DataInputStream =
+    DataInputStream(BufferedInputStream(GZIPInputStream(Files.newInputStream(snapshotFile))))
+
+  private fun snapshotKey(): String {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(bazelInfo.workspaceRoot.toAbsolutePath().normalize().toString().toByteArray())
+    digest.update(bazelInfo.release.major.toString().toByteArray())
+    digest.update(workspaceContextProvider.currentWorkspaceContext().toString().toByteArray())
+    return digest.digest().joinToString("") { "%02x".format(it) }
+  }
+
+  companion object {
+    private const val SNAPSHOT_FILE_NAME = "project-snapshot.bin"
+    private const val FORMAT_VERSION = 1
+
+    private val LOGGER = LogManager.getLogger(FileProjectStorage::class.java)
+  }
+}
@@ -2,85 +2,269 @@ package org.jetbrains.bsp.bazel.server.sync
 
 import ch.epfl.scala.bsp4j.BuildTargetIdentifier
 import ch.epfl.scala.bsp4j.InverseSourcesResult
-import ch.epfl.scala.bsp4j.StatusCode
+import org.apache.logging.log4j.LogManager
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.jetbrains.bsp.bazel.bazelrunner.BazelRunner
 import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.server.bsp.managers.readXML
 import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.model.Project
+import org.w3c.dom.Document
+import org.w3c.dom.Element
+import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.io.path.invariantSeparatorsPathString
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.toPath
 
-object InverseSourcesQuery {
-  fun inverseSourcesQuery(
+/**
+ * Finds the targets which contain a file in their `srcs` attribute.
+ *
+ * Files of the synced targets are looked up in an index built from the project. For any other file the whole
+ * package is queried once and the result is cached until the package's BUILD file changes. Packages requested
+ * by concurrent requests are fetched with a single `bazel query`, which is only cancelled once every request waiting
+ * for it is cancelled.
+ *
+ * [runPackagesQuery] runs `bazel query --output=xml` for the given target pattern and returns its output.
+ */
+class InverseSourcesQuery(private val runPackagesQuery: (pattern: String, BazelRelease, CancelChecker) -> String) {
+  constructor(bazelRunner: BazelRunner) :
+    this({ pattern, bazelRelease, cancelChecker -> runXmlQuery(bazelRunner, pattern, bazelRelease, cancelChecker) })
+
+  private class ProjectIndex(val project: Project, val sourceToTargets: Map<Path, List<Label>>)
+
+  private data class BazelPackage(val path: String, val buildFile: Path)
+
+  private class PackageSources(
+    val buildFile: Path,
+    val buildFileModifiedMillis: Long,
+    val queriedAtMillis: Long,
+    val sourceToTargets: Map<Label, List<Label>>,
+  )
+
+  private class PackageQuery(val bazelPackage: BazelPackage) {
+    val result = CompletableFuture<PackageSources>()
+
+    // the cancel checkers of the requests waiting for the result
+    val waiters = CopyOnWriteArrayList<CancelChecker>()
+  }
+
+  @Volatile
+  private var projectIndex: ProjectIndex? = null
+  private val packageCache = ConcurrentHashMap<String, PackageSources>()
+  private val packagesInFlight = ConcurrentHashMap<String, PackageQuery>()
+  private val pendingPackages = ConcurrentLinkedQueue<PackageQuery>()
+  private val queryLock = ReentrantLock()
+
+  fun inverseSources(
+    project: Project,
     documentRelativePath: Path,
-    bazelRunner: BazelRunner,
-    bazelInfo: BazelRelease,
     cancelChecker: CancelChecker,
   ): InverseSourcesResult {
-    val fileLabel =
-      fileLabel(documentRelativePath, bazelRunner, cancelChecker)
-        ?: return InverseSourcesResult(
-          emptyList(),
-        )
-    val listOfLabels = targetLabels(fileLabel, bazelRunner, bazelInfo, cancelChecker)
-    return InverseSourcesResult(listOfLabels.map { BuildTargetIdentifier(it.value) })
+    val workspaceRoot = project.workspaceRoot.toPath()
+    val syncedTargets = projectIndex(project).sourceToTargets[workspaceRoot.resolve(documentRelativePath).normalize()]
+    if (syncedTargets != null) {
+      return InverseSourcesResult(syncedTargets.map { BuildTargetIdentifier(it.value) })
+    }
+
+    val document = workspaceRoot.resolve(documentRelativePath)
+    if (!document.isRegularFile()) return InverseSourcesResult(emptyList())
+    val bazelPackage = findPackage(workspaceRoot, documentRelativePath) ?: return InverseSourcesResult(emptyList())
+    val fileLabel = Label.parse("//${bazelPackage.path}:${packageRelativePath(bazelPackage, documentRelativePath)}")
+
+    var packageSources = packageSources(bazelPackage, project.bazelRelease, cancelChecker)
+    // a new file can be added to a glob without touching the BUILD file
+    if (fileLabel !in packageSources.sourceToTargets && Files.getLastModifiedTime(document).toMillis() >= packageSources.queriedAtMillis) {
+      packageCache.remove(bazelPackage.path, packageSources)
+      packageSources = packageSources(bazelPackage, project.bazelRelease, cancelChecker)
+    }
+    val targets = packageSources.sourceToTargets[fileLabel].orEmpty()
+    return InverseSourcesResult(targets.map { BuildTargetIdentifier(it.value) })
   }
 
-  /**
-   * @return list of targets that contain `fileLabel` in their `srcs` attribute
-   */
-  private fun targetLabels(
-    fileLabel: String,
-    bazelRunner: BazelRunner,
+  private fun projectIndex(project: Project): ProjectIndex =
+    projectIndex?.takeIf { it.project === project }
+      ?: ProjectIndex(
+        project,
+        project.modules
+          .flatMap { module -> module.sourceSet.sources.map { Paths.get(it).normalize() to module.label } }
+          .groupBy({ it.first }, { it.second }),
+      ).also { projectIndex = it }
+
+  /** Returns the package of the closest directory with a BUILD file, like Bazel does. */
+  private fun findPackage(workspaceRoot: Path, documentRelativePath: Path): BazelPackage? {
+    var directory: Path? = documentRelativePath.parent
+    while (true) {
+      val packagePath = directory ?: Paths.get("")
+      BUILD_FILE_NAMES
+        .map { workspaceRoot.resolve(packagePath).resolve(it) }
+        .firstOrNull { it.isRegularFile() }
+        ?.let { return BazelPackage(packagePath.invariantSeparatorsPathString, it) }
+      if (directory == null) return null
+      directory = directory.parent
+    }
+  }
+
+  private fun packageRelativePath(bazelPackage: BazelPackage, documentRelativePath: Path): String =
+    Paths.get(bazelPackage.path).relativize(documentRelativePath).invariantSeparatorsPathString
+
+  private fun packageSources(
+    bazelPackage: BazelPackage,
     bazelRelease: BazelRelease,
     cancelChecker: CancelChecker,
-  ): List<Label> {
-    val packageLabel = fileLabel.replace(":.*".toRegex(), ":*")
-    val consistentLabelsArg = listOfNotNull(if (bazelRelease.major >= 6) "--consistent_labels" else null) // #bazel5
-    val command =
-      bazelRunner.buildBazelCommand {
-        query {
-          options.addAll(consistentLabelsArg)
-          options.add("attr('srcs', $fileLabel, $packageLabel)")
-        }
+  ): PackageSources {
+    while (true) {
+      packageCache[bazelPackage.path]?.takeIf { it.isUpToDate(bazelPackage) }?.let { return it }
+      // joining under compute, so the query can't be finished between looking it up and joining it
+      val query =
+        checkNotNull(
+          packagesInFlight.compute(bazelPackage.path) { _, inFlight ->
+            (inFlight ?: PackageQuery(bazelPackage).also(pendingPackages::add)).also { it.waiters.add(cancelChecker) }
+          },
+        )
+      try {
+        queryPendingPackages(bazelRelease)
+        awaitResult(query, cancelChecker)?.let { return it }
+      } finally {
+        query.waiters.remove(cancelChecker)
       }
-    val targetLabelsQuery =
-      bazelRunner
-        .runBazelCommand(command, logProcessOutput = false, serverPidFuture = null)
-        .waitAndGetResult(cancelChecker)
-    if (targetLabelsQuery.statusCode == StatusCode.OK) {
-      return targetLabelsQuery.stdoutLines.map { Label.parse(it) }
-    } else {
-      error("Could not retrieve inverse sources")
+      // the query was cancelled by the requests waiting for it before this one joined, the package is queried again
     }
   }
 
+  /** Returns null if the query was cancelled although this request wasn't. */
+  private fun awaitResult(query: PackageQuery, cancelChecker: CancelChecker): PackageSources? {
+    while (true) {
+      cancelChecker.checkCanceled()
+      try {
+        return query.result.get(CANCEL_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+      } catch (e: TimeoutException) {
+        continue
+      } catch (e: ExecutionException) {
+        val cause = e.cause ?: e
+        if (cause is CancellationException) return null
+        throw cause
+      }
+    }
+  }
+
+  private fun PackageSources.isUpToDate(bazelPackage: BazelPackage): Boolean =
+    buildFile == bazelPackage.buildFile &&
+      Files.isRegularFile(buildFile) &&
+      Files.getLastModifiedTime(buildFile).toMillis() == buildFileModifiedMillis
+
   /**
-   * @return Bazel label corresponding to file path
-   *
-   * For example when you pass a relative path like "foo/Lib.kt", you will receive "//foo:Lib.kt".
-   * Null is returned in case the file does not exist or does not belong to any target's sources list
+   * Whoever gets the lock queries all the packages requested so far and keeps going until no package is pending,
+   * the other requests just wait for their results. The query runs for all the requests waiting for the packages,
+   * so it is cancelled only once all of them are cancelled, not just the one which runs it.
    */
-  private fun fileLabel(
-    relativePath: Path,
-    bazelRunner: BazelRunner,
+  private fun queryPendingPackages(bazelRelease: BazelRelease) {
+    while (pendingPackages.isNotEmpty() && queryLock.tryLock()) {
+      try {
+        val batch = generateSequence { pendingPackages.poll() }.toList()
+        if (batch.isNotEmpty()) {
+          val batchCancelChecker =
+            CancelChecker {
+              if (batch.all { query -> query.waiters.all { it.isCanceled } }) {
+                throw CancellationException("All requests waiting for the inverse sources query were cancelled")
+              }
+            }
+          queryPackages(batch, bazelRelease, batchCancelChecker)
+        }
+      } finally {
+        queryLock.unlock()
+      }
+    }
+  }
+
+  private fun queryPackages(
+    batch: List<PackageQuery>,
+    bazelRelease: BazelRelease,
     cancelChecker: CancelChecker,
-  ): String? {
-    val command =
-      bazelRunner.buildBazelCommand {
-        query {
-          targets.add(BuildTargetIdentifier(relativePath.toString()))
+  ) {
+    try {
+      val buildFilesModifiedMillis =
+        batch.associate { it.bazelPackage.path to Files.getLastModifiedTime(it.bazelPackage.buildFile).toMillis() }
+      val queriedAtMillis = System.currentTimeMillis()
+      val output = runPackagesQuery(batch.joinToString(" + ") { "//${it.bazelPackage.path}:*" }, bazelRelease, cancelChecker)
+      val document = output.readXML(LOGGER) ?: error("Could not retrieve inverse sources")
+      val sourceToTargetsByPackage = sourceToTargetsByPackage(document)
+      batch.forEach { query ->
+        val bazelPackage = query.bazelPackage
+        val packageSources =
+          PackageSources(
+            buildFile = bazelPackage.buildFile,
+            buildFileModifiedMillis = buildFilesModifiedMillis.getValue(bazelPackage.path),
+            queriedAtMillis = queriedAtMillis,
+            sourceToTargets = sourceToTargetsByPackage[bazelPackage.path].orEmpty(),
+          )
+        packageCache[bazelPackage.path] = packageSources
+        packagesInFlight.remove(bazelPackage.path, query)
+        query.result.complete(packageSources)
+      }
+    } catch (e: Exception) {
+      batch.forEach { query ->
+        packagesInFlight.remove(query.bazelPackage.path, query)
+        query.result.completeExceptionally(e)
+      }
+    }
+  }
+
+  /** Groups the `srcs` of every rule in the query output by the package of the rule. */
+  private fun sourceToTargetsByPackage(document: Document): Map<String, Map<Label, List<Label>>> {
+    val result = HashMap<String, MutableMap<Label, MutableList<Label>>>()
+    val rules = document.documentElement.getElementsByTagName("rule")
+    for (ruleIndex in 0 until rules.length) {
+      val rule = rules.item(ruleIndex) as Element
+      val ruleLabel = Label.parse(rule.getAttribute("name"))
+      val packageSources = result.getOrPut(ruleLabel.targetPath) { HashMap() }
+      rule.childElements("list").filter { it.getAttribute("name") == "srcs" }.forEach { srcs ->
+        srcs.childElements("label").forEach { source ->
+          packageSources.getOrPut(Label.parse(source.getAttribute("value"))) { mutableListOf() }.add(ruleLabel)
         }
       }
-    val fileLabelResult =
-      bazelRunner
-        .runBazelCommand(command, logProcessOutput = false, serverPidFuture = null)
-        .waitAndGetResult(cancelChecker)
-    return if (fileLabelResult.statusCode == StatusCode.OK && fileLabelResult.stdoutLines.size == 1) {
-      fileLabelResult.stdoutLines.first()
-    } else if (fileLabelResult.stderrLines.first().startsWith("ERROR: no such target '")) {
-      null
-    } else {
-      throw RuntimeException("Could not find file. Bazel query failed:\n ${fileLabelResult.stderrLines.joinToString { "\n" }}\n")
+    }
+    return result
+  }
+
+  private fun Element.childElements(tagName: String): List<Element> =
+    (0 until childNodes.length)
+      .map { childNodes.item(it) }
+      .filterIsInstance<Element>()
+      .filter { it.tagName == tagName }
+
+  companion object {
+    private val LOGGER = LogManager.getLogger(InverseSourcesQuery::class.java)
+    private val BUILD_FILE_NAMES = listOf("BUILD.bazel", "BUILD")
+    private const val CANCEL_POLL_INTERVAL_MILLIS = 100L
+
+    private fun runXmlQuery(
+      bazelRunner: BazelRunner,
+      pattern: String,
+      bazelRelease: BazelRelease,
+      cancelChecker: CancelChecker,
+    ): String {
+      val consistentLabelsArg = listOfNotNull(if (bazelRelease.major >= 6) "--consistent_labels" else null) // #bazel5
+      val command =
+        bazelRunner.buildBazelCommand {
+          query {
+            options.addAll(consistentLabelsArg)
+            // a broken package shouldn't fail the other ones, it is cached as empty until its BUILD file changes
+            options.addAll(listOf("--output=xml", "--keep_going"))
+            options.add(pattern)
+          }
+        }
+      return bazelRunner.runQueryCommand(command, cancelChecker).stdout
     }
   }
 }
@@ -0,0 +1,63 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.TargetInfo
+import org.jetbrains.bsp.bazel.server.dependencygraph.DependencyGraph
+import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.model.Library
+import org.jetbrains.bsp.bazel.server.model.Module
+import org.jetbrains.bsp.bazel.server.model.label
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps modules created in the previous sync, so a re-sync maps again only the targets whose aspect output changed
+ * and the targets which (transitively) depend on them.
+ *
+ * It relies on [TargetInfoReader] returning the same [TargetInfo] instance for an unchanged aspect output.
+ */
+class ModuleCache {
+  private class Entry(
+    val targetInfo: TargetInfo,
+    val extraLibraries: Collection<Library>,
+    val module: Module,
+  )
+
+  private val entries = ConcurrentHashMap<Label, Entry>()
+  private var syncState: Any? = null
+  private var outdatedLabels: Set<Label> = emptySet()
+
+  /**
+   * Has to be called before modules of a new sync are requested.
+   *
+   * @param syncState everything outside of a single target which affects its module, e.g. the workspace context
+   */
+  fun startSync(
+    targets: Map<Label, TargetInfo>,
+    dependencyGraph: DependencyGraph,
+    syncState: Any?,
+  ) {
+    if (syncState != this.syncState) {
+      entries.clear()
+      this.syncState = syncState
+    }
+    val changedLabels =
+      targets.filter { (label, targetInfo) -> entries[label]?.targetInfo !== targetInfo }.keys +
+        entries.keys.filterNot(targets::containsKey)
+    outdatedLabels = dependencyGraph.transitiveReverseDependencies(changedLabels)
+    entries.keys.retainAll(targets.keys)
+  }
+
+  fun getOrCreate(
+    targetInfo: TargetInfo,
+    extraLibraries: Collection<Library>,
+    createModule: () -> Module,
+  ): Module {
+    val label = targetInfo.label()
+    entries[label]
+      ?.takeIf { label !in outdatedLabels && it.extraLibraries == extraLibraries && isReusable(targetInfo) }
+      ?.let { return it.module }
+    return createModule().also { entries[label] = Entry(targetInfo, extraLibraries, it) }
+  }
+
+  // generated sources are filtered by existence, which can change without the aspect output changing
+  private fun isReusable(targetInfo: TargetInfo): Boolean = targetInfo.generatedSourcesList.isEmpty()
+}
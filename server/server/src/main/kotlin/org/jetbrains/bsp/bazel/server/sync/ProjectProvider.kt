@@ -1,22 +1,148 @@
 package org.jetbrains.bsp.bazel.server.sync
 
+import org.apache.logging.log4j.LogManager
 import org.eclipse.lsp4j.jsonrpc.CancelChecker
 import org.jetbrains.bsp.bazel.server.benchmark.openTelemetry
+import org.jetbrains.bsp.bazel.server.benchmark.openTelemetryInitialized
 import org.jetbrains.bsp.bazel.server.model.Project
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicReference
 
-class ProjectProvider(private val projectResolver: ProjectResolver) {
+/**
+ * Keeps the last resolved [Project].
+ *
+ * After a restart the requests which only read the project are served from the snapshot in [projectStorage] first,
+ * while the project is resolved again in the background. The snapshot can't know about changes made while the server
+ * was down, so a sync never returns it: it joins the background refresh instead, or resolves the project itself.
+ */
+class ProjectProvider(
+  private val resolveProject: (CancelChecker, Boolean) -> Project,
+  private val releaseMemory: () -> Unit,
+  private val projectStorage: ProjectStorage,
+) {
+  constructor(
+    projectResolver: ProjectResolver,
+    projectStorage: ProjectStorage,
+  ) : this(projectResolver::resolve, projectResolver::releaseMemory, projectStorage)
+
+  @Volatile
   private var project: Project? = null
 
-  @Synchronized
-  fun refreshAndGet(cancelChecker: CancelChecker, build: Boolean): Project = loadFromBazel(cancelChecker, build = build)
+  // the snapshot was resolved with the same outdated data as the project dropped by [invalidate]
+  @Volatile
+  private var isSnapshotValid = true
+
+  // the refresh started after loading the snapshot, until a sync takes its result
+  private val backgroundRefresh = AtomicReference<CompletableFuture<Project?>?>()
+
+  // guards resolution only, so requests can be served from the last project while a refresh is running
+  private val resolveLock = Any()
+
+  private val backgroundRefreshExecutor =
+    Executors.newSingleThreadExecutor { runnable ->
+      Thread(runnable, "project-snapshot-refresh").apply { isDaemon = true }
+    }
+
+  // only the newest project is written, the ones resolved while a write is running are skipped
+  private val pendingSnapshot = AtomicReference<Project?>()
+  private val snapshotWriter =
+    Executors.newSingleThreadExecutor { runnable ->
+      Thread(runnable, "project-snapshot-writer").apply { isDaemon = true }
+    }
+
+  fun refreshAndGet(cancelChecker: CancelChecker, build: Boolean): Project {
+    if (!build && project == null) {
+      // the other requests are served from the snapshot while this sync waits for the refresh started with it
+      synchronized(resolveLock) { if (project == null) loadFromSnapshot() }
+    }
+    val refresh = backgroundRefresh.getAndSet(null)
+    if (build) {
+      // the targets have to be built anyway, so the refresh would only hold the sync up
+      refresh?.cancel(false)
+    } else {
+      // a plain sync can reuse the refresh started after loading the snapshot instead of running a second one
+      refresh?.let { awaitRefresh(it, cancelChecker) }?.let { return it }
+    }
+    return synchronized(resolveLock) { loadFromBazel(cancelChecker, build = build) }
+  }
+
+  fun get(cancelChecker: CancelChecker): Project =
+    project ?: synchronized(resolveLock) { project ?: loadFromSnapshot() ?: loadFromBazel(cancelChecker, false) }
 
-  @Synchronized
-  fun get(cancelChecker: CancelChecker): Project = project ?: loadFromBazel(cancelChecker, false)
+  /** Drops the project, so the next request resolves it again, e.g. because it was resolved with outdated bazel info. */
+  fun invalidate() {
+    isSnapshotValid = false
+    backgroundRefresh.getAndSet(null)?.cancel(false)
+    project = null
+  }
+
+  private fun loadFromSnapshot(): Project? =
+    projectStorage.load()?.takeIf { isSnapshotValid }?.also {
+      project = it
+      backgroundRefresh.set(refreshInBackground())
+    }
+
+  private fun refreshInBackground(): CompletableFuture<Project?> {
+    val refresh = CompletableFuture<Project?>()
+    val cancelChecker = CancelChecker { if (refresh.isCancelled) throw CancellationException("Background refresh cancelled") }
+    backgroundRefreshExecutor.execute {
+      try {
+        // a sync which cancelled the refresh may have been waiting for the lock, then there is nothing left to do
+        val refreshed = synchronized(resolveLock) { if (refresh.isCancelled) null else loadFromBazel(cancelChecker, build = false) }
+        refreshed?.let(refresh::complete)
+      } catch (e: CancellationException) {
+        refresh.cancel(false)
+      } catch (e: Exception) {
+        LOGGER.warn("Background refresh of the project loaded from snapshot failed", e)
+        refresh.complete(null)
+      }
+    }
+    return refresh
+  }
+
+  private fun awaitRefresh(refresh: CompletableFuture<Project?>, cancelChecker: CancelChecker): Project? {
+    while (true) {
+      try {
+        cancelChecker.checkCanceled()
+      } catch (e: CancellationException) {
+        // the refresh is still useful for the next sync
+        backgroundRefresh.compareAndSet(null, refresh)
+        throw e
+      }
+      try {
+        return refresh.get(REFRESH_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+      } catch (e: TimeoutException) {
+        continue
+      } catch (e: CancellationException) {
+        return null
+      } catch (e: ExecutionException) {
+        return null
+      }
+    }
+  }
 
   private fun loadFromBazel(cancelChecker: CancelChecker, build: Boolean) =
-    projectResolver.resolve(cancelChecker, build = build).also {
+    resolveProject(cancelChecker, build).also {
       project = it
-      openTelemetry.sdkTracerProvider.forceFlush()
-      projectResolver.releaseMemory()
+      if (openTelemetryInitialized) openTelemetry.sdkTracerProvider.forceFlush()
+      releaseMemory()
+      storeInBackground(it)
+    }
+
+  private fun storeInBackground(project: Project) {
+    if (pendingSnapshot.getAndSet(project) == null) {
+      snapshotWriter.execute { pendingSnapshot.getAndSet(null)?.let(projectStorage::store) }
     }
+  }
+
+  companion object {
+    private const val REFRESH_POLL_INTERVAL_MILLIS = 100L
+
+    private val LOGGER = LogManager.getLogger(ProjectProvider::class.java)
+  }
 }
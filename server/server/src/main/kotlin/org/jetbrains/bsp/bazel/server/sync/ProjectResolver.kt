@@ -32,6 +32,9 @@ class ProjectResolver(
 
   fun resolve(cancelChecker: CancelChecker, build: Boolean): Project =
     tracer.spanBuilder("Resolve project").use {
+      // the bazel info restored from the previous run is still being checked, nothing should be resolved with it before
+      measured("Verifying bazel info", bazelInfo::awaitVerification)
+
       val workspaceContext =
         measured(
           "Reading project view and creating workspace context",
@@ -102,6 +105,8 @@ class ProjectResolver(
       outputGroups = outputGroups.map { if (build) "+$it" else it },
       shouldBuildManualFlags = workspaceContext.shouldAddBuildAffectingFlags(build),
       isRustEnabled = workspaceContext.isRustEnabled,
+      // aspect outputs are parsed while the rest of the project is still being built
+      textProtoFilesListener = targetInfoReader::prefetch,
     )
   }
 
@@ -109,8 +114,7 @@ class ProjectResolver(
     this.allowManualTargetsSync.value || !willBeBuilt
 
   fun releaseMemory() {
-    bazelPathsResolver.clear()
-    System.gc()
+    bazelPathsResolver.trimCache()
   }
 
   companion object {
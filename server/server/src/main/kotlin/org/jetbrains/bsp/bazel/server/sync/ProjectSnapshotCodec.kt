@@ -0,0 +1,427 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.model.Language
+import org.jetbrains.bsp.bazel.server.model.LanguageData
+import org.jetbrains.bsp.bazel.server.model.Library
+import org.jetbrains.bsp.bazel.server.model.Module
+import org.jetbrains.bsp.bazel.server.model.Project
+import org.jetbrains.bsp.bazel.server.model.SourceSet
+import org.jetbrains.bsp.bazel.server.model.Tag
+import org.jetbrains.bsp.bazel.server.sync.languages.android.AndroidModule
+import org.jetbrains.bsp.bazel.server.sync.languages.cpp.CppModule
+import org.jetbrains.bsp.bazel.server.sync.languages.java.JavaModule
+import org.jetbrains.bsp.bazel.server.sync.languages.java.Jdk
+import org.jetbrains.bsp.bazel.server.sync.languages.kotlin.KotlinModule
+import org.jetbrains.bsp.bazel.server.sync.languages.python.PythonModule
+import org.jetbrains.bsp.bazel.server.sync.languages.rust.RustCrateLocation
+import org.jetbrains.bsp.bazel.server.sync.languages.rust.RustModule
+import org.jetbrains.bsp.bazel.server.sync.languages.scala.ScalaModule
+import org.jetbrains.bsp.bazel.server.sync.languages.scala.ScalaSdk
+import org.jetbrains.bsp.bazel.server.sync.languages.thrift.ThriftModule
+import org.jetbrains.bsp.protocol.AndroidTargetType
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.net.URI
+
+/**
+ * Compact binary encoding of [Project].
+ *
+ * Every string (and so every label and URI) is written once and then referenced by its index in an implicit
+ * string table, which is built incrementally by both the writer and the reader. Integers are varint-encoded.
+ */
+object ProjectSnapshotCodec {
+  private const val NULL_LANGUAGE_DATA = 0
+  private const val JAVA_MODULE = 1
+  private const val SCALA_MODULE = 2
+  private const val KOTLIN_MODULE = 3
+  private const val ANDROID_MODULE = 4
+  private const val CPP_MODULE = 5
+  private const val PYTHON_MODULE = 6
+  private const val THRIFT_MODULE = 7
+  private const val RUST_MODULE = 8
+
+  fun write(project: Project, output: DataOutputStream) {
+    val writer = Writer(output)
+    writer.writeUri(project.workspaceRoot)
+    writer.writeInt(project.bazelRelease.major)
+    writer.writeCollection(project.modules) { writer.writeModule(it) }
+    writer.writeCollection(project.sourceToTarget.entries) {
+      writer.writeUri(it.key)
+      writer.writeLabel(it.value)
+    }
+    writer.writeCollection(project.libraries.values) { writer.writeLibrary(it) }
+    writer.writeCollection(project.invalidTargets) { writer.writeLabel(it) }
+  }
+
+  fun read(input: DataInputStream): Project {
+    val reader = Reader(input)
+    val workspaceRoot = reader.readUri()
+    val bazelRelease = BazelRelease(reader.readInt())
+    val modules = reader.readList { reader.readModule() }
+    val sourceToTarget = reader.readMap { reader.readUri() to reader.readLabel() }
+    val libraries = reader.readList { reader.readLibrary() }.associateBy { it.label }
+    val invalidTargets = reader.readList { reader.readLabel() }
+    return Project(
+      workspaceRoot = workspaceRoot,
+      modules = modules,
+      sourceToTarget = sourceToTarget,
+      libraries = libraries,
+      invalidTargets = invalidTargets,
+      bazelRelease = bazelRelease,
+    )
+  }
+
+  private class Writer(private val output: DataOutputStream) {
+    private val stringTable = HashMap<String, Int>()
+
+    fun writeInt(value: Int) {
+      var remaining = value
+      while (remaining and 0x7F.inv() != 0) {
+        output.writeByte((remaining and 0x7F) or 0x80)
+        remaining = remaining ushr 7
+      }
+      output.writeByte(remaining)
+    }
+
+    fun writeBoolean(value: Boolean) = output.writeBoolean(value)
+
+    fun writeString(value: String) {
+      val index = stringTable[value]
+      if (index != null) {
+        writeInt(index)
+        return
+      }
+      val newIndex = stringTable.size
+      stringTable[value] = newIndex
+      writeInt(newIndex)
+      val bytes = value.toByteArray(Charsets.UTF_8)
+      writeInt(bytes.size)
+      output.write(bytes)
+    }
+
+    fun writeNullableString(value: String?) {
+      writeBoolean(value != null)
+      value?.let { writeString(it) }
+    }
+
+    fun writeUri(value: URI) = writeString(value.toString())
+
+    fun writeNullableUri(value: URI?) = writeNullableString(value?.toString())
+
+    fun writeLabel(value: Label) = writeString(value.value)
+
+    fun <T> writeCollection(values: Collection<T>, writeElement: (T) -> Unit) {
+      writeInt(values.size)
+      values.forEach(writeElement)
+    }
+
+    fun writeStrings(values: Collection<String>) = writeCollection(values) { writeString(it) }
+
+    fun writeUris(values: Collection<URI>) = writeCollection(values) { writeUri(it) }
+
+    fun writeLabels(values: Collection<Label>) = writeCollection(values) { writeLabel(it) }
+
+    fun writeModule(module: Module) {
+      writeLabel(module.label)
+      writeBoolean(module.isSynthetic)
+      writeLabels(module.directDependencies)
+      writeCollection(module.languages) { writeString(it.name) }
+      writeCollection(module.tags) { writeString(it.name) }
+      writeUri(module.baseDirectory)
+      writeUris(module.sourceSet.sources)
+      writeUris(module.sourceSet.generatedSources)
+      writeUris(module.sourceSet.sourceRoots)
+      writeUris(module.resources)
+      writeUris(module.outputs)
+      writeUris(module.sourceDependencies)
+      writeLanguageData(module.languageData)
+      writeCollection(module.environmentVariables.entries) {
+        writeString(it.key)
+        writeString(it.value)
+      }
+    }
+
+    fun writeLibrary(library: Library) {
+      writeLabel(library.label)
+      writeUris(library.outputs)
+      writeUris(library.sources)
+      writeLabels(library.dependencies)
+      writeUris(library.interfaceJars)
+      writeBoolean(library.keepNonExistentJars)
+    }
+
+    private fun writeLanguageData(languageData: LanguageData?) {
+      when (languageData) {
+        null -> writeInt(NULL_LANGUAGE_DATA)
+        is JavaModule -> {
+          writeInt(JAVA_MODULE)
+          writeJavaModule(languageData)
+        }
+        is ScalaModule -> {
+          writeInt(SCALA_MODULE)
+          writeString(languageData.sdk.organization)
+          writeString(languageData.sdk.version)
+          writeString(languageData.sdk.binaryVersion)
+          writeUris(languageData.sdk.compilerJars)
+          writeStrings(languageData.scalacOpts)
+          writeNullableJavaModule(languageData.javaModule)
+        }
+        is KotlinModule -> {
+          writeInt(KOTLIN_MODULE)
+          writeKotlinModule(languageData)
+        }
+        is AndroidModule -> {
+          writeInt(ANDROID_MODULE)
+          writeUri(languageData.androidJar)
+          writeString(languageData.androidTargetType.name)
+          writeNullableUri(languageData.manifest)
+          writeUris(languageData.resourceDirectories)
+          writeNullableString(languageData.resourceJavaPackage)
+          writeUris(languageData.assetsDirectories)
+          writeNullableJavaModule(languageData.javaModule)
+          writeBoolean(languageData.kotlinModule != null)
+          languageData.kotlinModule?.let { writeKotlinModule(it) }
+        }
+        is CppModule -> {
+          writeInt(CPP_MODULE)
+          writeStrings(languageData.copts)
+          writeStrings(languageData.defines)
+          writeStrings(languageData.linkOpts)
+          writeBoolean(languageData.linkShared)
+        }
+        is PythonModule -> {
+          writeInt(PYTHON_MODULE)
+          writeNullableUri(languageData.interpreter)
+          writeNullableString(languageData.version)
+        }
+        is ThriftModule -> writeInt(THRIFT_MODULE)
+        is RustModule -> {
+          writeInt(RUST_MODULE)
+          writeString(languageData.crateId)
+          writeString(languageData.location.name)
+          writeBoolean(languageData.fromWorkspace)
+          writeString(languageData.name)
+          writeString(languageData.kind)
+          writeString(languageData.edition)
+          writeStrings(languageData.crateFeatures)
+          writeStrings(languageData.dependenciesCrateIds)
+          writeString(languageData.crateRoot)
+          writeString(languageData.version)
+          writeStrings(languageData.procMacroArtifacts)
+          writeBoolean(languageData.isExternalModule)
+        }
+        else -> throw IOException("Unsupported language data: ${languageData::class.qualifiedName}")
+      }
+    }
+
+    private fun writeJdk(jdk: Jdk) {
+      writeString(jdk.version)
+      writeNullableUri(jdk.javaHome)
+    }
+
+    private fun writeJavaModule(javaModule: JavaModule) {
+      writeJdk(javaModule.jdk)
+      writeBoolean(javaModule.runtimeJdk != null)
+      javaModule.runtimeJdk?.let { writeJdk(it) }
+      writeStrings(javaModule.javacOpts)
+      writeStrings(javaModule.jvmOps)
+      writeUri(javaModule.mainOutput)
+      writeUris(javaModule.binaryOutputs)
+      writeNullableString(javaModule.mainClass)
+      writeStrings(javaModule.args)
+    }
+
+    private fun writeNullableJavaModule(javaModule: JavaModule?) {
+      writeBoolean(javaModule != null)
+      javaModule?.let { writeJavaModule(it) }
+    }
+
+    private fun writeKotlinModule(kotlinModule: KotlinModule) {
+      writeString(kotlinModule.languageVersion)
+      writeString(kotlinModule.apiVersion)
+      writeStrings(kotlinModule.kotlincOptions)
+      writeLabels(kotlinModule.associates)
+      writeNullableJavaModule(kotlinModule.javaModule)
+    }
+  }
+
+  private class Reader(private val input: DataInputStream) {
+    private val stringTable = ArrayList<String>()
+    private val uriCache = HashMap<Int, URI>()
+
+    fun readInt(): Int {
+      var result = 0
+      var shift = 0
+      while (shift < 32) {
+        val byte = input.readUnsignedByte()
+        result = result or ((byte and 0x7F) shl shift)
+        if (byte and 0x80 == 0) return result
+        shift += 7
+      }
+      throw IOException("Malformed varint in project snapshot")
+    }
+
+    fun readBoolean(): Boolean = input.readBoolean()
+
+    private fun readStringIndex(): Int {
+      val index = readInt()
+      when {
+        index < stringTable.size -> Unit
+        index == stringTable.size -> {
+          val bytes = ByteArray(readInt())
+          input.readFully(bytes)
+          stringTable.add(String(bytes, Charsets.UTF_8))
+        }
+        else -> throw IOException("Corrupted string table in project snapshot")
+      }
+      return index
+    }
+
+    fun readString(): String = stringTable[readStringIndex()]
+
+    fun readNullableString(): String? = if (readBoolean()) readString() else null
+
+    fun readUri(): URI {
+      val index = readStringIndex()
+      return uriCache.getOrPut(index) { URI.create(stringTable[index]) }
+    }
+
+    fun readNullableUri(): URI? = if (readBoolean()) readUri() else null
+
+    fun readLabel(): Label = Label.parse(readString())
+
+    fun <T> readList(readElement: () -> T): List<T> = List(readInt()) { readElement() }
+
+    fun <T> readSet(readElement: () -> T): Set<T> {
+      val size = readInt()
+      return (0 until size).mapTo(LinkedHashSet(size)) { readElement() }
+    }
+
+    fun <K, V> readMap(readEntry: () -> Pair<K, V>): Map<K, V> {
+      val size = readInt()
+      return (0 until size).associateTo(HashMap(size)) { readEntry() }
+    }
+
+    fun readStrings(): List<String> = readList { readString() }
+
+    fun readUriList(): List<URI> = readList { readUri() }
+
+    fun readUriSet(): Set<URI> = readSet { readUri() }
+
+    fun readLabels(): List<Label> = readList { readLabel() }
+
+    fun readModule(): Module =
+      Module(
+        label = readLabel(),
+        isSynthetic = readBoolean(),
+        directDependencies = readLabels(),
+        languages = readSet { Language.valueOf(readString()) },
+        tags = readSet { Tag.valueOf(readString()) },
+        baseDirectory = readUri(),
+        sourceSet =
+          SourceSet(
+            sources = readUriSet(),
+            generatedSources = readUriSet(),
+            sourceRoots = readUriSet(),
+          ),
+        resources = readUriSet(),
+        outputs = readUriSet(),
+        sourceDependencies = readUriSet(),
+        languageData = readLanguageData(),
+        environmentVariables = readMap { readString() to readString() },
+      )
+
+    fun readLibrary(): Library =
+      Library(
+        label = readLabel(),
+        outputs = readUriSet(),
+        sources = readUriSet(),
+        dependencies = readLabels(),
+        interfaceJars = readUriSet(),
+        keepNonExistentJars = readBoolean(),
+      )
+
+    private fun readLanguageData(): LanguageData? =
+      when (val type = readInt()) {
+        NULL_LANGUAGE_DATA -> null
+        JAVA_MODULE -> readJavaModule()
+        SCALA_MODULE ->
+          ScalaModule(
+            sdk =
+              ScalaSdk(
+                organization = readString(),
+                version = readString(),
+                binaryVersion = readString(),
+                compilerJars = readUriList(),
+              ),
+            scalacOpts = readStrings(),
+            javaModule = readNullableJavaModule(),
+          )
+        KOTLIN_MODULE -> readKotlinModule()
+        ANDROID_MODULE ->
+          AndroidModule(
+            androidJar = readUri(),
+            androidTargetType = AndroidTargetType.valueOf(readString()),
+            manifest = readNullableUri(),
+            resourceDirectories = readUriList(),
+            resourceJavaPackage = readNullableString(),
+            assetsDirectories = readUriList(),
+            javaModule = readNullableJavaModule(),
+            kotlinModule = if (readBoolean()) readKotlinModule() else null,
+          )
+        CPP_MODULE ->
+          CppModule(
+            copts = readStrings(),
+            defines = readStrings(),
+            linkOpts = readStrings(),
+            linkShared = readBoolean(),
+          )
+        PYTHON_MODULE -> PythonModule(interpreter = readNullableUri(), version = readNullableString())
+        THRIFT_MODULE -> ThriftModule()
+        RUST_MODULE ->
+          RustModule(
+            crateId = readString(),
+            location = RustCrateLocation.valueOf(readString()),
+            fromWorkspace = readBoolean(),
+            name = readString(),
+            kind = readString(),
+            edition = readString(),
+            crateFeatures = readStrings(),
+            dependenciesCrateIds = readStrings(),
+            crateRoot = readString(),
+            version = readString(),
+            procMacroArtifacts = readStrings(),
+            isExternalModule = readBoolean(),
+          )
+        else -> throw IOException("Unknown language data type in project snapshot: $type")
+      }
+
+    private fun readJdk(): Jdk = Jdk(version = readString(), javaHome = readNullableUri())
+
+    private fun readJavaModule(): JavaModule =
+      JavaModule(
+        jdk = readJdk(),
+        runtimeJdk = if (readBoolean()) readJdk() else null,
+        javacOpts = readStrings(),
+        jvmOps = readStrings(),
+        mainOutput = readUri(),
+        binaryOutputs = readUriList(),
+        mainClass = readNullableString(),
+        args = readStrings(),
+      )
+
+    private fun readNullableJavaModule(): JavaModule? = if (readBoolean()) readJavaModule() else null
+
+    private fun readKotlinModule(): KotlinModule =
+      KotlinModule(
+        languageVersion = readString(),
+        apiVersion = readString(),
+        kotlincOptions = readStrings(),
+        associates = readLabels(),
+        javaModule = readNullableJavaModule(),
+      )
+  }
+}
@@ -3,6 +3,7 @@ package org.jetbrains.bsp.bazel.server.sync;
 import org.jetbrains.bsp.bazel.server.model.Project;
 
 public interface ProjectStorage {
+  /** Returns the stored project or null if there is no valid one. */
   Project load();
 
   void store(Project project);
@@ -1,22 +1,93 @@
 package org.jetbrains.bsp.bazel.server.sync
 
+import com.google.protobuf.CodedInputStream
+import com.google.protobuf.CodedOutputStream
 import com.google.protobuf.TextFormat
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import okio.IOException
+import org.apache.logging.log4j.LogManager
 import org.jetbrains.bsp.bazel.info.BspTargetInfo.TargetInfo
 import org.jetbrains.bsp.bazel.logger.BspClientLogger
 import org.jetbrains.bsp.bazel.server.model.Label
+import java.nio.channels.FileChannel
+import java.nio.file.Files
 import java.nio.file.Path
-import kotlin.io.path.reader
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.io.path.exists
 
-class TargetInfoReader(private val bspClientLogger: BspClientLogger) {
-  fun readTargetMapFromAspectOutputs(files: Set<Path>): Map<Label, TargetInfo> =
-    runBlocking(Dispatchers.Default) {
-      files.map { file -> async { readFromFile(file) } }.awaitAll()
-    }.asSequence()
+/**
+ * Reads `bsp-info.textproto` files produced by the aspect.
+ *
+ * The aspect can only write the text format, which is slow to parse, so every parsed [TargetInfo] is also kept
+ * in a binary, length-delimited cache file. After a server restart unchanged outputs are read from that cache.
+ *
+ * Outputs announced while the build is still running can be passed to [prefetch], so parsing overlaps the build.
+ *
+ * @param binaryCacheFile where the binary cache is stored, if null only the in-memory cache is used
+ */
+class TargetInfoReader(private val bspClientLogger: BspClientLogger, private val binaryCacheFile: Path? = null) {
+  private data class AspectOutputFingerprint(val size: Long, val lastModifiedMillis: Long)
+
+  private data class CachedTargetInfo(val fingerprint: AspectOutputFingerprint, val targetInfo: TargetInfo)
+
+  // aspect outputs parsed in the previous sync, unchanged files are returned as the very same TargetInfo instances
+  private val cache = ConcurrentHashMap<Path, CachedTargetInfo>()
+  private var binaryCacheLoaded = false
+  private val binaryCacheOutdated = AtomicBoolean(false)
+
+  private val prefetchScope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+  private val prefetchJobs = ConcurrentLinkedQueue<Job>()
+
+  // the parser is immutable, so it can be shared by all the files
+  private val textParser =
+    TextFormat.Parser
+      .newBuilder()
+      .setAllowUnknownFields(true)
+      .build()
+
+  /**
+   * Starts parsing the given aspect outputs in the background, the next [readTargetMapFromAspectOutputs] waits for
+   * them and takes the results from the cache. Files which can't be read yet are silently skipped and read again later.
+   */
+  fun prefetch(files: Collection<Path>) {
+    if (files.isEmpty()) return
+    prefetchJobs.add(
+      prefetchScope.launch {
+        loadBinaryCacheIfNeeded()
+        files.forEach { readFromFileOrCache(it, reportErrors = false) }
+      },
+    )
+  }
+
+  fun readTargetMapFromAspectOutputs(files: Set<Path>): Map<Label, TargetInfo> {
+    loadBinaryCacheIfNeeded()
+    val targetInfos =
+      runBlocking(Dispatchers.Default) {
+        generateSequence { prefetchJobs.poll() }.toList().joinAll()
+        if (cache.keys.retainAll(files)) {
+          binaryCacheOutdated.set(true)
+        }
+        files.map { file -> async { readFromFileOrCache(file, reportErrors = true) } }.awaitAll()
+      }
+    if (binaryCacheOutdated.getAndSet(false)) {
+      storeBinaryCache()
+    }
+    return targetInfos
+      .asSequence()
       .filterNotNull()
       .groupBy { it.id }
       // If any aspect has already been run on the build graph, it created shadow graph
@@ -30,23 +101,92 @@ class TargetInfoReader(private val bspClientLogger: BspClientLogger) {
       .mapValues {
         it.value.filter(TargetInfo::hasJvmTargetInfo).minByOrNull { targetInfo -> targetInfo.serializedSize } ?: it.value.first()
       }.mapKeys { Label.parse(it.key) }
+  }
+
+  private fun readFromFileOrCache(file: Path, reportErrors: Boolean): TargetInfo? {
+    val fingerprint = fingerprint(file) ?: return if (reportErrors) readFromFile(file, reportErrors) else null
+    cache[file]?.takeIf { it.fingerprint == fingerprint }?.let { return it.targetInfo }
+    val targetInfo = readFromFile(file, reportErrors) ?: return null
+    cache[file] = CachedTargetInfo(fingerprint, targetInfo)
+    binaryCacheOutdated.set(true)
+    return targetInfo
+  }
+
+  private fun fingerprint(file: Path): AspectOutputFingerprint? =
+    try {
+      val attributes = Files.readAttributes(file, BasicFileAttributes::class.java)
+      AspectOutputFingerprint(attributes.size(), attributes.lastModifiedTime().toMillis())
+    } catch (e: IOException) {
+      null
+    }
 
-  private fun readFromFile(file: Path): TargetInfo? {
+  private fun readFromFile(file: Path, reportErrors: Boolean): TargetInfo? {
     val builder = TargetInfo.newBuilder()
-    val parser =
-      TextFormat.Parser
-        .newBuilder()
-        .setAllowUnknownFields(true)
-        .build()
     try {
-      file.reader().use {
-        parser.merge(it, builder)
-      }
+      textParser.merge(String(Files.readAllBytes(file), Charsets.UTF_8), builder)
     } catch (e: IOException) {
       // Can happen if one output path is a prefix of another, then Bazel can't create both
-      bspClientLogger.error("[WARN] Could not read target info $file: ${e.message}")
+      if (reportErrors) {
+        bspClientLogger.error("[WARN] Could not read target info $file: ${e.message}")
+      }
       return null
     }
     return builder.build()
   }
+
+  @Synchronized
+  private fun loadBinaryCacheIfNeeded() {
+    if (binaryCacheLoaded || binaryCacheFile == null) return
+    binaryCacheLoaded = true
+    if (!binaryCacheFile.exists()) return
+    try {
+      FileChannel.open(binaryCacheFile, StandardOpenOption.READ).use { channel ->
+        val input = CodedInputStream.newInstance(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+        if (input.readRawVarint32() != BINARY_CACHE_VERSION) return
+        while (!input.isAtEnd) {
+          val file = Paths.get(input.readString())
+          val fingerprint = AspectOutputFingerprint(input.readInt64(), input.readInt64())
+          val limit = input.pushLimit(input.readRawVarint32())
+          cache[file] = CachedTargetInfo(fingerprint, TargetInfo.parseFrom(input))
+          input.popLimit(limit)
+        }
+      }
+    } catch (e: Exception) {
+      LOGGER.warn("Could not read the binary target info cache $binaryCacheFile, aspect outputs will be parsed again", e)
+      cache.clear()
+    }
+  }
+
+  private fun storeBinaryCache() {
+    if (binaryCacheFile == null) return
+    try {
+      Files.createDirectories(binaryCacheFile.parent)
+      val temporaryFile = Files.createTempFile(binaryCacheFile.parent, binaryCacheFile.fileName.toString(), ".tmp")
+      try {
+        Files.newOutputStream(temporaryFile).buffered().use { stream ->
+          val output = CodedOutputStream.newInstance(stream)
+          output.writeUInt32NoTag(BINARY_CACHE_VERSION)
+          cache.forEach { (file, cached) ->
+            output.writeStringNoTag(file.toString())
+            output.writeInt64NoTag(cached.fingerprint.size)
+            output.writeInt64NoTag(cached.fingerprint.lastModifiedMillis)
+            output.writeUInt32NoTag(cached.targetInfo.serializedSize)
+            cached.targetInfo.writeTo(output)
+          }
+          output.flush()
+        }
+        Files.move(temporaryFile, binaryCacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      } finally {
+        Files.deleteIfExists(temporaryFile)
+      }
+    } catch (e: IOException) {
+      LOGGER.warn("Could not store the binary target info cache $binaryCacheFile", e)
+    }
+  }
+
+  companion object {
+    private const val BINARY_CACHE_VERSION = 1
+
+    private val LOGGER = LogManager.getLogger(TargetInfoReader::class.java)
+  }
 }
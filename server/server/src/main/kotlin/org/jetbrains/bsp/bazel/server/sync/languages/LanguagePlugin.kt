@@ -14,6 +14,12 @@ abstract class LanguagePlugin<T : LanguageData> {
 
   open fun prepareSync(targets: Sequence<BspTargetInfo.TargetInfo>) {}
 
+  /**
+   * State computed in [prepareSync] which is shared by all modules resolved by this plugin.
+   * Modules from the previous sync can be reused only if it didn't change.
+   */
+  open fun syncState(): Any? = null
+
   open fun resolveModule(targetInfo: BspTargetInfo.TargetInfo): T? = null
 
   open fun dependencySources(targetInfo: BspTargetInfo.TargetInfo, dependencyGraph: DependencyGraph): Set<URI> = emptySet()
@@ -35,6 +35,18 @@ class LanguagePluginsService(
     rustLanguagePlugin.prepareSync(targetInfos)
   }
 
+  fun syncState(): List<Any?> =
+    listOf(
+      scalaLanguagePlugin,
+      javaLanguagePlugin,
+      cppLanguagePlugin,
+      kotlinLanguagePlugin,
+      thriftLanguagePlugin,
+      pythonLanguagePlugin,
+      rustLanguagePlugin,
+      androidLanguagePlugin,
+    ).map { it.syncState() }
+
   fun getPlugin(languages: Set<Language>): LanguagePlugin<*> =
     when {
       languages.contains(Language.ANDROID) -> androidLanguagePlugin
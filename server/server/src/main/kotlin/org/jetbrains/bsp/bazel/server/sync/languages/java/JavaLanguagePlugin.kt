@@ -28,6 +28,8 @@ class JavaLanguagePlugin(
     jdk = ideJavaHomeOverride?.let { Jdk(version = "ideJavaHomeOverride", javaHome = it.toUri()) } ?: jdkResolver.resolve(targets)
   }
 
+  override fun syncState(): Any? = jdk
+
   override fun resolveModule(targetInfo: TargetInfo): JavaModule? =
     targetInfo.takeIf(TargetInfo::hasJvmTargetInfo)?.jvmTargetInfo?.run {
       val mainOutput = bazelPathsResolver.resolveUri(getJars(0).getBinaryJars(0))
@@ -31,6 +31,8 @@ class PythonLanguagePlugin(private val bazelPathsResolver: BazelPathsResolver) :
     defaultVersion = defaultTargetInfo?.version
   }
 
+  override fun syncState(): Any? = defaultInterpreter to defaultVersion
+
   private fun calculateDefaultTargetInfo(targets: Sequence<TargetInfo>): PythonTargetInfo? =
     targets
       .filter(::hasPythonInterpreter)
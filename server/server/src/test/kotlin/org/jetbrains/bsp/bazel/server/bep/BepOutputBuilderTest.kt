@@ -0,0 +1,82 @@
+package org.jetbrains.bsp.bazel.server.bep
+
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos
+import io.kotest.matchers.shouldBe
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BasicBazelInfo
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.paths.BazelPathsResolver
+import org.junit.jupiter.api.Test
+import java.nio.file.Path
+import kotlin.io.path.Path
+
+class BepOutputBuilderTest {
+  private val bazelPathsResolver =
+    BazelPathsResolver(
+      BasicBazelInfo(
+        execRoot = "/execRoot",
+        outputBase = Path("/outputBase"),
+        workspaceRoot = Path("/workspaceRoot"),
+        release = BazelRelease(7),
+        isBzlModEnabled = true,
+      ),
+    )
+
+  @Test
+  fun `should notify about text proto files as soon as their named set is stored`() {
+    // given
+    val notifiedFiles = mutableListOf<Collection<Path>>()
+    val bepOutputBuilder = BepOutputBuilder(bazelPathsResolver) { notifiedFiles.add(it) }
+
+    // when
+    bepOutputBuilder.storeNamedSet("0", namedSet(listOf("a.bsp-info.textproto", "a.jar")))
+    bepOutputBuilder.storeNamedSet("1", namedSet(listOf("b.bsp-info.textproto"), children = listOf("0")))
+
+    // then
+    notifiedFiles shouldBe
+      listOf(
+        listOf(Path("/execRoot/bazel-out/bin/a.bsp-info.textproto")),
+        listOf(Path("/execRoot/bazel-out/bin/b.bsp-info.textproto")),
+      )
+  }
+
+  @Test
+  fun `should return the same files from the built output`() {
+    // given
+    val bepOutputBuilder = BepOutputBuilder(bazelPathsResolver) {}
+    bepOutputBuilder.storeNamedSet("0", namedSet(listOf("a.bsp-info.textproto")))
+    bepOutputBuilder.storeNamedSet("1", namedSet(listOf("b.bsp-info.textproto"), children = listOf("0")))
+    bepOutputBuilder.storeTargetOutputGroups(Label.parse("//b"), listOf(outputGroup("bsp-target-info", "1")))
+
+    // when
+    val files = bepOutputBuilder.build().filesByOutputGroupNameTransitive("bsp-target-info")
+
+    // then
+    files shouldBe
+      setOf(
+        Path("/execRoot/bazel-out/bin/a.bsp-info.textproto"),
+        Path("/execRoot/bazel-out/bin/b.bsp-info.textproto"),
+      )
+  }
+
+  private fun namedSet(fileNames: List<String>, children: List<String> = emptyList()): BuildEventStreamProtos.NamedSetOfFiles =
+    BuildEventStreamProtos.NamedSetOfFiles
+      .newBuilder()
+      .addAllFiles(
+        fileNames.map {
+          BuildEventStreamProtos.File
+            .newBuilder()
+            .setName(it)
+            .addAllPathPrefix(listOf("bazel-out", "bin"))
+            .build()
+        },
+      ).addAllFileSets(children.map { BuildEventStreamProtos.BuildEventId.NamedSetOfFilesId.newBuilder().setId(it).build() })
+      .build()
+
+  private fun outputGroup(name: String, fileSetId: String): BuildEventStreamProtos.OutputGroup =
+    BuildEventStreamProtos.OutputGroup
+      .newBuilder()
+      .setName(name)
+      .addFileSets(BuildEventStreamProtos.BuildEventId.NamedSetOfFilesId.newBuilder().setId(fileSetId))
+      .build()
+}
@@ -0,0 +1,151 @@
+package org.jetbrains.bsp.bazel.server.bep
+
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import ch.epfl.scala.bsp4j.DidChangeBuildTarget
+import ch.epfl.scala.bsp4j.LogMessageParams
+import ch.epfl.scala.bsp4j.PrintParams
+import ch.epfl.scala.bsp4j.PublishDiagnosticsParams
+import ch.epfl.scala.bsp4j.ShowMessageParams
+import ch.epfl.scala.bsp4j.TaskFinishParams
+import ch.epfl.scala.bsp4j.TaskProgressParams
+import ch.epfl.scala.bsp4j.TaskStartParams
+import ch.epfl.scala.bsp4j.TestFinish
+import ch.epfl.scala.bsp4j.TestReport
+import ch.epfl.scala.bsp4j.TestStatus
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos
+import io.kotest.matchers.shouldBe
+import org.jetbrains.bsp.protocol.JoinedBuildClient
+import org.jetbrains.bsp.protocol.PublishOutputParams
+import org.junit.jupiter.api.Test
+import java.util.Collections
+import java.util.concurrent.Executor
+
+class TestResultsReporterTest {
+  private class MockBuildClient : JoinedBuildClient {
+    val taskStartCalls: MutableList<TaskStartParams> = Collections.synchronizedList(mutableListOf())
+    val taskFinishCalls: MutableList<TaskFinishParams> = Collections.synchronizedList(mutableListOf())
+
+    override fun onBuildShowMessage(p0: ShowMessageParams?) {}
+
+    override fun onBuildLogMessage(p0: LogMessageParams?) {}
+
+    override fun onBuildPublishDiagnostics(p0: PublishDiagnosticsParams) {}
+
+    override fun onBuildTargetDidChange(p0: DidChangeBuildTarget?) {}
+
+    override fun onBuildTaskStart(p0: TaskStartParams?) {
+      p0?.let { taskStartCalls.add(it) }
+    }
+
+    override fun onBuildTaskProgress(p0: TaskProgressParams?) {}
+
+    override fun onBuildTaskFinish(p0: TaskFinishParams?) {
+      p0?.let { taskFinishCalls.add(it) }
+    }
+
+    override fun onRunPrintStdout(p0: PrintParams?) {}
+
+    override fun onRunPrintStderr(p0: PrintParams?) {}
+
+    override fun onBuildPublishOutput(params: PublishOutputParams) {}
+
+    fun testReports(): List<TaskFinishParams> = taskFinishCalls.filter { it.data is TestReport }
+
+    fun testStatuses(parentId: String): List<TestStatus> =
+      taskFinishCalls
+        .filter { it.taskId.parents == listOf(parentId) }
+        .map { (it.data as TestFinish).status }
+  }
+
+  private val target = BuildTargetIdentifier("//target")
+
+  private fun testResultId(
+    label: String,
+    shard: Int,
+    attempt: Int,
+  ): BuildEventStreamProtos.BuildEventId.TestResultId =
+    BuildEventStreamProtos.BuildEventId.TestResultId
+      .newBuilder()
+      .setLabel(label)
+      .setRun(1)
+      .setShard(shard)
+      .setAttempt(attempt)
+      .build()
+
+  private fun testResult(status: BuildEventStreamProtos.TestStatus): BuildEventStreamProtos.TestResult =
+    BuildEventStreamProtos.TestResult
+      .newBuilder()
+      .setStatus(status)
+      .setTestAttemptDurationMillis(100)
+      .build()
+
+  private fun testSummaryId(label: String): BuildEventStreamProtos.BuildEventId.TestSummaryId =
+    BuildEventStreamProtos.BuildEventId.TestSummaryId
+      .newBuilder()
+      .setLabel(label)
+      .build()
+
+  @Test
+  fun `should merge shards and attempts of a target into one report`() {
+    // given
+    val client = MockBuildClient()
+    val reporter = TestResultsReporter(client, "originId", target, Executor(Runnable::run))
+
+    // when
+    reporter.onTestResult(testResultId("//target", shard = 1, attempt = 1), testResult(BuildEventStreamProtos.TestStatus.FAILED))
+    reporter.onTestResult(testResultId("//target", shard = 1, attempt = 2), testResult(BuildEventStreamProtos.TestStatus.FAILED))
+    reporter.onTestResult(testResultId("//target", shard = 1, attempt = 3), testResult(BuildEventStreamProtos.TestStatus.PASSED))
+    reporter.onTestResult(testResultId("//target", shard = 2, attempt = 1), testResult(BuildEventStreamProtos.TestStatus.PASSED))
+    reporter.onTestResult(testResultId("//target", shard = 3, attempt = 1), testResult(BuildEventStreamProtos.TestStatus.TIMEOUT))
+    reporter.onTestSummary(testSummaryId("//target"))
+    reporter.finish()
+
+    // then
+    client.taskStartCalls.count { it.taskId.parents.isNullOrEmpty() } shouldBe 1
+    val report = client.testReports().single()
+    val testReport = report.data as TestReport
+    testReport.passed shouldBe 2
+    testReport.failed shouldBe 1
+    testReport.time shouldBe 500L
+    report.message shouldBe "Flaky runs: 1, failed attempts: 2"
+  }
+
+  @Test
+  fun `should keep the order of results of every target`() {
+    // given
+    val client = MockBuildClient()
+    val reporter = TestResultsReporter(client, "originId", target)
+    val labels = (0 until 10).map { "//target:test$it" }
+    val statuses = (0 until 50).map { if (it % 3 == 0) BuildEventStreamProtos.TestStatus.FAILED else BuildEventStreamProtos.TestStatus.PASSED }
+
+    // when
+    statuses.forEachIndexed { attempt, status ->
+      labels.forEach { label -> reporter.onTestResult(testResultId(label, shard = attempt, attempt = 1), testResult(status)) }
+    }
+    labels.forEach { reporter.onTestSummary(testSummaryId(it)) }
+    reporter.finish()
+
+    // then
+    val expectedStatuses = statuses.map { if (it == BuildEventStreamProtos.TestStatus.PASSED) TestStatus.PASSED else TestStatus.FAILED }
+    client.testReports().size shouldBe labels.size
+    client.taskStartCalls
+      .filter { it.taskId.parents.isNullOrEmpty() }
+      .forEach { targetTask -> client.testStatuses(targetTask.taskId.id) shouldBe expectedStatuses }
+  }
+
+  @Test
+  fun `should finish targets without a summary`() {
+    // given
+    val client = MockBuildClient()
+    val reporter = TestResultsReporter(client, "originId", target)
+
+    // when
+    reporter.onTestResult(testResultId("//target", shard = 1, attempt = 1), testResult(BuildEventStreamProtos.TestStatus.PASSED))
+    reporter.finish()
+
+    // then
+    val testReport = client.testReports().single().data as TestReport
+    testReport.passed shouldBe 1
+    client.taskStartCalls.map { it.taskId } shouldBe client.taskFinishCalls.map { it.taskId }.reversed()
+  }
+}
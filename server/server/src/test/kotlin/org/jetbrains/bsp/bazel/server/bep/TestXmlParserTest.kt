@@ -18,6 +18,8 @@ import io.kotest.matchers.equals.shouldNotBeEqual
 import io.kotest.matchers.shouldBe
 import io.kotest.matchers.shouldNotBe
 import io.kotest.matchers.string.shouldContain
+import io.kotest.matchers.string.shouldEndWith
+import io.kotest.matchers.string.shouldStartWith
 import org.jetbrains.bsp.bazel.logger.BspClientTestNotifier
 import org.jetbrains.bsp.protocol.JUnitStyleTestCaseData
 import org.jetbrains.bsp.protocol.JUnitStyleTestSuiteData
@@ -547,6 +549,67 @@ class TestXmlParserTest {
     }
   }
 
+  @Test
+  fun `should report test cases read before the file breaks off`(
+    @TempDir tempDir: Path,
+  ) {
+    // given
+    val brokenContents =
+      """
+      <?xml version='1.0' encoding='UTF-8'?>
+      <testsuites>
+        <testsuite name='com.example.optimization.TestSuite1' timestamp='2024-05-14T19:23:32.883Z' hostname='localhost' tests='3' failures='0' errors='0' time='0.065' package='' id='1'>
+          <testcase name='test1' classname='com.example.optimization.TestSuite1' time='0.032' />
+          <testcase name='test2' classname='com.example.optimization.TestSuite1' time='0.019' />
+          <testcase name='test3' classname='com.example.optimization.TestSuite1' time='0.002'>
+            <failure message='expected:&lt;1&gt; but was:&lt;2&gt;' type='java.lang.AssertionError'>java.lang.AssertionError
+      """.trimIndent()
+
+    val client = MockBuildClient()
+    val notifier = BspClientTestNotifier(client, "sample-origin")
+    val parentId = TaskId("sample-task")
+
+    // when
+    TestXmlParser(parentId, notifier).parseAndReport(writeTempFile(tempDir, brokenContents))
+
+    // then
+    client.taskFinishCalls.map { (it.data as TestFinish).displayName } shouldBe
+      listOf("test1", "test2", "test3", "com.example.optimization.TestSuite1")
+    client.taskStartCalls.map { it.taskId } shouldContainExactlyInAnyOrder client.taskFinishCalls.map { it.taskId }
+    (client.taskFinishCalls[2].data as TestFinish).status shouldBe TestStatus.FAILED
+  }
+
+  @Test
+  fun `should keep only the end of a huge system-out`(
+    @TempDir tempDir: Path,
+  ) {
+    // given
+    val logLines = (0 until 200_000).joinToString("\n") { "log line number $it" }
+    val hugeContents =
+      """
+      <?xml version='1.0' encoding='UTF-8'?>
+      <testsuites>
+        <testsuite name='com.example.optimization.TestSuite1' timestamp='2024-05-14T19:23:32.883Z' hostname='localhost' tests='1' failures='0' errors='0' time='0.065' package='' id='1'>
+          <testcase name='test1' classname='com.example.optimization.TestSuite1' time='0.032' />
+          <system-out><![CDATA[LOG_LINES]]></system-out>
+        </testsuite>
+      </testsuites>
+      """.trimIndent().replace("LOG_LINES", logLines)
+
+    val client = MockBuildClient()
+    val notifier = BspClientTestNotifier(client, "sample-origin")
+    val parentId = TaskId("sample-task")
+
+    // when
+    TestXmlParser(parentId, notifier).parseAndReport(writeTempFile(tempDir, hugeContents))
+
+    // then
+    val systemOut = (client.taskFinishCalls.last().data as TestFinish).message
+    (systemOut.length <= TruncatedText.MAX_TEXT_LENGTH + 100) shouldBe true
+    systemOut shouldStartWith "... ("
+    systemOut shouldEndWith "log line number 199999"
+  }
+
   private fun writeTempFile(tempDir: Path, contents: String): String {
     val tempFile = tempDir.resolve("tempFile.xml").toFile()
     tempFile.writeText(contents)
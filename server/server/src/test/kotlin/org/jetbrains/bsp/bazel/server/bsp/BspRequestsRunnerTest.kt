@@ -0,0 +1,92 @@
+package org.jetbrains.bsp.bazel.server.bsp
+
+import io.kotest.matchers.shouldBe
+import org.eclipse.lsp4j.jsonrpc.CancelChecker
+import org.jetbrains.bsp.bazel.workspacecontext.WorkspaceContext
+import org.jetbrains.bsp.bazel.workspacecontext.WorkspaceContextProvider
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.function.Function
+
+class BspRequestsRunnerTest {
+  private val workspaceContextProvider =
+    object : WorkspaceContextProvider {
+      override fun currentWorkspaceContext(): WorkspaceContext = throw UnsupportedOperationException()
+    }
+  private val runner = BspRequestsRunner(BazelBspServerLifetime(workspaceContextProvider))
+
+  private fun <R> handleRequest(methodName: String, request: (CancelChecker) -> R): CompletableFuture<R> =
+    runner.handleRequest(methodName, Function(request)) { null }
+
+  private fun fillHeavyLane(release: CountDownLatch): List<CompletableFuture<Unit>> =
+    (1..RequestLane.HEAVY.parallelism).map {
+      handleRequest("buildTargetCompile") { release.await() }
+    }
+
+  @Test
+  fun `should assign requests to lanes`() {
+    RequestLane.of("workspaceBuildTargets") shouldBe RequestLane.HEAVY
+    RequestLane.of("buildTargetCompile") shouldBe RequestLane.HEAVY
+    RequestLane.of("buildTargetRun") shouldBe RequestLane.RUN
+    RequestLane.of("buildTargetRunWithDebug") shouldBe RequestLane.RUN
+    RequestLane.of("jvmCompileClasspath") shouldBe RequestLane.QUERY
+    RequestLane.of("buildTargetInverseSources") shouldBe RequestLane.QUERY
+    RequestLane.of("buildTargetDependencySources") shouldBe RequestLane.INTERACTIVE
+    RequestLane.of("libraries") shouldBe RequestLane.INTERACTIVE
+    RequestLane.of("buildTargetSources") shouldBe RequestLane.INTERACTIVE
+    RequestLane.of("buildInitialize") shouldBe RequestLane.INTERACTIVE
+  }
+
+  @Test
+  fun `should answer an interactive request while the heavy lane is busy`() {
+    // given
+    val release = CountDownLatch(1)
+    val heavyRequests = fillHeavyLane(release)
+
+    // when
+    val sources = handleRequest("buildTargetSources") { "sources" }
+
+    // then
+    sources.get(10, TimeUnit.SECONDS) shouldBe "sources"
+    heavyRequests.any { it.isDone } shouldBe false
+    release.countDown()
+    CompletableFuture.allOf(*heavyRequests.toTypedArray()).get(10, TimeUnit.SECONDS)
+  }
+
+  @Test
+  fun `should start a run while the heavy lane is busy`() {
+    // given
+    val release = CountDownLatch(1)
+    val heavyRequests = fillHeavyLane(release)
+
+    // when
+    val run = handleRequest("buildTargetRun") { "run" }
+
+    // then
+    run.get(10, TimeUnit.SECONDS) shouldBe "run"
+    heavyRequests.any { it.isDone } shouldBe false
+    release.countDown()
+    CompletableFuture.allOf(*heavyRequests.toTypedArray()).get(10, TimeUnit.SECONDS)
+  }
+
+  @Test
+  fun `should not start a request cancelled while waiting in its lane`() {
+    // given
+    val release = CountDownLatch(1)
+    val heavyRequests = fillHeavyLane(release)
+    val started = AtomicBoolean(false)
+    val queuedRequest = handleRequest("buildTargetTest") { started.set(true) }
+
+    // when
+    queuedRequest.cancel(true)
+    release.countDown()
+    CompletableFuture.allOf(*heavyRequests.toTypedArray()).get(10, TimeUnit.SECONDS)
+    handleRequest("buildTargetCompile") { }.get(10, TimeUnit.SECONDS)
+
+    // then
+    started.get() shouldBe false
+  }
+}
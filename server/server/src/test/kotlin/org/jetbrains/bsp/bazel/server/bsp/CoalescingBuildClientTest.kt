@@ -0,0 +1,169 @@
+package org.jetbrains.bsp.bazel.server.bsp
+
+import ch.epfl.scala.bsp4j.DidChangeBuildTarget
+import ch.epfl.scala.bsp4j.LogMessageParams
+import ch.epfl.scala.bsp4j.MessageType
+import ch.epfl.scala.bsp4j.PrintParams
+import ch.epfl.scala.bsp4j.PublishDiagnosticsParams
+import ch.epfl.scala.bsp4j.ShowMessageParams
+import ch.epfl.scala.bsp4j.TaskFinishParams
+import ch.epfl.scala.bsp4j.TaskId
+import ch.epfl.scala.bsp4j.TaskProgressParams
+import ch.epfl.scala.bsp4j.TaskStartParams
+import io.kotest.matchers.shouldBe
+import org.jetbrains.bsp.protocol.JoinedBuildClient
+import org.jetbrains.bsp.protocol.PublishOutputParams
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class CoalescingBuildClientTest {
+  private class MockBuildClient : JoinedBuildClient {
+    val notifications: MutableList<String> = mutableListOf()
+    val latch = CountDownLatch(1)
+    var logThread: String? = null
+    var onTaskStart: () -> Unit = {}
+
+    override fun onBuildShowMessage(p0: ShowMessageParams?) {}
+
+    override fun onBuildLogMessage(p0: LogMessageParams?) {
+      notifications.add("log ${p0?.originId}: ${p0?.message}")
+      logThread = Thread.currentThread().name
+      latch.countDown()
+    }
+
+    override fun onBuildPublishDiagnostics(p0: PublishDiagnosticsParams?) {}
+
+    override fun onBuildTargetDidChange(p0: DidChangeBuildTarget?) {}
+
+    override fun onBuildTaskStart(p0: TaskStartParams?) {
+      onTaskStart()
+      notifications.add("start ${p0?.taskId?.id}")
+    }
+
+    override fun onBuildTaskProgress(p0: TaskProgressParams?) {}
+
+    override fun onBuildTaskFinish(p0: TaskFinishParams?) {}
+
+    override fun onRunPrintStdout(p0: PrintParams?) {
+      notifications.add("stdout ${p0?.originId}: ${p0?.message}")
+    }
+
+    override fun onRunPrintStderr(p0: PrintParams?) {}
+
+    override fun onBuildPublishOutput(params: PublishOutputParams) {}
+  }
+
+  private fun log(
+    message: String,
+    originId: String = "origin",
+    type: MessageType = MessageType.LOG,
+  ): LogMessageParams = LogMessageParams(type, message).apply { this.originId = originId }
+
+  @Test
+  fun `should merge consecutive log messages of the same origin`() {
+    // given
+    val mockClient = MockBuildClient()
+    val client = CoalescingBuildClient(mockClient, window = Duration.ofHours(1))
+
+    // when
+    client.onBuildLogMessage(log("line 1"))
+    client.onBuildLogMessage(log("line 2"))
+    client.onBuildLogMessage(log("line 3", originId = "other"))
+    client.onBuildLogMessage(log("line 4", originId = "other", type = MessageType.ERROR))
+    client.onRunPrintStdout(PrintParams("origin", "out 1\n"))
+    client.onRunPrintStdout(PrintParams("origin", "out 2\n"))
+    client.flush()
+
+    // then
+    mockClient.notifications shouldBe
+      listOf(
+        "log origin: line 1\nline 2",
+        "log other: line 3",
+        "log other: line 4",
+        "stdout origin: out 1\nout 2\n",
+      )
+  }
+
+  @Test
+  fun `should send pending lines before other notifications`() {
+    // given
+    val mockClient = MockBuildClient()
+    val client = CoalescingBuildClient(mockClient, window = Duration.ofHours(1))
+
+    // when
+    client.onBuildLogMessage(log("line 1"))
+    client.onBuildTaskStart(TaskStartParams(TaskId("task")))
+    client.onBuildLogMessage(log("line 2"))
+    client.onBuildLogMessage(log("line 3").apply { task = TaskId("task") })
+
+    // then
+    mockClient.notifications shouldBe listOf("log origin: line 1", "start task", "log origin: line 2")
+    client.flush()
+    mockClient.notifications.last() shouldBe "log origin: line 3"
+  }
+
+  @Test
+  fun `should not merge messages above the maximal length`() {
+    // given
+    val mockClient = MockBuildClient()
+    val client = CoalescingBuildClient(mockClient, window = Duration.ofHours(1), maxMessageLength = 10)
+
+    // when
+    client.onBuildLogMessage(log("12345"))
+    client.onBuildLogMessage(log("1234"))
+    client.onBuildLogMessage(log("1"))
+    client.flush()
+
+    // then
+    mockClient.notifications shouldBe listOf("log origin: 12345\n1234", "log origin: 1")
+  }
+
+  @Test
+  fun `should send pending lines when the window ends`() {
+    // given
+    val mockClient = MockBuildClient()
+    val client = CoalescingBuildClient(mockClient, window = Duration.ofMillis(10))
+
+    // when
+    client.onBuildLogMessage(log("line 1"))
+    client.onBuildLogMessage(log("line 2"))
+
+    // then
+    mockClient.latch.await(10, TimeUnit.SECONDS) shouldBe true
+    mockClient.notifications shouldBe listOf("log origin: line 1\nline 2")
+    mockClient.logThread shouldBe "bsp-notifications-sender"
+  }
+
+  @Test
+  fun `should merge lines while another notification is being sent`() {
+    // given
+    val mockClient = MockBuildClient()
+    val sendingStarted = CountDownLatch(1)
+    val finishSending = CountDownLatch(1)
+    mockClient.onTaskStart = {
+      sendingStarted.countDown()
+      finishSending.await()
+    }
+    val client = CoalescingBuildClient(mockClient, window = Duration.ofHours(1))
+    val slowNotification = thread { client.onBuildTaskStart(TaskStartParams(TaskId("task"))) }
+    sendingStarted.await(10, TimeUnit.SECONDS) shouldBe true
+
+    // when
+    val lines =
+      CompletableFuture.runAsync {
+        client.onBuildLogMessage(log("line 1"))
+        client.onBuildLogMessage(log("line 2"))
+      }
+    lines.get(10, TimeUnit.SECONDS)
+    finishSending.countDown()
+    slowNotification.join()
+    client.flush()
+
+    // then
+    mockClient.notifications shouldBe listOf("start task", "log origin: line 1\nline 2")
+  }
+}
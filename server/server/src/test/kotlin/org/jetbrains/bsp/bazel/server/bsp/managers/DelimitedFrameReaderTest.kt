@@ -0,0 +1,69 @@
+package org.jetbrains.bsp.bazel.server.bsp.managers
+
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.nio.channels.Channels
+
+class DelimitedFrameReaderTest {
+  @Test
+  fun `should return all frames which were written at once`() {
+    // given
+    val frames = listOf(frame(0), frame(1), frame(300), frame(5))
+    val frameReader = DelimitedFrameReader()
+
+    // when
+    frameReader.readFrom(Channels.newChannel(delimited(frames).inputStream()))
+    val readFrames = frameReader.drainAll()
+
+    // then
+    readFrames shouldBe frames
+    frameReader.hasIncompleteFrame shouldBe false
+  }
+
+  @Test
+  fun `should keep incomplete frames until the rest of them is read`() {
+    // given
+    val frames = listOf(frame(200), frame(100_000), frame(3))
+    val bytes = delimited(frames)
+    // the first chunk ends in the middle of the varint length of the second frame
+    val chunks = listOf(bytes.copyOfRange(0, 203), bytes.copyOfRange(203, 50_000), bytes.copyOfRange(50_000, bytes.size))
+    val frameReader = DelimitedFrameReader(initialCapacity = 16)
+
+    // when
+    val readFramesPerChunk =
+      chunks.map { chunk ->
+        val channel = Channels.newChannel(chunk.inputStream())
+        while (frameReader.readFrom(channel) > 0) {
+          // read everything what is available
+        }
+        frameReader.drainAll()
+      }
+
+    // then
+    readFramesPerChunk shouldBe listOf(listOf(frames[0]), emptyList(), listOf(frames[1], frames[2]))
+    frameReader.hasIncompleteFrame shouldBe false
+  }
+
+  private fun DelimitedFrameReader.drainAll(): List<List<Byte>> {
+    val frames = mutableListOf<List<Byte>>()
+    drainFrames { frame -> frames.add(ByteArray(frame.remaining()).also(frame::get).toList()) }
+    return frames
+  }
+
+  private fun frame(size: Int): List<Byte> = List(size) { (it % 127).toByte() }
+
+  private fun delimited(frames: List<List<Byte>>): ByteArray {
+    val output = ByteArrayOutputStream()
+    frames.forEach { frame ->
+      var length = frame.size
+      while (length >= 0x80) {
+        output.write((length and 0x7f) or 0x80)
+        length = length ushr 7
+      }
+      output.write(length)
+      output.write(frame.toByteArray())
+    }
+    return output.toByteArray()
+  }
+}
@@ -0,0 +1,88 @@
+package org.jetbrains.bsp.bazel.server.diagnostics
+
+import org.jetbrains.bsp.bazel.server.model.Label
+import java.nio.file.Paths
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares extracting diagnostics from a whole compiler output with streaming them line by line.
+ *
+ * Usage: `bazel run //server/server/src/test/kotlin/org/jetbrains/bsp/bazel/server/diagnostics:DiagnosticsParserBenchmark -- [lines]`
+ */
+fun main(args: Array<String>) {
+  val linesCount = args.firstOrNull()?.toInt() ?: 100_000
+  val lines = generateCompilerOutput(linesCount)
+  val output = lines.joinToString(System.lineSeparator())
+  val target = Label.parse("//path/to/package:test")
+  val service = DiagnosticsService(Paths.get("/user/workspace"))
+
+  repeat(WARMUP_ITERATIONS) {
+    service.extractDiagnostics(output, target, "originId")
+    streamDiagnostics(service, lines, target)
+  }
+  val wholeOutputMillis =
+    (1..MEASURED_ITERATIONS).map { measureNanoTime { service.extractDiagnostics(output, target, "originId") } / 1_000_000.0 }
+  val streamed = (1..MEASURED_ITERATIONS).map { streamDiagnostics(service, lines, target) }
+
+  println("Lines: $linesCount, published files: ${service.extractDiagnostics(output, target, "originId").size}")
+  println("Whole output: ${wholeOutputMillis.average()} ms (min ${wholeOutputMillis.min()} ms)")
+  println("Streamed:     ${streamed.map { it.totalMillis }.average()} ms (min ${streamed.minOf { it.totalMillis }} ms)")
+  println("First file published after ${streamed.map { it.firstPublishMillis }.average()} ms when streamed")
+}
+
+private const val WARMUP_ITERATIONS = 5
+private const val MEASURED_ITERATIONS = 10
+
+private class StreamedResult(val firstPublishMillis: Double, val totalMillis: Double)
+
+private fun streamDiagnostics(
+  service: DiagnosticsService,
+  lines: List<String>,
+  target: Label,
+): StreamedResult {
+  val start = System.nanoTime()
+  var firstPublish: Long? = null
+  val stream = service.streamDiagnostics(target, "originId") { if (firstPublish == null) firstPublish = System.nanoTime() }
+  lines.forEach(stream::onLine)
+  stream.finish()
+  val end = System.nanoTime()
+  return StreamedResult(((firstPublish ?: end) - start) / 1_000_000.0, (end - start) / 1_000_000.0)
+}
+
+// javac and scalac diagnostics of a few files each, separated by progress messages and worker stack traces
+private fun generateCompilerOutput(linesCount: Int): List<String> {
+  val lines = mutableListOf<String>()
+  var index = 0
+  while (lines.size < linesCount) {
+    val file = index / 5
+    when (index % 4) {
+      0 -> {
+        lines += "src/main/java/com/example/File$file.java:${index + 1}: error: cannot find symbol"
+        lines += "    return value$index;"
+        lines += "           ^"
+        lines += "  symbol:   variable value$index"
+        lines += "  location: class File$file"
+      }
+      1 -> {
+        lines += "src/main/scala/com/example/File$file.scala:${index + 1}: warning: discarded non-Unit value"
+        lines += "    values.map(_ + $index)"
+        lines += "              ^"
+      }
+      2 -> {
+        lines += "-- [E007] Type Mismatch Error: src/main/scala/com/example/File$file.scala:${index + 1}:16 ------------"
+        lines += "${index + 1} |  val x: Int = \"$index\""
+        lines += "   |                ^^^^^"
+        lines += "   |                Found:    (\"$index\" : String)"
+        lines += "   |                Required: Int"
+      }
+      else -> {
+        lines += "[$index / $linesCount] Compiling src/main/java/com/example/File$file.java"
+        lines += "INFO: From Compiling //src/main/java/com/example:lib$file:"
+        lines += "java.lang.RuntimeException: Build failed"
+        (0 until 10).forEach { lines += "  at io.bazel.rulesscala.scalac.ScalacWorker.work(ScalacWorker.java:$it)" }
+      }
+    }
+    index++
+  }
+  return lines.take(linesCount)
+}
@@ -6,6 +6,7 @@ import ch.epfl.scala.bsp4j.PublishDiagnosticsParams
 import ch.epfl.scala.bsp4j.Range
 import ch.epfl.scala.bsp4j.TextDocumentIdentifier
 import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.shouldBe
 import org.jetbrains.bsp.bazel.server.model.Label
 import org.junit.jupiter.api.Test
 import java.nio.file.Paths
@@ -703,6 +704,82 @@ class DiagnosticsServiceTest {
     diagnostics shouldContainExactlyInAnyOrder expected
   }
 
+  @Test
+  fun `should publish diagnostics of a file before the output ends`() {
+    // given
+    val published = mutableListOf<PublishDiagnosticsParams>()
+    val stream = DiagnosticsService(workspacePath).streamDiagnostics(Label.parse("//path/to/package:test"), "originId") { published.add(it) }
+    val firstFileErrors =
+      """
+      |path/to/package/First.java:10: error: cannot find symbol
+      |    return first;
+      |           ^
+      |path/to/package/First.java:20: error: cannot find symbol
+      |    return second;
+      |           ^
+      |path/to/package/Second.java:5: error: ';' expected
+      |    int x = 1
+      |             ^
+      """.trimMargin()
+
+    // when
+    firstFileErrors.lines().forEach(stream::onLine)
+    repeat(20) { stream.onLine("[$it / 20] Compiling path/to/package/Third.java") }
+    val publishedBeforeFinish = published.toList()
+    stream.finish()
+
+    // then
+    publishedBeforeFinish.map { it.textDocument.uri } shouldBe listOf("file:///user/workspace/path/to/package/First.java")
+    publishedBeforeFinish.single().diagnostics.size shouldBe 2
+    published.map { it.textDocument.uri } shouldBe
+      listOf("file:///user/workspace/path/to/package/First.java", "file:///user/workspace/path/to/package/Second.java")
+  }
+
+  @Test
+  fun `should stream the same diagnostics as extracted from the whole output`() {
+    // given
+    val target = Label.parse("//path/to/package:test")
+    val output =
+      (0 until 200).joinToString(System.lineSeparator()) { index ->
+        val stackTrace = (0 until index % 40).joinToString(System.lineSeparator()) { "  at com.example.Worker.work(Worker.java:$it)" }
+        """
+        |path/to/package/File${index / 3}.java:$index: ${if (index % 2 == 0) "error" else "warning"}: problem number $index
+        |    int x$index = "$index";
+        |         ^
+        |$stackTrace
+        |-- [E007] Type Mismatch Error: path/to/package/File${index / 3}.scala:$index:4 ---------
+        |$index |  val x: Int = "$index"
+        |  |               ^^^^^
+        |  |               Found:    ("$index" : String)
+        |  |               Required: Int
+        |INFO: From Compiling //path/to/package:test$index:
+        """.trimMargin()
+      }
+    val published = mutableListOf<PublishDiagnosticsParams>()
+    val stream = DiagnosticsService(workspacePath).streamDiagnostics(target, "originId") { published.add(it) }
+
+    // when
+    output.lines().forEach(stream::onLine)
+    stream.finish()
+
+    // then
+    val streamed = published.associateBy { it.textDocument.uri }.values.toList()
+    streamed shouldContainExactlyInAnyOrder extractDiagnostics(output, target)
+  }
+
+  @Test
+  fun `should not publish anything for an empty streamed output`() {
+    // given
+    val published = mutableListOf<PublishDiagnosticsParams>()
+    val stream = DiagnosticsService(workspacePath).streamDiagnostics(Label.parse("//path/to/package:test"), "originId") { published.add(it) }
+
+    // when
+    stream.finish()
+
+    // then
+    published shouldBe emptyList()
+  }
+
   private fun publishDiagnosticsParams(
     textDocument: TextDocumentIdentifier,
     buildTarget: BuildTargetIdentifier,
@@ -0,0 +1,172 @@
+package org.jetbrains.bsp.bazel.server.paths
+
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BasicBazelInfo
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.bazelrunner.utils.orLatestSupported
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.FileLocation
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import java.nio.file.Paths
+import kotlin.io.path.createDirectories
+
+class BazelPathsResolverTest {
+  private val outputBase = "/private/var/tmp/_bazel/125c7a6ca879ed16a4b4b1a74bc5f27b"
+  private val execRoot = "$outputBase/execroot/bazel_bsp"
+  private val workspaceRoot = "/Users/user/workspace/bazel-bsp"
+  private lateinit var bazelPathsResolver: BazelPathsResolver
+
+  @BeforeEach
+  fun beforeEach() {
+    // given
+    val bazelInfo =
+      BasicBazelInfo(
+        execRoot = execRoot,
+        outputBase = Paths.get(outputBase),
+        workspaceRoot = Paths.get(workspaceRoot),
+        release = BazelRelease.fromReleaseString("release 6.0.0").orLatestSupported(),
+        false,
+      )
+
+    bazelPathsResolver = BazelPathsResolver(bazelInfo)
+  }
+
+  @Test
+  fun `should resolve main workspace source against the workspace root`() {
+    // given
+    val fileLocation = fileLocation("src/main/java/Main.java", isSource = true)
+
+    // when
+    val path = bazelPathsResolver.resolve(fileLocation)
+
+    // then
+    path shouldBe Paths.get("$workspaceRoot/src/main/java/Main.java")
+  }
+
+  @Test
+  fun `should resolve generated file against the execution root`() {
+    // given
+    val fileLocation = fileLocation("src/lib.jar", rootExecutionPathFragment = "bazel-out/k8-fastbuild/bin")
+
+    // when
+    val path = bazelPathsResolver.resolve(fileLocation)
+
+    // then
+    path shouldBe Paths.get("$execRoot/bazel-out/k8-fastbuild/bin/src/lib.jar")
+  }
+
+  @Test
+  fun `should resolve external file against the output base`() {
+    // given
+    val fileLocation =
+      fileLocation("guava.jar", isSource = true, isExternal = true, rootExecutionPathFragment = "external/maven")
+
+    // when
+    val path = bazelPathsResolver.resolve(fileLocation)
+
+    // then
+    path shouldBe Paths.get("$outputBase/external/maven/guava.jar")
+  }
+
+  @Test
+  fun `should keep absolute path even if the file does not exist`() {
+    // given
+    val fileLocation = fileLocation("/non/existing/jdk/lib/jrt-fs.jar", rootExecutionPathFragment = "bazel-out/k8-fastbuild/bin")
+
+    // when
+    val path = bazelPathsResolver.resolve(fileLocation)
+
+    // then
+    path shouldBe Paths.get("/non/existing/jdk/lib/jrt-fs.jar")
+  }
+
+  @Test
+  fun `should resolve exec root relative external path against the output base`() {
+    // when
+    val externalPath = bazelPathsResolver.resolveOutput(Paths.get("external/maven/guava.jar"))
+    val outputPath = bazelPathsResolver.resolveOutput(Paths.get("bazel-out/k8-fastbuild/bin/lib.jar"))
+
+    // then
+    externalPath shouldBe Paths.get("$outputBase/external/maven/guava.jar")
+    outputPath shouldBe Paths.get("$execRoot/bazel-out/k8-fastbuild/bin/lib.jar")
+  }
+
+  @Test
+  fun `should return cached path and uri for the same location`() {
+    // given
+    val fileLocation = fileLocation("src/lib.jar", rootExecutionPathFragment = "bazel-out/k8-fastbuild/bin")
+    val sameFileLocation = fileLocation("lib.jar", rootExecutionPathFragment = "bazel-out/k8-fastbuild/bin/src")
+
+    // when
+    val path = bazelPathsResolver.resolve(fileLocation)
+    val uri = bazelPathsResolver.resolveUri(fileLocation)
+
+    // then
+    bazelPathsResolver.resolve(sameFileLocation) shouldBeSameInstanceAs path
+    bazelPathsResolver.resolveUri(sameFileLocation) shouldBeSameInstanceAs uri
+    bazelPathsResolver.resolveUri(path) shouldBeSameInstanceAs uri
+    uri shouldBe path.toUri()
+  }
+
+  @Test
+  fun `should resolve uri of a path outside of the roots`() {
+    // given
+    val path = Paths.get("relative/path/lib.jar")
+
+    // when
+    val uri = bazelPathsResolver.resolveUri(path)
+
+    // then
+    uri shouldBe path.toUri()
+  }
+
+  @Test
+  fun `should keep the path but resolve the uri again after a sync`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    val bazelPathsResolver =
+      BazelPathsResolver(
+        BasicBazelInfo(
+          execRoot = workspaceRoot.resolve("execroot").toString(),
+          outputBase = workspaceRoot.resolve("output_base"),
+          workspaceRoot = workspaceRoot,
+          release = BazelRelease.fromReleaseString("release 6.0.0").orLatestSupported(),
+          false,
+        ),
+      )
+    val fileLocation = fileLocation("src/generated", isSource = true)
+    val pathBeforeSync = bazelPathsResolver.resolve(fileLocation)
+    val uriBeforeDirectoryExists = bazelPathsResolver.resolveUri(fileLocation)
+    workspaceRoot.resolve("src/generated").createDirectories()
+
+    // when
+    val cachedUri = bazelPathsResolver.resolveUri(fileLocation)
+    bazelPathsResolver.trimCache()
+    val pathAfterSync = bazelPathsResolver.resolve(fileLocation)
+    val uriAfterSync = bazelPathsResolver.resolveUri(fileLocation)
+
+    // then
+    uriBeforeDirectoryExists.toString().endsWith("/") shouldBe false
+    cachedUri shouldBeSameInstanceAs uriBeforeDirectoryExists
+    uriAfterSync.toString().endsWith("/") shouldBe true
+    pathAfterSync shouldBeSameInstanceAs pathBeforeSync
+  }
+
+  private fun fileLocation(
+    relativePath: String,
+    isSource: Boolean = false,
+    isExternal: Boolean = false,
+    rootExecutionPathFragment: String = "",
+  ): FileLocation =
+    FileLocation
+      .newBuilder()
+      .setRelativePath(relativePath)
+      .setIsSource(isSource)
+      .setIsExternal(isExternal)
+      .setRootExecutionPathFragment(rootExecutionPathFragment)
+      .build()
+}
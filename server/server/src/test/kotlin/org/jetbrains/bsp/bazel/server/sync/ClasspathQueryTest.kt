@@ -0,0 +1,186 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import org.eclipse.lsp4j.jsonrpc.CancelChecker
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.model.Project
+import org.jetbrains.bsp.bazel.server.sync.ClasspathQuery.JvmClasspath
+import org.junit.jupiter.api.Test
+import java.io.StringReader
+import java.net.URI
+
+class ClasspathQueryTest {
+  private val noCancel = CancelChecker { }
+  private val queriedExpressions = mutableListOf<String>()
+
+  private fun project() =
+    Project(
+      workspaceRoot = URI.create("file:///workspace/"),
+      modules = emptyList(),
+      sourceToTarget = emptyMap(),
+      libraries = emptyMap(),
+      invalidTargets = emptyList(),
+      bazelRelease = BazelRelease(7),
+    )
+
+  private fun classpathJson(label: String, runtime: List<String>, compile: List<String> = emptyList()) =
+    """{"label": "$label", "kind": "java_library", "runtime_classpath": ${runtime.toJson()}, "compile_classpath": ${compile.toJson()}}"""
+
+  private fun List<String>.toJson() = joinToString(prefix = "[", postfix = "]") { "\"$it\"" }
+
+  // answers the cquery with the printed objects of the targets in the `set(...)` expression
+  private fun classpathQuery(printedObjects: Map<String, List<String>>) =
+    ClasspathQuery { targetsExpression, _ ->
+      queriedExpressions += targetsExpression
+      val targets = targetsExpression.removePrefix("set(").removeSuffix(")").split(" ")
+      StringReader(targets.flatMap { printedObjects[it].orEmpty() }.joinToString("\n"))
+    }
+
+  @Test
+  fun `should parse the classpaths printed for every target`() {
+    // given
+    val query =
+      classpathQuery(
+        mapOf(
+          "@//app:app" to listOf(classpathJson("@//app:app", listOf("app.jar", "lib.jar"), listOf("lib-header.jar"))),
+          "@//lib:lib" to listOf(classpathJson("@//lib:lib", listOf("lib.jar"))),
+        ),
+      )
+
+    // when
+    val classpaths = query.classPathQuery(project(), listOf(Label.parse("//app:app"), Label.parse("//lib:lib")), noCancel)
+
+    // then
+    classpaths shouldBe
+      mapOf(
+        Label.parse("//app:app") to JvmClasspath(listOf("app.jar", "lib.jar"), listOf("lib-header.jar")),
+        Label.parse("//lib:lib") to JvmClasspath(listOf("lib.jar"), emptyList()),
+      )
+  }
+
+  @Test
+  fun `should keep the bigger classpath of a target printed in many configurations`() {
+    // given
+    val query =
+      classpathQuery(
+        mapOf(
+          "@//app:app" to
+            listOf(
+              classpathJson("@//app:app", listOf("app.jar")),
+              classpathJson("@//app:app", listOf("app.jar", "lib.jar")),
+              classpathJson("@//app:app", emptyList()),
+            ),
+        ),
+      )
+
+    // when
+    val classpaths = query.classPathQuery(project(), listOf(Label.parse("//app:app")), noCancel)
+
+    // then
+    classpaths shouldBe mapOf(Label.parse("//app:app") to JvmClasspath(listOf("app.jar", "lib.jar"), emptyList()))
+  }
+
+  @Test
+  fun `should skip unknown fields and nested values of the printed objects`() {
+    // given
+    val printedObject =
+      """{"providers": {"JavaInfo": [1, {"nested": true}]}, "label": "@//app:app", "runtime_classpath": ["app.jar"], "extra": null}"""
+    val query = classpathQuery(mapOf("@//app:app" to listOf(printedObject)))
+
+    // when
+    val classpaths = query.classPathQuery(project(), listOf(Label.parse("//app:app")), noCancel)
+
+    // then
+    classpaths shouldBe mapOf(Label.parse("//app:app") to JvmClasspath(listOf("app.jar"), emptyList()))
+  }
+
+  @Test
+  fun `should query all missing targets at once and reuse the cached classpaths`() {
+    // given
+    val query =
+      classpathQuery(
+        listOf("a", "b", "c").associate { "@//$it:$it" to listOf(classpathJson("@//$it:$it", listOf("$it.jar"))) },
+      )
+    val project = project()
+
+    // when
+    query.classPathQuery(project, listOf(Label.parse("//a:a"), Label.parse("//b:b"), Label.parse("//a:a")), noCancel)
+    val classpaths = query.classPathQuery(project, listOf(Label.parse("//a:a"), Label.parse("//c:c")), noCancel)
+    query.classPathQuery(project, listOf(Label.parse("//b:b"), Label.parse("//c:c")), noCancel)
+
+    // then
+    classpaths shouldBe
+      mapOf(
+        Label.parse("//a:a") to JvmClasspath(listOf("a.jar"), emptyList()),
+        Label.parse("//c:c") to JvmClasspath(listOf("c.jar"), emptyList()),
+      )
+    queriedExpressions shouldBe listOf("set(@//a:a @//b:b)", "set(@//c:c)")
+  }
+
+  @Test
+  fun `should query the targets again for a new project`() {
+    // given
+    val query = classpathQuery(mapOf("@//a:a" to listOf(classpathJson("@//a:a", listOf("a.jar")))))
+    query.classPathQuery(project(), listOf(Label.parse("//a:a")), noCancel)
+
+    // when
+    query.classPathQuery(project(), listOf(Label.parse("//a:a")), noCancel)
+
+    // then
+    queriedExpressions shouldBe listOf("set(@//a:a)", "set(@//a:a)")
+  }
+
+  @Test
+  fun `should match labels printed with canonical repository names to the requested ones in a batch`() {
+    // given
+    val query =
+      classpathQuery(
+        mapOf(
+          "@//app:app" to listOf(classpathJson("@@//app:app", listOf("app.jar"))),
+          "@rules_jvm_external//:jar" to listOf(classpathJson("@@rules_jvm_external~5.3//:jar", listOf("rje.jar"))),
+          "@other_jvm_external//:jar" to listOf(classpathJson("@@_main~maven~other_jvm_external//:jar", listOf("other.jar"))),
+        ),
+      )
+
+    // when
+    val classpaths =
+      query.classPathQuery(
+        project(),
+        listOf(Label.parse("//app:app"), Label.parse("@rules_jvm_external//:jar"), Label.parse("@other_jvm_external//:jar")),
+        noCancel,
+      )
+
+    // then
+    classpaths shouldBe
+      mapOf(
+        Label.parse("//app:app") to JvmClasspath(listOf("app.jar"), emptyList()),
+        Label.parse("@rules_jvm_external//:jar") to JvmClasspath(listOf("rje.jar"), emptyList()),
+        Label.parse("@other_jvm_external//:jar") to JvmClasspath(listOf("other.jar"), emptyList()),
+      )
+  }
+
+  @Test
+  fun `should match a single target to whatever label was printed for it`() {
+    // given
+    val query = classpathQuery(mapOf("@//app:alias" to listOf(classpathJson("@//app:actual", listOf("app.jar")))))
+
+    // when
+    val classpaths = query.classPathQuery(project(), listOf(Label.parse("//app:alias")), noCancel)
+
+    // then
+    classpaths shouldBe mapOf(Label.parse("//app:alias") to JvmClasspath(listOf("app.jar"), emptyList()))
+  }
+
+  @Test
+  fun `should fail for a target without a printed classpath`() {
+    // given
+    val query = classpathQuery(mapOf("@//a:a" to listOf(classpathJson("@//a:a", listOf("a.jar")))))
+
+    // when & then
+    shouldThrow<RuntimeException> {
+      query.classPathQuery(project(), listOf(Label.parse("//a:a"), Label.parse("//b:b")), noCancel)
+    }
+  }
+}
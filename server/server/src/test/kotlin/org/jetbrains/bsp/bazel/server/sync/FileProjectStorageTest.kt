@@ -0,0 +1,160 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import io.kotest.matchers.shouldBe
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BasicBazelInfo
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.server.bsp.info.BspInfo
+import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.model.Project
+import org.jetbrains.bsp.bazel.workspacecontext.AllowManualTargetsSyncSpec
+import org.jetbrains.bsp.bazel.workspacecontext.BazelBinarySpec
+import org.jetbrains.bsp.bazel.workspacecontext.BuildFlagsSpec
+import org.jetbrains.bsp.bazel.workspacecontext.DirectoriesSpec
+import org.jetbrains.bsp.bazel.workspacecontext.DotBazelBspDirPathSpec
+import org.jetbrains.bsp.bazel.workspacecontext.EnabledRulesSpec
+import org.jetbrains.bsp.bazel.workspacecontext.ExperimentalAddTransitiveCompileTimeJars
+import org.jetbrains.bsp.bazel.workspacecontext.ExperimentalUseLibOverModSpec
+import org.jetbrains.bsp.bazel.workspacecontext.IdeJavaHomeOverrideSpec
+import org.jetbrains.bsp.bazel.workspacecontext.ImportDepthSpec
+import org.jetbrains.bsp.bazel.workspacecontext.TargetsSpec
+import org.jetbrains.bsp.bazel.workspacecontext.WorkspaceContext
+import org.jetbrains.bsp.bazel.workspacecontext.WorkspaceContextProvider
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.DataOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.GZIPOutputStream
+import kotlin.io.path.Path
+
+class FileProjectStorageTest {
+  private val workspaceContext =
+    WorkspaceContext(
+      targets = TargetsSpec(listOf(BuildTargetIdentifier("//...")), emptyList()),
+      directories = DirectoriesSpec(listOf(Path(".")), emptyList()),
+      buildFlags = BuildFlagsSpec(emptyList()),
+      bazelBinary = BazelBinarySpec(Path("bazel")),
+      allowManualTargetsSync = AllowManualTargetsSyncSpec(false),
+      dotBazelBspDirPath = DotBazelBspDirPathSpec(Path(".bazelbsp")),
+      importDepth = ImportDepthSpec(-1),
+      enabledRules = EnabledRulesSpec(emptyList()),
+      ideJavaHomeOverrideSpec = IdeJavaHomeOverrideSpec(null),
+      experimentalUseLibOverModSection = ExperimentalUseLibOverModSpec(false),
+      experimentalAddTransitiveCompileTimeJars = ExperimentalAddTransitiveCompileTimeJars(false),
+    )
+
+  private fun project(workspaceRoot: Path) =
+    Project(
+      workspaceRoot = workspaceRoot.toUri(),
+      modules = emptyList(),
+      sourceToTarget = mapOf(workspaceRoot.resolve("app/Main.kt").toUri() to Label.parse("//app:app")),
+      libraries = emptyMap(),
+      invalidTargets = listOf(Label.parse("//broken:broken")),
+      bazelRelease = BazelRelease(7),
+    )
+
+  private fun storage(
+    workspaceRoot: Path,
+    release: Int = 7,
+    workspaceContext: WorkspaceContext = this.workspaceContext,
+  ) = FileProjectStorage(
+    BspInfo(workspaceRoot),
+    BasicBazelInfo(
+      execRoot = workspaceRoot.resolve("execroot").toString(),
+      outputBase = workspaceRoot.resolve("output_base"),
+      workspaceRoot = workspaceRoot,
+      release = BazelRelease(release),
+      isBzlModEnabled = false,
+    ),
+    object : WorkspaceContextProvider {
+      override fun currentWorkspaceContext(): WorkspaceContext = workspaceContext
+    },
+  )
+
+  @Test
+  fun `should load the stored project`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    val project = project(workspaceRoot)
+    storage(workspaceRoot).store(project)
+
+    // when
+    val loadedProject = storage(workspaceRoot).load()
+
+    // then
+    loadedProject shouldBe project
+  }
+
+  @Test
+  fun `should not load a project if nothing was stored`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // when
+    val loadedProject = storage(workspaceRoot).load()
+
+    // then
+    loadedProject shouldBe null
+  }
+
+  @Test
+  fun `should not load a project stored for another project view`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    storage(workspaceRoot).store(project(workspaceRoot))
+
+    // when
+    val loadedProject = storage(workspaceRoot, workspaceContext = workspaceContext.copy(importDepth = ImportDepthSpec(1))).load()
+
+    // then
+    loadedProject shouldBe null
+  }
+
+  @Test
+  fun `should not load a project stored for another bazel release`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    storage(workspaceRoot, release = 6).store(project(workspaceRoot))
+
+    // when
+    val loadedProject = storage(workspaceRoot, release = 7).load()
+
+    // then
+    loadedProject shouldBe null
+  }
+
+  @Test
+  fun `should not load a snapshot in another format`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    val snapshotFile = BspInfo(workspaceRoot).bazelBspDir().resolve("project-snapshot.bin")
+    Files.createDirectories(snapshotFile.parent)
+    DataOutputStream(GZIPOutputStream(Files.newOutputStream(snapshotFile))).use { it.writeInt(0) }
+
+    // when
+    val loadedProject = storage(workspaceRoot).load()
+
+    // then
+    loadedProject shouldBe null
+  }
+
+  @Test
+  fun `should not load a corrupted snapshot`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    val snapshotFile = BspInfo(workspaceRoot).bazelBspDir().resolve("project-snapshot.bin")
+    Files.createDirectories(snapshotFile.parent)
+    Files.write(snapshotFile, byteArrayOf(1, 2, 3))
+
+    // when
+    val loadedProject = storage(workspaceRoot).load()
+
+    // then
+    loadedProject shouldBe null
+  }
+}
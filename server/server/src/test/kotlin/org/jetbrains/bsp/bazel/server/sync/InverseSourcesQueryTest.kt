@@ -0,0 +1,389 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import ch.epfl.scala.bsp4j.BuildTargetIdentifier
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.shouldBe
+import org.eclipse.lsp4j.jsonrpc.CancelChecker
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.model.Language
+import org.jetbrains.bsp.bazel.server.model.Module
+import org.jetbrains.bsp.bazel.server.model.Project
+import org.jetbrains.bsp.bazel.server.model.SourceSet
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.Collections
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.io.path.Path
+import kotlin.io.path.createDirectories
+import kotlin.io.path.createFile
+
+class InverseSourcesQueryTest {
+  private val noCancel = CancelChecker { }
+
+  // the rules of every package with their srcs, as `bazel query` would report them
+  private val rulesByPackage =
+    mutableMapOf(
+      "app" to mapOf("//app:app" to listOf("//app:Main.java", "//app:sub/Util.java")),
+      "lib" to mapOf("//lib:lib" to listOf("//lib:Lib.java"), "//lib:lib_alias" to listOf("//lib:Lib.java")),
+      "other" to mapOf("//other:other" to listOf("//other:Other.java")),
+    )
+  private val queriedPatterns: MutableList<String> = Collections.synchronizedList(mutableListOf())
+
+  private fun runPackagesQuery(pattern: String): String {
+    queriedPatterns += pattern
+    val packages = pattern.split(" + ").map { it.removePrefix("//").removeSuffix(":*") }
+    val rules =
+      packages.flatMap { rulesByPackage[it].orEmpty().entries }.joinToString("\n") { (rule, srcs) ->
+        """
+        <rule class="java_library" name="$rule">
+          <list name="srcs">${srcs.joinToString("") { "<label value=\"$it\"/>" }}</list>
+          <list name="deps"><label value="//unrelated:dep"/></list>
+        </rule>
+        """.trimIndent()
+      }
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<query version=\"2\">\n$rules\n</query>"
+  }
+
+  private fun createWorkspace(workspaceRoot: Path) {
+    listOf("app/BUILD", "app/Main.java", "app/sub/Util.java", "lib/BUILD.bazel", "lib/Lib.java", "other/BUILD", "other/Other.java")
+      .forEach { workspaceRoot.resolve(it).also { file -> file.parent.createDirectories() }.createFile() }
+  }
+
+  private fun project(workspaceRoot: Path, modules: List<Module> = emptyList()) =
+    Project(
+      workspaceRoot = workspaceRoot.toUri(),
+      modules = modules,
+      sourceToTarget = emptyMap(),
+      libraries = emptyMap(),
+      invalidTargets = emptyList(),
+      bazelRelease = BazelRelease(7),
+    )
+
+  private fun module(label: String, sources: List<Path>) =
+    Module(
+      label = Label.parse(label),
+      isSynthetic = false,
+      directDependencies = emptyList(),
+      languages = setOf(Language.JAVA),
+      tags = emptySet(),
+      baseDirectory = sources.first().parent.toUri(),
+      sourceSet = SourceSet(sources.map { it.toUri() }.toSet(), emptySet(), emptySet()),
+      resources = emptySet(),
+      outputs = emptySet(),
+      sourceDependencies = emptySet(),
+      languageData = null,
+      environmentVariables = emptyMap(),
+    )
+
+  private fun InverseSourcesQuery.targetsOf(
+    project: Project,
+    document: String,
+    cancelChecker: CancelChecker = noCancel,
+  ): List<BuildTargetIdentifier> = inverseSources(project, Path(document), cancelChecker).targets
+
+  private class CancellableRequest {
+    private val cancelled = AtomicBoolean(false)
+    val cancelChecker = CancelChecker { if (cancelled.get()) throw CancellationException() }
+
+    @Volatile
+    var result: Result<List<BuildTargetIdentifier>>? = null
+
+    val wasCancelled: Boolean
+      get() = result?.exceptionOrNull() is CancellationException
+
+    fun cancel() = cancelled.set(true)
+  }
+
+  // a query which runs until it is finished or cancelled, like a bazel query would
+  private fun blockingQuery(queryStarted: CountDownLatch, finishQuery: CountDownLatch, queryCancelled: AtomicBoolean) =
+    InverseSourcesQuery { pattern, _, cancelChecker ->
+      queryStarted.countDown()
+      try {
+        while (!finishQuery.await(10, TimeUnit.MILLISECONDS)) cancelChecker.checkCanceled()
+      } catch (e: CancellationException) {
+        queryCancelled.set(true)
+        throw e
+      }
+      runPackagesQuery(pattern)
+    }
+
+  private fun InverseSourcesQuery.request(
+    project: Project,
+    document: String,
+    request: CancellableRequest,
+  ): Thread = Thread { request.result = runCatching { targetsOf(project, document, request.cancelChecker) } }.apply { start() }
+
+  private fun Thread.awaitWaiting() {
+    while (state != Thread.State.TIMED_WAITING) Thread.sleep(10)
+  }
+
+  @Test
+  fun `should answer files of synced targets from the project without querying`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot, listOf(module("//lib:lib", listOf(workspaceRoot.resolve("lib/Lib.java")))))
+    val query = InverseSourcesQuery { pattern, _, _ -> runPackagesQuery(pattern) }
+
+    // when
+    val targets = query.targetsOf(project, "lib/Lib.java")
+
+    // then
+    targets shouldBe listOf(BuildTargetIdentifier("@//lib:lib"))
+    queriedPatterns shouldBe emptyList()
+  }
+
+  @Test
+  fun `should query the package once for many files of it`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val query = InverseSourcesQuery { pattern, _, _ -> runPackagesQuery(pattern) }
+
+    // when
+    val mainTargets = query.targetsOf(project, "app/Main.java")
+    val utilTargets = query.targetsOf(project, "app/sub/Util.java")
+
+    // then
+    mainTargets shouldBe listOf(BuildTargetIdentifier("@//app:app"))
+    utilTargets shouldBe listOf(BuildTargetIdentifier("@//app:app"))
+    queriedPatterns shouldBe listOf("//app:*")
+  }
+
+  @Test
+  fun `should find the targets of files across packages`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val query = InverseSourcesQuery { pattern, _, _ -> runPackagesQuery(pattern) }
+
+    // when
+    val libTargets = query.targetsOf(project, "lib/Lib.java")
+    val otherTargets = query.targetsOf(project, "other/Other.java")
+
+    // then
+    libTargets shouldContainExactlyInAnyOrder listOf(BuildTargetIdentifier("@//lib:lib"), BuildTargetIdentifier("@//lib:lib_alias"))
+    otherTargets shouldBe listOf(BuildTargetIdentifier("@//other:other"))
+    queriedPatterns shouldBe listOf("//lib:*", "//other:*")
+  }
+
+  @Test
+  fun `should query packages requested during a running query in one batch`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val firstQueryStarted = CountDownLatch(1)
+    val finishFirstQuery = CountDownLatch(1)
+    val query =
+      InverseSourcesQuery { pattern, _, _ ->
+        if (queriedPatterns.isEmpty()) {
+          firstQueryStarted.countDown()
+          finishFirstQuery.await()
+        }
+        runPackagesQuery(pattern)
+      }
+    val results = Collections.synchronizedMap(mutableMapOf<String, List<BuildTargetIdentifier>>())
+    fun request(document: String) = Thread { results[document] = query.targetsOf(project, document) }.apply { start() }
+
+    // when
+    val appRequest = request("app/Main.java")
+    firstQueryStarted.await(10, TimeUnit.SECONDS) shouldBe true
+    val waitingRequests = listOf(request("lib/Lib.java"), request("other/Other.java"))
+    // both requests wait for the results of the next query once their packages are pending
+    waitingRequests.forEach { request ->
+      while (request.state != Thread.State.TIMED_WAITING) Thread.sleep(10)
+    }
+    finishFirstQuery.countDown()
+    (waitingRequests + appRequest).forEach { it.join(10_000) }
+
+    // then
+    results["app/Main.java"] shouldBe listOf(BuildTargetIdentifier("@//app:app"))
+    results["lib/Lib.java"]!! shouldContainExactlyInAnyOrder
+      listOf(BuildTargetIdentifier("@//lib:lib"), BuildTargetIdentifier("@//lib:lib_alias"))
+    results["other/Other.java"] shouldBe listOf(BuildTargetIdentifier("@//other:other"))
+    queriedPatterns.size shouldBe 2
+    queriedPatterns[0] shouldBe "//app:*"
+    queriedPatterns[1].split(" + ") shouldContainExactlyInAnyOrder listOf("//lib:*", "//other:*")
+  }
+
+  @Test
+  fun `should query the package again when its BUILD file changes`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val query = InverseSourcesQuery { pattern, _, _ -> runPackagesQuery(pattern) }
+    query.targetsOf(project, "other/Other.java")
+
+    // when
+    rulesByPackage["other"] = mapOf("//other:renamed" to listOf("//other:Other.java"))
+    val buildFile = workspaceRoot.resolve("other/BUILD")
+    Files.setLastModifiedTime(buildFile, FileTime.fromMillis(Files.getLastModifiedTime(buildFile).toMillis() + 10_000))
+    val targets = query.targetsOf(project, "other/Other.java")
+
+    // then
+    targets shouldBe listOf(BuildTargetIdentifier("@//other:renamed"))
+    queriedPatterns shouldBe listOf("//other:*", "//other:*")
+  }
+
+  @Test
+  fun `should query the package again for a file added after the query`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val query = InverseSourcesQuery { pattern, _, _ -> runPackagesQuery(pattern) }
+    query.targetsOf(project, "other/Other.java")
+
+    // when
+    rulesByPackage["other"] = mapOf("//other:other" to listOf("//other:Other.java", "//other:New.java"))
+    val newFile = workspaceRoot.resolve("other/New.java").createFile()
+    Files.setLastModifiedTime(newFile, FileTime.fromMillis(System.currentTimeMillis() + 10_000))
+    val targets = query.targetsOf(project, "other/New.java")
+
+    // then
+    targets shouldBe listOf(BuildTargetIdentifier("@//other:other"))
+    queriedPatterns shouldBe listOf("//other:*", "//other:*")
+  }
+
+  @Test
+  fun `should keep the cached package for an older file which is in no target`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val query = InverseSourcesQuery { pattern, _, _ -> runPackagesQuery(pattern) }
+    val unusedFile = workspaceRoot.resolve("other/Unused.java").createFile()
+    Files.setLastModifiedTime(unusedFile, FileTime.fromMillis(System.currentTimeMillis() - 10_000))
+    query.targetsOf(project, "other/Other.java")
+
+    // when
+    val targets = query.targetsOf(project, "other/Unused.java")
+
+    // then
+    targets shouldBe emptyList()
+    queriedPatterns shouldBe listOf("//other:*")
+  }
+
+  @Test
+  fun `should not query for a file which does not exist`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val query = InverseSourcesQuery { pattern, _, _ -> runPackagesQuery(pattern) }
+
+    // when
+    val targets = query.targetsOf(project, "app/Missing.java")
+
+    // then
+    targets shouldBe emptyList()
+    queriedPatterns shouldBe emptyList()
+  }
+
+  @Test
+  fun `should finish the query for the other requests when the request running it is cancelled`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val queryStarted = CountDownLatch(1)
+    val finishQuery = CountDownLatch(1)
+    val queryCancelled = AtomicBoolean(false)
+    val query = blockingQuery(queryStarted, finishQuery, queryCancelled)
+    val runningRequest = CancellableRequest()
+    val waitingRequest = CancellableRequest()
+
+    // when
+    val runningThread = query.request(project, "app/Main.java", runningRequest)
+    queryStarted.await(10, TimeUnit.SECONDS) shouldBe true
+    val waitingThread = query.request(project, "app/sub/Util.java", waitingRequest)
+    waitingThread.awaitWaiting()
+    runningRequest.cancel()
+    Thread.sleep(100)
+    finishQuery.countDown()
+    listOf(runningThread, waitingThread).forEach { it.join(10_000) }
+
+    // then
+    queryCancelled.get() shouldBe false
+    waitingRequest.result?.getOrNull() shouldBe listOf(BuildTargetIdentifier("@//app:app"))
+    runningRequest.wasCancelled shouldBe true
+  }
+
+  @Test
+  fun `should stop waiting for the query when the waiting request is cancelled`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val queryStarted = CountDownLatch(1)
+    val finishQuery = CountDownLatch(1)
+    val queryCancelled = AtomicBoolean(false)
+    val query = blockingQuery(queryStarted, finishQuery, queryCancelled)
+    val runningRequest = CancellableRequest()
+    val waitingRequest = CancellableRequest()
+
+    // when
+    val runningThread = query.request(project, "app/Main.java", runningRequest)
+    queryStarted.await(10, TimeUnit.SECONDS) shouldBe true
+    val waitingThread = query.request(project, "app/sub/Util.java", waitingRequest)
+    waitingThread.awaitWaiting()
+    waitingRequest.cancel()
+    waitingThread.join(10_000)
+    finishQuery.countDown()
+    runningThread.join(10_000)
+
+    // then
+    waitingRequest.wasCancelled shouldBe true
+    queryCancelled.get() shouldBe false
+    runningRequest.result?.getOrNull() shouldBe listOf(BuildTargetIdentifier("@//app:app"))
+  }
+
+  @Test
+  fun `should cancel the query once every request waiting for it is cancelled`(
+    @TempDir workspaceRoot: Path,
+  ) {
+    // given
+    createWorkspace(workspaceRoot)
+    val project = project(workspaceRoot)
+    val queryStarted = CountDownLatch(1)
+    val queryCancelled = AtomicBoolean(false)
+    val query = blockingQuery(queryStarted, CountDownLatch(1), queryCancelled)
+    val runningRequest = CancellableRequest()
+    val waitingRequest = CancellableRequest()
+
+    // when
+    val runningThread = query.request(project, "app/Main.java", runningRequest)
+    queryStarted.await(10, TimeUnit.SECONDS) shouldBe true
+    val waitingThread = query.request(project, "app/sub/Util.java", waitingRequest)
+    waitingThread.awaitWaiting()
+    runningRequest.cancel()
+    waitingRequest.cancel()
+    listOf(runningThread, waitingThread).forEach { it.join(10_000) }
+
+    // then
+    queryCancelled.get() shouldBe true
+    runningRequest.wasCancelled shouldBe true
+    waitingRequest.wasCancelled shouldBe true
+  }
+}
@@ -0,0 +1,227 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import io.kotest.matchers.shouldBe
+import org.eclipse.lsp4j.jsonrpc.CancelChecker
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.server.model.Project
+import org.junit.jupiter.api.Test
+import java.net.URI
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class ProjectProviderTest {
+  private class FakeProjectStorage(private val snapshot: Project?) : ProjectStorage {
+    val stored = CountDownLatch(1)
+
+    @Volatile
+    var storedProject: Project? = null
+
+    @Volatile
+    var storingThread: String? = null
+
+    override fun load(): Project? = snapshot
+
+    override fun store(project: Project) {
+      storedProject = project
+      storingThread = Thread.currentThread().name
+      stored.countDown()
+    }
+  }
+
+  private val noCancel = CancelChecker { }
+
+  private fun project(name: String) =
+    Project(
+      workspaceRoot = URI.create("file:///$name/"),
+      modules = emptyList(),
+      sourceToTarget = emptyMap(),
+      libraries = emptyMap(),
+      invalidTargets = emptyList(),
+      bazelRelease = BazelRelease(7),
+    )
+
+  private fun runUntilCancelled(cancelChecker: CancelChecker): Nothing {
+    while (true) {
+      cancelChecker.checkCanceled()
+      Thread.sleep(10)
+    }
+  }
+
+  @Test
+  fun `should return the refreshed project instead of the snapshot on the first sync`() {
+    // given
+    val snapshot = project("snapshot")
+    val refreshed = project("refreshed")
+    val resolveCalls = AtomicInteger()
+    val provider =
+      ProjectProvider(
+        resolveProject = { _, _ -> refreshed.also { resolveCalls.incrementAndGet() } },
+        releaseMemory = {},
+        projectStorage = FakeProjectStorage(snapshot),
+      )
+
+    // when
+    val firstSync = provider.refreshAndGet(noCancel, build = false)
+
+    // then
+    firstSync shouldBe refreshed
+    resolveCalls.get() shouldBe 1
+  }
+
+  @Test
+  fun `should serve the snapshot to other requests while the first sync waits for the refresh`() {
+    // given
+    val snapshot = project("snapshot")
+    val refreshed = project("refreshed")
+    val resolveCalls = AtomicInteger()
+    val refreshStarted = CountDownLatch(1)
+    val finishRefresh = CountDownLatch(1)
+    val provider =
+      ProjectProvider(
+        resolveProject = { _, _ ->
+          resolveCalls.incrementAndGet()
+          refreshStarted.countDown()
+          finishRefresh.await()
+          refreshed
+        },
+        releaseMemory = {},
+        projectStorage = FakeProjectStorage(snapshot),
+      )
+
+    // when
+    val firstSync = CompletableFuture.supplyAsync { provider.refreshAndGet(noCancel, build = false) }
+    refreshStarted.await(10, TimeUnit.SECONDS) shouldBe true
+    val projectDuringRefresh = provider.get(noCancel)
+    val secondSync = CompletableFuture.supplyAsync { provider.refreshAndGet(noCancel, build = false) }
+    finishRefresh.countDown()
+
+    // then
+    projectDuringRefresh shouldBe snapshot
+    firstSync.get(10, TimeUnit.SECONDS) shouldBe refreshed
+    secondSync.get(10, TimeUnit.SECONDS) shouldBe refreshed
+  }
+
+  @Test
+  fun `should resolve the project on the first sync if the background refresh failed`() {
+    // given
+    val resolved = project("resolved")
+    val resolveCalls = AtomicInteger()
+    val provider =
+      ProjectProvider(
+        resolveProject = { _, _ ->
+          if (resolveCalls.incrementAndGet() == 1) throw IllegalStateException("bazel failed")
+          resolved
+        },
+        releaseMemory = {},
+        projectStorage = FakeProjectStorage(project("snapshot")),
+      )
+
+    // when
+    val firstSync = provider.refreshAndGet(noCancel, build = false)
+
+    // then
+    firstSync shouldBe resolved
+    resolveCalls.get() shouldBe 2
+  }
+
+  @Test
+  fun `should cancel the background refresh when a sync builds the targets`() {
+    // given
+    val built = project("built")
+    val refreshStarted = CountDownLatch(1)
+    val refreshCancelled = AtomicBoolean(false)
+    val provider =
+      ProjectProvider(
+        resolveProject = { cancelChecker, build ->
+          if (build) {
+            built
+          } else {
+            refreshStarted.countDown()
+            try {
+              runUntilCancelled(cancelChecker)
+            } catch (e: CancellationException) {
+              refreshCancelled.set(true)
+              throw e
+            }
+          }
+        },
+        releaseMemory = {},
+        projectStorage = FakeProjectStorage(project("snapshot")),
+      )
+    provider.get(noCancel)
+    refreshStarted.await(10, TimeUnit.SECONDS) shouldBe true
+
+    // when
+    val buildSync = CompletableFuture.supplyAsync { provider.refreshAndGet(noCancel, build = true) }
+
+    // then
+    buildSync.get(10, TimeUnit.SECONDS) shouldBe built
+    refreshCancelled.get() shouldBe true
+    provider.get(noCancel) shouldBe built
+  }
+
+  @Test
+  fun `should resolve the project if there is no snapshot`() {
+    // given
+    val resolved = project("resolved")
+    val provider =
+      ProjectProvider(
+        resolveProject = { _, _ -> resolved },
+        releaseMemory = {},
+        projectStorage = FakeProjectStorage(null),
+      )
+
+    // when
+    val project = provider.refreshAndGet(noCancel, build = false)
+
+    // then
+    project shouldBe resolved
+  }
+
+  @Test
+  fun `should store the resolved project off the syncing thread`() {
+    // given
+    val resolved = project("resolved")
+    val storage = FakeProjectStorage(null)
+    val provider =
+      ProjectProvider(
+        resolveProject = { _, _ -> resolved },
+        releaseMemory = {},
+        projectStorage = storage,
+      )
+
+    // when
+    provider.refreshAndGet(noCancel, build = false)
+
+    // then
+    storage.stored.await(10, TimeUnit.SECONDS) shouldBe true
+    storage.storedProject shouldBe resolved
+    storage.storingThread shouldBe "project-snapshot-writer"
+  }
+
+  @Test
+  fun `should resolve the project again instead of using the snapshot once it is invalidated`() {
+    // given
+    val resolved = project("resolved")
+    val resolveCalls = AtomicInteger()
+    val provider =
+      ProjectProvider(
+        resolveProject = { _, _ -> resolved.also { resolveCalls.incrementAndGet() } },
+        releaseMemory = {},
+        projectStorage = FakeProjectStorage(project("snapshot")),
+      )
+    provider.refreshAndGet(noCancel, build = false)
+
+    // when
+    provider.invalidate()
+    val project = provider.get(noCancel)
+
+    // then
+    project shouldBe resolved
+    resolveCalls.get() shouldBe 2
+  }
+}
@@ -0,0 +1,109 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import io.kotest.matchers.shouldBe
+import org.jetbrains.bsp.bazel.bazelrunner.utils.BazelRelease
+import org.jetbrains.bsp.bazel.server.model.Label
+import org.jetbrains.bsp.bazel.server.model.Language
+import org.jetbrains.bsp.bazel.server.model.Library
+import org.jetbrains.bsp.bazel.server.model.Module
+import org.jetbrains.bsp.bazel.server.model.Project
+import org.jetbrains.bsp.bazel.server.model.SourceSet
+import org.jetbrains.bsp.bazel.server.model.Tag
+import org.jetbrains.bsp.bazel.server.sync.languages.java.JavaModule
+import org.jetbrains.bsp.bazel.server.sync.languages.java.Jdk
+import org.jetbrains.bsp.bazel.server.sync.languages.kotlin.KotlinModule
+import org.jetbrains.bsp.bazel.server.sync.languages.python.PythonModule
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.net.URI
+
+class ProjectSnapshotCodecTest {
+  private val workspaceRoot = URI.create("file:///workspace/")
+
+  @Test
+  fun `should read the same project as written`() {
+    // given
+    val javaModule =
+      JavaModule(
+        jdk = Jdk("17", URI.create("file:///jdk17/")),
+        runtimeJdk = null,
+        javacOpts = listOf("-Xlint:all"),
+        jvmOps = emptyList(),
+        mainOutput = URI.create("file:///bazel-out/bin/app/libapp.jar"),
+        binaryOutputs = listOf(URI.create("file:///bazel-out/bin/app/libapp.jar")),
+        mainClass = "app.Main",
+        args = listOf("--verbose"),
+      )
+    val kotlinModule =
+      Module(
+        label = Label.parse("//app:app"),
+        isSynthetic = false,
+        directDependencies = listOf(Label.parse("@maven//:guava"), Label.parse("//lib:lib")),
+        languages = setOf(Language.KOTLIN, Language.JAVA),
+        tags = setOf(Tag.APPLICATION),
+        baseDirectory = workspaceRoot.resolve("app/"),
+        sourceSet =
+          SourceSet(
+            sources = setOf(workspaceRoot.resolve("app/Main.kt")),
+            generatedSources = emptySet(),
+            sourceRoots = setOf(workspaceRoot.resolve("app/")),
+          ),
+        resources = emptySet(),
+        outputs = setOf(URI.create("file:///bazel-out/bin/app/libapp.jar")),
+        sourceDependencies = emptySet(),
+        languageData = KotlinModule("1.9", "1.9", listOf("-Xjsr305=strict"), emptyList(), javaModule),
+        environmentVariables = mapOf("KEY" to "value"),
+      )
+    val pythonModule =
+      Module(
+        label = Label.parse("//lib:lib"),
+        isSynthetic = false,
+        directDependencies = emptyList(),
+        languages = setOf(Language.PYTHON),
+        tags = setOf(Tag.LIBRARY),
+        baseDirectory = workspaceRoot.resolve("lib/"),
+        sourceSet =
+          SourceSet(
+            sources = setOf(workspaceRoot.resolve("lib/lib.py")),
+            generatedSources = emptySet(),
+            sourceRoots = setOf(workspaceRoot.resolve("lib/")),
+          ),
+        resources = emptySet(),
+        outputs = emptySet(),
+        sourceDependencies = emptySet(),
+        languageData = PythonModule(interpreter = null, version = "PY3"),
+        environmentVariables = emptyMap(),
+      )
+    val guava =
+      Library(
+        label = Label.parse("@maven//:guava"),
+        outputs = setOf(URI.create("file:///external/maven/guava.jar")),
+        sources = setOf(URI.create("file:///external/maven/guava-sources.jar")),
+        dependencies = emptyList(),
+      )
+    val project =
+      Project(
+        workspaceRoot = workspaceRoot,
+        modules = listOf(kotlinModule, pythonModule),
+        sourceToTarget =
+          mapOf(
+            workspaceRoot.resolve("app/Main.kt") to kotlinModule.label,
+            workspaceRoot.resolve("lib/lib.py") to pythonModule.label,
+          ),
+        libraries = mapOf(guava.label to guava),
+        invalidTargets = listOf(Label.parse("//broken:target")),
+        bazelRelease = BazelRelease(7),
+      )
+
+    // when
+    val bytes = ByteArrayOutputStream()
+    DataOutputStream(bytes).use { ProjectSnapshotCodec.write(project, it) }
+    val readProject = ProjectSnapshotCodec.read(DataInputStream(ByteArrayInputStream(bytes.toByteArray())))
+
+    // then
+    readProject shouldBe project
+  }
+}
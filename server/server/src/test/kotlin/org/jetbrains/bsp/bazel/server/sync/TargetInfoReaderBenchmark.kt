@@ -0,0 +1,115 @@
+package org.jetbrains.bsp.bazel.server.sync
+
+import ch.epfl.scala.bsp4j.BuildClient
+import ch.epfl.scala.bsp4j.DidChangeBuildTarget
+import ch.epfl.scala.bsp4j.LogMessageParams
+import ch.epfl.scala.bsp4j.PrintParams
+import ch.epfl.scala.bsp4j.PublishDiagnosticsParams
+import ch.epfl.scala.bsp4j.ShowMessageParams
+import ch.epfl.scala.bsp4j.TaskFinishParams
+import ch.epfl.scala.bsp4j.TaskProgressParams
+import ch.epfl.scala.bsp4j.TaskStartParams
+import com.google.protobuf.TextFormat
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.Dependency
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.FileLocation
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.JvmOutputs
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.JvmTargetInfo
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.TargetInfo
+import org.jetbrains.bsp.bazel.logger.BspClientLogger
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.io.path.writeText
+import kotlin.system.measureTimeMillis
+
+/**
+ * Compares parsing aspect outputs in the text format with reading them from the binary cache.
+ *
+ * Usage: `bazel run //server/server/src/test/kotlin/org/jetbrains/bsp/bazel/server/sync:TargetInfoReaderBenchmark -- [targets]`
+ */
+fun main(args: Array<String>) {
+  val targetsCount = args.firstOrNull()?.toInt() ?: 50_000
+  val corpusDir = Files.createTempDirectory("target-info-corpus")
+  val cacheFile = corpusDir.resolve("cache").resolve("target-info-cache.bin")
+  val files = generateCorpus(corpusDir, targetsCount)
+  val logger = BspClientLogger(NoOpBuildClient())
+
+  repeat(WARMUP_ITERATIONS) { TargetInfoReader(logger).readTargetMapFromAspectOutputs(files) }
+  val textFormatMillis =
+    (1..MEASURED_ITERATIONS).map {
+      measureTimeMillis { TargetInfoReader(logger).readTargetMapFromAspectOutputs(files) }
+    }
+
+  TargetInfoReader(logger, cacheFile).readTargetMapFromAspectOutputs(files)
+  repeat(WARMUP_ITERATIONS) { TargetInfoReader(logger, cacheFile).readTargetMapFromAspectOutputs(files) }
+  val binaryCacheMillis =
+    (1..MEASURED_ITERATIONS).map {
+      measureTimeMillis { TargetInfoReader(logger, cacheFile).readTargetMapFromAspectOutputs(files) }
+    }
+
+  println("Target infos: $targetsCount, binary cache size: ${Files.size(cacheFile) / 1024} KiB")
+  println("Text format:  ${textFormatMillis.average()} ms (min ${textFormatMillis.min()} ms)")
+  println("Binary cache: ${binaryCacheMillis.average()} ms (min ${binaryCacheMillis.min()} ms)")
+  corpusDir.toFile().deleteRecursively()
+}
+
+private const val WARMUP_ITERATIONS = 3
+private const val MEASURED_ITERATIONS = 5
+
+private fun generateCorpus(directory: Path, targetsCount: Int): Set<Path> =
+  (0 until targetsCount)
+    .map { index ->
+      val file = directory.resolve("bsp.target$index.bsp-info.textproto")
+      file.writeText(TextFormat.printer().printToString(generateTargetInfo(index)))
+      file
+    }.toSet()
+
+private fun generateTargetInfo(index: Int): TargetInfo {
+  val packagePath = "src/main/java/com/example/package${index / 10}"
+  return TargetInfo
+    .newBuilder()
+    .setId("@//$packagePath:target$index")
+    .setKind("java_library")
+    .addAllDependencies(
+      (1..5).map { Dependency.newBuilder().setId("@//$packagePath:target${index + it}").build() },
+    ).addAllSources((1..10).map { fileLocation("$packagePath/Class${index}_$it.java", isSource = true) })
+    .setJvmTargetInfo(
+      JvmTargetInfo
+        .newBuilder()
+        .addJars(
+          JvmOutputs
+            .newBuilder()
+            .addBinaryJars(fileLocation("$packagePath/libtarget$index.jar"))
+            .addInterfaceJars(fileLocation("$packagePath/libtarget$index-hjar.jar"))
+            .addSourceJars(fileLocation("$packagePath/libtarget$index-src.jar")),
+        ).addAllJavacOpts(listOf("-source", "17", "-target", "17", "-Xlint:all"))
+        .addJdeps(fileLocation("$packagePath/libtarget$index.jdeps")),
+    ).build()
+}
+
+private fun fileLocation(path: String, isSource: Boolean = false): FileLocation =
+  FileLocation
+    .newBuilder()
+    .setRelativePath(path)
+    .setIsSource(isSource)
+    .setRootExecutionPathFragment(if (isSource) "" else "bazel-out/k8-fastbuild/bin")
+    .build()
+
+private class NoOpBuildClient : BuildClient {
+  override fun onBuildShowMessage(params: ShowMessageParams?) {}
+
+  override fun onBuildLogMessage(params: LogMessageParams?) {}
+
+  override fun onBuildPublishDiagnostics(params: PublishDiagnosticsParams?) {}
+
+  override fun onBuildTargetDidChange(params: DidChangeBuildTarget?) {}
+
+  override fun onBuildTaskStart(params: TaskStartParams?) {}
+
+  override fun onBuildTaskProgress(params: TaskProgressParams?) {}
+
+  override fun onBuildTaskFinish(params: TaskFinishParams?) {}
+
+  override fun onRunPrintStdout(params: PrintParams?) {}
+
+  override fun onRunPrintStderr(params: PrintParams?) {}
+}
@@ -0,0 +1,78 @@
+package org.jetbrains.bsp.bazel.server.sync.dependencygraph
+
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.Dependency
+import org.jetbrains.bsp.bazel.info.BspTargetInfo.TargetInfo
+import org.jetbrains.bsp.bazel.server.dependencygraph.DependencyGraph
+import org.jetbrains.bsp.bazel.server.model.Label
+import kotlin.random.Random
+import kotlin.system.measureTimeMillis
+
+/**
+ * Measures time and retained heap of [DependencyGraph] on a synthetic layered graph.
+ *
+ * Usage: `bazel run //server/server/src/test/kotlin/org/jetbrains/bsp/bazel/server/sync/dependencygraph:DependencyGraphBenchmark -- [nodes]`
+ */
+fun main(args: Array<String>) {
+  val nodesCount = args.firstOrNull()?.toInt() ?: 100_000
+  val idToTargetInfo = generateGraph(nodesCount)
+  val rootTargets = idToTargetInfo.keys.take(nodesCount / 10).toSet()
+  val queriedTargets = idToTargetInfo.keys.drop(nodesCount / 2).take(QUERIED_TARGETS)
+  val heapBefore = usedHeap()
+
+  lateinit var graph: DependencyGraph
+  val constructionMillis = measureTimeMillis { graph = DependencyGraph(rootTargets, idToTargetInfo) }
+  val allTargets: Set<TargetInfo>
+  val allTargetsMillis = measureTimeMillis { allTargets = graph.allTargetsAtDepth(-1, rootTargets) }
+  var transitiveDependenciesCount = 0L
+  val transitiveDependenciesMillis =
+    measureTimeMillis {
+      queriedTargets.forEach { transitiveDependenciesCount += graph.transitiveDependenciesWithoutRootTargets(it).size }
+    }
+  val heapAfter = usedHeap()
+
+  println("Nodes: $nodesCount, edges: ${idToTargetInfo.values.sumOf { it.dependenciesCount }}")
+  println("Construction: $constructionMillis ms")
+  println("allTargetsAtDepth(-1): $allTargetsMillis ms, ${allTargets.size} targets")
+  println(
+    "transitiveDependenciesWithoutRootTargets for ${queriedTargets.size} targets: $transitiveDependenciesMillis ms, " +
+      "$transitiveDependenciesCount targets in total",
+  )
+  println("Retained heap: ${(heapAfter - heapBefore) / (1024 * 1024)} MiB")
+}
+
+private const val LAYERS = 50
+private const val DEPENDENCIES_PER_TARGET = 8
+private const val QUERIED_TARGETS = 1000
+
+// every target depends on random targets from the next layers, like a real build graph with roots at the top
+private fun generateGraph(nodesCount: Int): Map<Label, TargetInfo> {
+  val random = Random(0)
+  val layerSize = nodesCount / LAYERS
+  return (0 until nodesCount).associate { index ->
+    val layer = index / layerSize
+    val dependencies =
+      if (layer >= LAYERS - 1) {
+        emptyList()
+      } else {
+        (1..DEPENDENCIES_PER_TARGET).map {
+          val dependencyLayer = random.nextInt(layer + 1, minOf(layer + 4, LAYERS))
+          label(dependencyLayer * layerSize + random.nextInt(layerSize))
+        }
+      }
+    val targetInfo =
+      TargetInfo
+        .newBuilder()
+        .setId(label(index))
+        .addAllDependencies(dependencies.map { Dependency.newBuilder().setId(it).build() })
+        .build()
+    Label.parse(targetInfo.id) to targetInfo
+  }
+}
+
+private fun label(index: Int): String = "@//package${index / 100}:target$index"
+
+private fun usedHeap(): Long {
+  repeat(3) { System.gc() }
+  val runtime = Runtime.getRuntime()
+  return runtime.totalMemory() - runtime.freeMemory()
+}
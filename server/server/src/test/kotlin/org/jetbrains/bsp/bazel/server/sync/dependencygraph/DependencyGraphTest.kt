@@ -582,6 +582,99 @@ class DependencyGraphTest {
       val expectedDependencies = setOf(a, b, c, d, e, f, g)
       dependencies shouldBe expectedDependencies
     }
+
+    @Test
+    fun `should return all targets once for graph with a cycle`() {
+      // given
+      val a = targetInfo("//A", listOf("//b"))
+      val b = targetInfo("//b", listOf("//c", "//c"))
+      val c = targetInfo("//c", listOf("//A", "//d"))
+      val d = targetInfo("//d")
+      val idToTargetInfo = toIdToTargetInfoMap(a, b, c, d)
+      val rootTargets = setOf(Label.parse("//A"))
+      val dependencyGraph = DependencyGraph(rootTargets, idToTargetInfo)
+
+      // when
+      val dependencies = dependencyGraph.allTargetsAtDepth(-1, setOf(Label.parse("//b")))
+
+      // then
+      dependencies shouldBe setOf(a, b, c, d)
+    }
+  }
+
+  @Nested
+  @DisplayName("DependencyGraph.transitiveReverseDependencies")
+  inner class TransitiveReverseDependenciesTest {
+    @Test
+    fun `should return only given targets if nothing depends on them`() {
+      // given
+      val a = targetInfo("//A", listOf("//B"))
+      val b = targetInfo("//B")
+      val idToTargetInfo = toIdToTargetInfoMap(a, b)
+      val dependencyGraph = DependencyGraph(setOf(Label.parse("//A")), idToTargetInfo)
+
+      // when
+      val reverseDependencies = dependencyGraph.transitiveReverseDependencies(setOf(Label.parse("//A")))
+
+      // then
+      reverseDependencies shouldBe setOf(Label.parse("//A"))
+    }
+
+    @Test
+    fun `should return all targets depending on given targets directly or transitively`() {
+      // graph:
+      // '?' - queried target
+      // '+' - should be returned
+      // '-' - shouldn't be returned
+      // ┌─┐ ┌─┐
+      // │A│ │E│
+      // │+│ │-│
+      // └┬┘ └┬┘
+      // ┌▽┐ ┌▽┐
+      // │B│ │F│
+      // │+│ │-│
+      // └┬┘ └─┘
+      // ┌▽─┐
+      // │C │
+      // │+?│
+      // └┬─┘
+      // ┌▽┐
+      // │D│
+      // │-│
+      // └─┘
+
+      // given
+      val a = targetInfo("//A", listOf("//B"))
+      val b = targetInfo("//B", listOf("//C"))
+      val c = targetInfo("//C", listOf("//D"))
+      val d = targetInfo("//D")
+      val e = targetInfo("//E", listOf("//F"))
+      val f = targetInfo("//F")
+      val idToTargetInfo = toIdToTargetInfoMap(a, b, c, d, e, f)
+      val rootTargets = setOf(Label.parse("//A"), Label.parse("//E"))
+      val dependencyGraph = DependencyGraph(rootTargets, idToTargetInfo)
+
+      // when
+      val reverseDependencies = dependencyGraph.transitiveReverseDependencies(setOf(Label.parse("//C")))
+
+      // then
+      reverseDependencies shouldBe setOf(Label.parse("//A"), Label.parse("//B"), Label.parse("//C"))
+    }
+
+    @Test
+    fun `should return targets depending on a target which is not in the graph anymore`() {
+      // given
+      val a = targetInfo("//A", listOf("//removed"))
+      val b = targetInfo("//B")
+      val idToTargetInfo = toIdToTargetInfoMap(a, b)
+      val dependencyGraph = DependencyGraph(setOf(Label.parse("//A"), Label.parse("//B")), idToTargetInfo)
+
+      // when
+      val reverseDependencies = dependencyGraph.transitiveReverseDependencies(setOf(Label.parse("//removed")))
+
+      // then
+      reverseDependencies shouldBe setOf(Label.parse("//A"), Label.parse("//removed"))
+    }
   }
 
   private fun targetInfo(id: String, dependenciesIds: List<String> = listOf()): TargetInfo {